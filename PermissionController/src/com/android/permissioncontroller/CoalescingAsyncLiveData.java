@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.WorkerThread;
+import androidx.lifecycle.LiveData;
+
+/**
+ * {@link LiveData} that loads its value on a background thread.
+ *
+ * <p>At most one load is in flight at a time. Loads requested while a load is in flight are
+ * coalesced into a single load that starts once the current one finished. Values of loads that
+ * were superseded by a later request or cancelled are dropped. A load that throws keeps the
+ * current value.
+ *
+ * <p>As loads never overlap, {@link #loadValueInBackground()} may keep state between loads without
+ * synchronization.
+ *
+ * @param <T> type of the value
+ */
+public abstract class CoalescingAsyncLiveData<T> extends LiveData<T> {
+
+    private static final String LOG_TAG = CoalescingAsyncLiveData.class.getSimpleName();
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Incremented for every requested and cancelled load, only the value of a load of the current
+     * generation is set.
+     */
+    private int mGeneration;
+
+    private boolean mIsLoading;
+
+    private boolean mIsLoadPending;
+
+    /**
+     * Load the value on a background thread. The value will be reloaded even if already loaded.
+     *
+     * <p>If a load is already in flight, its value is dropped and a single new load is started
+     * after it finished, no matter how often this is called in the meantime.
+     */
+    @MainThread
+    public void loadValue() {
+        mGeneration++;
+
+        if (mIsLoading) {
+            mIsLoadPending = true;
+            return;
+        }
+
+        startLoad();
+    }
+
+    /**
+     * Cancel the load in flight and all pending loads. The value stays unchanged.
+     */
+    @MainThread
+    public void cancelLoad() {
+        mGeneration++;
+        mIsLoadPending = false;
+    }
+
+    @MainThread
+    private void startLoad() {
+        mIsLoading = true;
+
+        int generation = mGeneration;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            try {
+                T value = loadValueInBackground();
+                sMainHandler.post(() -> onLoadFinished(generation, true, value));
+            } catch (RuntimeException e) {
+                // A failed load must still finish, otherwise no later load would ever start
+                Log.e(LOG_TAG, "Could not load value of " + getClass().getSimpleName(), e);
+                sMainHandler.post(() -> onLoadFinished(generation, false, null));
+            }
+        });
+    }
+
+    @MainThread
+    private void onLoadFinished(int generation, boolean isLoaded, T value) {
+        mIsLoading = false;
+
+        if (isLoaded && generation == mGeneration) {
+            setValue(value);
+        }
+
+        if (mIsLoadPending) {
+            mIsLoadPending = false;
+            startLoad();
+        }
+    }
+
+    @WorkerThread
+    protected abstract T loadValueInBackground();
+}
@@ -146,6 +146,12 @@ public class Constants {
      */
     public static final String DELAYED_RESTORE_PERMISSIONS_FILE = "delayed_restore_permissions.xml";
 
+    /**
+     * Name of directory containing one file per package with the permissions that should be
+     * restored, but have not been restored yet.
+     */
+    public static final String DELAYED_RESTORE_PERMISSIONS_DIR = "delayed_restore_permissions";
+
     /**
      * Name of file containing the user denied status for requesting roles.
      */
@@ -17,21 +17,61 @@
 package com.android.permissioncontroller
 
 import android.util.Log
+import androidx.annotation.GuardedBy
 import com.android.permissioncontroller.Constants.LOGS_TO_DUMP_FILE
+import kotlinx.coroutines.Dispatchers.IO
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
 import java.io.File
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
 
 /**
  * Like {@link Log} but stores the logs in a file which can later be dumped via {@link #dump}
+ *
+ * <p>Logging never blocks on disk I/O: Entries are added to an in-memory ring buffer without
+ * locking and written to disk in batches by a background writer. On disk the log is split into
+ * two segments, when the current segment is full it replaces the previous one.
  */
 object DumpableLog {
-    private const val MAX_FILE_SIZE = 64 * 1024
+    /** Maximum size of a single log segment on disk */
+    private const val MAX_SEGMENT_SIZE = 32 * 1024
 
-    private val lock = Any()
-    private val file = File(PermissionControllerApplication.get().filesDir, LOGS_TO_DUMP_FILE)
+    /** Number of entries that can be buffered in memory before entries are dropped */
+    private const val BUFFER_SIZE = 256
 
-    init {
-        file.createNewFile()
-    }
+    /** Maximum length of a single entry, longer entries are truncated */
+    private const val MAX_ENTRY_LENGTH = 4 * 1024
+
+    /** How long to wait before writing buffered entries, so that writes are batched */
+    private const val FLUSH_DELAY_MILLIS = 500L
+
+    private val filesDir = PermissionControllerApplication.get().filesDir
+
+    /** The segment currently written to */
+    private val file = File(filesDir, LOGS_TO_DUMP_FILE)
+
+    /** The previous segment */
+    private val previousFile = File(filesDir, "$LOGS_TO_DUMP_FILE.1")
+
+    /** Lock for the files on disk */
+    private val fileLock = Any()
+
+    /** Entries not yet written to disk, the entry with sequence number n is at n % BUFFER_SIZE */
+    private val buffer = AtomicReferenceArray<Entry?>(BUFFER_SIZE)
+
+    /** Sequence number of the next entry to be added */
+    private val nextSeq = AtomicLong()
+
+    /** Sequence number of the first entry not yet written to disk */
+    @GuardedBy("fileLock")
+    private var flushedSeq = 0L
+
+    /** If a flush of the buffer is already scheduled */
+    private val isFlushScheduled = AtomicBoolean()
 
     /**
      * Equivalent to {@link Log.v}
@@ -74,26 +114,119 @@ object DumpableLog {
     }
 
     private fun addLogToDump(level: String, tag: String, message: String, exception: Throwable?) {
-        synchronized(lock) {
-            // TODO: Needs to be replaced by proper log rotation
-            if (file.length() > MAX_FILE_SIZE) {
-                val dump = file.readLines()
+        val text = ("${System.currentTimeMillis()} $tag:$level $message " +
+                "${exception?.let { it.message + Log.getStackTraceString(it) } ?: ""}")
+                .take(MAX_ENTRY_LENGTH)
 
-                file.writeText("truncated at ${System.currentTimeMillis()}\n")
-                dump.subList(dump.size / 2, dump.size).forEach { file.appendText(it + "\n") }
+        val seq = nextSeq.getAndIncrement()
+        buffer.set((seq % BUFFER_SIZE).toInt(), Entry(seq, text))
+
+        if (isFlushScheduled.compareAndSet(false, true)) {
+            GlobalScope.launch(IO) {
+                delay(FLUSH_DELAY_MILLIS)
+                isFlushScheduled.set(false)
+
+                synchronized(fileLock) {
+                    flushLocked()
+                }
             }
+        }
+    }
 
-            file.appendText("${System.currentTimeMillis()} $tag:$level $message " +
-                    "${exception?.let { it.message + Log.getStackTraceString(it) } ?: ""}\n")
+    /**
+     * Collect the buffered entries starting at {@link #flushedSeq}.
+     *
+     * @param lines the list to add the entries to
+     *
+     * @return the sequence number of the first entry that was not collected
+     */
+    @GuardedBy("fileLock")
+    private fun collectBufferedLocked(lines: MutableList<String>): Long {
+        val end = nextSeq.get()
+        var numDropped = 0
+        var seq = flushedSeq
+
+        while (seq < end) {
+            val entry = buffer.get((seq % BUFFER_SIZE).toInt())
+            if (entry == null || entry.seq < seq) {
+                // Sequence number reserved but entry not yet added, collect it next time
+                break
+            }
+
+            if (entry.seq > seq) {
+                // Entry was overwritten before it could be written to disk
+                numDropped++
+            } else {
+                if (numDropped > 0) {
+                    lines.add("${System.currentTimeMillis()} dropped $numDropped entries")
+                    numDropped = 0
+                }
+                lines.add(entry.text)
+            }
+            seq++
         }
+
+        if (numDropped > 0) {
+            lines.add("${System.currentTimeMillis()} dropped $numDropped entries")
+        }
+
+        return seq
+    }
+
+    /**
+     * Write all buffered entries to disk
+     */
+    @GuardedBy("fileLock")
+    private fun flushLocked() {
+        val lines = mutableListOf<String>()
+        val nextFlushedSeq = collectBufferedLocked(lines)
+        if (lines.isEmpty()) {
+            flushedSeq = nextFlushedSeq
+            return
+        }
+
+        val batch = lines.joinToString(separator = "\n", postfix = "\n")
+
+        try {
+            if (file.length() + batch.length > MAX_SEGMENT_SIZE) {
+                file.renameTo(previousFile)
+            }
+
+            file.appendText(batch)
+        } catch (e: IOException) {
+            Log.e(DumpableLog::class.java.simpleName, "Could not write $file", e)
+        }
+
+        flushedSeq = nextFlushedSeq
     }
 
     /**
      * @return the previously logged entries
      */
     suspend fun get(): List<String> {
-        synchronized(lock) {
-            return file.readLines()
+        synchronized(fileLock) {
+            val lines = mutableListOf<String>()
+
+            if (previousFile.exists()) {
+                lines.addAll(previousFile.readLines())
+            }
+            if (file.exists()) {
+                lines.addAll(file.readLines())
+            }
+
+            val buffered = mutableListOf<String>()
+            collectBufferedLocked(buffered)
+            buffered.forEach { lines.addAll(it.lines()) }
+
+            return lines
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * A single log entry
+     *
+     * @param seq The sequence number of the entry
+     * @param text The text of the entry
+     */
+    private class Entry(val seq: Long, val text: String)
+}
@@ -16,12 +16,19 @@
 
 package com.android.permissioncontroller;
 
+import android.app.ActivityManager;
 import android.app.Application;
 import android.content.ComponentName;
 import android.content.pm.PackageItemInfo;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.os.Trace;
 import android.util.ArrayMap;
 
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+import com.android.permissioncontroller.permission.utils.AppLabelIconCache;
 import com.android.permissioncontroller.role.model.Role;
 import com.android.permissioncontroller.role.model.Roles;
 import com.android.permissioncontroller.role.ui.SpecialAppAccessListActivity;
@@ -30,14 +37,62 @@ public final class PermissionControllerApplication extends Application {
 
     private static PermissionControllerApplication sInstance;
 
+    private StartupPreloader mPreloader;
+
     @Override
     public void onCreate() {
-        super.onCreate();
+        Trace.beginSection("PermissionControllerApplication.onCreate");
+        try {
+            super.onCreate();
+
+            sInstance = this;
+
+            PackageItemInfo.forceSafeLabels();
+
+            if (!getSystemService(ActivityManager.class).isLowRamDevice()) {
+                mPreloader = new StartupPreloader(this);
+                mPreloader.start();
+            }
+
+            Trace.beginSection("updateSpecialAppAccessListActivityEnabledState");
+            try {
+                updateSpecialAppAccessListActivityEnabledState();
+            } finally {
+                Trace.endSection();
+            }
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // The UI that started preloading the app labels was hidden
+        if (mPreloader != null && level >= TRIM_MEMORY_UI_HIDDEN) {
+            mPreloader.cancel();
+        }
 
-        sInstance = this;
+        AppLabelIconCache.INSTANCE.onTrimMemory(level);
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
 
-        PackageItemInfo.forceSafeLabels();
-        updateSpecialAppAccessListActivityEnabledState();
+        AppLabelIconCache.INSTANCE.onConfigurationChanged(newConfig);
+    }
+
+    /**
+     * Start preloading the labels of the apps shown by the settings UIs. Called when such a UI is
+     * started, as the process is often only started to service a short binder call.
+     */
+    @MainThread
+    public void preloadAppLabels() {
+        if (mPreloader != null) {
+            mPreloader.startAppLabels();
+        }
     }
 
     /**
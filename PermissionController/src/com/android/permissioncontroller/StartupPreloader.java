@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller;
+
+import android.app.Application;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Process;
+import android.os.UserHandle;
+import android.os.Trace;
+import android.permission.PermissionManager;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import com.android.permissioncontroller.permission.data.ForegroundPermNamesLiveData;
+import com.android.permissioncontroller.permission.utils.AppLabelIconCache;
+import com.android.permissioncontroller.permission.utils.Utils;
+
+import java.util.List;
+
+/**
+ * Warms up state most UIs of this app need, esp. the grant permissions dialog, on a background
+ * thread right after the process started.
+ *
+ * <p>Only cheap static state is preloaded for every process, as the process is often only started
+ * to service a short binder call. The labels of the apps are preloaded once a settings UI is
+ * started, and the preloading is cancelled once the UI is hidden.
+ */
+final class StartupPreloader {
+    private static final String LOG_TAG = StartupPreloader.class.getSimpleName();
+
+    private final @NonNull Application mApp;
+
+    private volatile boolean mIsCancelled;
+
+    /** Whether {@link #startAppLabels} was called, only accessed on the main thread */
+    private boolean mAreAppLabelsStarted;
+
+    /**
+     * Create a new preloader.
+     *
+     * @param app The current application
+     */
+    StartupPreloader(@NonNull Application app) {
+        mApp = app;
+    }
+
+    /**
+     * Start preloading on a new background thread.
+     */
+    void start() {
+        new Thread(this::preload, LOG_TAG).start();
+    }
+
+    /**
+     * Start preloading the app labels on a new background thread, unless this was already done.
+     */
+    @MainThread
+    void startAppLabels() {
+        if (mAreAppLabelsStarted) {
+            return;
+        }
+        mAreAppLabelsStarted = true;
+
+        new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runStep("AppLabels", this::preloadAppLabels);
+        }, LOG_TAG + ".AppLabels").start();
+    }
+
+    /**
+     * Stop preloading the app labels after the current package.
+     */
+    void cancel() {
+        mIsCancelled = true;
+    }
+
+    @WorkerThread
+    private void preload() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        // Static tables of platform permissions and groups
+        runStep("PlatformPermissionGroups", Utils::getPlatformPermissionGroups);
+
+        // Cached by the PermissionManager of the application context
+        runStep("SplitPermissions",
+                () -> mApp.getSystemService(PermissionManager.class).getSplitPermissions());
+
+        // Creating the LiveData starts loading its static value
+        runStep("ForegroundPermNames", () -> ForegroundPermNamesLiveData.INSTANCE.isInitialized());
+    }
+
+    /**
+     * Load the labels of the packages of the current user that request permissions into the
+     * {@link AppLabelIconCache}. Icons are not preloaded as they take too much memory.
+     */
+    @WorkerThread
+    private void preloadAppLabels() {
+        UserHandle user = Process.myUserHandle();
+        List<PackageInfo> pkgs = mApp.getPackageManager().getInstalledPackages(
+                PackageManager.GET_PERMISSIONS);
+
+        int numPkgs = pkgs.size();
+        for (int i = 0; i < numPkgs; i++) {
+            if (mIsCancelled) {
+                return;
+            }
+
+            PackageInfo pkg = pkgs.get(i);
+            if (pkg.requestedPermissions != null) {
+                AppLabelIconCache.INSTANCE.getLabel(mApp, pkg.packageName, user);
+            }
+        }
+    }
+
+    /**
+     * Run a preload step in its own trace section.
+     *
+     * @param name The name of the step
+     * @param step The step to run
+     */
+    private void runStep(@NonNull String name, @NonNull Runnable step) {
+        Trace.beginSection("StartupPreloader." + name);
+        try {
+            step.run();
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Could not preload " + name, e);
+        } finally {
+            Trace.endSection();
+        }
+    }
+}
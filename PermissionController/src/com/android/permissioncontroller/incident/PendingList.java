@@ -24,6 +24,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.IncidentManager;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 
@@ -99,6 +100,7 @@ class PendingList {
      * the duration of the update.
      */
     private static class Updater {
+        private final PendingList mState;
         private final Context mContext;
         private final int mFlags;
         private final NotificationManager mNm;
@@ -108,7 +110,8 @@ class PendingList {
         /**
          * Constructor.
          */
-        Updater(Context context, int flags) {
+        Updater(PendingList state, Context context, int flags) {
+            mState = state;
             mContext = context;
             mFlags = flags;
             mNm = context.getSystemService(NotificationManager.class);
@@ -119,6 +122,9 @@ class PendingList {
 
         /**
          * Perform the update.
+         *
+         * <p>Only notifications for reports that are new since the last update are posted and
+         * only notifications for reports that are no longer pending are canceled.
          */
         void updateState() {
             final IncidentManager incidentManager =
@@ -129,65 +135,65 @@ class PendingList {
             // cancel calls across reboots... but that's not an actual problem.
             final SharedPreferences prefs = mContext.getSharedPreferences(SHARED_PREFS_NAME,
                     Context.MODE_PRIVATE);
-            final Set<String> prevNotifications =
-                    prefs.getStringSet(SHARED_PREFS_KEY_NOTIFICATIONS, null);
-            final ArraySet<String> remainingNotifications = new ArraySet<String>();
-            if (prevNotifications != null) {
-                for (final String s: prevNotifications) {
-                    remainingNotifications.add(s);
+            if (mState.mPersistedNotifications == null) {
+                final Set<String> prevNotifications =
+                        prefs.getStringSet(SHARED_PREFS_KEY_NOTIFICATIONS, null);
+                mState.mPersistedNotifications = new ArraySet<String>();
+                if (prevNotifications != null) {
+                    mState.mPersistedNotifications.addAll(prevNotifications);
                 }
             }
+            final ArraySet<String> remainingNotifications =
+                    new ArraySet<String>(mState.mPersistedNotifications);
+            remainingNotifications.addAll(mState.mShownNotifications);
             final ArraySet<String> currentNotifications = new ArraySet<String>();
 
             // Load everything we will need for display
-            final List<Rec> recs = new ArrayList();
-            final int recCount = reports.size();
-            for (int i = 0; i < recCount; i++) {
+            final ArraySet<String> requestingPackages = new ArraySet<String>();
+            final List<Rec> newRecs = new ArrayList();
+            Rec firstDialog = null;
+            final int reportCount = reports.size();
+            for (int i = 0; i < reportCount; i++) {
                 final IncidentManager.PendingReport report = reports.get(i);
-                final String label = mFormatting.getAppLabel(report.getRequestingPackage());
+                final String requestingPackage = report.getRequestingPackage();
+                String label = mState.mLabels.get(requestingPackage);
                 if (label == null) {
-                    Log.w(TAG, "Application (or its label) could not be found. Summarily "
-                            + " denying report: " + report.getRequestingPackage());
-                    incidentManager.denyReport(report.getUri());
-                    continue;
-                }
-
-                recs.add(new Rec(report, label));
-            }
-
-            // Sort by timestamp, then by label name (for a stable ordering, with the assumption
-            // that apps only post one at a time).
-            recs.sort((a, b) -> {
-                long val = a.report.getTimestamp() - b.report.getTimestamp();
-                if (val == 0) {
-                    return mCollator.compare(a.label, b.label);
-                } else {
-                    return val < 0 ? -1 : 1;
+                    label = mFormatting.getAppLabel(requestingPackage);
+                    if (label == null) {
+                        Log.w(TAG, "Application (or its label) could not be found. Summarily "
+                                + " denying report: " + requestingPackage);
+                        incidentManager.denyReport(report.getUri());
+                        continue;
+                    }
+                    mState.mLabels.put(requestingPackage, label);
                 }
-            });
+                requestingPackages.add(requestingPackage);
 
-            // Collect what we are going to do.
-            Rec firstDialog = null;
-            final List<Rec> notificationRecs = new ArrayList();
-            final int notificationCount = recs.size();
-            for (int i = 0; i < notificationCount; i++) {
-                final Rec rec = recs.get(i);
-                notificationRecs.add(rec);
-                final String uri = rec.report.getUri().toString();
+                final Rec rec = new Rec(report, label);
+                final String uri = report.getUri().toString();
                 remainingNotifications.remove(uri);
                 currentNotifications.add(uri);
-                if ((rec.report.getFlags() & IncidentManager.FLAG_CONFIRMATION_DIALOG) != 0) {
-                    if (firstDialog == null) {
+                if (!mState.mShownNotifications.contains(uri)) {
+                    newRecs.add(rec);
+                }
+
+                // The dialog is shown for the oldest report, then by label name (for a stable
+                // ordering, with the assumption that apps only post one at a time).
+                if ((report.getFlags() & IncidentManager.FLAG_CONFIRMATION_DIALOG) != 0) {
+                    if (firstDialog == null || compareRecs(rec, firstDialog) < 0) {
                         firstDialog = rec;
                     }
                 }
             }
 
+            // Only keep labels of apps that still have pending reports
+            mState.mLabels.retainAll(requestingPackages);
+
             if (false) {
                 Log.d(TAG, "PermissionController pending list plan ... {");
                 Log.d(TAG, "  showing {");
-                for (int i = 0; i < notificationRecs.size(); i++) {
-                    Log.d(TAG, "    [" + i + "] " + notificationRecs.get(i).report.getUri());
+                for (int i = 0; i < newRecs.size(); i++) {
+                    Log.d(TAG, "    [" + i + "] " + newRecs.get(i).report.getUri());
                 }
                 Log.d(TAG, "  }");
                 Log.d(TAG, "  canceling {");
@@ -198,8 +204,10 @@ class PendingList {
                 Log.d(TAG, "}");
             }
 
-            // Show the notifications
-            showNotifications(notificationRecs);
+            // Show the new notifications
+            if (!newRecs.isEmpty()) {
+                showNotifications(newRecs);
+            }
 
             // Cancel any previously remaining notifications
             final int remainingCount = remainingNotifications.size();
@@ -207,6 +215,9 @@ class PendingList {
                 mNm.cancel(remainingNotifications.valueAt(i), Constants.INCIDENT_NOTIFICATION_ID);
             }
 
+            mState.mShownNotifications.clear();
+            mState.mShownNotifications.addAll(currentNotifications);
+
             // The dialog
             if (firstDialog != null) {
                 // Show the new dialog. The FLAG_ACTIVITY_CLEAR_TASK in the intent
@@ -227,9 +238,24 @@ class PendingList {
             }
 
             // Save this list, so we know what we did for next time.
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.putStringSet(SHARED_PREFS_KEY_NOTIFICATIONS, currentNotifications);
-            editor.apply();
+            if (!currentNotifications.equals(mState.mPersistedNotifications)) {
+                final SharedPreferences.Editor editor = prefs.edit();
+                editor.putStringSet(SHARED_PREFS_KEY_NOTIFICATIONS, currentNotifications);
+                editor.apply();
+                mState.mPersistedNotifications = currentNotifications;
+            }
+        }
+
+        /**
+         * Order by timestamp, then by label name.
+         */
+        private int compareRecs(Rec a, Rec b) {
+            long val = a.report.getTimestamp() - b.report.getTimestamp();
+            if (val == 0) {
+                return mCollator.compare(a.label, b.label);
+            } else {
+                return val < 0 ? -1 : 1;
+            }
         }
 
         /**
@@ -311,6 +337,22 @@ class PendingList {
         }
     }
 
+    /**
+     * The uris of the notifications posted by this process.
+     */
+    private final ArraySet<String> mShownNotifications = new ArraySet<String>();
+
+    /**
+     * The uris last written to the shared preferences, {@code null} until read. These might
+     * have been posted by a previous process.
+     */
+    private ArraySet<String> mPersistedNotifications;
+
+    /**
+     * Cache of the labels of the apps that requested the currently pending reports.
+     */
+    private final ArrayMap<String, String> mLabels = new ArrayMap<String, String>();
+
     /**
      * Get the singleton instance. Note that there is no Context associated
      * with this object. The context should be passed in to updateState, and
@@ -332,6 +374,8 @@ class PendingList {
      * Update the notifications and dialog to reflect the current state of affairs.
      */
     public void updateState(Context context, int flags) {
-        (new Updater(context, flags)).updateState();
+        synchronized (this) {
+            (new Updater(this, context, flags)).updateState();
+        }
     }
 }
@@ -30,14 +30,13 @@ import com.android.permissioncontroller.PermissionControllerApplication
  *
  * @see AppOpsManager
  */
-// TODO eugenesusla: observe appops
 // TODO eugenesusla: use for external storage
 class AppOpLiveData private constructor(
     private val app: Application,
     private val packageName: String,
     private val op: String,
     private val uid: Int
-) : SmartUpdateMediatorLiveData<Int>() {
+) : SmartUpdateMediatorLiveData<Int>(), AppOpsListenerMultiplexer.AppOpModeCallback {
 
     private val appOpsManager = app.getSystemService(AppOpsManager::class.java)!!
 
@@ -45,11 +44,21 @@ class AppOpLiveData private constructor(
         value = appOpsManager.unsafeCheckOpNoThrow(op, uid, packageName)
     }
 
+    override fun onAppOpModeChanged(op: String, packageName: String?) {
+        update()
+    }
+
     override fun onActive() {
         super.onActive()
+        AppOpsListenerMultiplexer.addModeCallback(op, packageName, this)
         update()
     }
 
+    override fun onInactive() {
+        super.onInactive()
+        AppOpsListenerMultiplexer.removeModeCallback(op, packageName, this)
+    }
+
     /**
      * Repository for AppOpLiveData.
      * <p> Key value is a triple of string package name, string appop, and
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.app.AppOpsManager
+import android.app.Application
+import android.util.Log
+import androidx.annotation.MainThread
+import com.android.permissioncontroller.PermissionControllerApplication
+import kotlinx.coroutines.Dispatchers.Main
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+
+/**
+ * Serves as a single shared app op listener for all LiveDatas that watch app ops.
+ *
+ * <p>Holds at most one mode and one active registration with the system per op, no matter how
+ * many packages are watched. Events are dispatched to the callbacks of the package (modes) or uid
+ * (active state) they are for. An op is unregistered as soon as it has no callbacks left.
+ *
+ * <p>All methods must be called on the main thread, callbacks are invoked on the main thread.
+ */
+object AppOpsListenerMultiplexer {
+    private val LOG_TAG = AppOpsListenerMultiplexer::class.java.simpleName
+
+    private val app: Application = PermissionControllerApplication.get()
+    private val appOpsManager = app.getSystemService(AppOpsManager::class.java)!!
+
+    /** Key for callbacks that want the events of all packages or uids */
+    private val ALL = Any()
+
+    /** Map<op, listener registered with the system for the op> */
+    private val modeListeners = mutableMapOf<String, OpModeListener>()
+
+    /** Map<op, listener registered with the system for the op> */
+    private val activeListeners = mutableMapOf<String, OpActiveListener>()
+
+    /**
+     * Add a callback which will be notified when the mode of an op changes.
+     *
+     * @param op The name of the op
+     * @param packageName The package to watch, `null` to watch all packages
+     * @param callback The callback to add
+     */
+    @MainThread
+    fun addModeCallback(op: String, packageName: String?, callback: AppOpModeCallback) {
+        val listener = modeListeners.getOrPut(op) {
+            OpModeListener(op).also { appOpsManager.startWatchingMode(op, null, it) }
+        }
+        listener.callbacks.add(packageName ?: ALL, callback)
+    }
+
+    /**
+     * Remove a callback added via [addModeCallback].
+     *
+     * @param op The name of the op
+     * @param packageName The package the callback was added for
+     * @param callback The callback to remove
+     */
+    @MainThread
+    fun removeModeCallback(op: String, packageName: String?, callback: AppOpModeCallback) {
+        val listener = modeListeners[op] ?: return
+        listener.callbacks.remove(packageName ?: ALL, callback)
+
+        if (listener.callbacks.isEmpty()) {
+            modeListeners.remove(op)
+            appOpsManager.stopWatchingMode(listener)
+        }
+    }
+
+    /**
+     * Add a callback which will be notified when an op starts or stops being active.
+     *
+     * @param op The name of the op
+     * @param uid The uid to watch, `null` to watch all uids
+     * @param callback The callback to add
+     */
+    @MainThread
+    fun addActiveCallback(op: String, uid: Int?, callback: AppOpActiveCallback) {
+        val listener = activeListeners.getOrPut(op) {
+            OpActiveListener(op).also {
+                try {
+                    appOpsManager.startWatchingActive(arrayOf(op), app.mainExecutor, it)
+                } catch (e: IllegalArgumentException) {
+                    // older builds might not support all app ops
+                    Log.w(LOG_TAG, "Cannot watch $op", e)
+                }
+            }
+        }
+        listener.callbacks.add(uid ?: ALL, callback)
+    }
+
+    /**
+     * Remove a callback added via [addActiveCallback].
+     *
+     * @param op The name of the op
+     * @param uid The uid the callback was added for
+     * @param callback The callback to remove
+     */
+    @MainThread
+    fun removeActiveCallback(op: String, uid: Int?, callback: AppOpActiveCallback) {
+        val listener = activeListeners[op] ?: return
+        listener.callbacks.remove(uid ?: ALL, callback)
+
+        if (listener.callbacks.isEmpty()) {
+            activeListeners.remove(op)
+            appOpsManager.stopWatchingActive(listener)
+        }
+    }
+
+    /**
+     * Callbacks grouped by the package or uid they want the events of.
+     */
+    private class CallbackMap<C> {
+        private val callbacks = mutableMapOf<Any, MutableList<C>>()
+
+        fun add(key: Any, callback: C) {
+            callbacks.getOrPut(key) { mutableListOf() }.add(callback)
+        }
+
+        fun remove(key: Any, callback: C) {
+            val keyCallbacks = callbacks[key] ?: return
+            keyCallbacks.remove(callback)
+            if (keyCallbacks.isEmpty()) {
+                callbacks.remove(key)
+            }
+        }
+
+        fun isEmpty(): Boolean {
+            return callbacks.isEmpty()
+        }
+
+        /**
+         * @return The callbacks for `key` and the callbacks for all keys, or all callbacks if
+         * `key` is `null`
+         */
+        fun get(key: Any?): List<C> {
+            if (key == null) {
+                return callbacks.values.flatten()
+            }
+
+            val keyCallbacks = callbacks[key] ?: emptyList<C>()
+            val allCallbacks = callbacks[ALL] ?: emptyList<C>()
+            return keyCallbacks + allCallbacks
+        }
+    }
+
+    private class OpModeListener(val op: String) : AppOpsManager.OnOpChangedListener {
+        val callbacks = CallbackMap<AppOpModeCallback>()
+
+        override fun onOpChanged(changedOp: String?, packageName: String?) {
+            // Mode changes are reported on a binder thread
+            GlobalScope.launch(Main) {
+                if (modeListeners[op] !== this@OpModeListener) {
+                    return@launch
+                }
+
+                for (callback in callbacks.get(packageName)) {
+                    callback.onAppOpModeChanged(op, packageName)
+                }
+            }
+        }
+    }
+
+    private class OpActiveListener(val op: String) : AppOpsManager.OnOpActiveChangedListener {
+        val callbacks = CallbackMap<AppOpActiveCallback>()
+
+        override fun onOpActiveChanged(
+            changedOp: String,
+            uid: Int,
+            packageName: String,
+            active: Boolean
+        ) {
+            for (callback in callbacks.get(uid)) {
+                callback.onAppOpActiveChanged(op, uid, packageName, active)
+            }
+        }
+    }
+
+    interface AppOpModeCallback {
+        /**
+         * Called when the mode of a watched op changed.
+         *
+         * @param op The name of the op
+         * @param packageName The package whose mode changed, `null` if unknown
+         */
+        fun onAppOpModeChanged(op: String, packageName: String?)
+    }
+
+    interface AppOpActiveCallback {
+        /**
+         * Called when a watched op started or stopped being active.
+         *
+         * @param op The name of the op
+         * @param uid The uid of the package
+         * @param packageName The package that uses the op
+         * @param active Whether the op is active now
+         */
+        fun onAppOpActiveChanged(op: String, uid: Int, packageName: String, active: Boolean)
+    }
+}
@@ -30,6 +30,7 @@ import com.android.permissioncontroller.permission.model.livedatatypes.AppPermGr
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPermGroupInfo
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPermInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.PermGroup
 import com.android.permissioncontroller.permission.model.livedatatypes.PermState
 import com.android.permissioncontroller.permission.utils.LocationUtils
 import com.android.permissioncontroller.permission.utils.Utils
@@ -60,12 +61,9 @@ class AppPermGroupUiInfoLiveData private constructor(
     private val packageInfoLiveData = LightPackageInfoLiveData[packageName, user]
     private val permGroupLiveData = PermGroupLiveData[permGroupName]
     private val permissionStateLiveData = PermStateLiveData[packageName, permGroupName, user]
-    private val isStorage = permGroupName == STORAGE
 
     init {
-        isSpecialLocation = LocationUtils.isLocationGroupAndProvider(app,
-            permGroupName, packageName) ||
-            LocationUtils.isLocationGroupAndControllerExtraPackage(app, permGroupName, packageName)
+        isSpecialLocation = isSpecialLocation(app, permGroupName, packageName)
 
         addSource(packageInfoLiveData) {
             update()
@@ -97,274 +95,335 @@ class AppPermGroupUiInfoLiveData private constructor(
             return
         }
 
-        postValue(getAppPermGroupUiInfo(packageInfo, permissionGroup.groupInfo,
-            permissionGroup.permissionInfos, permissionState))
+        postValue(getAppPermGroupUiInfo(app, packageInfo, permissionGroup, permissionState,
+            user))
     }
 
-    /**
-     * Determines if the UI should show a given package, if that package is a system app, and
-     * if it has granted permissions in this LiveData's permission group.
-     *
-     * @param packageInfo The PackageInfo of the package we wish to examine
-     * @param groupInfo The groupInfo of the permission group we wish to examine
-     * @param allPermInfos All of the PermissionInfos in the permission group
-     * @param permissionState The flags and grant state for all permissions in the permission
-     * group that this package requests
-     */
-    private fun getAppPermGroupUiInfo(
-        packageInfo: LightPackageInfo,
-        groupInfo: LightPermGroupInfo,
-        allPermInfos: Map<String, LightPermInfo>,
-        permissionState: Map<String, PermState>
-    ): AppPermGroupUiInfo {
-        /*
-         * Filter out any permission infos in the permission group that this package
-         * does not request.
-         */
-        val requestedPermissionInfos =
-            allPermInfos.filter { permissionState.containsKey(it.key) }.values
-
-        val shouldShow = packageInfo.enabled && isGrantableAndNotLegacyPlatform(packageInfo,
-            groupInfo, requestedPermissionInfos)
-
-        val isSystemApp = !isUserSensitive(permissionState)
+    override fun onLocationStateChange(enabled: Boolean) {
+        update()
+    }
 
-        val isUserSet = isUserSet(permissionState)
+    override fun onActive() {
+        super.onActive()
+        if (isSpecialLocation) {
+            LocationUtils.addLocationListener(this)
+            update()
+        }
+    }
 
-        val isGranted = getGrantedIncludingBackground(permissionState, allPermInfos, packageInfo)
+    override fun onInactive() {
+        super.onInactive()
 
-        return AppPermGroupUiInfo(shouldShow, isGranted, isSystemApp, isUserSet)
+        if (isSpecialLocation) {
+            LocationUtils.removeLocationListener(this)
+        }
     }
 
     /**
-     * Determines if a package permission group is able to be granted, and whether or not it is a
-     * legacy system permission group.
-     *
-     * @param packageInfo The PackageInfo of the package we are examining
-     * @param groupInfo The Permission Group Info of the permission group we are examining
-     * @param permissionInfos The LightPermInfos corresponding to the permissions in the
-     * permission group that this package requests
-     *
-     * @return True if the app permission group is grantable, and is not a legacy system permission,
-     * false otherwise.
+     * Repository for AppPermGroupUiInfoLiveDatas.
+     * <p> Key value is a triple of string package name, string permission group name, and UserHandle,
+     * value is its corresponding LiveData.
      */
-    private fun isGrantableAndNotLegacyPlatform(
-        packageInfo: LightPackageInfo,
-        groupInfo: LightPermGroupInfo,
-        permissionInfos: Collection<LightPermInfo>
-    ): Boolean {
-        if (groupInfo.packageName == Utils.OS_PKG &&
-            !isModernPermissionGroup(groupInfo.name)) {
-            return false
-        }
+    companion object : DataRepositoryForPackage<Triple<String, String, UserHandle>,
+            AppPermGroupUiInfoLiveData>() {
+        override val maxInactiveEntries = 300
 
-        var hasInstantPerm = false
-        var hasPreRuntime = false
+        override fun newValue(key: Triple<String, String, UserHandle>):
+                AppPermGroupUiInfoLiveData {
+            return AppPermGroupUiInfoLiveData(PermissionControllerApplication.get(),
+                    key.first, key.second, key.third)
+        }
 
-        for (permissionInfo in permissionInfos) {
-            if (permissionInfo.protectionFlags and
-                PermissionInfo.PROTECTION_FLAG_RUNTIME_ONLY == 0) {
-                hasPreRuntime = true
+        /**
+         * Determines if the UI should show a permission group of a package. This only depends on
+         * the package and the group, not on the permission flags.
+         *
+         * @param packageInfo The PackageInfo of the package we wish to examine
+         * @param permissionGroup The permission group we wish to examine
+         *
+         * @return `true` iff [getAppPermGroupUiInfo] would set
+         * [AppPermGroupUiInfo.shouldShow]
+         */
+        fun shouldShow(packageInfo: LightPackageInfo, permissionGroup: PermGroup): Boolean {
+            val requestedPermissionInfos = packageInfo.requestedPermissions.mapNotNull {
+                permissionGroup.permissionInfos[it]
             }
 
-            if (permissionInfo.protectionFlags and PermissionInfo.PROTECTION_FLAG_INSTANT != 0) {
-                hasInstantPerm = true
-            }
+            return packageInfo.enabled && isGrantableAndNotLegacyPlatform(packageInfo,
+                permissionGroup.groupInfo, requestedPermissionInfos)
         }
 
-        val isGrantingAllowed = (!packageInfo.isInstantApp || hasInstantPerm) &&
-            (packageInfo.targetSdkVersion >= Build.VERSION_CODES.M || hasPreRuntime)
-        if (!isGrantingAllowed) {
-            return false
+        /**
+         * Determines if the UI should show a given package, if that package is a system app, and
+         * if it has granted permissions in a permission group.
+         *
+         * @param app The current application
+         * @param packageInfo The PackageInfo of the package we wish to examine
+         * @param permissionGroup The permission group we wish to examine
+         * @param permissionState The flags and grant state for all permissions in the permission
+         * group that this package requests
+         * @param user The user of the package
+         */
+        fun getAppPermGroupUiInfo(
+            app: Application,
+            packageInfo: LightPackageInfo,
+            permissionGroup: PermGroup,
+            permissionState: Map<String, PermState>,
+            user: UserHandle
+        ): AppPermGroupUiInfo {
+            val groupInfo = permissionGroup.groupInfo
+            val allPermInfos = permissionGroup.permissionInfos
+
+            /*
+             * Filter out any permission infos in the permission group that this package
+             * does not request.
+             */
+            val requestedPermissionInfos =
+                allPermInfos.filter { permissionState.containsKey(it.key) }.values
+
+            val shouldShow = packageInfo.enabled && isGrantableAndNotLegacyPlatform(packageInfo,
+                groupInfo, requestedPermissionInfos)
+
+            val isSystemApp = !isUserSensitive(groupInfo.name, permissionState)
+
+            val isUserSet = isUserSet(permissionState)
+
+            val isGranted = getGrantedIncludingBackground(app, groupInfo.name, permissionState,
+                allPermInfos, packageInfo, user)
+
+            return AppPermGroupUiInfo(shouldShow, isGranted, isSystemApp, isUserSet)
         }
 
-        return true
-    }
+        /**
+         * Determines if a package permission group is able to be granted, and whether or not it
+         * is a legacy system permission group.
+         *
+         * @param packageInfo The PackageInfo of the package we are examining
+         * @param groupInfo The Permission Group Info of the permission group we are examining
+         * @param permissionInfos The LightPermInfos corresponding to the permissions in the
+         * permission group that this package requests
+         *
+         * @return True if the app permission group is grantable, and is not a legacy system
+         * permission, false otherwise.
+         */
+        private fun isGrantableAndNotLegacyPlatform(
+            packageInfo: LightPackageInfo,
+            groupInfo: LightPermGroupInfo,
+            permissionInfos: Collection<LightPermInfo>
+        ): Boolean {
+            if (groupInfo.packageName == Utils.OS_PKG &&
+                !isModernPermissionGroup(groupInfo.name)) {
+                return false
+            }
+
+            var hasInstantPerm = false
+            var hasPreRuntime = false
+
+            for (permissionInfo in permissionInfos) {
+                if (permissionInfo.protectionFlags and
+                    PermissionInfo.PROTECTION_FLAG_RUNTIME_ONLY == 0) {
+                    hasPreRuntime = true
+                }
+
+                if (permissionInfo.protectionFlags and
+                    PermissionInfo.PROTECTION_FLAG_INSTANT != 0) {
+                    hasInstantPerm = true
+                }
+            }
+
+            val isGrantingAllowed = (!packageInfo.isInstantApp || hasInstantPerm) &&
+                (packageInfo.targetSdkVersion >= Build.VERSION_CODES.M || hasPreRuntime)
+            if (!isGrantingAllowed) {
+                return false
+            }
 
-    /**
-     * Determines if an app's permission group is user-sensitive. If an app is not user sensitive,
-     * then it is considered a system app, and hidden in the UI by default.
-     *
-     * @param permissionState The permission flags and grant state corresponding to the permissions
-     * in this group requested by a given app
-     *
-     * @return Whether or not this package requests a user sensitive permission in the given
-     * permission group
-     */
-    private fun isUserSensitive(permissionState: Map<String, PermState>): Boolean {
-        if (!isModernPermissionGroup(permGroupName)) {
             return true
         }
 
-        for (permissionName in permissionState.keys) {
-            val flags = permissionState[permissionName]?.permFlags ?: return true
-            val granted = permissionState[permissionName]?.granted ?: return true
-            if ((granted &&
-                    flags and PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED != 0) ||
-                (!granted &&
-                    flags and PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_DENIED != 0)) {
+        /**
+         * Determines if an app's permission group is user-sensitive. If an app is not user
+         * sensitive, then it is considered a system app, and hidden in the UI by default.
+         *
+         * @param permGroupName The name of the permission group
+         * @param permissionState The permission flags and grant state corresponding to the
+         * permissions in this group requested by a given app
+         *
+         * @return Whether or not this package requests a user sensitive permission in the given
+         * permission group
+         */
+        private fun isUserSensitive(
+            permGroupName: String,
+            permissionState: Map<String, PermState>
+        ): Boolean {
+            if (!isModernPermissionGroup(permGroupName)) {
                 return true
             }
-        }
-        return false
-    }
 
-    /**
-     * Determines if the app permission group is user set
-     *
-     * @param permissionState The permission flags and grant state corresponding to the permissions
-     * in this group requested by a given app
-     *
-     * @return Whether or not any of the permissions in this group have been set or fixed by the
-     * user
-     */
-    private fun isUserSet(permissionState: Map<String, PermState>): Boolean {
-        val flagMask = PackageManager.FLAG_PERMISSION_USER_SET or
-                PackageManager.FLAG_PERMISSION_USER_FIXED
-        return permissionState.any { (it.value.permFlags and flagMask) != 0 }
-    }
+            for (permissionName in permissionState.keys) {
+                val flags = permissionState[permissionName]?.permFlags ?: return true
+                val granted = permissionState[permissionName]?.granted ?: return true
+                if ((granted && flags and
+                        PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED != 0) ||
+                    (!granted && flags and
+                        PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_DENIED != 0)) {
+                    return true
+                }
+            }
+            return false
+        }
 
-    /**
-     * Determines if this app permission group is granted, granted in foreground only, or denied.
-     * It is granted if it either requests no background permissions, and has at least one requested
-     * permission that is granted, or has granted at least one requested background permission.
-     * It is granted in foreground only if it has at least one non-background permission granted,
-     * and has denied all requested background permissions. It is denied if all requested
-     * permissions are denied.
-     *
-     * @param permissionState The permission flags and grant state corresponding to the permissions
-     * in this group requested by a given app
-     * @param allPermInfos All of the permissionInfos in the permission group of this app
-     * permission group
-     *
-     * @return The int code corresponding to the app permission group state, either allowed, allowed
-     * in foreground only, or denied.
-     */
-    private fun getGrantedIncludingBackground(
-        permissionState: Map<String, PermState>,
-        allPermInfos: Map<String, LightPermInfo>,
-        pkg: LightPackageInfo
-    ): PermGrantState {
-        val specialLocationState = getIsSpecialLocationState()
-        if (isStorage && isFullFilesAccessGranted(pkg)) {
-            return PermGrantState.PERMS_ALLOWED
+        /**
+         * Determines if the app permission group is user set
+         *
+         * @param permissionState The permission flags and grant state corresponding to the
+         * permissions in this group requested by a given app
+         *
+         * @return Whether or not any of the permissions in this group have been set or fixed by
+         * the user
+         */
+        private fun isUserSet(permissionState: Map<String, PermState>): Boolean {
+            val flagMask = PackageManager.FLAG_PERMISSION_USER_SET or
+                    PackageManager.FLAG_PERMISSION_USER_FIXED
+            return permissionState.any { (it.value.permFlags and flagMask) != 0 }
         }
 
-        var hasPermWithBackground = false
-        var isUserFixed = false
-        for ((permName, permState) in permissionState) {
-            val permInfo = allPermInfos[permName] ?: continue
-            permInfo.backgroundPermission?.let { backgroundPerm ->
-                hasPermWithBackground = true
-                if (permissionState[backgroundPerm]?.granted == true &&
-                    specialLocationState != false) {
-                    return PermGrantState.PERMS_ALLOWED_ALWAYS
+        /**
+         * Determines if this app permission group is granted, granted in foreground only, or
+         * denied. It is granted if it either requests no background permissions, and has at least
+         * one requested permission that is granted, or has granted at least one requested
+         * background permission. It is granted in foreground only if it has at least one
+         * non-background permission granted, and has denied all requested background
+         * permissions. It is denied if all requested permissions are denied.
+         *
+         * @param app The current application
+         * @param permGroupName The name of the permission group
+         * @param permissionState The permission flags and grant state corresponding to the
+         * permissions in this group requested by a given app
+         * @param allPermInfos All of the permissionInfos in the permission group of this app
+         * permission group
+         * @param pkg The package
+         * @param user The user of the package
+         *
+         * @return The int code corresponding to the app permission group state, either allowed,
+         * allowed in foreground only, or denied.
+         */
+        private fun getGrantedIncludingBackground(
+            app: Application,
+            permGroupName: String,
+            permissionState: Map<String, PermState>,
+            allPermInfos: Map<String, LightPermInfo>,
+            pkg: LightPackageInfo,
+            user: UserHandle
+        ): PermGrantState {
+            val specialLocationState = getIsSpecialLocationState(app, permGroupName,
+                pkg.packageName, user)
+            if (permGroupName == STORAGE && isFullFilesAccessGranted(app, pkg, user)) {
+                return PermGrantState.PERMS_ALLOWED
+            }
+
+            var hasPermWithBackground = false
+            var isUserFixed = false
+            for ((permName, permState) in permissionState) {
+                val permInfo = allPermInfos[permName] ?: continue
+                permInfo.backgroundPermission?.let { backgroundPerm ->
+                    hasPermWithBackground = true
+                    if (permissionState[backgroundPerm]?.granted == true &&
+                        specialLocationState != false) {
+                        return PermGrantState.PERMS_ALLOWED_ALWAYS
+                    }
                 }
+                isUserFixed = isUserFixed ||
+                        permState.permFlags and PackageManager.FLAG_PERMISSION_USER_FIXED != 0
             }
-            isUserFixed = isUserFixed ||
-                    permState.permFlags and PackageManager.FLAG_PERMISSION_USER_FIXED != 0
-        }
-        // isOneTime indicates whether permission states contain any one-time permission and
-        // none of the permissions are granted (not one-time)
-        val isOneTime = permissionState.any {
-            it.value.permFlags and PackageManager.FLAG_PERMISSION_ONE_TIME != 0 } &&
-                !permissionState.any {
-                    it.value.permFlags and PackageManager.FLAG_PERMISSION_ONE_TIME == 0 &&
-                            it.value.granted }
-
-        val anyAllowed = specialLocationState ?: permissionState.any { it.value.granted }
-        if (anyAllowed && (hasPermWithBackground || shouldShowAsForegroundGroup())) {
-            return if (isOneTime) {
-                PermGrantState.PERMS_ASK
-            } else {
-                PermGrantState.PERMS_ALLOWED_FOREGROUND_ONLY
+            // isOneTime indicates whether permission states contain any one-time permission and
+            // none of the permissions are granted (not one-time)
+            val isOneTime = permissionState.any {
+                it.value.permFlags and PackageManager.FLAG_PERMISSION_ONE_TIME != 0 } &&
+                    !permissionState.any {
+                        it.value.permFlags and PackageManager.FLAG_PERMISSION_ONE_TIME == 0 &&
+                                it.value.granted }
+
+            val anyAllowed = specialLocationState ?: permissionState.any { it.value.granted }
+            if (anyAllowed && (hasPermWithBackground ||
+                    shouldShowAsForegroundGroup(permGroupName))) {
+                return if (isOneTime) {
+                    PermGrantState.PERMS_ASK
+                } else {
+                    PermGrantState.PERMS_ALLOWED_FOREGROUND_ONLY
+                }
+            } else if (anyAllowed) {
+                return if (isOneTime) {
+                    PermGrantState.PERMS_ASK
+                } else {
+                    PermGrantState.PERMS_ALLOWED
+                }
             }
-        } else if (anyAllowed) {
-            return if (isOneTime) {
-                PermGrantState.PERMS_ASK
-            } else {
-                PermGrantState.PERMS_ALLOWED
+            if (isUserFixed) {
+                return PermGrantState.PERMS_DENIED
+            }
+            if (isOneTime) {
+                return PermGrantState.PERMS_ASK
             }
-        }
-        if (isUserFixed) {
             return PermGrantState.PERMS_DENIED
         }
-        if (isOneTime) {
-            return PermGrantState.PERMS_ASK
-        }
-        return PermGrantState.PERMS_DENIED
-    }
-
-    private fun getIsSpecialLocationState(): Boolean? {
-        if (!isSpecialLocation) {
-            return null
-        }
 
-        val userContext = Utils.getUserContext(app, user)
-        if (LocationUtils.isLocationGroupAndProvider(userContext, permGroupName, packageName)) {
-            return LocationUtils.isLocationEnabled(userContext)
-        }
-        // The permission of the extra location controller package is determined by the
-        // status of the controller package itself.
-        if (LocationUtils.isLocationGroupAndControllerExtraPackage(userContext,
-                permGroupName, packageName)) {
-            return LocationUtils.isExtraLocationControllerPackageEnabled(userContext)
-        }
-        return null
-    }
+        private fun getIsSpecialLocationState(
+            app: Application,
+            permGroupName: String,
+            packageName: String,
+            user: UserHandle
+        ): Boolean? {
+            if (!isSpecialLocation(app, permGroupName, packageName)) {
+                return null
+            }
 
-    private fun isFullFilesAccessGranted(pkg: LightPackageInfo): Boolean {
-        val packageState = if (!FullStoragePermissionAppsLiveData.isStale) {
-            val fullStoragePackages = FullStoragePermissionAppsLiveData.value ?: return false
-            fullStoragePackages.find {
-                it.packageName == packageName && it.user == user
-            } ?: return false
-        } else {
-            val appOpsManager = Utils.getUserContext(app, UserHandle.getUserHandleForUid(pkg.uid))
-                .getSystemService(AppOpsManager::class.java)!!
-            FullStoragePermissionAppsLiveData.getFullStorageStateForPackage(
-                appOpsManager, pkg) ?: return false
+            val userContext = Utils.getUserContext(app, user)
+            if (LocationUtils.isLocationGroupAndProvider(userContext, permGroupName, packageName)) {
+                return LocationUtils.isLocationEnabled(userContext)
+            }
+            // The permission of the extra location controller package is determined by the
+            // status of the controller package itself.
+            if (LocationUtils.isLocationGroupAndControllerExtraPackage(userContext,
+                    permGroupName, packageName)) {
+                return LocationUtils.isExtraLocationControllerPackageEnabled(userContext)
+            }
+            return null
         }
-        return !packageState.isLegacy && packageState.isGranted
-    }
-
-    // TODO moltmann-team: Actually change mic/camera to be a foreground only permission
-    private fun shouldShowAsForegroundGroup(): Boolean {
-        return permGroupName.equals(Manifest.permission_group.CAMERA) ||
-                permGroupName.equals(Manifest.permission_group.MICROPHONE)
-    }
 
-    override fun onLocationStateChange(enabled: Boolean) {
-        update()
-    }
-
-    override fun onActive() {
-        super.onActive()
-        if (isSpecialLocation) {
-            LocationUtils.addLocationListener(this)
-            update()
+        private fun isSpecialLocation(
+            app: Application,
+            permGroupName: String,
+            packageName: String
+        ): Boolean {
+            return LocationUtils.isLocationGroupAndProvider(app, permGroupName, packageName) ||
+                LocationUtils.isLocationGroupAndControllerExtraPackage(app, permGroupName,
+                    packageName)
         }
-    }
 
-    override fun onInactive() {
-        super.onInactive()
-
-        if (isSpecialLocation) {
-            LocationUtils.removeLocationListener(this)
+        private fun isFullFilesAccessGranted(
+            app: Application,
+            pkg: LightPackageInfo,
+            user: UserHandle
+        ): Boolean {
+            val packageState = if (!FullStoragePermissionAppsLiveData.isStale) {
+                val fullStoragePackages = FullStoragePermissionAppsLiveData.value ?: return false
+                fullStoragePackages.find {
+                    it.packageName == pkg.packageName && it.user == user
+                } ?: return false
+            } else {
+                val appOpsManager = Utils.getUserContext(app,
+                    UserHandle.getUserHandleForUid(pkg.uid))
+                    .getSystemService(AppOpsManager::class.java)!!
+                FullStoragePermissionAppsLiveData.getFullStorageStateForPackage(
+                    appOpsManager, pkg) ?: return false
+            }
+            return !packageState.isLegacy && packageState.isGranted
         }
-    }
 
-    /**
-     * Repository for AppPermGroupUiInfoLiveDatas.
-     * <p> Key value is a triple of string package name, string permission group name, and UserHandle,
-     * value is its corresponding LiveData.
-     */
-    companion object : DataRepositoryForPackage<Triple<String, String, UserHandle>,
-            AppPermGroupUiInfoLiveData>() {
-        override fun newValue(key: Triple<String, String, UserHandle>):
-                AppPermGroupUiInfoLiveData {
-            return AppPermGroupUiInfoLiveData(PermissionControllerApplication.get(),
-                    key.first, key.second, key.third)
+        // TODO moltmann-team: Actually change mic/camera to be a foreground only permission
+        private fun shouldShowAsForegroundGroup(permGroupName: String): Boolean {
+            return permGroupName.equals(Manifest.permission_group.CAMERA) ||
+                    permGroupName.equals(Manifest.permission_group.MICROPHONE)
         }
     }
 }
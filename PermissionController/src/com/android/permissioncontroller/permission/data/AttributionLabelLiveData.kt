@@ -48,7 +48,7 @@ class AttributionLabelLiveData private constructor(
     private val attributionTag: String?,
     private val packageName: String,
     private val user: UserHandle
-) : SmartAsyncMediatorLiveData<Int>(), PackageBroadcastReceiver.PackageBroadcastListener {
+) : SmartAsyncMediatorLiveData<Int>(), PackageBroadcastReceiver.PackageEventListener {
     private val LOG_TAG = AttributionLabelLiveData::class.java.simpleName
 
     override suspend fun loadDataAndPostValue(job: Job) {
@@ -141,18 +141,19 @@ class AttributionLabelLiveData private constructor(
     override fun onActive() {
         super.onActive()
 
-        // Listen for changes to the attributions
-        PackageBroadcastReceiver.addChangeCallback(packageName, this)
+        // Listen for changes to the attributions, they are declared in the manifest
+        PackageBroadcastReceiver.addEventCallback(PackageEventFilter(setOf(packageName), user,
+            PackageEventFilter.MANIFEST_KINDS), this)
         update()
     }
 
     override fun onInactive() {
         super.onInactive()
 
-        PackageBroadcastReceiver.removeChangeCallback(packageName, this)
+        PackageBroadcastReceiver.removeEventCallback(this)
     }
 
-    override fun onPackageUpdate(packageName: String) {
+    override fun onPackageEvents(events: List<PackageEvent>) {
         update()
     }
 
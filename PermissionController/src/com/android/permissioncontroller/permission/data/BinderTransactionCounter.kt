@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.os.Binder
+import android.os.IBinder
+import kotlinx.coroutines.ThreadContextElement
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * Counts the binder transactions sent by coroutines of this process.
+ *
+ * <p>A coroutine that wants its transactions counted adds a [Counter] to its context. The counter
+ * is set for the current thread whenever the coroutine, or a child of it, runs, hence the count
+ * is right even if the coroutine suspends and continues on another thread, or if other
+ * coroutines run on the same thread in the meantime.
+ *
+ * <p>Once installed, the listener is called for every transaction of the process on any thread,
+ * including the main thread. Hence counting is off by default and only turned on via [isEnabled]
+ * while the stats are looked at, e.g. via dumpsys.
+ *
+ * <p>A process has a single [Binder.ProxyTransactListener], hence other code must not call
+ * [Binder.setProxyTransactListener].
+ */
+object BinderTransactionCounter : Binder.ProxyTransactListener {
+    /**
+     * The counter of the coroutine running on the current thread, `null` if none
+     */
+    private val currentCounter = ThreadLocal<Counter?>()
+
+    /**
+     * Whether binder transactions are counted
+     */
+    @Volatile
+    var isEnabled = false
+        @Synchronized set(value) {
+            if (field != value) {
+                field = value
+                Binder.setProxyTransactListener(if (value) this else null)
+            }
+        }
+
+    override fun onTransactStarted(binder: IBinder, transactionCode: Int): Any? {
+        currentCounter.get()?.count?.incrementAndGet()
+        return null
+    }
+
+    override fun onTransactEnded(session: Any?) {
+        // Nothing to do
+    }
+
+    /**
+     * Counts the binder transactions sent while a coroutine, or any of its children, runs. Only
+     * counts while the [BinderTransactionCounter] is enabled.
+     */
+    class Counter : ThreadContextElement<Counter?> {
+        companion object Key : CoroutineContext.Key<Counter>
+
+        internal val count = AtomicLong()
+
+        override val key: CoroutineContext.Key<Counter>
+            get() = Key
+
+        /**
+         * @return The number of binder transactions sent so far
+         */
+        fun get(): Long {
+            return count.get()
+        }
+
+        override fun updateThreadContext(context: CoroutineContext): Counter? {
+            val previous = currentCounter.get()
+            currentCounter.set(this)
+            return previous
+        }
+
+        override fun restoreThreadContext(context: CoroutineContext, oldState: Counter?) {
+            currentCounter.set(oldState)
+        }
+    }
+}
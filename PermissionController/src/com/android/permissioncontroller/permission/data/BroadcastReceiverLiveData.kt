@@ -41,7 +41,7 @@ class BroadcastReceiverLiveData(
     private val permission: String,
     private val user: UserHandle
 ) : SmartAsyncMediatorLiveData<Set<String>>(),
-        PackageBroadcastReceiver.PackageBroadcastListener,
+        PackageBroadcastReceiver.PackageEventListener,
         HasIntentAction {
 
     private val name = intentAction.substringAfterLast(".")
@@ -56,7 +56,7 @@ class BroadcastReceiverLiveData(
         }
     }
 
-    override fun onPackageUpdate(packageName: String) {
+    override fun onPackageEvents(events: List<PackageEvent>) {
         updateAsync()
     }
 
@@ -111,13 +111,13 @@ class BroadcastReceiverLiveData(
     override fun onActive() {
         super.onActive()
 
-        PackageBroadcastReceiver.addAllCallback(this)
+        PackageBroadcastReceiver.addEventCallback(PackageEventFilter(user = user), this)
     }
 
     override fun onInactive() {
         super.onInactive()
 
-        PackageBroadcastReceiver.removeAllCallback(this)
+        PackageBroadcastReceiver.removeEventCallback(this)
     }
 
     /**
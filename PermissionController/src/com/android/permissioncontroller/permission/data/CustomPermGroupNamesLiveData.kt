@@ -38,7 +38,6 @@ object CustomPermGroupNamesLiveData : SmartUpdateMediatorLiveData<List<String>>(
     }
 
     override fun onUpdate() {
-        val platformGroupNames = Utils.getPlatformPermissionGroups()
         val groupNames = mutableListOf<String>()
 
         val allPackages = packagesLiveData.value ?: return
@@ -56,7 +55,7 @@ object CustomPermGroupNamesLiveData : SmartUpdateMediatorLiveData<List<String>>(
 
                         // If this permission is already in a group, no more work to do
                         if (groupNames.contains(permission.group) ||
-                            platformGroupNames.contains(permission.group) ||
+                            Utils.isModernPermissionGroup(permission.group) ||
                             groupNames.contains(permission.name)) {
                             continue
                         }
@@ -19,14 +19,31 @@ package com.android.permissioncontroller.permission.data
 import android.app.ActivityManager
 import android.content.ComponentCallbacks2
 import android.content.res.Configuration
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
 import androidx.annotation.GuardedBy
 import androidx.annotation.MainThread
 import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.PermissionControllerProto.DataRepositoryProto
+import java.lang.ref.WeakReference
 import java.util.concurrent.TimeUnit
 
 /**
  * A generalize data repository, which carries a component callback which trims its data in response
  * to memory pressure
+ *
+ * <p>Values that lost their last observer are kept in least-recently-inactive order. They are
+ * evicted oldest first once the repository holds more than [maxInactiveEntries] of them, once the
+ * inactive values of all repositories exceed the [DataRepositoryBudget], or on memory pressure.
+ * Both limits are enforced later on the main thread, so a value that is observed right after it
+ * lost its observers is not evicted. Values are usually observed right after they were created,
+ * hence a value that was never observed only counts towards the limits once it was not observed
+ * for [neverActiveGraceMillis]. From then on it is treated like a value that lost its observers.
+ *
+ * <p>An evicted value might still be held, e.g. by a view model or by a mediator that is not
+ * observed. Hence evicted values stay weakly reachable: while they are still held they are handed
+ * out again, adopted again once they are observed, and invalidated like any other value.
  */
 abstract class DataRepository<K, V : DataRepository.InactiveTimekeeper> : ComponentCallbacks2 {
 
@@ -42,6 +59,54 @@ abstract class DataRepository<K, V : DataRepository.InactiveTimekeeper> : Compon
     @GuardedBy("lock")
     protected val data = mutableMapOf<K, V>()
 
+    /**
+     * Map<key of an inactive value, estimated size of the value in bytes>, ordered by the time
+     * the value went inactive, oldest first
+     */
+    @GuardedBy("lock")
+    private val inactiveSizes = LinkedHashMap<K, Int>()
+    @GuardedBy("lock")
+    private var inactiveBytes = 0L
+
+    /**
+     * Map<key of a value that was created but has not been observed yet, when it was created>,
+     * oldest first
+     */
+    @GuardedBy("lock")
+    private val neverActiveKeys = LinkedHashMap<K, Long>()
+    @GuardedBy("lock")
+    private var isGracePeriodCheckPending = false
+
+    /**
+     * Map<key of an evicted value, the value>, so a value that is still held elsewhere is not
+     * replaced by a second instance for the same key
+     */
+    @GuardedBy("lock")
+    private val evicted = mutableMapOf<K, WeakReference<V>>()
+    @GuardedBy("lock")
+    private var evictedPurgeSize = MIN_EVICTED_PURGE_SIZE
+
+    @GuardedBy("lock")
+    private var isTrimPending = false
+    private val handler = Handler(Looper.getMainLooper())
+
+    @GuardedBy("lock")
+    private var numHits = 0L
+    @GuardedBy("lock")
+    private var numMisses = 0L
+    @GuardedBy("lock")
+    private var numEvictions = 0L
+
+    /**
+     * The maximum number of values without observers to keep
+     */
+    protected open val maxInactiveEntries: Int = DEFAULT_MAX_INACTIVE_ENTRIES
+
+    /**
+     * How long a value that was never observed is kept before it counts as inactive
+     */
+    protected open val neverActiveGraceMillis: Long = DEFAULT_NEVER_ACTIVE_GRACE_MILLIS
+
     /**
      * Whether or not this data repository has been registered as a component callback yet
      */
@@ -54,6 +119,7 @@ abstract class DataRepository<K, V : DataRepository.InactiveTimekeeper> : Compon
 
     init {
         PermissionControllerApplication.get().registerComponentCallbacks(this)
+        DataRepositoryBudget.register(this)
     }
 
     /**
@@ -65,7 +131,33 @@ abstract class DataRepository<K, V : DataRepository.InactiveTimekeeper> : Compon
      */
     operator fun get(key: K): V {
         synchronized(lock) {
-            return data.getOrPut(key) { newValue(key) }
+            data[key]?.let { value ->
+                numHits++
+                return value
+            }
+
+            // An evicted value that is still held elsewhere is handed out again
+            var value = evicted.remove(key)?.get()
+            if (value != null) {
+                numHits++
+            } else {
+                numMisses++
+                val newValue = newValue(key)
+                newValue.onInactiveChanged = { onInactiveChanged(key, newValue) }
+                value = newValue
+            }
+            data[key] = value
+
+            // Values are usually observed right after they were handed out, hence they are not
+            // counted as inactive until their grace period is over
+            if (value.timeWentInactive != null) {
+                neverActiveKeys[key] = SystemClock.elapsedRealtime()
+                if (!isGracePeriodCheckPending) {
+                    isGracePeriodCheckPending = true
+                    handler.postDelayed(::endGracePeriods, neverActiveGraceMillis)
+                }
+            }
+            return value
         }
     }
 
@@ -79,6 +171,18 @@ abstract class DataRepository<K, V : DataRepository.InactiveTimekeeper> : Compon
     @MainThread
     protected abstract fun newValue(key: K): V
 
+    /**
+     * Estimate how many bytes a value retains while it is kept without observers. Called when the
+     * value becomes inactive.
+     *
+     * @param value The value
+     *
+     * @return The approximate size of the value in bytes
+     */
+    protected open fun estimateSize(value: V): Int {
+        return DEFAULT_ENTRY_BYTES
+    }
+
     /**
      * Remove LiveData objects with no observer based on the severity of the memory pressure. If
      * this is a low RAM device, eject all caches always, including upon the UI closing.
@@ -111,21 +215,219 @@ abstract class DataRepository<K, V : DataRepository.InactiveTimekeeper> : Compon
     }
 
     fun invalidateSingle(key: K) {
-        synchronized(lock) {
-            data.remove(key)
+        val removedBytes = synchronized(lock) {
+            removeLocked(key)
         }
+        DataRepositoryBudget.onInactiveBytesChanged(-removedBytes)
     }
 
+    /**
+     * Remove the values that have been inactive for at least [threshold]. As the values that lost
+     * their observers are ordered, only the removed values and one more of them are looked at.
+     */
     private fun trimInactiveData(threshold: Long) {
+        var removedBytes = 0L
         synchronized(lock) {
-            data.keys.toList().forEach { key ->
+            for (key in neverActiveKeys.keys.toList()) {
                 if (data[key]?.timeInactive?.let { it >= threshold } == true) {
-                    data.remove(key)
+                    evictLocked(key)
+                }
+            }
+
+            while (inactiveSizes.isNotEmpty()) {
+                val key = inactiveSizes.keys.first()
+                if (data[key]?.timeInactive?.let { it >= threshold } != true) {
+                    break
+                }
+                removedBytes += evictLocked(key)
+            }
+        }
+        DataRepositoryBudget.onInactiveBytesChanged(-removedBytes)
+    }
+
+    /**
+     * Remove the value that has been inactive for the longest time.
+     *
+     * @return The estimated size of the removed value, `0` if there was no inactive value
+     */
+    internal fun evictOldestInactive(): Long {
+        synchronized(lock) {
+            val key = inactiveSizes.keys.firstOrNull() ?: return 0
+            return evictLocked(key)
+        }
+    }
+
+    /**
+     * @return When the value that has been inactive for the longest time went inactive, `null`
+     * if there is no inactive value
+     */
+    internal fun getOldestTimeWentInactive(): Long? {
+        synchronized(lock) {
+            val key = inactiveSizes.keys.firstOrNull() ?: return null
+            return data[key]?.timeWentInactive
+        }
+    }
+
+    /**
+     * @return Statistics about this repository
+     */
+    internal fun dump(): DataRepositoryProto {
+        synchronized(lock) {
+            return DataRepositoryProto.newBuilder()
+                .setName(javaClass.enclosingClass?.simpleName ?: javaClass.simpleName)
+                .setNumEntries(data.size)
+                .setNumInactiveEntries(inactiveSizes.size)
+                .setMaxInactiveEntries(maxInactiveEntries)
+                .setInactiveBytes(inactiveBytes)
+                .setNumHits(numHits)
+                .setNumMisses(numMisses)
+                .setNumEvictions(numEvictions)
+                .build()
+        }
+    }
+
+    /**
+     * Called when a value gained its first or lost its last observer.
+     */
+    @MainThread
+    private fun onInactiveChanged(key: K, value: V) {
+        var changedBytes = 0L
+        synchronized(lock) {
+            if (data[key] !== value) {
+                if (evicted[key]?.get() !== value) {
+                    // Already removed
+                    return
+                }
+
+                // An evicted value that is still held got observed again
+                evicted.remove(key)
+                data[key] = value
+            }
+
+            neverActiveKeys.remove(key)
+            inactiveSizes.remove(key)?.let { size ->
+                inactiveBytes -= size
+                changedBytes -= size
+            }
+            if (value.timeWentInactive != null) {
+                changedBytes += addInactiveLocked(key, value)
+            }
+        }
+        DataRepositoryBudget.onInactiveBytesChanged(changedBytes)
+    }
+
+    /**
+     * Add a value as newest inactive value and schedule the eviction of the oldest ones if there
+     * are too many.
+     *
+     * @return The estimated size of the value
+     */
+    @GuardedBy("lock")
+    private fun addInactiveLocked(key: K, value: V): Long {
+        val size = estimateSize(value)
+        inactiveSizes[key] = size
+        inactiveBytes += size
+
+        if (inactiveSizes.size > maxInactiveEntries && !isTrimPending) {
+            isTrimPending = true
+            handler.post(::trimToMaxInactiveEntries)
+        }
+        return size.toLong()
+    }
+
+    /**
+     * Evict the oldest inactive values until at most [maxInactiveEntries] are left.
+     */
+    @MainThread
+    private fun trimToMaxInactiveEntries() {
+        var removedBytes = 0L
+        synchronized(lock) {
+            isTrimPending = false
+
+            while (inactiveSizes.size > maxInactiveEntries) {
+                removedBytes += evictLocked(inactiveSizes.keys.first())
+            }
+        }
+        DataRepositoryBudget.onInactiveBytesChanged(-removedBytes)
+    }
+
+    /**
+     * Count the values that were never observed during their grace period as inactive.
+     */
+    @MainThread
+    private fun endGracePeriods() {
+        var addedBytes = 0L
+        synchronized(lock) {
+            isGracePeriodCheckPending = false
+
+            val now = SystemClock.elapsedRealtime()
+            val iterator = neverActiveKeys.entries.iterator()
+            while (iterator.hasNext()) {
+                val (key, createdMillis) = iterator.next()
+                val remainingMillis = createdMillis + neverActiveGraceMillis - now
+                if (remainingMillis > 0) {
+                    isGracePeriodCheckPending = true
+                    handler.postDelayed(::endGracePeriods, remainingMillis)
+                    break
+                }
+
+                iterator.remove()
+                val value = data[key]
+                if (value?.timeWentInactive != null) {
+                    addedBytes += addInactiveLocked(key, value)
                 }
             }
         }
+        DataRepositoryBudget.onInactiveBytesChanged(addedBytes)
     }
 
+    /**
+     * Remove a value from this repository.
+     *
+     * @return The estimated size of the value if it was inactive, `0` otherwise
+     */
+    @GuardedBy("lock")
+    protected fun removeLocked(key: K): Long {
+        data.remove(key)?.onInactiveChanged = null
+        evicted.remove(key)?.get()?.onInactiveChanged = null
+        neverActiveKeys.remove(key)
+
+        val size = inactiveSizes.remove(key) ?: return 0
+        inactiveBytes -= size
+        return size.toLong()
+    }
+
+    /**
+     * Evict a value from this repository. Unlike [removeLocked] the value is kept weakly
+     * reachable, so it is handed out again as long as it is still held elsewhere.
+     *
+     * @return The estimated size of the value if it was inactive, `0` otherwise
+     */
+    @GuardedBy("lock")
+    private fun evictLocked(key: K): Long {
+        val value = data[key]
+        val size = removeLocked(key)
+        numEvictions++
+        if (value == null) {
+            return size
+        }
+
+        value.onInactiveChanged = { onInactiveChanged(key, value) }
+        evicted[key] = WeakReference(value)
+        if (evicted.size >= evictedPurgeSize) {
+            evicted.values.removeAll { it.get() == null }
+            evictedPurgeSize = maxOf(MIN_EVICTED_PURGE_SIZE, evicted.size * 2)
+        }
+        return size
+    }
+
+    /**
+     * Keys of all values of this repository, including evicted values that might still be held
+     */
+    @GuardedBy("lock")
+    protected val keysLocked: Set<K>
+        get() = data.keys + evicted.keys
+
     /**
      * Interface which describes an object which can track how long it has been inactive, and if
      * it has any observers.
@@ -138,6 +440,12 @@ abstract class DataRepository<K, V : DataRepository.InactiveTimekeeper> : Compon
          */
         var timeWentInactive: Long?
 
+        /**
+         * Called on the main thread after [timeWentInactive] changed. Set by the repository
+         * holding this object.
+         */
+        var onInactiveChanged: (() -> Unit)?
+
         /**
          * Calculates the time since this object went inactive.
          *
@@ -149,6 +457,28 @@ abstract class DataRepository<K, V : DataRepository.InactiveTimekeeper> : Compon
                 return System.nanoTime() - time
             }
     }
+
+    companion object {
+        /**
+         * Default for [maxInactiveEntries]
+         */
+        const val DEFAULT_MAX_INACTIVE_ENTRIES = 500
+
+        /**
+         * Default for [neverActiveGraceMillis]
+         */
+        val DEFAULT_NEVER_ACTIVE_GRACE_MILLIS = TimeUnit.SECONDS.toMillis(10)
+
+        /**
+         * Default for [estimateSize]: a LiveData, its observers of its sources and a small value
+         */
+        const val DEFAULT_ENTRY_BYTES = 512
+
+        /**
+         * How many evicted values to track before the ones that were garbage collected are purged
+         */
+        private const val MIN_EVICTED_PURGE_SIZE = 64
+    }
 }
 
 /**
@@ -165,13 +495,16 @@ abstract class DataRepositoryForPackage<K, V : DataRepository.InactiveTimekeeper
      * @param packageName The package to be invalidated
      */
     fun invalidateAllForPackage(packageName: String) {
+        var removedBytes = 0L
         synchronized(lock) {
-            for (key in data.keys.toSet()) {
-                if (key is Pair<*, *> || key is Triple<*, *, *> && key.first == packageName) {
-                    data.remove(key)
+            for (key in keysLocked) {
+                if ((key is Pair<*, *> && key.first == packageName) ||
+                    (key is Triple<*, *, *> && key.first == packageName)) {
+                    removedBytes += removeLocked(key)
                 }
             }
         }
+        DataRepositoryBudget.onInactiveBytesChanged(-removedBytes)
     }
 }
 
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.app.ActivityManager
+import android.os.Handler
+import android.os.Looper
+import androidx.annotation.GuardedBy
+import androidx.annotation.MainThread
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.PermissionControllerProto.DataRepositoriesProto
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Bounds the estimated size of the values without observers across all [DataRepository]s.
+ *
+ * <p>Once the budget is exceeded, the value that has been inactive for the longest time in any
+ * repository is evicted until the inactive values fit again. Eviction runs on the main thread, so
+ * it never happens while a repository is creating a value.
+ */
+object DataRepositoryBudget {
+    /** The inactive values may use 1 / this of the heap */
+    private const val HEAP_FRACTION = 16
+    /** The inactive values may use 1 / this of the heap on low RAM devices */
+    private const val LOW_RAM_HEAP_FRACTION = 32
+
+    private val lock = Any()
+    @GuardedBy("lock")
+    private val repositories = mutableListOf<DataRepository<*, *>>()
+
+    /**
+     * The estimated size of the inactive values of all repositories
+     */
+    private val inactiveBytes = AtomicLong()
+    private val isTrimPending = AtomicBoolean()
+    private val handler = Handler(Looper.getMainLooper())
+
+    /**
+     * The maximum estimated size of the inactive values of all repositories
+     */
+    val budgetBytes: Long
+
+    init {
+        val activityManager = PermissionControllerApplication.get()
+            .getSystemService(ActivityManager::class.java)!!
+        val heapBytes = activityManager.memoryClass * 1024L * 1024L
+        budgetBytes = heapBytes / if (activityManager.isLowRamDevice) {
+            LOW_RAM_HEAP_FRACTION
+        } else {
+            HEAP_FRACTION
+        }
+    }
+
+    /**
+     * Start tracking a repository.
+     *
+     * @param repository The repository
+     */
+    fun register(repository: DataRepository<*, *>) {
+        synchronized(lock) {
+            repositories.add(repository)
+        }
+    }
+
+    /**
+     * Called by the repositories when the estimated size of their inactive values changed.
+     *
+     * @param delta The change in bytes
+     */
+    fun onInactiveBytesChanged(delta: Long) {
+        if (delta == 0L) {
+            return
+        }
+
+        if (inactiveBytes.addAndGet(delta) > budgetBytes && isTrimPending.compareAndSet(false,
+                true)) {
+            handler.post(::trimToBudget)
+        }
+    }
+
+    @MainThread
+    private fun trimToBudget() {
+        isTrimPending.set(false)
+
+        val repositories = synchronized(lock) { repositories.toList() }
+        while (inactiveBytes.get() > budgetBytes) {
+            var oldestRepository: DataRepository<*, *>? = null
+            var oldestTime = Long.MAX_VALUE
+            for (repository in repositories) {
+                val time = repository.getOldestTimeWentInactive() ?: continue
+                if (time < oldestTime) {
+                    oldestRepository = repository
+                    oldestTime = time
+                }
+            }
+
+            val evictedBytes = oldestRepository?.evictOldestInactive() ?: break
+            inactiveBytes.addAndGet(-evictedBytes)
+        }
+    }
+
+    /**
+     * @return Statistics about the repositories
+     */
+    fun dump(): DataRepositoriesProto {
+        val repositories = synchronized(lock) { repositories.toList() }
+
+        return DataRepositoriesProto.newBuilder()
+            .setBudgetBytes(budgetBytes)
+            .setInactiveBytes(inactiveBytes.get())
+            .addAllRepositories(repositories.map { it.dump() })
+            .build()
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.app.Application
+import android.content.pm.PackageManager
+import android.os.UserHandle
+import android.util.Log
+import com.android.permissioncontroller.permission.model.livedatatypes.LightAppPermGroup
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.PermGroup
+import com.android.permissioncontroller.permission.utils.IPC
+import com.android.permissioncontroller.permission.utils.Utils
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.withContext
+
+/**
+ * Loads the state the grant permissions dialog needs to show its first request.
+ *
+ * The [LightAppPermGroupLiveData]s load the package, the permission group and the permission
+ * states one after another, for each group. This loader reads the package once and then all
+ * requested groups in parallel and builds the [LightAppPermGroup]s directly. The LiveDatas are
+ * then only needed to follow later changes.
+ */
+object GrantRequestLoader {
+    private val LOG_TAG = GrantRequestLoader::class.java.simpleName
+
+    /**
+     * Load a package and the permissions it requests.
+     *
+     * @param app The current application
+     * @param packageName The name of the package
+     * @param user The user of the package
+     *
+     * @return The package and the permissions it requests by group (see
+     * [PackagePermissionsLiveData]), or `null` if the package is not installed
+     */
+    suspend fun loadPackage(
+        app: Application,
+        packageName: String,
+        user: UserHandle
+    ): Pair<LightPackageInfo, Map<String, List<String>>>? = withContext(IPC) {
+        val packageInfo = try {
+            LightPackageInfo(Utils.getUserContext(app, user).packageManager.getPackageInfo(
+                packageName, PackageManager.GET_PERMISSIONS))
+        } catch (e: PackageManager.NameNotFoundException) {
+            Log.w(LOG_TAG, "Package \"$packageName\" not found")
+            return@withContext null
+        }
+
+        packageInfo to PackagePermissionsLiveData.getRequestedPermissionsByGroup(app, packageInfo)
+    }
+
+    /**
+     * Load the permissions of a package for several permission groups in parallel.
+     *
+     * @param app The current application
+     * @param packageInfo The package
+     * @param groupNames The names of the permission groups
+     * @param user The user of the package
+     *
+     * @return Map of group name to the permissions of the package for the group, `null` if the
+     * group is invalid
+     */
+    suspend fun loadAppPermGroups(
+        app: Application,
+        packageInfo: LightPackageInfo,
+        groupNames: Collection<String>,
+        user: UserHandle
+    ): Map<String, LightAppPermGroup?> = withContext(IPC) {
+        val userContext = Utils.getUserContext(app, user)
+        coroutineScope {
+            groupNames.map { groupName ->
+                async {
+                    val permGroup = PermGroupLiveData.loadPermGroup(app, groupName)
+                        ?: return@async groupName to null
+                    val permStates = PermStateLiveData.getPermStates(userContext, packageInfo,
+                        permGroup, user)!!
+
+                    groupName to LightAppPermGroupLiveData.createLightAppPermGroup(app,
+                        packageInfo, permGroup, permStates, getForegroundPerms(permGroup), user)
+                }
+            }.awaitAll().toMap()
+        }
+    }
+
+    /**
+     * Get the foreground permissions of the background permissions of a group. Same as
+     * [ForegroundPermNamesLiveData], but only for one group.
+     */
+    private fun getForegroundPerms(permGroup: PermGroup): Map<String, List<String>> {
+        if (!Utils.isModernPermissionGroup(permGroup.name)) {
+            return emptyMap()
+        }
+
+        val foregroundPerms = mutableMapOf<String, MutableList<String>>()
+        for (permInfo in permGroup.permissionInfos.values) {
+            val backgroundPerm = permInfo.backgroundPermission ?: continue
+            foregroundPerms.getOrPut(backgroundPerm) { mutableListOf() }.add(permInfo.name)
+        }
+        return foregroundPerms
+    }
+}
@@ -16,7 +16,6 @@
 
 package com.android.permissioncontroller.permission.data
 
-import android.app.AppOpsManager
 import android.app.AppOpsManager.OPSTR_AUTO_REVOKE_PERMISSIONS_IF_UNUSED
 import android.app.Application
 import android.content.pm.PackageManager.FLAG_PERMISSION_GRANTED_BY_DEFAULT
@@ -44,14 +43,14 @@ class HibernationSettingStateLiveData private constructor(
     private val app: Application,
     private val packageName: String,
     private val user: UserHandle
-) : SmartAsyncMediatorLiveData<HibernationSettingState>(), AppOpsManager.OnOpChangedListener {
+) : SmartAsyncMediatorLiveData<HibernationSettingState>(),
+    AppOpsListenerMultiplexer.AppOpModeCallback {
 
     private val packagePermsLiveData =
         PackagePermissionsLiveData[packageName, user]
     private val packageLiveData = LightPackageInfoLiveData[packageName, user]
     private val permStateLiveDatas = mutableMapOf<String, PermStateLiveData>()
     private val exemptServicesLiveData = ExemptServicesLiveData[user]
-    private val appOpsManager = app.getSystemService(AppOpsManager::class.java)!!
 
     init {
         addSource(packagePermsLiveData) {
@@ -105,20 +104,20 @@ class HibernationSettingStateLiveData private constructor(
         postValue(HibernationSettingState(isHibernationJobEnabled(), canHibernate, revocableGroups))
     }
 
-    override fun onOpChanged(op: String?, packageName: String?) {
-        if (op == OPSTR_AUTO_REVOKE_PERMISSIONS_IF_UNUSED && packageName == packageName) {
-            update()
-        }
+    override fun onAppOpModeChanged(op: String, packageName: String?) {
+        update()
     }
 
     override fun onActive() {
         super.onActive()
-        appOpsManager.startWatchingMode(OPSTR_AUTO_REVOKE_PERMISSIONS_IF_UNUSED, packageName, this)
+        AppOpsListenerMultiplexer.addModeCallback(OPSTR_AUTO_REVOKE_PERMISSIONS_IF_UNUSED,
+            packageName, this)
     }
 
     override fun onInactive() {
         super.onInactive()
-        appOpsManager.stopWatchingMode(this)
+        AppOpsListenerMultiplexer.removeModeCallback(OPSTR_AUTO_REVOKE_PERMISSIONS_IF_UNUSED,
+            packageName, this)
     }
     /**
      * Repository for HibernationSettingStateLiveDatas.
@@ -27,6 +27,8 @@ import com.android.permissioncontroller.PermissionControllerApplication
 import com.android.permissioncontroller.permission.model.livedatatypes.LightAppPermGroup
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPermission
+import com.android.permissioncontroller.permission.model.livedatatypes.PermGroup
+import com.android.permissioncontroller.permission.model.livedatatypes.PermState
 import com.android.permissioncontroller.permission.utils.LocationUtils
 import com.android.permissioncontroller.permission.utils.Utils
 import com.android.permissioncontroller.permission.utils.Utils.OS_PKG
@@ -99,81 +101,8 @@ class LightAppPermGroupLiveData private constructor(
         val packageInfo = packageInfoLiveData.value ?: return
         val allForegroundPerms = fgPermNamesLiveData.value ?: return
 
-        // Do not allow toggling pre-M custom perm groups
-        if (packageInfo.targetSdkVersion < Build.VERSION_CODES.M &&
-            permGroup.groupInfo.packageName != OS_PKG) {
-            value = LightAppPermGroup(packageInfo, permGroup.groupInfo, emptyMap())
-            return
-        }
-
-        val permissionMap = mutableMapOf<String, LightPermission>()
-        for ((permName, permState) in permStates) {
-            val permInfo = permGroup.permissionInfos[permName] ?: continue
-            val foregroundPerms = allForegroundPerms[permName]
-            permissionMap[permName] = LightPermission(packageInfo, permInfo, permState,
-                    foregroundPerms)
-        }
-
-        // Determine if this app permission group is a special location package or provider
-        var specialLocationGrant: Boolean? = null
-        val userContext = Utils.getUserContext(app, user)
-        if (LocationUtils.isLocationGroupAndProvider(userContext, permGroupName, packageName)) {
-            specialLocationGrant = LocationUtils.isLocationEnabled(userContext)
-        } else if (LocationUtils.isLocationGroupAndControllerExtraPackage(app, permGroupName,
-                packageName)) {
-            // The permission of the extra location controller package is determined by the status
-            // of the controller package itself.
-            specialLocationGrant = LocationUtils.isExtraLocationControllerPackageEnabled(
-                userContext)
-        }
-
-        val hasInstallToRuntimeSplit = hasInstallToRuntimeSplit(packageInfo, permissionMap)
-        value = LightAppPermGroup(packageInfo, permGroup.groupInfo, permissionMap,
-            hasInstallToRuntimeSplit, specialLocationGrant)
-    }
-
-    /**
-     * Check if permission group contains a runtime permission that split from an installed
-     * permission and the split happened in an Android version higher than app's targetSdk.
-     *
-     * @return `true` if there is such permission, `false` otherwise
-     */
-    private fun hasInstallToRuntimeSplit(
-        packageInfo: LightPackageInfo,
-        permissionMap: Map<String, LightPermission>
-    ): Boolean {
-        val permissionManager = app.getSystemService(PermissionManager::class.java) ?: return false
-
-        for (spi in permissionManager.splitPermissions) {
-            val splitPerm = spi.splitPermission
-
-            val pi = try {
-                app.packageManager.getPermissionInfo(splitPerm, 0)
-            } catch (e: PackageManager.NameNotFoundException) {
-                Log.w(LOG_TAG, "No such permission: $splitPerm", e)
-                continue
-            }
-
-            // Skip if split permission is not "install" permission.
-            if (pi.protection != PermissionInfo.PROTECTION_NORMAL) {
-                continue
-            }
-
-            val newPerms = spi.newPermissions
-            for (permName in newPerms) {
-                val newPerm = permissionMap[permName]?.permInfo ?: continue
-
-                // Skip if new permission is not "runtime" permission.
-                if (newPerm.protection != PermissionInfo.PROTECTION_DANGEROUS) {
-                    continue
-                }
-
-                if (packageInfo.targetSdkVersion < spi.targetSdk) {
-                    return true
-                }
-            }
-        }
-        return false
+        value = createLightAppPermGroup(app, packageInfo, permGroup, permStates,
+            allForegroundPerms, user)
     }
 
     override fun onLocationStateChange(enabled: Boolean) {
@@ -204,10 +133,117 @@ class LightAppPermGroupLiveData private constructor(
      */
     companion object : DataRepositoryForPackage<Triple<String, String, UserHandle>,
         LightAppPermGroupLiveData>() {
+        override val maxInactiveEntries = 300
+
         override fun newValue(key: Triple<String, String, UserHandle>):
             LightAppPermGroupLiveData {
             return LightAppPermGroupLiveData(PermissionControllerApplication.get(),
                 key.first, key.second, key.third)
         }
+
+        override fun estimateSize(value: LightAppPermGroupLiveData): Int {
+            // The group, its permissions, and the sources the LiveData observes
+            return DEFAULT_ENTRY_BYTES + (value.value?.permissions?.size ?: 0) * 256
+        }
+
+        /**
+         * Create the permissions of a package for a permission group.
+         *
+         * @param app The current application
+         * @param packageInfo The package
+         * @param permGroup The permission group
+         * @param permStates The state of the permissions of the group the package requests
+         * @param allForegroundPerms Map of background permission to its foreground permissions
+         * @param user The user of the package
+         *
+         * @return The permissions of the package for the group
+         */
+        fun createLightAppPermGroup(
+            app: Application,
+            packageInfo: LightPackageInfo,
+            permGroup: PermGroup,
+            permStates: Map<String, PermState>,
+            allForegroundPerms: Map<String, List<String>>,
+            user: UserHandle
+        ): LightAppPermGroup {
+            // Do not allow toggling pre-M custom perm groups
+            if (packageInfo.targetSdkVersion < Build.VERSION_CODES.M &&
+                permGroup.groupInfo.packageName != OS_PKG) {
+                return LightAppPermGroup(packageInfo, permGroup.groupInfo, emptyMap())
+            }
+
+            val permissionMap = mutableMapOf<String, LightPermission>()
+            for ((permName, permState) in permStates) {
+                val permInfo = permGroup.permissionInfos[permName] ?: continue
+                val foregroundPerms = allForegroundPerms[permName]
+                permissionMap[permName] = LightPermission(packageInfo, permInfo, permState,
+                        foregroundPerms)
+            }
+
+            // Determine if this app permission group is a special location package or provider
+            var specialLocationGrant: Boolean? = null
+            val userContext = Utils.getUserContext(app, user)
+            if (LocationUtils.isLocationGroupAndProvider(userContext, permGroup.name,
+                    packageInfo.packageName)) {
+                specialLocationGrant = LocationUtils.isLocationEnabled(userContext)
+            } else if (LocationUtils.isLocationGroupAndControllerExtraPackage(app, permGroup.name,
+                    packageInfo.packageName)) {
+                // The permission of the extra location controller package is determined by the
+                // status of the controller package itself.
+                specialLocationGrant = LocationUtils.isExtraLocationControllerPackageEnabled(
+                    userContext)
+            }
+
+            val hasInstallToRuntimeSplit = hasInstallToRuntimeSplit(app, packageInfo, permissionMap)
+            return LightAppPermGroup(packageInfo, permGroup.groupInfo, permissionMap,
+                hasInstallToRuntimeSplit, specialLocationGrant)
+        }
+
+        /**
+         * Check if permission group contains a runtime permission that split from an installed
+         * permission and the split happened in an Android version higher than app's targetSdk.
+         *
+         * @return `true` if there is such permission, `false` otherwise
+         */
+        private fun hasInstallToRuntimeSplit(
+            app: Application,
+            packageInfo: LightPackageInfo,
+            permissionMap: Map<String, LightPermission>
+        ): Boolean {
+            val permissionManager = app.getSystemService(PermissionManager::class.java)
+                ?: return false
+
+            for (spi in permissionManager.splitPermissions) {
+                val splitPerm = spi.splitPermission
+
+                val pi = try {
+                    app.packageManager.getPermissionInfo(splitPerm, 0)
+                } catch (e: PackageManager.NameNotFoundException) {
+                    Log.w(LightAppPermGroupLiveData::class.java.simpleName,
+                        "No such permission: $splitPerm", e)
+                    continue
+                }
+
+                // Skip if split permission is not "install" permission.
+                if (pi.protection != PermissionInfo.PROTECTION_NORMAL) {
+                    continue
+                }
+
+                val newPerms = spi.newPermissions
+                for (permName in newPerms) {
+                    val newPerm = permissionMap[permName]?.permInfo ?: continue
+
+                    // Skip if new permission is not "runtime" permission.
+                    if (newPerm.protection != PermissionInfo.PROTECTION_DANGEROUS) {
+                        continue
+                    }
+
+                    if (packageInfo.targetSdkVersion < spi.targetSdk) {
+                        return true
+                    }
+                }
+            }
+            return false
+        }
     }
-}
\ No newline at end of file
+}
@@ -39,7 +39,7 @@ class LightPackageInfoLiveData private constructor(
     private val packageName: String,
     private val user: UserHandle
 ) : SmartAsyncMediatorLiveData<LightPackageInfo>(alwaysUpdateOnActive = false),
-    PackageBroadcastReceiver.PackageBroadcastListener,
+    PackageBroadcastReceiver.PackageEventListener,
     PermissionListenerMultiplexer.PermissionChangeCallback {
 
     private val LOG_TAG = LightPackageInfoLiveData::class.java.simpleName
@@ -56,12 +56,19 @@ class LightPackageInfoLiveData private constructor(
      */
     private var watchingUserPackagesLiveData: Boolean = false
 
+    /**
+     * The package events that can change the package info. Enabling or disabling single
+     * components does not.
+     */
+    private val packageEventFilter = PackageEventFilter(setOf(packageName), user,
+        PackageEventFilter.PACKAGE_KINDS)
+
     /**
      * Callback from the PackageBroadcastReceiver. Either deletes or generates package data.
      *
-     * @param packageName the name of the package which was updated. Ignored in this method
+     * @param events the events of the package. Ignored in this method
      */
-    override fun onPackageUpdate(packageName: String) {
+    override fun onPackageEvents(events: List<PackageEvent>) {
         updateAsync()
     }
 
@@ -113,7 +120,7 @@ class LightPackageInfoLiveData private constructor(
     override fun onActive() {
         super.onActive()
 
-        PackageBroadcastReceiver.addChangeCallback(packageName, this)
+        PackageBroadcastReceiver.addEventCallback(packageEventFilter, this)
         uid?.let {
             registeredUid = uid
             PermissionListenerMultiplexer.addCallback(it, this)
@@ -157,7 +164,7 @@ class LightPackageInfoLiveData private constructor(
     override fun onInactive() {
         super.onInactive()
 
-        PackageBroadcastReceiver.removeChangeCallback(packageName, this)
+        PackageBroadcastReceiver.removeEventCallback(this)
         registeredUid?.let {
             PermissionListenerMultiplexer.removeCallback(it, this)
             registeredUid = null
@@ -35,7 +35,7 @@ class LightPermInfoLiveData private constructor(
     private val app: Application,
     private val permissionName: String
 ) : SmartAsyncMediatorLiveData<LightPermInfo>(),
-    PackageBroadcastReceiver.PackageBroadcastListener {
+    PackageBroadcastReceiver.PackageEventListener {
 
     private val LOG_TAG = LightPermInfoLiveData::class.java.simpleName
 
@@ -47,7 +47,7 @@ class LightPermInfoLiveData private constructor(
      *
      * <p>Package updates might change permission properties
      */
-    override fun onPackageUpdate(ignored: String) {
+    override fun onPackageEvents(ignored: List<PackageEvent>) {
         updateAsync()
     }
 
@@ -101,7 +101,8 @@ class LightPermInfoLiveData private constructor(
     private fun startListeningForChanges() {
         if (!isListeningForChanges && !isImmutable()) {
             isListeningForChanges = true
-            PackageBroadcastReceiver.addAllCallback(this)
+            PackageBroadcastReceiver.addEventCallback(
+                PackageEventFilter(kinds = PackageEventFilter.MANIFEST_KINDS), this)
         }
     }
 
@@ -110,7 +111,7 @@ class LightPermInfoLiveData private constructor(
      */
     private fun stopListeningForChanges() {
         if (isListeningForChanges) {
-            PackageBroadcastReceiver.removeAllCallback(this)
+            PackageBroadcastReceiver.removeEventCallback(this)
             isListeningForChanges = false
         }
     }
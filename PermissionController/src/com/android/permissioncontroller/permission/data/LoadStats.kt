@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import com.android.permissioncontroller.PermissionControllerProto.LiveDataLoadStatsProto
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Counters and a latency histogram of the loads of all [SmartAsyncMediatorLiveData]s of a class.
+ *
+ * <p>Recording does not allocate, hence is always on. Only the binder transactions are not
+ * counted unless the [BinderTransactionCounter] is enabled.
+ *
+ * @param className The name of the LiveData class
+ */
+class LoadStats private constructor(val className: String) {
+    /**
+     * The name of the trace section around each load
+     */
+    val traceSectionName = "load $className".take(MAX_TRACE_SECTION_NAME_LENGTH)
+
+    private val numUpdateRequests = AtomicLong()
+    private val numCoalescedUpdates = AtomicLong()
+    private val numLoads = AtomicLong()
+    private val numCancelledLoads = AtomicLong()
+    private val totalLoadNanos = AtomicLong()
+    private val maxLoadNanos = AtomicLong()
+    private val numIpcCountedLoads = AtomicLong()
+    private val numIpcs = AtomicLong()
+
+    /**
+     * Bucket 0 counts loads faster than 1 ms, bucket i loads of [2^(i-1), 2^i) ms, the last
+     * bucket all slower loads
+     */
+    private val loadMillisHistogram = AtomicLongArray(NUM_HISTOGRAM_BUCKETS)
+
+    /**
+     * Record an update request.
+     *
+     * @param isCoalesced Whether the update was folded into a load that is already running
+     */
+    fun onUpdateRequested(isCoalesced: Boolean) {
+        numUpdateRequests.incrementAndGet()
+        if (isCoalesced) {
+            numCoalescedUpdates.incrementAndGet()
+        }
+    }
+
+    /**
+     * Record a finished load.
+     *
+     * @param durationNanos How long the load took
+     * @param ipcs The number of binder transactions of the load, or `-1` if unknown
+     * @param isCancelled Whether the load was cancelled
+     */
+    fun onLoadFinished(durationNanos: Long, ipcs: Long, isCancelled: Boolean) {
+        numLoads.incrementAndGet()
+        if (isCancelled) {
+            numCancelledLoads.incrementAndGet()
+        }
+
+        totalLoadNanos.addAndGet(durationNanos)
+        var max = maxLoadNanos.get()
+        while (durationNanos > max && !maxLoadNanos.compareAndSet(max, durationNanos)) {
+            max = maxLoadNanos.get()
+        }
+
+        if (ipcs >= 0) {
+            numIpcCountedLoads.incrementAndGet()
+            numIpcs.addAndGet(ipcs)
+        }
+
+        val millis = TimeUnit.NANOSECONDS.toMillis(durationNanos)
+        val bucket = if (millis <= 0) {
+            0
+        } else {
+            minOf(java.lang.Long.SIZE - java.lang.Long.numberOfLeadingZeros(millis),
+                NUM_HISTOGRAM_BUCKETS - 1)
+        }
+        loadMillisHistogram.incrementAndGet(bucket)
+    }
+
+    /**
+     * @return The recorded stats
+     */
+    fun dump(): LiveDataLoadStatsProto {
+        val builder = LiveDataLoadStatsProto.newBuilder()
+            .setClassName(className)
+            .setNumUpdateRequests(numUpdateRequests.get())
+            .setNumCoalescedUpdates(numCoalescedUpdates.get())
+            .setNumLoads(numLoads.get())
+            .setNumCancelledLoads(numCancelledLoads.get())
+            .setTotalLoadMicros(TimeUnit.NANOSECONDS.toMicros(totalLoadNanos.get()))
+            .setMaxLoadMicros(TimeUnit.NANOSECONDS.toMicros(maxLoadNanos.get()))
+            .setNumIpcCountedLoads(numIpcCountedLoads.get())
+            .setNumIpcs(numIpcs.get())
+        for (i in 0 until NUM_HISTOGRAM_BUCKETS) {
+            builder.addLoadMillisHistogram(loadMillisHistogram.get(i))
+        }
+        return builder.build()
+    }
+
+    companion object {
+        /** Buckets up to 1024 ms */
+        private const val NUM_HISTOGRAM_BUCKETS = 12
+
+        /** Longer section names are rejected by [android.os.Trace] */
+        private const val MAX_TRACE_SECTION_NAME_LENGTH = 127
+
+        /**
+         * Map<LiveData class, stats of its loads>
+         */
+        private val stats = ConcurrentHashMap<Class<*>, LoadStats>()
+
+        /**
+         * Get the stats shared by all LiveDatas of a class.
+         *
+         * @param liveDataClass The class of the LiveData
+         *
+         * @return The stats of the class
+         */
+        fun forClass(liveDataClass: Class<*>): LoadStats {
+            return stats.computeIfAbsent(liveDataClass) {
+                LoadStats(liveDataClass.name.substringAfterLast('.'))
+            }
+        }
+
+        /**
+         * @return The stats of all classes that loaded at least once, most total load time first
+         */
+        fun dumpAll(): List<LiveDataLoadStatsProto> {
+            return stats.values.map { it.dump() }.filter { it.numLoads > 0 }
+                .sortedByDescending { it.totalLoadMicros }
+        }
+    }
+}
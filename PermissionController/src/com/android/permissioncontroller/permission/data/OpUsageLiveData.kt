@@ -45,7 +45,7 @@ class OpUsageLiveData(
     private val opNames: List<String>,
     private val usageDurationMs: Long
 ) : SmartAsyncMediatorLiveData<@JvmSuppressWildcards Map<String, List<OpAccess>>>(),
-        AppOpsManager.OnOpActiveChangedListener {
+        AppOpsListenerMultiplexer.AppOpActiveCallback {
     private val appOpsManager = app.getSystemService(AppOpsManager::class.java)!!
 
     override suspend fun loadDataAndPostValue(job: Job) {
@@ -124,20 +124,20 @@ class OpUsageLiveData(
             }
         }
 
-        try {
-            appOpsManager.startWatchingActive(opNames.toTypedArray(), { it.run() }, this)
-        } catch (ignored: IllegalArgumentException) {
-            // older builds might not support all the app-ops requested
+        for (opName in opNames) {
+            AppOpsListenerMultiplexer.addActiveCallback(opName, null, this)
         }
     }
 
     override fun onInactive() {
         super.onInactive()
 
-        appOpsManager.stopWatchingActive(this)
+        for (opName in opNames) {
+            AppOpsListenerMultiplexer.removeActiveCallback(opName, null, this)
+        }
     }
 
-    override fun onOpActiveChanged(op: String, uid: Int, packageName: String, active: Boolean) {
+    override fun onAppOpActiveChanged(op: String, uid: Int, packageName: String, active: Boolean) {
         update()
     }
 
@@ -21,6 +21,9 @@ import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
+import android.os.Handler
+import android.os.Looper
+import android.os.Process.INVALID_UID
 import com.android.permissioncontroller.PermissionControllerApplication
 import kotlinx.coroutines.Dispatchers.Main
 import kotlinx.coroutines.GlobalScope
@@ -28,8 +31,17 @@ import kotlinx.coroutines.launch
 
 /**
  * Listens for package additions, replacements, and removals, and notifies listeners.
+ *
+ * <p>Broadcasts are turned into [PackageEvent]s and collected for about a frame before they are
+ * dispatched, so e.g. the removed, added and replaced broadcasts of a package update only cause a
+ * single notification. [PackageEventListener]s are only notified of the events that match their
+ * [PackageEventFilter].
  */
 object PackageBroadcastReceiver : BroadcastReceiver() {
+    /**
+     * How long to collect events before dispatching them
+     */
+    private const val BATCH_DELAY_MILLIS = 16L
 
     private val app: Application = PermissionControllerApplication.get()
     private val intentFilter = IntentFilter(Intent.ACTION_PACKAGE_ADDED).apply {
@@ -48,6 +60,25 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
      */
     private val allCallbacks = mutableSetOf<PackageBroadcastListener>()
 
+    /**
+     * Map<listener, filter of the listener>
+     */
+    private val eventFilters = mutableMapOf<PackageEventListener, PackageEventFilter>()
+    /**
+     * Map<packageName, listeners whose filter contains the package>
+     */
+    private val packageEventListeners = mutableMapOf<String, MutableSet<PackageEventListener>>()
+    /**
+     * The listeners whose filter contains all packages
+     */
+    private val anyPackageEventListeners = mutableSetOf<PackageEventListener>()
+
+    /**
+     * The events received since the last dispatch, in order
+     */
+    private var pendingEvents = mutableSetOf<PackageEvent>()
+    private val handler = Handler(Looper.getMainLooper())
+
     /**
      * Add a callback which will be notified when the specified packaged is changed or removed.
      */
@@ -58,8 +89,7 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
             changeCallbacks.getOrPut(packageName, { mutableSetOf() }).add(listener)
 
             if (wasEmpty) {
-                app.applicationContext.registerReceiverForAllUsers(this@PackageBroadcastReceiver,
-                        intentFilter, null, null)
+                registerReceiver()
             }
         }
     }
@@ -67,8 +97,9 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
     /**
      * Add a callback which will be notified any time a package is added, removed, or changed.
      *
+     * <p>Prefer [addEventCallback] with a filter that only matches the relevant events.
+     *
      * @param listener the listener to be added
-     * @return returns the integer ID assigned to the
      */
     fun addAllCallback(listener: PackageBroadcastListener) {
         GlobalScope.launch(Main.immediate) {
@@ -77,8 +108,7 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
             allCallbacks.add(listener)
 
             if (wasEmpty) {
-                app.applicationContext.registerReceiverForAllUsers(this@PackageBroadcastReceiver,
-                        intentFilter, null, null)
+                registerReceiver()
             }
         }
     }
@@ -93,7 +123,7 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
             val wasEmpty = hasNoListeners()
 
             if (allCallbacks.remove(listener) && hasNoListeners() && !wasEmpty) {
-                app.applicationContext.unregisterReceiver(this@PackageBroadcastReceiver)
+                unregisterReceiver()
             }
         }
     }
@@ -114,14 +144,82 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
                     changeCallbacks.remove(packageName)
                 }
                 if (hasNoListeners() && !wasEmpty) {
-                    app.applicationContext.unregisterReceiver(this@PackageBroadcastReceiver)
+                    unregisterReceiver()
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a listener which will be notified of the package events matching a filter. If the
+     * listener was already added, its filter is replaced.
+     *
+     * @param filter the events the listener is interested in
+     * @param listener the listener to be added
+     */
+    fun addEventCallback(filter: PackageEventFilter, listener: PackageEventListener) {
+        GlobalScope.launch(Main.immediate) {
+            val wasEmpty = hasNoListeners()
+
+            removeEventListenerFromIndex(listener)
+            eventFilters[listener] = filter
+            if (filter.packageNames == null) {
+                anyPackageEventListeners.add(listener)
+            } else {
+                for (packageName in filter.packageNames) {
+                    packageEventListeners.getOrPut(packageName, { mutableSetOf() }).add(listener)
+                }
+            }
+
+            if (wasEmpty) {
+                registerReceiver()
+            }
+        }
+    }
+
+    /**
+     * Removes a listener added via [addEventCallback].
+     *
+     * @param listener the listener we wish to remove
+     */
+    fun removeEventCallback(listener: PackageEventListener) {
+        GlobalScope.launch(Main.immediate) {
+            val wasEmpty = hasNoListeners()
+
+            if (removeEventListenerFromIndex(listener) && hasNoListeners() && !wasEmpty) {
+                unregisterReceiver()
+            }
+        }
+    }
+
+    private fun removeEventListenerFromIndex(listener: PackageEventListener): Boolean {
+        val filter = eventFilters.remove(listener) ?: return false
+
+        if (filter.packageNames == null) {
+            anyPackageEventListeners.remove(listener)
+        } else {
+            for (packageName in filter.packageNames) {
+                packageEventListeners[packageName]?.let { listeners ->
+                    listeners.remove(listener)
+                    if (listeners.isEmpty()) {
+                        packageEventListeners.remove(packageName)
+                    }
                 }
             }
         }
+        return true
+    }
+
+    private fun registerReceiver() {
+        app.applicationContext.registerReceiverForAllUsers(this, intentFilter, null, null)
+    }
+
+    private fun unregisterReceiver() {
+        app.applicationContext.unregisterReceiver(this)
     }
 
     private fun getNumListeners(): Int {
-        var numListeners = allCallbacks.size
+        var numListeners = allCallbacks.size + eventFilters.size
         for ((_, changeCallbackSet) in changeCallbacks) {
             numListeners += changeCallbackSet.size
         }
@@ -133,24 +231,32 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
     }
 
     /**
-     * Upon receiving a broadcast, rout it to the proper callbacks.
+     * Upon receiving a broadcast, queue an event for the proper callbacks.
      *
      * @param context the context of the broadcast
      * @param intent data about the broadcast which was sent
      */
     override fun onReceive(context: Context, intent: Intent) {
         val packageName = intent.data?.schemeSpecificPart ?: return
+        val isReplacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)
 
-        for (callback in allCallbacks.toList()) {
-            callback.onPackageUpdate(packageName)
-        }
-
-        if (intent.action != Intent.ACTION_PACKAGE_ADDED) {
-            changeCallbacks[packageName]?.toList()?.let { callbacks ->
-                for (callback in callbacks) {
-                    callback.onPackageUpdate(packageName)
+        val kind = when (intent.action) {
+            Intent.ACTION_PACKAGE_ADDED ->
+                if (isReplacing) PackageEvent.Kind.REPLACED else PackageEvent.Kind.ADDED
+            Intent.ACTION_PACKAGE_REMOVED ->
+                if (isReplacing) PackageEvent.Kind.REPLACED else PackageEvent.Kind.REMOVED
+            Intent.ACTION_PACKAGE_REPLACED -> PackageEvent.Kind.REPLACED
+            Intent.ACTION_PACKAGE_CHANGED -> {
+                val components = intent.getStringArrayExtra(
+                    Intent.EXTRA_CHANGED_COMPONENT_NAME_LIST)
+                // The package name is in the list if the whole package was enabled or disabled
+                if (components == null || packageName in components) {
+                    PackageEvent.Kind.CHANGED
+                } else {
+                    PackageEvent.Kind.COMPONENT_CHANGED
                 }
             }
+            else -> return
         }
 
         if (intent.action == Intent.ACTION_PACKAGE_REMOVED) {
@@ -162,6 +268,53 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
             LightAppPermGroupLiveData.invalidateAllForPackage(packageName)
             AppPermGroupUiInfoLiveData.invalidateAllForPackage(packageName)
         }
+
+        if (pendingEvents.isEmpty()) {
+            handler.postDelayed(::dispatchEvents, BATCH_DELAY_MILLIS)
+        }
+        pendingEvents.add(PackageEvent(kind, packageName,
+            intent.getIntExtra(Intent.EXTRA_UID, INVALID_UID)))
+    }
+
+    private fun dispatchEvents() {
+        val events = pendingEvents
+        pendingEvents = mutableSetOf()
+
+        // Only look at the listeners that might be interested in the changed packages
+        val listenerEvents = mutableMapOf<PackageEventListener, MutableList<PackageEvent>>()
+        for (event in events) {
+            val packageListeners = packageEventListeners[event.packageName]
+            for (listeners in listOfNotNull(packageListeners, anyPackageEventListeners)) {
+                for (listener in listeners) {
+                    if (eventFilters[listener]?.matches(event) == true) {
+                        listenerEvents.getOrPut(listener, { mutableListOf() }).add(event)
+                    }
+                }
+            }
+        }
+        for ((listener, matchingEvents) in listenerEvents) {
+            // The listener might have been removed by a previous listener
+            if (listener in eventFilters) {
+                listener.onPackageEvents(matchingEvents)
+            }
+        }
+
+        val packageNames = events.mapTo(mutableSetOf()) { it.packageName }
+        for (packageName in packageNames) {
+            for (callback in allCallbacks.toList()) {
+                callback.onPackageUpdate(packageName)
+            }
+        }
+
+        val changedPackageNames = events.filter { it.kind != PackageEvent.Kind.ADDED }
+            .mapTo(mutableSetOf()) { it.packageName }
+        for (packageName in changedPackageNames) {
+            changeCallbacks[packageName]?.toList()?.let { callbacks ->
+                for (callback in callbacks) {
+                    callback.onPackageUpdate(packageName)
+                }
+            }
+        }
     }
 
     /**
@@ -176,4 +329,16 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
          */
         fun onPackageUpdate(packageName: String)
     }
+
+    /**
+     * A listener interface for objects desiring to be notified of [PackageEvent]s.
+     */
+    interface PackageEventListener {
+        /**
+         * Called once per batch of events that match the filter of the listener.
+         *
+         * @param events the events, in the order they were received
+         */
+        fun onPackageEvents(events: List<PackageEvent>)
+    }
 }
\ No newline at end of file
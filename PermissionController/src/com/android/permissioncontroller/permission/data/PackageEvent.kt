@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.os.Process.INVALID_UID
+import android.os.UserHandle
+
+/**
+ * A change of a package, as seen by the [PackageBroadcastReceiver].
+ *
+ * @param kind The kind of change
+ * @param packageName The name of the package that changed
+ * @param uid The uid of the package, [INVALID_UID] if the broadcast did not contain it
+ */
+data class PackageEvent(
+    val kind: Kind,
+    val packageName: String,
+    val uid: Int
+) {
+    /**
+     * The user of the package, `null` if the uid is unknown
+     */
+    val user: UserHandle?
+        get() = if (uid == INVALID_UID) null else UserHandle.getUserHandleForUid(uid)
+
+    enum class Kind {
+        /** The package was installed */
+        ADDED,
+        /** The package was uninstalled */
+        REMOVED,
+        /** The package was updated. An update is reported as a single event. */
+        REPLACED,
+        /** The package was enabled or disabled */
+        CHANGED,
+        /** Only some components of the package were enabled or disabled */
+        COMPONENT_CHANGED
+    }
+}
+
+/**
+ * The [PackageEvent]s a [PackageBroadcastReceiver.PackageEventListener] is interested in.
+ *
+ * <p>Listeners with [packageNames] are indexed by package, hence are not looked at for events of
+ * other packages.
+ *
+ * @param packageNames The packages to listen to, `null` for all packages
+ * @param user The user to listen to, `null` for all users
+ * @param kinds The kinds of events to listen to
+ */
+data class PackageEventFilter(
+    val packageNames: Set<String>? = null,
+    val user: UserHandle? = null,
+    val kinds: Set<PackageEvent.Kind> = ALL_KINDS
+) {
+    /**
+     * @param event The event to check
+     *
+     * @return `true` iff the listener should be notified of the event
+     */
+    fun matches(event: PackageEvent): Boolean {
+        if (event.kind !in kinds) {
+            return false
+        }
+        if (packageNames != null && event.packageName !in packageNames) {
+            return false
+        }
+
+        // Events of unknown users are delivered to everyone
+        val eventUser = event.user
+        return user == null || eventUser == null || user == eventUser
+    }
+
+    companion object {
+        /** All kinds of events */
+        @JvmField
+        val ALL_KINDS: Set<PackageEvent.Kind> = PackageEvent.Kind.values().toSet()
+
+        /**
+         * The events that can change what a package declares in its manifest, e.g. permissions
+         * and attributions. Enabling or disabling a package or its components does not.
+         */
+        @JvmField
+        val MANIFEST_KINDS: Set<PackageEvent.Kind> = setOf(PackageEvent.Kind.ADDED,
+            PackageEvent.Kind.REMOVED, PackageEvent.Kind.REPLACED)
+
+        /**
+         * The events that can change the package as a whole, i.e. all but component changes.
+         */
+        @JvmField
+        val PACKAGE_KINDS: Set<PackageEvent.Kind> = ALL_KINDS - PackageEvent.Kind.COMPONENT_CHANGED
+    }
+}
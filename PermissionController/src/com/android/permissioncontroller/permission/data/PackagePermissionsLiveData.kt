@@ -22,6 +22,7 @@ import android.content.pm.PermissionInfo
 import android.os.Build
 import android.os.UserHandle
 import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
 import com.android.permissioncontroller.permission.utils.Utils
 import kotlinx.coroutines.Job
 
@@ -56,50 +57,7 @@ class PackagePermissionsLiveData private constructor(
 
     override suspend fun loadDataAndPostValue(job: Job) {
         val packageInfo = packageInfoLiveData.value ?: return
-        val permissionMap = mutableMapOf<String, MutableList<String>>()
-        for (permName in packageInfo.requestedPermissions) {
-            var groupName = Utils.getGroupOfPlatformPermission(permName)
-            if (groupName == null) {
-                val permInfo = try {
-                    app.packageManager.getPermissionInfo(permName, 0)
-                } catch (e: PackageManager.NameNotFoundException) {
-                    continue
-                }
-
-                if (permInfo.flags and PermissionInfo.FLAG_INSTALLED == 0 ||
-                    permInfo.flags and PermissionInfo.FLAG_REMOVED != 0) {
-                    continue
-                }
-
-                if (packageInfo.isInstantApp && permInfo.protectionFlags and
-                    PermissionInfo.PROTECTION_FLAG_INSTANT == 0) {
-                    continue
-                }
-
-                if (packageInfo.targetSdkVersion < Build.VERSION_CODES.M &&
-                    (permInfo.protectionFlags and PermissionInfo.PROTECTION_FLAG_RUNTIME_ONLY) !=
-                    0) {
-                    continue
-                }
-
-                // If this permission is a non-runtime, normal permission, add it to the
-                // "non runtime" group
-                if (permInfo.protection != PermissionInfo.PROTECTION_DANGEROUS) {
-                    if (permInfo.protection == PermissionInfo.PROTECTION_NORMAL) {
-                        val otherPermsList =
-                            permissionMap.getOrPut(NON_RUNTIME_NORMAL_PERMS) { mutableListOf() }
-                        otherPermsList.add(permInfo.name)
-                    }
-                    continue
-                }
-
-                groupName = Utils.getGroupOfPermission(permInfo) ?: permName
-            }
-
-            permissionMap.getOrPut(groupName) { mutableListOf() }.add(permName)
-        }
-
-        postValue(permissionMap)
+        postValue(getRequestedPermissionsByGroup(app, packageInfo))
     }
 
     /**
@@ -115,5 +73,63 @@ class PackagePermissionsLiveData private constructor(
         }
 
         const val NON_RUNTIME_NORMAL_PERMS = "nonRuntimeNormalPerms"
+
+        /**
+         * Get the permissions a package requests, by group.
+         *
+         * @param app The current application
+         * @param packageInfo The package
+         *
+         * @return map of group name (or [NON_RUNTIME_NORMAL_PERMS]) to requested permissions
+         */
+        fun getRequestedPermissionsByGroup(
+            app: Application,
+            packageInfo: LightPackageInfo
+        ): Map<String, List<String>> {
+            val permissionMap = mutableMapOf<String, MutableList<String>>()
+            for (permName in packageInfo.requestedPermissions) {
+                var groupName = Utils.getGroupOfPlatformPermission(permName)
+                if (groupName == null) {
+                    val permInfo = try {
+                        app.packageManager.getPermissionInfo(permName, 0)
+                    } catch (e: PackageManager.NameNotFoundException) {
+                        continue
+                    }
+
+                    if (permInfo.flags and PermissionInfo.FLAG_INSTALLED == 0 ||
+                        permInfo.flags and PermissionInfo.FLAG_REMOVED != 0) {
+                        continue
+                    }
+
+                    if (packageInfo.isInstantApp && permInfo.protectionFlags and
+                        PermissionInfo.PROTECTION_FLAG_INSTANT == 0) {
+                        continue
+                    }
+
+                    if (packageInfo.targetSdkVersion < Build.VERSION_CODES.M &&
+                        (permInfo.protectionFlags and
+                            PermissionInfo.PROTECTION_FLAG_RUNTIME_ONLY) != 0) {
+                        continue
+                    }
+
+                    // If this permission is a non-runtime, normal permission, add it to the
+                    // "non runtime" group
+                    if (permInfo.protection != PermissionInfo.PROTECTION_DANGEROUS) {
+                        if (permInfo.protection == PermissionInfo.PROTECTION_NORMAL) {
+                            val otherPermsList =
+                                permissionMap.getOrPut(NON_RUNTIME_NORMAL_PERMS) { mutableListOf() }
+                            otherPermsList.add(permInfo.name)
+                        }
+                        continue
+                    }
+
+                    groupName = Utils.getGroupOfPermission(permInfo) ?: permName
+                }
+
+                permissionMap.getOrPut(groupName) { mutableListOf() }.add(permName)
+            }
+
+            return permissionMap
+        }
     }
 }
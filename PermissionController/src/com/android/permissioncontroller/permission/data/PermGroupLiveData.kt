@@ -17,7 +17,7 @@
 package com.android.permissioncontroller.permission.data
 
 import android.app.Application
-import android.content.pm.PackageItemInfo
+import android.content.Context
 import android.content.pm.PackageManager
 import android.content.pm.PermissionGroupInfo
 import android.content.pm.PermissionInfo
@@ -40,7 +40,7 @@ class PermGroupLiveData private constructor(
     private val app: Application,
     private val groupName: String
 ) : SmartUpdateMediatorLiveData<PermGroup>(),
-    PackageBroadcastReceiver.PackageBroadcastListener {
+    PackageBroadcastReceiver.PackageEventListener {
 
     private val LOG_TAG = this::class.java.simpleName
 
@@ -51,14 +51,12 @@ class PermGroupLiveData private constructor(
      */
     private val packageLiveDatas = mutableMapOf<String, LightPackageInfoLiveData>()
 
-    private lateinit var groupInfo: PackageItemInfo
-
     /**
-     * Called when a package is installed, changed, or removed.
+     * Called when a package is installed, updated, or removed.
      *
-     * @param packageName the package which was added or changed
+     * @param events the package events
      */
-    override fun onPackageUpdate(packageName: String) {
+    override fun onPackageEvents(events: List<PackageEvent>) {
         update()
     }
 
@@ -67,47 +65,18 @@ class PermGroupLiveData private constructor(
      * PackageInfoLiveDatas, then re-adds them.
      */
     override fun onUpdate() {
-        val permissionInfos = mutableMapOf<String, LightPermInfo>()
-
-        groupInfo = Utils.getGroupInfo(groupName, context) ?: run {
+        val permGroup = loadPermGroup(context, groupName) ?: run {
             Log.e(LOG_TAG, "Invalid permission group $groupName")
             invalidateSingle(groupName)
             value = null
             return
         }
 
-        when (groupInfo) {
-            is PermissionGroupInfo -> {
-                val permInfos = try {
-                    Utils.getInstalledRuntimePermissionInfosForGroup(context.packageManager,
-                        groupName)
-                } catch (e: PackageManager.NameNotFoundException) {
-                    Log.e(LOG_TAG, "Invalid permission group $groupName")
-                    invalidateSingle(groupName)
-                    value = null
-                    return
-                }
-
-                for (permInfo in permInfos) {
-                    permissionInfos[permInfo.name] = LightPermInfo(permInfo)
-                }
-            }
-            is PermissionInfo -> {
-                permissionInfos[groupInfo.name] = LightPermInfo(groupInfo as PermissionInfo)
-            }
-            else -> {
-                value = null
-                return
-            }
-        }
-
-        val permGroup = PermGroup(LightPermGroupInfo(groupInfo), permissionInfos)
-
         value = permGroup
 
-        val packageNames = permissionInfos.values.map { permInfo -> permInfo.packageName }
+        val packageNames = permGroup.permissionInfos.values.map { permInfo -> permInfo.packageName }
             .toMutableSet()
-        packageNames.add(groupInfo.packageName)
+        packageNames.add(permGroup.groupInfo.packageName)
 
         // TODO ntmyren: What if the package isn't installed for the system user?
         val getLiveData = { packageName: String ->
@@ -119,7 +88,7 @@ class PermGroupLiveData private constructor(
     override fun onInactive() {
         super.onInactive()
 
-        PackageBroadcastReceiver.removeAllCallback(this)
+        PackageBroadcastReceiver.removeEventCallback(this)
     }
 
     /**
@@ -131,7 +100,7 @@ class PermGroupLiveData private constructor(
 
         super.onActive()
 
-        PackageBroadcastReceiver.addAllCallback(this)
+        PackageBroadcastReceiver.addEventCallback(MANIFEST_EVENTS, this)
     }
 
     /**
@@ -139,8 +108,48 @@ class PermGroupLiveData private constructor(
      * <p> Key value is a string permission group name, value is its corresponding LiveData.
      */
     companion object : DataRepository<String, PermGroupLiveData>() {
+        /**
+         * Permission definitions are global and only change when a package is (un-)installed or
+         * updated
+         */
+        private val MANIFEST_EVENTS = PackageEventFilter(kinds = PackageEventFilter.MANIFEST_KINDS)
+
         override fun newValue(key: String): PermGroupLiveData {
             return PermGroupLiveData(PermissionControllerApplication.get(), key)
         }
+
+        /**
+         * Load a permission group and its installed runtime permissions.
+         *
+         * @param context The context to use
+         * @param groupName The name of the permission group, or of a permission without group
+         *
+         * @return The permission group, or `null` if the group is invalid
+         */
+        fun loadPermGroup(context: Context, groupName: String): PermGroup? {
+            val groupInfo = Utils.getGroupInfo(groupName, context) ?: return null
+
+            val permissionInfos = mutableMapOf<String, LightPermInfo>()
+            when (groupInfo) {
+                is PermissionGroupInfo -> {
+                    val permInfos = try {
+                        Utils.getInstalledRuntimePermissionInfosForGroup(context.packageManager,
+                            groupName)
+                    } catch (e: PackageManager.NameNotFoundException) {
+                        return null
+                    }
+
+                    for (permInfo in permInfos) {
+                        permissionInfos[permInfo.name] = LightPermInfo(permInfo)
+                    }
+                }
+                is PermissionInfo -> {
+                    permissionInfos[groupInfo.name] = LightPermInfo(groupInfo)
+                }
+                else -> return null
+            }
+
+            return PermGroup(LightPermGroupInfo(groupInfo), permissionInfos)
+        }
     }
 }
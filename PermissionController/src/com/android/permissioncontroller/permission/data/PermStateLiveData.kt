@@ -17,11 +17,13 @@
 package com.android.permissioncontroller.permission.data
 
 import android.app.Application
+import android.content.Context
 import android.content.pm.PackageInfo
 import android.content.pm.PackageManager
 import android.os.UserHandle
 import com.android.permissioncontroller.PermissionControllerApplication
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.PermGroup
 import com.android.permissioncontroller.permission.model.livedatatypes.PermState
 import com.android.permissioncontroller.permission.utils.Utils
 import kotlinx.coroutines.Job
@@ -79,22 +81,8 @@ class PermStateLiveData private constructor(
             postValue(null)
             return
         }
-        val permissionStates = mutableMapOf<String, PermState>()
-        for ((index, permissionName) in packageInfo.requestedPermissions.withIndex()) {
-
-            permissionGroup.permissionInfos[permissionName]?.let { permInfo ->
-                val packageFlags = packageInfo.requestedPermissionsFlags[index]
-                val permFlags = context.packageManager.getPermissionFlags(permInfo.name,
-                    packageName, user)
-                val granted = packageFlags and PackageInfo.REQUESTED_PERMISSION_GRANTED != 0 &&
-                    permFlags and PackageManager.FLAG_PERMISSION_REVOKED_COMPAT == 0
-
-                if (job.isCancelled) {
-                    return
-                }
-                permissionStates[permissionName] = PermState(permFlags, granted)
-            }
-        }
+        val permissionStates = getPermStates(context, packageInfo, permissionGroup, user, job)
+            ?: return
 
         postValue(permissionStates)
     }
@@ -141,9 +129,54 @@ class PermStateLiveData private constructor(
      */
     companion object : DataRepositoryForPackage<Triple<String, String, UserHandle>,
         PermStateLiveData>() {
+        override val maxInactiveEntries = 300
+
         override fun newValue(key: Triple<String, String, UserHandle>): PermStateLiveData {
             return PermStateLiveData(PermissionControllerApplication.get(),
                 key.first, key.second, key.third)
         }
+
+        override fun estimateSize(value: PermStateLiveData): Int {
+            return DEFAULT_ENTRY_BYTES + (value.value?.size ?: 0) * 96
+        }
+
+        /**
+         * Get the state of the permissions of a group a package requests.
+         *
+         * @param context The context of the user
+         * @param packageInfo The package
+         * @param permissionGroup The permission group
+         * @param user The user of the package
+         * @param job If set, the job that is loading the state
+         *
+         * @return map of permission name to state, or `null` if the job was cancelled
+         */
+        fun getPermStates(
+            context: Context,
+            packageInfo: LightPackageInfo,
+            permissionGroup: PermGroup,
+            user: UserHandle,
+            job: Job? = null
+        ): Map<String, PermState>? {
+            val permissionStates = mutableMapOf<String, PermState>()
+            for ((index, permissionName) in packageInfo.requestedPermissions.withIndex()) {
+
+                permissionGroup.permissionInfos[permissionName]?.let { permInfo ->
+                    val packageFlags = packageInfo.requestedPermissionsFlags[index]
+                    val permFlags = context.packageManager.getPermissionFlags(permInfo.name,
+                        packageInfo.packageName, user)
+                    val granted =
+                        packageFlags and PackageInfo.REQUESTED_PERMISSION_GRANTED != 0 &&
+                            permFlags and PackageManager.FLAG_PERMISSION_REVOKED_COMPAT == 0
+
+                    if (job?.isCancelled == true) {
+                        return null
+                    }
+                    permissionStates[permissionName] = PermState(permFlags, granted)
+                }
+            }
+
+            return permissionStates
+        }
     }
 }
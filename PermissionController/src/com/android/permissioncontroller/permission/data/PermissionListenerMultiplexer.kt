@@ -18,13 +18,22 @@ package com.android.permissioncontroller.permission.data
 
 import android.app.Application
 import android.content.pm.PackageManager
+import android.os.Handler
+import android.os.Looper
 import com.android.permissioncontroller.PermissionControllerApplication
 
 /**
  * Serves as a single shared Permission Change Listener for all AppPermissionGroupLiveDatas.
  *
+ * <p>Changes are collected for about a frame and then dispatched at once, so a burst of changes,
+ * e.g. when a role is granted, only causes one dispatch per uid. A handler is used instead of the
+ * Choreographer as the listeners also need to be informed while the display is off.
  */
 object PermissionListenerMultiplexer : PackageManager.OnPermissionsChangedListener {
+    /**
+     * How long to collect changes before dispatching them
+     */
+    private const val BATCH_DELAY_MILLIS = 16L
 
     private val app: Application = PermissionControllerApplication.get()
     /**
@@ -32,11 +41,39 @@ object PermissionListenerMultiplexer : PackageManager.OnPermissionsChangedListen
      * permissions are updated for that UID>
      */
     private val callbacks = mutableMapOf<Int, MutableList<PermissionChangeCallback>>()
+    /**
+     * List of PermissionChangeBatchCallbacks that wish to be informed when permissions of any UID
+     * are updated
+     */
+    private val batchCallbacks = mutableListOf<PermissionChangeBatchCallback>()
     private val pm = app.applicationContext.packageManager
 
+    /**
+     * The UIDs whose permissions changed since the last dispatch
+     */
+    private var changedUids = mutableSetOf<Int>()
+    private val handler = Handler(Looper.getMainLooper())
+
     override fun onPermissionsChanged(uid: Int) {
-        callbacks[uid]?.toList()?.forEach { callback ->
-            callback.onPermissionChange()
+        if (changedUids.isEmpty()) {
+            handler.postDelayed(::dispatchChanges, BATCH_DELAY_MILLIS)
+        }
+        changedUids.add(uid)
+    }
+
+    private fun dispatchChanges() {
+        val uids = changedUids
+        changedUids = mutableSetOf()
+
+        // Batch callbacks first, so that per-UID callbacks see their state already updated
+        batchCallbacks.toList().forEach { callback ->
+            callback.onPermissionsChanged(uids)
+        }
+
+        for (uid in uids) {
+            callbacks[uid]?.toList()?.forEach { callback ->
+                callback.onPermissionChange()
+            }
         }
     }
 
@@ -48,7 +85,7 @@ object PermissionListenerMultiplexer : PackageManager.OnPermissionsChangedListen
     }
 
     fun addCallback(uid: Int, callback: PermissionChangeCallback) {
-        val wasEmpty = callbacks.isEmpty()
+        val wasEmpty = hasNoCallbacks()
 
         callbacks.getOrPut(uid, { mutableListOf() }).add(callback)
 
@@ -57,6 +94,36 @@ object PermissionListenerMultiplexer : PackageManager.OnPermissionsChangedListen
         }
     }
 
+    /**
+     * Add a callback which will be informed once per batch of permission changes, for all UIDs.
+     *
+     * @param callback The callback to add
+     */
+    fun addBatchCallback(callback: PermissionChangeBatchCallback) {
+        val wasEmpty = hasNoCallbacks()
+
+        batchCallbacks.add(callback)
+
+        if (wasEmpty) {
+            pm.addOnPermissionsChangeListener(this)
+        }
+    }
+
+    /**
+     * Remove a callback added via [addBatchCallback].
+     *
+     * @param callback The callback to remove
+     */
+    fun removeBatchCallback(callback: PermissionChangeBatchCallback) {
+        if (!batchCallbacks.remove(callback)) {
+            return
+        }
+
+        if (hasNoCallbacks()) {
+            pm.removeOnPermissionsChangeListener(this)
+        }
+    }
+
     fun removeCallback(uid: Int, callback: PermissionChangeCallback) {
         if (!callbacks.contains(uid)) {
             return
@@ -70,12 +137,25 @@ object PermissionListenerMultiplexer : PackageManager.OnPermissionsChangedListen
             callbacks.remove(uid)
         }
 
-        if (callbacks.isEmpty()) {
+        if (hasNoCallbacks()) {
             pm.removeOnPermissionsChangeListener(this)
         }
     }
 
+    private fun hasNoCallbacks(): Boolean {
+        return callbacks.isEmpty() && batchCallbacks.isEmpty()
+    }
+
     interface PermissionChangeCallback {
         fun onPermissionChange()
     }
+
+    interface PermissionChangeBatchCallback {
+        /**
+         * Called once per batch of permission changes.
+         *
+         * @param uids The UIDs whose permissions changed
+         */
+        fun onPermissionsChanged(uids: Set<Int>)
+    }
 }
\ No newline at end of file
@@ -49,7 +49,7 @@ class ServiceLiveData(
     private val permission: String,
     private val user: UserHandle
 ) : SmartAsyncMediatorLiveData<Set<String>>(),
-        PackageBroadcastReceiver.PackageBroadcastListener,
+        PackageBroadcastReceiver.PackageEventListener,
         HasIntentAction {
 
     private val name = intentAction.substringAfterLast(".")
@@ -113,7 +113,7 @@ class ServiceLiveData(
         }
     }
 
-    override fun onPackageUpdate(packageName: String) {
+    override fun onPackageEvents(events: List<PackageEvent>) {
         updateAsync()
     }
 
@@ -225,13 +225,13 @@ class ServiceLiveData(
     override fun onActive() {
         super.onActive()
 
-        PackageBroadcastReceiver.addAllCallback(this)
+        PackageBroadcastReceiver.addEventCallback(PackageEventFilter(user = user), this)
     }
 
     override fun onInactive() {
         super.onInactive()
 
-        PackageBroadcastReceiver.removeAllCallback(this)
+        PackageBroadcastReceiver.removeEventCallback(this)
     }
 
     /**
@@ -16,10 +16,12 @@
 
 package com.android.permissioncontroller.permission.data
 
-import android.app.Application
+import android.os.Handler
+import android.os.Looper
 import android.os.UserHandle
-import com.android.permissioncontroller.PermissionControllerApplication
+import androidx.annotation.VisibleForTesting
 import com.android.permissioncontroller.permission.model.livedatatypes.AppPermGroupUiInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.PermGroup
 import com.android.permissioncontroller.permission.utils.Utils
 
 /**
@@ -27,29 +29,57 @@ import com.android.permissioncontroller.permission.utils.Utils
  * have permissions in the given group, which should be shown on the UI, and which are granted or
  * not.
  *
- * @param app The current application
  * @param permGroupName The name of the permission group this LiveData represents
+ * @param permGroupLiveData The LiveData of the permission group
+ * @param permGroupPackagesLiveData The LiveData of the packages of all permission groups
+ * @param getAppPermGroupUiInfoLiveData Gets the LiveData of the UI info of a package in the group
  */
-class SinglePermGroupPackagesUiInfoLiveData private constructor(
-    private val app: Application,
-    private val permGroupName: String
+class SinglePermGroupPackagesUiInfoLiveData @VisibleForTesting internal constructor(
+    private val permGroupName: String,
+    private val permGroupLiveData: SmartUpdateMediatorLiveData<PermGroup>,
+    private val permGroupPackagesLiveData:
+        SmartUpdateMediatorLiveData<Map<String, Set<Pair<String, UserHandle>>>>,
+    private val getAppPermGroupUiInfoLiveData:
+        (Pair<String, UserHandle>) -> SmartUpdateMediatorLiveData<AppPermGroupUiInfo>
 ) : SmartUpdateMediatorLiveData<Map<Pair<String, UserHandle>, AppPermGroupUiInfo>>() {
 
-    private val permGroupLiveData = PermGroupLiveData[permGroupName]
-    private val isCustomGroup = !Utils.getPlatformPermissionGroups().contains(permGroupName)
-    private val permGroupPackagesLiveData = PermGroupsPackagesLiveData.get(
-        customGroups = isCustomGroup)
+    /**
+     * @param permGroupName The name of the permission group this LiveData represents
+     */
+    private constructor(permGroupName: String) : this(permGroupName,
+        PermGroupLiveData[permGroupName],
+        PermGroupsPackagesLiveData.get(
+            customGroups = !Utils.isModernPermissionGroup(permGroupName)),
+        { (packageName, user) -> AppPermGroupUiInfoLiveData[packageName, permGroupName, user] })
 
     /**
      * Map<Pair<package name, UserHandle>, UI data LiveData>
      */
     private val appPermGroupLiveDatas = mutableMapOf<Pair<String, UserHandle>,
-        AppPermGroupUiInfoLiveData>()
+        SmartUpdateMediatorLiveData<AppPermGroupUiInfo>>()
+
+    /**
+     * Map<Pair<packageName, userHandle>, UI data> of the packages that should be shown.
+     */
+    private val shownPackages = SourceValueAggregator<Pair<String, UserHandle>,
+        AppPermGroupUiInfo>()
+
+    private val handler = Handler(Looper.getMainLooper())
+
+    private var isPublishScheduled = false
+
+    /** Whether a scheduled publish was cancelled when this LiveData went inactive */
+    private var isPublishPendingWhileInactive = false
 
     /**
-     * Map<Pair<packageName, userHandle>, UI data>.
+     * Publishes the [shownPackages] at most once per batch delay, as each package's LiveData emits
+     * on its own. A handler is used instead of the Choreographer as frame callbacks do not run
+     * while the display is off.
      */
-    private val shownPackages = mutableMapOf<Pair<String, UserHandle>, AppPermGroupUiInfo>()
+    private val publishCallback = Runnable {
+        isPublishScheduled = false
+        publishIfComplete()
+    }
 
     init {
         addSource(permGroupLiveData) { newPermGroup ->
@@ -78,39 +108,68 @@ class SinglePermGroupPackagesUiInfoLiveData private constructor(
     }
 
     private fun addAndRemoveAppPermGroupLiveDatas(pkgs: List<Pair<String, UserHandle>>) {
-        val getLiveData = { key: Pair<String, UserHandle> ->
-            AppPermGroupUiInfoLiveData[key.first, permGroupName, key.second]
+        // The new LiveDatas might deliver their value right away, hence register the keys first
+        for (pkg in pkgs) {
+            if (pkg !in appPermGroupLiveDatas) {
+                shownPackages.addKey(pkg)
+            }
         }
 
-        val (_, removed) = setSourcesToDifference(pkgs, appPermGroupLiveDatas, getLiveData) { key ->
+        val (_, removed) = setSourcesToDifference(pkgs, appPermGroupLiveDatas,
+            getAppPermGroupUiInfoLiveData) { key ->
             val appPermGroupUiInfoLiveData = appPermGroupLiveDatas[key]
             val appPermGroupUiInfo = appPermGroupUiInfoLiveData?.value
-            shownPackages.remove(key)
 
-            if (appPermGroupUiInfo == null) {
-                if (appPermGroupUiInfoLiveData != null &&
-                    appPermGroupUiInfoLiveData.isInitialized) {
-                    removeSource(appPermGroupUiInfoLiveData)
-                    appPermGroupLiveDatas.remove(key)
-                }
-            } else {
-                shownPackages[key] = appPermGroupUiInfo
+            if (appPermGroupUiInfo == null && appPermGroupUiInfoLiveData != null &&
+                appPermGroupUiInfoLiveData.isInitialized) {
+                removeSource(appPermGroupUiInfoLiveData)
+                appPermGroupLiveDatas.remove(key)
+                shownPackages.removeKey(key)
+            } else if (appPermGroupUiInfoLiveData == null ||
+                appPermGroupUiInfoLiveData.isInitialized) {
+                shownPackages.setValue(key, appPermGroupUiInfo)
             }
 
-            if (appPermGroupLiveDatas.all { entry -> entry.value.isInitialized }) {
-                permGroupLiveData.value?.groupInfo?.let {
-                    value = shownPackages.toMap()
-                }
-            }
+            schedulePublish()
         }
 
         for (removedKey in removed) {
-            shownPackages.remove(removedKey)
+            shownPackages.removeKey(removedKey)
         }
 
-        if (appPermGroupLiveDatas.all { entry -> entry.value.isInitialized }) {
+        schedulePublish()
+    }
+
+    private fun schedulePublish() {
+        if (!isPublishScheduled && shownPackages.isComplete) {
+            isPublishScheduled = true
+            handler.postDelayed(publishCallback, BATCH_DELAY_MILLIS)
+        }
+    }
+
+    override fun onActive() {
+        super.onActive()
+
+        if (isPublishPendingWhileInactive) {
+            isPublishPendingWhileInactive = false
+            schedulePublish()
+        }
+    }
+
+    override fun onInactive() {
+        if (isPublishScheduled) {
+            handler.removeCallbacks(publishCallback)
+            isPublishScheduled = false
+            isPublishPendingWhileInactive = true
+        }
+
+        super.onInactive()
+    }
+
+    private fun publishIfComplete() {
+        if (shownPackages.isComplete) {
             permGroupLiveData.value?.groupInfo?.let {
-                value = shownPackages.toMap()
+                value = shownPackages.snapshot()
             }
         }
     }
@@ -121,9 +180,13 @@ class SinglePermGroupPackagesUiInfoLiveData private constructor(
      */
     companion object : DataRepository<String,
         SinglePermGroupPackagesUiInfoLiveData>() {
+        /**
+         * How long to collect the values of the packages before publishing them
+         */
+        private const val BATCH_DELAY_MILLIS = 16L
+
         override fun newValue(key: String): SinglePermGroupPackagesUiInfoLiveData {
-            return SinglePermGroupPackagesUiInfoLiveData(PermissionControllerApplication.get(),
-                key)
+            return SinglePermGroupPackagesUiInfoLiveData(key)
         }
     }
 }
\ No newline at end of file
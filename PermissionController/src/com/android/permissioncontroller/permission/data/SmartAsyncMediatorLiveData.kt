@@ -17,6 +17,8 @@
 package com.android.permissioncontroller.permission.data
 
 import android.os.Binder
+import android.os.SystemClock
+import android.os.Trace
 import com.android.permissioncontroller.permission.utils.IPC
 import kotlinx.coroutines.Dispatchers.Main
 import kotlinx.coroutines.GlobalScope
@@ -41,6 +43,11 @@ abstract class SmartAsyncMediatorLiveData<T>(
     @Volatile
     private var jobRunning = false
 
+    /**
+     * The stats shared by all LiveDatas of this class
+     */
+    private val loadStats = LoadStats.forClass(javaClass)
+
     /**
      * The main function which will load data. It should periodically check isCancelled to see if
      * it should stop working. If data is loaded, it should call "postValue".
@@ -54,16 +61,43 @@ abstract class SmartAsyncMediatorLiveData<T>(
     open fun updateAsync() {
         if (jobRunning) {
             jobQueued = true
+            loadStats.onUpdateRequested(isCoalesced = true)
             return
         } else {
             jobRunning = true
+            loadStats.onUpdateRequested(isCoalesced = false)
         }
 
-        GlobalScope.launch(IPC) {
+        // Counts the transactions of this load only, on whatever thread it runs. Adding an element
+        // to the context costs an allocation per load, hence only while the counting is enabled.
+        val ipcCounter = if (BinderTransactionCounter.isEnabled) {
+            BinderTransactionCounter.Counter()
+        } else {
+            null
+        }
+        GlobalScope.launch(if (ipcCounter != null) IPC + ipcCounter else IPC) {
             currentJob = coroutineContext[Job]
-            loadDataAndPostValue(currentJob!!)
-            // TODO ntmyren: generalize this command to the IPC dispatcher
-            Binder.flushPendingCommands()
+
+            // Loads of the same LiveData never overlap
+            val traceCookie = System.identityHashCode(this@SmartAsyncMediatorLiveData)
+            val isTraced = Trace.isEnabled()
+            if (isTraced) {
+                Trace.beginAsyncSection(loadStats.traceSectionName, traceCookie)
+            }
+            val startNanos = SystemClock.elapsedRealtimeNanos()
+
+            try {
+                loadDataAndPostValue(currentJob!!)
+                // TODO ntmyren: generalize this command to the IPC dispatcher
+                Binder.flushPendingCommands()
+            } finally {
+                loadStats.onLoadFinished(SystemClock.elapsedRealtimeNanos() - startNanos,
+                    ipcCounter?.get() ?: -1, currentJob!!.isCancelled)
+                if (isTraced) {
+                    Trace.endAsyncSection(loadStats.traceSectionName, traceCookie)
+                }
+            }
+
             jobRunning = false
             if (jobQueued) {
                 jobQueued = false
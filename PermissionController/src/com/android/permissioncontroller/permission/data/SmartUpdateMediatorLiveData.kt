@@ -112,6 +112,8 @@ abstract class SmartUpdateMediatorLiveData<T>(private val isStaticVal: Boolean =
 
     override var timeWentInactive: Long? = System.nanoTime()
 
+    override var onInactiveChanged: (() -> Unit)? = null
+
     /**
      * Some LiveDatas have types, like Drawables which do not have a non-default equals method.
      * Those classes can override this method to change when the value is set upon calling setValue.
@@ -219,6 +221,7 @@ abstract class SmartUpdateMediatorLiveData<T>(private val isStaticVal: Boolean =
 
     override fun onActive() {
         timeWentInactive = null
+        onInactiveChanged?.invoke()
         // If this is not an async livedata, and we have sources, and all sources are non-stale,
         // force update our value
         if (sources.isNotEmpty() && sources.all { !it.isStale } &&
@@ -230,6 +233,7 @@ abstract class SmartUpdateMediatorLiveData<T>(private val isStaticVal: Boolean =
 
     override fun onInactive() {
         timeWentInactive = System.nanoTime()
+        onInactiveChanged?.invoke()
         if (!isStaticVal) {
             isStale = true
         }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+/**
+ * Collects the values of a changing set of keyed sources, e.g. one LiveData per package.
+ *
+ * The keys that have not delivered a value yet are tracked, so [isComplete] does not need to look
+ * at every source. The map returned by [snapshot] is shared until a value changes, hence sources
+ * that emit many times only cause a copy per published snapshot, not per emission.
+ *
+ * Not thread safe.
+ *
+ * @param K The type of the keys
+ * @param V The type of the values
+ */
+class SourceValueAggregator<K, V : Any> {
+    /** The keys that have a value */
+    private val values = mutableMapOf<K, V>()
+
+    /** The keys that did not deliver a value yet */
+    private val uninitializedKeys = mutableSetOf<K>()
+
+    /** The last snapshot, `null` if the values changed since */
+    private var snapshot: Map<K, V>? = null
+
+    /**
+     * Whether all keys delivered a value
+     */
+    val isComplete: Boolean
+        get() = uninitializedKeys.isEmpty()
+
+    /**
+     * Start waiting for the value of a new key.
+     *
+     * @param key The key
+     */
+    fun addKey(key: K) {
+        uninitializedKeys.add(key)
+    }
+
+    /**
+     * Stop tracking a key and drop its value.
+     *
+     * @param key The key
+     */
+    fun removeKey(key: K) {
+        uninitializedKeys.remove(key)
+        if (values.remove(key) != null) {
+            snapshot = null
+        }
+    }
+
+    /**
+     * Set the value of a key.
+     *
+     * @param key The key
+     * @param value The new value, `null` if the key should not be part of the [snapshot]
+     */
+    fun setValue(key: K, value: V?) {
+        uninitializedKeys.remove(key)
+        if (value == null) {
+            if (values.remove(key) != null) {
+                snapshot = null
+            }
+        } else if (values.put(key, value) != value) {
+            snapshot = null
+        }
+    }
+
+    /**
+     * @return An immutable map of all keys that have a value
+     */
+    fun snapshot(): Map<K, V> {
+        return snapshot ?: values.toMap().also { snapshot = it }
+    }
+}
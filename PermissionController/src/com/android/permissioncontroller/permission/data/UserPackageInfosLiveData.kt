@@ -34,34 +34,39 @@ class UserPackageInfosLiveData private constructor(
     private val app: Application,
     private val user: UserHandle
 ) : SmartAsyncMediatorLiveData<@kotlin.jvm.JvmSuppressWildcards List<LightPackageInfo>>(),
-    PackageBroadcastReceiver.PackageBroadcastListener,
-    PermissionListenerMultiplexer.PermissionChangeCallback {
+    PackageBroadcastReceiver.PackageEventListener,
+    PermissionListenerMultiplexer.PermissionChangeBatchCallback {
 
     /**
      * Whether or not the permissions in this liveData are out of date
      */
     var permChangeStale = false
 
-    override fun onPackageUpdate(packageName: String) {
+    /**
+     * The UIDs of the packages in the current value
+     */
+    private var uids = emptySet<Int>()
+
+    /**
+     * The package events that can change the packages of the user
+     */
+    private val packageEventFilter = PackageEventFilter(user = user,
+        kinds = PackageEventFilter.PACKAGE_KINDS)
+
+    override fun onPackageEvents(events: List<PackageEvent>) {
         updateAsync()
     }
 
     // TODO ntmyren: replace with correctly updating
-    override fun onPermissionChange() {
-        permChangeStale = true
-        for (packageInfo in value ?: emptyList()) {
-            PermissionListenerMultiplexer.removeCallback(packageInfo.uid, this)
+    override fun onPermissionsChanged(uids: Set<Int>) {
+        if (!permChangeStale && uids.any { it in this.uids }) {
+            permChangeStale = true
         }
     }
 
     override fun setValue(newValue: List<LightPackageInfo>?) {
         if (newValue != value) {
-            for (packageInfo in value ?: emptyList()) {
-                PermissionListenerMultiplexer.removeCallback(packageInfo.uid, this)
-            }
-            for (packageInfo in newValue ?: emptyList()) {
-                PermissionListenerMultiplexer.addCallback(packageInfo.uid, this)
-            }
+            uids = newValue?.mapTo(mutableSetOf()) { it.uid } ?: emptySet()
         }
         super.setValue(newValue)
         permChangeStale = false
@@ -83,21 +88,15 @@ class UserPackageInfosLiveData private constructor(
     override fun onActive() {
         super.onActive()
 
-        PackageBroadcastReceiver.addAllCallback(this)
-
-        for (packageInfo in value ?: emptyList()) {
-            PermissionListenerMultiplexer.addCallback(packageInfo.uid, this)
-        }
+        PackageBroadcastReceiver.addEventCallback(packageEventFilter, this)
+        PermissionListenerMultiplexer.addBatchCallback(this)
     }
 
     override fun onInactive() {
         super.onInactive()
 
-        for (packageInfo in value ?: emptyList()) {
-            PermissionListenerMultiplexer.removeCallback(packageInfo.uid, this)
-        }
-
-        PackageBroadcastReceiver.removeAllCallback(this)
+        PermissionListenerMultiplexer.removeBatchCallback(this)
+        PackageBroadcastReceiver.removeEventCallback(this)
     }
 
     /**
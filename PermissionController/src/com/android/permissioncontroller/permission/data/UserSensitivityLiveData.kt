@@ -100,8 +100,6 @@ class UserSensitivityLiveData private constructor(
         val sensitiveStatePerUid = mutableMapOf<Int, UidSensitivityState>()
 
         // TODO ntmyren: Figure out how to get custom runtime permissions in a less costly manner
-        val runtimePerms = Utils.getRuntimePlatformPermissionNames()
-
         for (pkg in pkgs) {
             // sensitivityState for one uid
             val userSensitiveState = sensitiveStatePerUid.getOrPut(pkg.uid) {
@@ -117,7 +115,7 @@ class UserSensitivityLiveData private constructor(
             }
             val pkgIsSystemApp = pkg.appFlags and ApplicationInfo.FLAG_SYSTEM != 0
             // Iterate through all runtime perms, setting their keys
-            for (perm in pkg.requestedPermissions.intersect(runtimePerms)) {
+            for (perm in pkg.requestedPermissions.filter(Utils::isRuntimePlatformPermission)) {
                 /*
                  * Permissions are considered user sensitive for a package, when
                  * - the package has a launcher icon, or
@@ -21,7 +21,6 @@ import static android.Manifest.permission.ACCESS_FINE_LOCATION;
 import static android.app.AppOpsManager.MODE_ALLOWED;
 import static android.app.AppOpsManager.MODE_FOREGROUND;
 import static android.app.AppOpsManager.MODE_IGNORED;
-import static android.app.AppOpsManager.OPSTR_LEGACY_STORAGE;
 import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 
 import android.app.ActivityManager;
@@ -39,6 +38,7 @@ import android.os.UserHandle;
 import android.permission.PermissionManager;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -56,7 +56,7 @@ import java.text.Collator;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
-import java.util.Set;
+import java.util.function.Function;
 
 /**
  * All permissions of a permission group that are requested by an app.
@@ -73,8 +73,6 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
     private static final String LOG_TAG = AppPermissionGroup.class.getSimpleName();
     private static final String PLATFORM_PACKAGE_NAME = "android";
 
-    private static final String KILL_REASON_APP_OP_CHANGE = "Permission related app op changed";
-
     /**
      * Importance level to define the threshold for whether a package is in a state which resets the
      * timer on its one-time permission session
@@ -153,10 +151,70 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
      */
     public static AppPermissionGroup create(Context context, PackageInfo packageInfo,
             String permissionName, boolean delayChanges) {
-        PermissionInfo permissionInfo;
-        try {
-            permissionInfo = context.getPackageManager().getPermissionInfo(permissionName, 0);
-        } catch (PackageManager.NameNotFoundException e) {
+        return create(context, new PackagePermissionsPrefetch(context, packageInfo),
+                permissionName, delayChanges);
+    }
+
+    /**
+     * Create all app permission groups of a package.
+     *
+     * <p>The state of the package is read in one go before the groups are created, see
+     * {@link PackagePermissionsPrefetch#loadAll()}.
+     *
+     * @param context the {@code Context} to retrieve system services.
+     * @param packageInfo package information about the app.
+     * @param delayChanges whether to delay changes until {@link #persistChanges} is called.
+     *
+     * @return the AppPermissionGroups in the order of the requested permissions.
+     */
+    public static @NonNull ArrayList<AppPermissionGroup> createAll(Context context,
+            PackageInfo packageInfo, boolean delayChanges) {
+        ArrayList<AppPermissionGroup> groups = new ArrayList<>();
+        if (packageInfo.requestedPermissions == null) {
+            return groups;
+        }
+
+        PackagePermissionsPrefetch prefetch = new PackagePermissionsPrefetch(context,
+                packageInfo);
+        prefetch.loadAll();
+
+        ArraySet<String> permsInGroups = new ArraySet<>();
+        for (String requestedPerm : packageInfo.requestedPermissions) {
+            if (permsInGroups.contains(requestedPerm)) {
+                continue;
+            }
+
+            AppPermissionGroup group = create(context, prefetch, requestedPerm, delayChanges);
+            if (group == null) {
+                continue;
+            }
+
+            groups.add(group);
+            addPermissionNames(group, permsInGroups);
+
+            AppPermissionGroup backgroundGroup = group.getBackgroundPermissions();
+            if (backgroundGroup != null) {
+                addPermissionNames(backgroundGroup, permsInGroups);
+            }
+        }
+
+        return groups;
+    }
+
+    private static void addPermissionNames(@NonNull AppPermissionGroup group,
+            @NonNull ArraySet<String> permissionNames) {
+        ArrayList<Permission> perms = group.getPermissions();
+
+        int numPerms = perms.size();
+        for (int permNum = 0; permNum < numPerms; permNum++) {
+            permissionNames.add(perms.get(permNum).getName());
+        }
+    }
+
+    private static AppPermissionGroup create(Context context,
+            PackagePermissionsPrefetch prefetch, String permissionName, boolean delayChanges) {
+        PermissionInfo permissionInfo = prefetch.getPermissionInfo(permissionName);
+        if (permissionInfo == null) {
             return null;
         }
 
@@ -170,24 +228,19 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
         String group = Utils.getGroupOfPermission(permissionInfo);
         PackageItemInfo groupInfo = permissionInfo;
         if (group != null) {
-            try {
-                groupInfo = context.getPackageManager().getPermissionGroupInfo(group, 0);
-            } catch (PackageManager.NameNotFoundException e) {
-                /* ignore */
+            PermissionGroupInfo permissionGroupInfo = prefetch.getPermissionGroupInfo(group);
+            if (permissionGroupInfo != null) {
+                groupInfo = permissionGroupInfo;
             }
         }
 
         List<PermissionInfo> permissionInfos = null;
         if (groupInfo instanceof PermissionGroupInfo) {
-            try {
-                permissionInfos = Utils.getPermissionInfosForGroup(context.getPackageManager(),
-                        groupInfo.name);
-            } catch (PackageManager.NameNotFoundException e) {
-                /* ignore */
-            }
+            permissionInfos = prefetch.getPermissionInfosOfGroup(groupInfo.name);
         }
 
-        return create(context, packageInfo, groupInfo, permissionInfos, delayChanges);
+        return create(context, prefetch, groupInfo, permissionInfos, prefetch.getLabel(groupInfo),
+                prefetch.getFullLabel(groupInfo), delayChanges);
     }
 
     /**
@@ -259,7 +312,15 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
     public static AppPermissionGroup create(Context context, PackageInfo packageInfo,
             PackageItemInfo groupInfo, List<PermissionInfo> permissionInfos,
             CharSequence groupLabel, CharSequence fullGroupLabel, boolean delayChanges) {
-        PackageManager packageManager = context.getPackageManager();
+        return create(context, new PackagePermissionsPrefetch(context, packageInfo), groupInfo,
+                permissionInfos, groupLabel, fullGroupLabel, delayChanges);
+    }
+
+    private static AppPermissionGroup create(Context context,
+            PackagePermissionsPrefetch prefetch, PackageItemInfo groupInfo,
+            List<PermissionInfo> permissionInfos, CharSequence groupLabel,
+            CharSequence fullGroupLabel, boolean delayChanges) {
+        PackageInfo packageInfo = prefetch.getPackageInfo();
         UserHandle userHandle = UserHandle.getUserHandleForUid(packageInfo.applicationInfo.uid);
 
         if (groupInfo instanceof PermissionInfo) {
@@ -275,33 +336,89 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
 
         AppPermissionGroup group = new AppPermissionGroup(context, packageInfo, groupInfo.name,
                 groupInfo.packageName, groupLabel, fullGroupLabel,
-                loadGroupDescription(context, groupInfo, packageManager), getRequest(groupInfo),
+                loadGroupDescription(context, groupInfo, prefetch), getRequest(groupInfo),
                 getRequestDetail(groupInfo), getBackgroundRequest(groupInfo),
                 getBackgroundRequestDetail(groupInfo), getUpgradeRequest(groupInfo),
                 getUpgradeRequestDetail(groupInfo), groupInfo.packageName, groupInfo.icon,
-                userHandle, delayChanges, appOpsManager);
+                userHandle, delayChanges, appOpsManager, prefetch.isNonIsolatedStorage());
+
+        final List<PermissionInfo> groupPermissionInfos = permissionInfos;
+        ArrayMap<String, Permission> allPermissions = createPermissions(prefetch,
+                (permissionName) -> {
+                    for (PermissionInfo permissionInfo : groupPermissionInfos) {
+                        if (permissionName.equals(permissionInfo.name)) {
+                            return permissionInfo;
+                        }
+                    }
+                    return null;
+                }, (permissionInfo) -> groupInfo.packageName);
 
-        final Set<String> exemptedRestrictedPermissions = context.getPackageManager()
-                .getWhitelistedRestrictedPermissions(packageInfo.packageName,
-                        Utils.FLAGS_PERMISSION_WHITELIST_ALL);
+        int numPermissions = allPermissions.size();
+        if (numPermissions == 0) {
+            return null;
+        }
+
+        for (int i = 0; i < numPermissions; i++) {
+            if (allPermissions.valueAt(i).getPermissionInfo().backgroundPermission != null) {
+                group.mHasPermissionWithBackgroundMode = true;
+            }
+        }
+
+        // Add permissions found to this group
+        for (int i = 0; i < numPermissions; i++) {
+            Permission permission = allPermissions.valueAt(i);
+
+            if (isRestrictionSatisfied(prefetch, permission)) {
+                if (permission.isBackgroundPermission()) {
+                    if (group.getBackgroundPermissions() == null) {
+                        group.mBackgroundPermissions = new AppPermissionGroup(group.mContext,
+                                group.getApp(), group.getName(), group.getDeclaringPackage(),
+                                group.getLabel(), group.getFullLabel(), group.getDescription(),
+                                group.getRequest(), group.getRequestDetail(),
+                                group.getBackgroundRequest(), group.getBackgroundRequestDetail(),
+                                group.getUpgradeRequest(), group.getUpgradeRequestDetail(),
+                                group.getIconPkg(), group.getIconResId(), group.getUser(),
+                                delayChanges, appOpsManager, group.mIsNonIsolatedStorage);
+                    }
+
+                    group.getBackgroundPermissions().addPermission(permission);
+                } else {
+                    group.addPermission(permission);
+                }
+            }
+        }
+
+        if (group.getPermissions().isEmpty()) {
+            return null;
+        }
+
+        return group;
+    }
+
+    /**
+     * Create the runtime permissions a package requests, linked up with their foreground and
+     * background permissions.
+     *
+     * @param prefetch the permission state of the package
+     * @param getPermissionInfo permission name -> info, {@code null} if the permission should be
+     *                          ignored
+     * @param getGroupDeclaringPackage permission info -> package declaring its permission group
+     *
+     * @return permission name -> permission
+     */
+    public static @NonNull ArrayMap<String, Permission> createPermissions(
+            @NonNull PackagePermissionsPrefetch prefetch,
+            @NonNull Function<String, PermissionInfo> getPermissionInfo,
+            @NonNull Function<PermissionInfo, String> getGroupDeclaringPackage) {
+        PackageInfo packageInfo = prefetch.getPackageInfo();
 
-        // Parse and create permissions reqested by the app
         ArrayMap<String, Permission> allPermissions = new ArrayMap<>();
         final int permissionCount = packageInfo.requestedPermissions == null ? 0
                 : packageInfo.requestedPermissions.length;
-        String packageName = packageInfo.packageName;
         for (int i = 0; i < permissionCount; i++) {
             String requestedPermission = packageInfo.requestedPermissions[i];
 
-            PermissionInfo requestedPermissionInfo = null;
-
-            for (PermissionInfo permissionInfo : permissionInfos) {
-                if (requestedPermission.equals(permissionInfo.name)) {
-                    requestedPermissionInfo = permissionInfo;
-                    break;
-                }
-            }
-
+            PermissionInfo requestedPermissionInfo = getPermissionInfo.apply(requestedPermission);
             if (requestedPermissionInfo == null) {
                 continue;
             }
@@ -314,7 +431,8 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
 
             // Don't allow toggling non-platform permission groups for legacy apps via app ops.
             if (packageInfo.applicationInfo.targetSdkVersion <= Build.VERSION_CODES.LOLLIPOP_MR1
-                    && !PLATFORM_PACKAGE_NAME.equals(groupInfo.packageName)) {
+                    && !PLATFORM_PACKAGE_NAME.equals(
+                            getGroupDeclaringPackage.apply(requestedPermissionInfo))) {
                 continue;
             }
 
@@ -328,27 +446,14 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
             if (appOp == null) {
                 appOpAllowed = false;
             } else {
-                int appOpsMode = appOpsManager.unsafeCheckOpRaw(appOp,
-                        packageInfo.applicationInfo.uid, packageName);
+                int appOpsMode = prefetch.getAppOpMode(appOp);
                 appOpAllowed = appOpsMode == MODE_ALLOWED || appOpsMode == MODE_FOREGROUND;
             }
 
-            final int flags = packageManager.getPermissionFlags(
-                    requestedPermission, packageName, userHandle);
-
-            Permission permission = new Permission(requestedPermission, requestedPermissionInfo,
-                    granted, appOp, appOpAllowed, flags);
-
-            if (requestedPermissionInfo.backgroundPermission != null) {
-                group.mHasPermissionWithBackgroundMode = true;
-            }
-
-            allPermissions.put(requestedPermission, permission);
-        }
+            final int flags = prefetch.getPermissionFlags(requestedPermission);
 
-        int numPermissions = allPermissions.size();
-        if (numPermissions == 0) {
-            return null;
+            allPermissions.put(requestedPermission, new Permission(requestedPermission,
+                    requestedPermissionInfo, granted, appOp, appOpAllowed, flags));
         }
 
         // Link up foreground and background permissions
@@ -367,47 +472,34 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
                     // the foregound permission's appOp. Hence we can only set it once we know the
                     // matching foreground permission.
                     // @see #allowAppOp
-                    if (context.getSystemService(AppOpsManager.class).unsafeCheckOpRaw(
-                            permission.getAppOp(), packageInfo.applicationInfo.uid,
-                            packageInfo.packageName) == MODE_ALLOWED) {
+                    if (permission.getAppOp() != null
+                            && prefetch.getAppOpMode(permission.getAppOp()) == MODE_ALLOWED) {
                         backgroundPermission.setAppOpAllowed(true);
                     }
                 }
             }
         }
 
-        // Add permissions found to this group
-        for (int i = 0; i < numPermissions; i++) {
-            Permission permission = allPermissions.valueAt(i);
-
-            if ((!permission.isHardRestricted()
-                    || exemptedRestrictedPermissions.contains(permission.getName()))
-                    && (!permission.isSoftRestricted()
-                    || SoftRestrictedPermissionPolicy.shouldShow(packageInfo, permission))) {
-                if (permission.isBackgroundPermission()) {
-                    if (group.getBackgroundPermissions() == null) {
-                        group.mBackgroundPermissions = new AppPermissionGroup(group.mContext,
-                                group.getApp(), group.getName(), group.getDeclaringPackage(),
-                                group.getLabel(), group.getFullLabel(), group.getDescription(),
-                                group.getRequest(), group.getRequestDetail(),
-                                group.getBackgroundRequest(), group.getBackgroundRequestDetail(),
-                                group.getUpgradeRequest(), group.getUpgradeRequestDetail(),
-                                group.getIconPkg(), group.getIconResId(), group.getUser(),
-                                delayChanges, appOpsManager);
-                    }
-
-                    group.getBackgroundPermissions().addPermission(permission);
-                } else {
-                    group.addPermission(permission);
-                }
-            }
-        }
-
-        if (group.getPermissions().isEmpty()) {
-            return null;
-        }
+        return allPermissions;
+    }
 
-        return group;
+    /**
+     * Check whether a restricted permission is exempted or should be shown for the package,
+     * i.e. whether it is part of the package's {@link AppPermissionGroup}.
+     *
+     * @param prefetch the permission state of the package
+     * @param permission the permission, created by {@link #createPermissions}
+     *
+     * @return {@code true} iff the permission is not restricted, or the restriction allows the
+     * permission
+     */
+    public static boolean isRestrictionSatisfied(@NonNull PackagePermissionsPrefetch prefetch,
+            @NonNull Permission permission) {
+        return (!permission.isHardRestricted()
+                || prefetch.getExemptedRestrictedPermissions().contains(permission.getName()))
+                && (!permission.isSoftRestricted()
+                || SoftRestrictedPermissionPolicy.shouldShow(prefetch.getPackageInfo(),
+                permission));
     }
 
     private static @StringRes int getRequest(PackageItemInfo group) {
@@ -415,14 +507,8 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
     }
 
     private static CharSequence loadGroupDescription(Context context, PackageItemInfo group,
-                                                     @NonNull PackageManager packageManager) {
-        CharSequence description = null;
-        if (group instanceof PermissionGroupInfo) {
-            description = ((PermissionGroupInfo) group).loadDescription(packageManager);
-        } else if (group instanceof PermissionInfo) {
-            description = ((PermissionInfo) group).loadDescription(packageManager);
-        }
-
+            @NonNull PackagePermissionsPrefetch prefetch) {
+        CharSequence description = prefetch.getDescription(group);
         if (description == null || description.length() <= 0) {
             description = context.getString(R.string.default_permission_description);
         }
@@ -436,7 +522,7 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
             @StringRes int backgroundRequest, @StringRes int backgroundRequestDetail,
             @StringRes int upgradeRequest, @StringRes int upgradeRequestDetail,
             String iconPkg, int iconResId, UserHandle userHandle, boolean delayChanges,
-            @NonNull AppOpsManager appOpsManager) {
+            @NonNull AppOpsManager appOpsManager, boolean isNonIsolatedStorage) {
         int targetSDK = packageInfo.applicationInfo.targetSdkVersion;
 
         mContext = context;
@@ -469,10 +555,7 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
             mIconResId = R.drawable.ic_perm_device_info;
         }
 
-        mIsNonIsolatedStorage = targetSDK < Build.VERSION_CODES.P
-                || (targetSDK < Build.VERSION_CODES.R
-                && mAppOps.unsafeCheckOpNoThrow(OPSTR_LEGACY_STORAGE,
-                        packageInfo.applicationInfo.uid, packageInfo.packageName) == MODE_ALLOWED);
+        mIsNonIsolatedStorage = isNonIsolatedStorage;
     }
 
     public boolean doesSupportRuntimePermissions() {
@@ -973,7 +1056,7 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
             persistChanges(false);
 
             if (killApp) {
-                killApp(KILL_REASON_APP_OP_CHANGE);
+                killApp(Utils.KILL_REASON_APP_OP_CHANGE);
             }
         }
 
@@ -1110,7 +1193,7 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
             persistChanges(false);
 
             if (killApp) {
-                killApp(KILL_REASON_APP_OP_CHANGE);
+                killApp(Utils.KILL_REASON_APP_OP_CHANGE);
             }
         }
 
@@ -1385,9 +1468,11 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
      * @param mayKillBecauseOfAppOpsChange If the app these permissions belong to may be killed if
      *                                     app ops change. If this is set to {@code false} the
      *                                     caller has to make sure to kill the app if needed.
+     *
+     * @return {@code true} iff the app needs to be killed because of app ops changes
      */
-    public void persistChanges(boolean mayKillBecauseOfAppOpsChange) {
-        persistChanges(mayKillBecauseOfAppOpsChange, null);
+    public boolean persistChanges(boolean mayKillBecauseOfAppOpsChange) {
+        return persistChanges(mayKillBecauseOfAppOpsChange, null);
     }
 
 
@@ -1398,8 +1483,10 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
      *                                     app ops change. If this is set to {@code false} the
      *                                     caller has to make sure to kill the app if needed.
      * @param revokeReason If any permissions are getting revoked, the reason for revoking them.
+     *
+     * @return {@code true} iff the app needs to be killed because of app ops changes
      */
-    public void persistChanges(boolean mayKillBecauseOfAppOpsChange, String revokeReason) {
+    public boolean persistChanges(boolean mayKillBecauseOfAppOpsChange, String revokeReason) {
         int uid = mPackageInfo.applicationInfo.uid;
 
         int numPermissions = mPermissions.size();
@@ -1465,7 +1552,7 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
         }
 
         if (mayKillBecauseOfAppOpsChange && shouldKillApp) {
-            killApp(KILL_REASON_APP_OP_CHANGE);
+            killApp(Utils.KILL_REASON_APP_OP_CHANGE);
         }
 
         if (mTriggerLocationAccessCheckOnPersist) {
@@ -1484,6 +1571,8 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
             mContext.getSystemService(PermissionManager.class)
                     .stopOneTimePermissionSession(packageName);
         }
+
+        return shouldKillApp;
     }
 
     /**
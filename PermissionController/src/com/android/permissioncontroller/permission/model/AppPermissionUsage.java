@@ -38,8 +38,10 @@ import androidx.annotation.RequiresApi;
 import com.android.permissioncontroller.permission.model.legacy.PermissionApps.PermissionApp;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -64,7 +66,7 @@ public final class AppPermissionUsage {
 
     private AppPermissionUsage(@NonNull PermissionApp permissionApp,
             @NonNull List<AppPermissionGroup> groups, @Nullable PackageOps lastUsage,
-            @Nullable HistoricalPackageOps historicalUsage,
+            @NonNull List<HistoricalPackageOps> historicalUsages,
             @Nullable ArrayList<AudioRecordingConfiguration> recordings) {
         mPermissionApp = permissionApp;
         final int groupCount = groups.size();
@@ -93,7 +95,7 @@ public final class AppPermissionUsage {
                 }
             }
 
-            mGroupUsages.add(new GroupUsage(group, lastUsage, historicalUsage));
+            mGroupUsages.add(new GroupUsage(group, lastUsage, historicalUsages));
         }
     }
 
@@ -136,17 +138,26 @@ public final class AppPermissionUsage {
     /**
      * Stats for permission usage of a permission group. This data is for a
      * given time period, i.e. does not contain the full history.
+     *
+     * <p>The historical usage might be split into several consecutive time slices, see
+     * {@link HistoricalOpsCache}.
      */
     public static class GroupUsage implements TimelineUsage {
         private final @NonNull AppPermissionGroup mGroup;
         private final @Nullable PackageOps mLastUsage;
-        private final @Nullable HistoricalPackageOps mHistoricalUsage;
+        private final @NonNull List<HistoricalPackageOps> mHistoricalUsages;
 
         public GroupUsage(@NonNull AppPermissionGroup group, @Nullable PackageOps lastUsage,
                 @Nullable HistoricalPackageOps historicalUsage) {
+            this(group, lastUsage, historicalUsage == null
+                    ? Collections.emptyList() : Collections.singletonList(historicalUsage));
+        }
+
+        public GroupUsage(@NonNull AppPermissionGroup group, @Nullable PackageOps lastUsage,
+                @NonNull List<HistoricalPackageOps> historicalUsages) {
             mGroup = group;
             mLastUsage = lastUsage;
-            mHistoricalUsage = historicalUsage;
+            mHistoricalUsages = historicalUsages;
         }
 
         public long getLastAccessTime() {
@@ -174,7 +185,7 @@ public final class AppPermissionUsage {
         }
 
         public long getForegroundAccessCount() {
-            if (mHistoricalUsage == null) {
+            if (mHistoricalUsages.isEmpty()) {
                 return 0;
             }
 
@@ -183,7 +194,7 @@ public final class AppPermissionUsage {
         }
 
         public long getBackgroundAccessCount() {
-            if (mHistoricalUsage == null) {
+            if (mHistoricalUsages.isEmpty()) {
                 return 0;
             }
 
@@ -192,7 +203,7 @@ public final class AppPermissionUsage {
         }
 
         public long getAccessCount() {
-            if (mHistoricalUsage == null) {
+            if (mHistoricalUsages.isEmpty()) {
                 return 0;
             }
 
@@ -217,7 +228,7 @@ public final class AppPermissionUsage {
          * Get the access duration.
          */
         public long getAccessDuration() {
-            if (mHistoricalUsage == null) {
+            if (mHistoricalUsages.isEmpty()) {
                 return 0;
             }
             return extractAggregate((HistoricalOp op) ->
@@ -229,15 +240,19 @@ public final class AppPermissionUsage {
 
         @Override
         public boolean hasDiscreteData() {
-            if (mHistoricalUsage == null) {
+            if (mHistoricalUsages.isEmpty()) {
                 return false;
             }
 
             Set<String> allOps = getAllOps(mGroup);
-            for (String opName : allOps) {
-                final HistoricalOp historicalOp = mHistoricalUsage.getOp(opName);
-                if (historicalOp != null && historicalOp.getDiscreteAccessCount() > 0) {
-                    return true;
+            final int sliceCount = mHistoricalUsages.size();
+            for (int sliceNum = 0; sliceNum < sliceCount; sliceNum++) {
+                final HistoricalPackageOps historicalUsage = mHistoricalUsages.get(sliceNum);
+                for (String opName : allOps) {
+                    final HistoricalOp historicalOp = historicalUsage.getOp(opName);
+                    if (historicalOp != null && historicalOp.getDiscreteAccessCount() > 0) {
+                        return true;
+                    }
                 }
             }
             return false;
@@ -251,19 +266,24 @@ public final class AppPermissionUsage {
             }
 
             Set<String> allOps = getAllOps(mGroup);
-            for (String opName : allOps) {
-                final HistoricalOp historicalOp = mHistoricalUsage.getOp(opName);
-                if (historicalOp == null) {
-                    continue;
-                }
+            final int sliceCount = mHistoricalUsages.size();
+            for (int sliceNum = 0; sliceNum < sliceCount; sliceNum++) {
+                final HistoricalPackageOps historicalUsage = mHistoricalUsages.get(sliceNum);
+                for (String opName : allOps) {
+                    final HistoricalOp historicalOp = historicalUsage.getOp(opName);
+                    if (historicalOp == null) {
+                        continue;
+                    }
 
-                int discreteAccessCount = historicalOp.getDiscreteAccessCount();
-                for (int j = 0; j < discreteAccessCount; j++) {
-                    AppOpsManager.AttributedOpEntry opEntry = historicalOp.getDiscreteAccessAt(j);
-                    allDiscreteAccessTime.add(new Triple<>(
-                            opEntry.getLastAccessTime(PRIVACY_HUB_FLAGS),
-                            opEntry.getLastDuration(PRIVACY_HUB_FLAGS),
-                            opEntry.getLastProxyInfo(PRIVACY_HUB_FLAGS)));
+                    int discreteAccessCount = historicalOp.getDiscreteAccessCount();
+                    for (int j = 0; j < discreteAccessCount; j++) {
+                        AppOpsManager.AttributedOpEntry opEntry =
+                                historicalOp.getDiscreteAccessAt(j);
+                        allDiscreteAccessTime.add(new Triple<>(
+                                opEntry.getLastAccessTime(PRIVACY_HUB_FLAGS),
+                                opEntry.getLastDuration(PRIVACY_HUB_FLAGS),
+                                opEntry.getLastProxyInfo(PRIVACY_HUB_FLAGS)));
+                    }
                 }
             }
 
@@ -292,10 +312,14 @@ public final class AppPermissionUsage {
             long aggregate = 0;
 
             Set<String> allOps = getAllOps(mGroup);
-            for (String opName : allOps) {
-                final HistoricalOp historicalOp = mHistoricalUsage.getOp(opName);
-                if (historicalOp != null) {
-                    aggregate += extractor.apply(historicalOp);
+            final int sliceCount = mHistoricalUsages.size();
+            for (int sliceNum = 0; sliceNum < sliceCount; sliceNum++) {
+                final HistoricalPackageOps historicalUsage = mHistoricalUsages.get(sliceNum);
+                for (String opName : allOps) {
+                    final HistoricalOp historicalOp = historicalUsage.getOp(opName);
+                    if (historicalOp != null) {
+                        aggregate += extractor.apply(historicalOp);
+                    }
                 }
             }
 
@@ -354,15 +378,19 @@ public final class AppPermissionUsage {
 
         @Override
         public @Nullable ArrayList<String> getAttributionTags() {
-            if (mHistoricalUsage == null || mHistoricalUsage.getAttributedOpsCount() == 0) {
-                return null;
+            Set<String> attributionTags = new LinkedHashSet<>();
+            final int sliceCount = mHistoricalUsages.size();
+            for (int sliceNum = 0; sliceNum < sliceCount; sliceNum++) {
+                final HistoricalPackageOps historicalUsage = mHistoricalUsages.get(sliceNum);
+                int count = historicalUsage.getAttributedOpsCount();
+                for (int i = 0; i < count; i++) {
+                    attributionTags.add(historicalUsage.getAttributedOpsAt(i).getTag());
+                }
             }
-            ArrayList<String> attributionTags = new ArrayList<>();
-            int count = mHistoricalUsage.getAttributedOpsCount();
-            for (int i = 0; i < count; i++) {
-                attributionTags.add(mHistoricalUsage.getAttributedOpsAt(i).getTag());
+            if (attributionTags.isEmpty()) {
+                return null;
             }
-            return attributionTags;
+            return new ArrayList<>(attributionTags);
         }
 
         /** Creates a lookup from the attribution tag to its label. **/
@@ -388,29 +416,34 @@ public final class AppPermissionUsage {
             Map<Integer, AttributionLabelledGroupUsage.Builder> labelDiscreteAccessMap =
                     new HashMap<>();
 
-            for (int i = 0; i < mHistoricalUsage.getAttributedOpsCount(); i++) {
-                AttributedHistoricalOps attributedOp = mHistoricalUsage.getAttributedOpsAt(i);
-                String attributionTag = attributedOp.getTag();
-
-                for (String opName : allOps) {
-                    final HistoricalOp historicalOp = attributedOp.getOp(opName);
-                    if (historicalOp == null) {
-                        continue;
-                    }
+            final int sliceCount = mHistoricalUsages.size();
+            for (int sliceNum = 0; sliceNum < sliceCount; sliceNum++) {
+                final HistoricalPackageOps historicalUsage = mHistoricalUsages.get(sliceNum);
+                for (int i = 0; i < historicalUsage.getAttributedOpsCount(); i++) {
+                    AttributedHistoricalOps attributedOp = historicalUsage.getAttributedOpsAt(i);
+                    String attributionTag = attributedOp.getTag();
+
+                    for (String opName : allOps) {
+                        final HistoricalOp historicalOp = attributedOp.getOp(opName);
+                        if (historicalOp == null) {
+                            continue;
+                        }
 
-                    int discreteAccessCount = historicalOp.getDiscreteAccessCount();
-                    for (int j = 0; j < discreteAccessCount; j++) {
-                        AttributedOpEntry opEntry = historicalOp.getDiscreteAccessAt(j);
-                        Integer label = attributionTagToLabelMap.get(attributedOp.getTag());
-                        if (!labelDiscreteAccessMap.containsKey(label)) {
-                            labelDiscreteAccessMap.put(label,
-                                    new AttributionLabelledGroupUsage.Builder(label, getGroup()));
+                        int discreteAccessCount = historicalOp.getDiscreteAccessCount();
+                        for (int j = 0; j < discreteAccessCount; j++) {
+                            AttributedOpEntry opEntry = historicalOp.getDiscreteAccessAt(j);
+                            Integer label = attributionTagToLabelMap.get(attributedOp.getTag());
+                            if (!labelDiscreteAccessMap.containsKey(label)) {
+                                labelDiscreteAccessMap.put(label,
+                                        new AttributionLabelledGroupUsage.Builder(label,
+                                                getGroup()));
+                            }
+                            labelDiscreteAccessMap.get(label).addAttributionTag(attributionTag);
+                            labelDiscreteAccessMap.get(label).addDiscreteAccessTime(new Triple<>(
+                                    opEntry.getLastAccessTime(PRIVACY_HUB_FLAGS),
+                                    opEntry.getLastDuration(PRIVACY_HUB_FLAGS),
+                                    opEntry.getLastProxyInfo(PRIVACY_HUB_FLAGS)));
                         }
-                        labelDiscreteAccessMap.get(label).addAttributionTag(attributionTag);
-                        labelDiscreteAccessMap.get(label).addDiscreteAccessTime(new Triple<>(
-                                opEntry.getLastAccessTime(PRIVACY_HUB_FLAGS),
-                                opEntry.getLastDuration(PRIVACY_HUB_FLAGS),
-                                opEntry.getLastProxyInfo(PRIVACY_HUB_FLAGS)));
                     }
                 }
             }
@@ -507,7 +540,7 @@ public final class AppPermissionUsage {
         private final @NonNull List<AppPermissionGroup> mGroups = new ArrayList<>();
         private final @NonNull PermissionApp mPermissionApp;
         private @Nullable PackageOps mLastUsage;
-        private @Nullable HistoricalPackageOps mHistoricalUsage;
+        private @NonNull List<HistoricalPackageOps> mHistoricalUsages = Collections.emptyList();
         private @Nullable ArrayList<AudioRecordingConfiguration> mAudioRecordingConfigurations;
 
         public Builder(@NonNull PermissionApp permissionApp) {
@@ -525,7 +558,18 @@ public final class AppPermissionUsage {
         }
 
         public @NonNull Builder setHistoricalUsage(@Nullable HistoricalPackageOps historicalUsage) {
-            mHistoricalUsage = historicalUsage;
+            mHistoricalUsages = historicalUsage == null
+                    ? Collections.emptyList() : Collections.singletonList(historicalUsage);
+            return this;
+        }
+
+        /**
+         * Set the historical usage split into consecutive time slices.
+         */
+        public @NonNull Builder setHistoricalUsages(
+                @Nullable List<HistoricalPackageOps> historicalUsages) {
+            mHistoricalUsages = historicalUsages == null
+                    ? Collections.emptyList() : historicalUsages;
             return this;
         }
 
@@ -539,7 +583,7 @@ public final class AppPermissionUsage {
             if (mGroups.isEmpty()) {
                 throw new IllegalStateException("mGroups cannot be empty.");
             }
-            return new AppPermissionUsage(mPermissionApp, mGroups, mLastUsage, mHistoricalUsage,
+            return new AppPermissionUsage(mPermissionApp, mGroups, mLastUsage, mHistoricalUsages,
                     mAudioRecordingConfigurations);
         }
     }
@@ -140,31 +140,27 @@ public final class AppPermissions {
         mGroupNameToGroup.clear();
         mPermissionNameToGroup.clear();
 
-        if (mPackageInfo.requestedPermissions != null) {
-            for (String requestedPerm : mPackageInfo.requestedPermissions) {
-                if (getGroupForPermission(requestedPerm) == null) {
-                    AppPermissionGroup group = AppPermissionGroup.create(mContext, mPackageInfo,
-                            requestedPerm, mDelayChanges);
-                    if (group == null) {
-                        continue;
-                    }
-
-                    mGroups.add(group);
-                    mGroupNameToGroup.put(group.getName(), group);
-
-                    addAllPermissions(group);
-
-                    AppPermissionGroup backgroundGroup = group.getBackgroundPermissions();
-                    if (backgroundGroup != null) {
-                        addAllPermissions(backgroundGroup);
-                    }
-                }
-            }
+        ArrayList<AppPermissionGroup> groups = AppPermissionGroup.createAll(mContext,
+                mPackageInfo, mDelayChanges);
+
+        int numGroups = groups.size();
+        for (int i = 0; i < numGroups; i++) {
+            AppPermissionGroup group = groups.get(i);
+
+            mGroups.add(group);
+            mGroupNameToGroup.put(group.getName(), group);
+
+            addAllPermissions(group);
 
-            if (mSortGroups) {
-                Collections.sort(mGroups);
+            AppPermissionGroup backgroundGroup = group.getBackgroundPermissions();
+            if (backgroundGroup != null) {
+                addAllPermissions(backgroundGroup);
             }
         }
+
+        if (mSortGroups) {
+            Collections.sort(mGroups);
+        }
     }
 
     /**
@@ -186,20 +182,26 @@ public final class AppPermissions {
      * @param mayKillBecauseOfAppOpsChange If the app may be killed if app ops change. If this is
      *                                     set to {@code false} the caller has to make sure to kill
      *                                     the app if needed.
+     *
+     * @return {@code true} iff the app needs to be killed because of app ops changes
      */
-    public void persistChanges(boolean mayKillBecauseOfAppOpsChange) {
+    public boolean persistChanges(boolean mayKillBecauseOfAppOpsChange) {
+        boolean shouldKillApp = false;
+
         if (mDelayChanges) {
             int numGroups = mGroups.size();
 
             for (int i = 0; i < numGroups; i++) {
                 AppPermissionGroup group = mGroups.get(i);
-                group.persistChanges(mayKillBecauseOfAppOpsChange);
+                shouldKillApp |= group.persistChanges(mayKillBecauseOfAppOpsChange);
 
                 AppPermissionGroup backgroundGroup = group.getBackgroundPermissions();
                 if (backgroundGroup != null) {
-                    backgroundGroup.persistChanges(mayKillBecauseOfAppOpsChange);
+                    shouldKillApp |= backgroundGroup.persistChanges(mayKillBecauseOfAppOpsChange);
                 }
             }
         }
+
+        return shouldKillApp;
     }
 }
@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.model;
+
+import android.app.AppOpsManager;
+import android.app.AppOpsManager.HistoricalOps;
+import android.app.AppOpsManager.HistoricalOpsRequest;
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Process wide cache of {@link HistoricalOps} returned by
+ * {@link AppOpsManager#getHistoricalOps}.
+ *
+ * <p>The history is stored as a list of consecutive time slices. Discrete accesses are stored
+ * under their start time but only appear once they finished, hence the recent part of the
+ * history can still change. It is kept in a tail slice that is fetched again every time. Only the
+ * part before the start of all accesses that might still be running is stored as stable slices,
+ * which are not fetched again.
+ *
+ * <p>Stable slices that end before the requested window are dropped and a stable slice that
+ * starts before the requested window is fetched again for the part inside the window, so the
+ * returned slices never contain data from before the requested window.
+ *
+ * <p>If the system does not answer quickly enough, the already cached (stale) slices are
+ * returned and the new slices are added once they arrive. A fetch that did not complete within
+ * {@link #INITIAL_FETCH_TIMEOUT_MILLIS} is abandoned and the next caller fetches again.
+ */
+@RequiresApi(Build.VERSION_CODES.S)
+final class HistoricalOpsCache {
+    private static final String LOG_TAG = HistoricalOpsCache.class.getSimpleName();
+
+    /** Passed as {@code runningSinceMillis} if it is unknown which accesses are still running */
+    static final long RUNNING_SINCE_UNKNOWN = -1;
+
+    /** How long to wait for the first slice of a time window */
+    private static final long INITIAL_FETCH_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** How long to wait for a new slice when stale data is available */
+    private static final long INCREMENTAL_FETCH_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    /** Data that was fetched less than this long ago is returned without asking the system */
+    private static final long MIN_REFRESH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * The tail is always at least this long, to cover accesses that started between checking for
+     * running accesses and fetching the history
+     */
+    private static final long MIN_TAIL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Length of the tail if it is unknown which accesses are still running. Longer accesses might
+     * be missed if they end between two fetches.
+     */
+    private static final long DEFAULT_TAIL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /** Minimum length of a stable slice */
+    private static final long MIN_SLICE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * New stable history of an already fetched entry is split into at most this many slices,
+     * which bounds how much needs to be fetched again when the requested window moves
+     */
+    private static final int MAX_NEW_SLICES = 16;
+
+    /** Maximum number of slices kept per entry before the whole window is fetched again */
+    private static final int MAX_SLICES = 64;
+
+    private static final HistoricalOpsCache sInstance = new HistoricalOpsCache(
+            HistoricalOpsCache::fetchFromSystem);
+
+    private final Object mLock = new Object();
+
+    private final @NonNull Fetcher mFetcher;
+
+    @GuardedBy("mLock")
+    private final ArrayMap<Key, Entry> mEntries = new ArrayMap<>();
+
+    /**
+     * @return The process wide cache
+     */
+    static @NonNull HistoricalOpsCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Use {@link #getInstance()} instead, except in tests.
+     *
+     * @param fetcher fetches the ops from the system
+     */
+    @VisibleForTesting
+    HistoricalOpsCache(@NonNull Fetcher fetcher) {
+        mFetcher = fetcher;
+    }
+
+    /**
+     * Get the historical ops between {@code beginTimeMillis} and {@code endTimeMillis}.
+     *
+     * @param context context to use when calling the platform
+     * @param beginTimeMillis start of the time window
+     * @param endTimeMillis end of the time window
+     * @param flags op flags to query, see {@link HistoricalOpsRequest.Builder#setFlags}
+     * @param historyFlags history flags to query, see
+     *                     {@link HistoricalOpsRequest.Builder#setHistoryFlags}
+     * @param filterUid uid to query or {@link Process#INVALID_UID} to query all uids
+     * @param filterPackageName package to query or {@code null} to query all packages
+     * @param runningSinceMillis start of the earliest access that is still running,
+     *                           {@link Long#MAX_VALUE} if none is running, or
+     *                           {@link #RUNNING_SINCE_UNKNOWN}
+     *
+     * @return The slices of historical ops, possibly empty if the system did not answer in time
+     */
+    @WorkerThread
+    @NonNull List<HistoricalOps> getHistoricalOps(@NonNull Context context, long beginTimeMillis,
+            long endTimeMillis, int flags, int historyFlags, int filterUid,
+            @Nullable String filterPackageName, long runningSinceMillis) {
+        long now = System.currentTimeMillis();
+
+        // A window that ends in the past never changes, hence there is nothing to extend
+        if (endTimeMillis < now) {
+            return fetchUncached(context, beginTimeMillis, endTimeMillis, flags, historyFlags,
+                    filterUid, filterPackageName);
+        }
+
+        Key key = new Key(flags, historyFlags, filterUid, filterPackageName);
+        Entry entry;
+        CompletableFuture<Void> fetch;
+        long timeoutMillis;
+
+        synchronized (mLock) {
+            entry = mEntries.get(key);
+
+            if (entry != null && entry.mPendingFetch != null
+                    && now - entry.mPendingFetchStartMillis >= INITIAL_FETCH_TIMEOUT_MILLIS) {
+                // The system never answered, fetch again
+                entry.mPendingFetch = null;
+            }
+
+            if (entry != null && entry.mPendingFetch != null) {
+                if (entry.mBeginTimeMillis != beginTimeMillis) {
+                    // Cannot move the window of an entry while it is being fetched
+                    entry = null;
+                    fetch = null;
+                } else {
+                    fetch = entry.mPendingFetch;
+                }
+                // Do not wait long for another caller's fetch if stale data can be returned
+                timeoutMillis = entry != null && entry.mTail != null
+                        ? INCREMENTAL_FETCH_TIMEOUT_MILLIS : INITIAL_FETCH_TIMEOUT_MILLIS;
+            } else {
+                if (entry != null && (entry.mBeginTimeMillis > beginTimeMillis
+                        || entry.mStableSlices.size() >= MAX_SLICES)) {
+                    entry = null;
+                }
+
+                if (entry == null) {
+                    entry = new Entry(beginTimeMillis);
+                    mEntries.put(key, entry);
+                }
+
+                if (entry.mBeginTimeMillis == beginTimeMillis && entry.mTail != null
+                        && now - entry.mTail.mEndTimeMillis < MIN_REFRESH_INTERVAL_MILLIS) {
+                    return entry.getSlices();
+                }
+
+                // Decide on the timeout before a synchronously delivered result updates the entry
+                timeoutMillis = entry.mTail == null ? INITIAL_FETCH_TIMEOUT_MILLIS
+                        : INCREMENTAL_FETCH_TIMEOUT_MILLIS;
+
+                fetch = startFetch(context, key, entry, beginTimeMillis, now, runningSinceMillis);
+            }
+        }
+
+        if (fetch == null) {
+            return fetchUncached(context, beginTimeMillis, endTimeMillis, flags, historyFlags,
+                    filterUid, filterPackageName);
+        }
+
+        boolean isFetched = awaitFetch(fetch, timeoutMillis);
+
+        synchronized (mLock) {
+            if (!isFetched && timeoutMillis == INITIAL_FETCH_TIMEOUT_MILLIS
+                    && entry.mPendingFetch == fetch) {
+                // Let the next caller fetch again. The slices are still added if the fetch
+                // completes later.
+                entry.mPendingFetch = null;
+            }
+
+            return entry.getSlices();
+        }
+    }
+
+    /**
+     * Move the window of an entry to start at {@code beginTimeMillis} and fetch everything that
+     * is missing or might have changed.
+     *
+     * @return The fetch, completes once the fetched slices were added to the entry
+     */
+    @GuardedBy("mLock")
+    private @NonNull CompletableFuture<Void> startFetch(@NonNull Context context, @NonNull Key key,
+            @NonNull Entry entry, long beginTimeMillis, long now, long runningSinceMillis) {
+        ArrayList<Slice> stableSlices = entry.mStableSlices;
+
+        // Drop the data before the window. A slice that starts before the window is not
+        // returned until it was fetched again for the part inside the window.
+        while (!stableSlices.isEmpty() && stableSlices.get(0).mEndTimeMillis <= beginTimeMillis) {
+            stableSlices.remove(0);
+        }
+        if (stableSlices.isEmpty()) {
+            entry.mStableUntilMillis = Math.max(entry.mStableUntilMillis, beginTimeMillis);
+        }
+        entry.mBeginTimeMillis = beginTimeMillis;
+
+        ArrayList<CompletableFuture<HistoricalOps>> fetches = new ArrayList<>();
+        int fetchGeneration = ++entry.mFetchGeneration;
+
+        CompletableFuture<HistoricalOps> firstSliceFetch = null;
+        long firstSliceEndMillis = 0;
+        if (!stableSlices.isEmpty() && stableSlices.get(0).mBeginTimeMillis < beginTimeMillis) {
+            firstSliceEndMillis = stableSlices.get(0).mEndTimeMillis;
+            firstSliceFetch = fetch(context, beginTimeMillis, firstSliceEndMillis, key);
+            fetches.add(firstSliceFetch);
+        }
+
+        // Accesses that might still be running have to stay in the tail
+        long tailMillis = runningSinceMillis == RUNNING_SINCE_UNKNOWN ? DEFAULT_TAIL_MILLIS
+                : Math.max(MIN_TAIL_MILLIS, now - runningSinceMillis);
+        long stableUntilMillis = Math.max(entry.mStableUntilMillis, now - tailMillis);
+
+        ArrayList<Slice> newSlices = new ArrayList<>();
+        ArrayList<CompletableFuture<HistoricalOps>> newSliceFetches = new ArrayList<>();
+        long newStableMillis = stableUntilMillis - entry.mStableUntilMillis;
+        // The first fetch of an entry is a single request, as one call into the system is cheaper
+        // than many parallel ones. Only the history that is added later is split into slices.
+        long sliceMillis = entry.mTail == null ? newStableMillis
+                : Math.max(MIN_SLICE_MILLIS, newStableMillis / MAX_NEW_SLICES + 1);
+        for (long sliceBeginMillis = entry.mStableUntilMillis;
+                sliceBeginMillis < stableUntilMillis; sliceBeginMillis += sliceMillis) {
+            long sliceEndMillis = Math.min(sliceBeginMillis + sliceMillis, stableUntilMillis);
+            CompletableFuture<HistoricalOps> sliceFetch = fetch(context, sliceBeginMillis,
+                    sliceEndMillis, key);
+            newSlices.add(new Slice(sliceBeginMillis, sliceEndMillis));
+            newSliceFetches.add(sliceFetch);
+            fetches.add(sliceFetch);
+        }
+
+        CompletableFuture<HistoricalOps> tailFetch = fetch(context, stableUntilMillis, now, key);
+        fetches.add(tailFetch);
+
+        CompletableFuture<HistoricalOps> fetchedFirstSlice = firstSliceFetch;
+        long fetchedFirstSliceEndMillis = firstSliceEndMillis;
+        CompletableFuture<Void> fetch = CompletableFuture.allOf(
+                fetches.toArray(new CompletableFuture[0])).thenRun(() -> {
+                    synchronized (mLock) {
+                        if (entry.mFetchGeneration != fetchGeneration) {
+                            // The fetch was abandoned and a newer fetch was started
+                            return;
+                        }
+                        entry.mPendingFetch = null;
+
+                        if (mEntries.get(key) != entry) {
+                            // Entry was replaced while fetching
+                            return;
+                        }
+
+                        if (fetchedFirstSlice != null) {
+                            stableSlices.set(0, new Slice(beginTimeMillis,
+                                    fetchedFirstSliceEndMillis, fetchedFirstSlice.join()));
+                        }
+                        int numNewSlices = newSlices.size();
+                        for (int i = 0; i < numNewSlices; i++) {
+                            Slice slice = newSlices.get(i);
+                            stableSlices.add(new Slice(slice.mBeginTimeMillis,
+                                    slice.mEndTimeMillis, newSliceFetches.get(i).join()));
+                        }
+                        entry.mStableUntilMillis = stableUntilMillis;
+                        entry.mTail = new Slice(stableUntilMillis, now, tailFetch.join());
+                    }
+                });
+        if (!fetch.isDone()) {
+            entry.mPendingFetch = fetch;
+            entry.mPendingFetchStartMillis = now;
+        }
+
+        return fetch;
+    }
+
+    private @NonNull List<HistoricalOps> fetchUncached(@NonNull Context context,
+            long beginTimeMillis, long endTimeMillis, int flags, int historyFlags, int filterUid,
+            @Nullable String filterPackageName) {
+        CompletableFuture<HistoricalOps> fetch = fetch(context, beginTimeMillis, endTimeMillis,
+                new Key(flags, historyFlags, filterUid, filterPackageName));
+        if (awaitFetch(fetch, INITIAL_FETCH_TIMEOUT_MILLIS)) {
+            HistoricalOps ops = fetch.join();
+            if (ops != null) {
+                return Collections.singletonList(ops);
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+    private @NonNull CompletableFuture<HistoricalOps> fetch(@NonNull Context context,
+            long beginTimeMillis, long endTimeMillis, @NonNull Key key) {
+        return mFetcher.fetch(context, beginTimeMillis, endTimeMillis, key.mFlags,
+                key.mHistoryFlags, key.mFilterUid, key.mFilterPackageName);
+    }
+
+    private static @NonNull CompletableFuture<HistoricalOps> fetchFromSystem(
+            @NonNull Context context, long beginTimeMillis, long endTimeMillis, int flags,
+            int historyFlags, int filterUid, @Nullable String filterPackageName) {
+        CompletableFuture<HistoricalOps> result = new CompletableFuture<>();
+
+        HistoricalOpsRequest.Builder request = new HistoricalOpsRequest.Builder(beginTimeMillis,
+                endTimeMillis)
+                .setFlags(flags)
+                .setHistoryFlags(historyFlags);
+        if (filterUid != Process.INVALID_UID) {
+            request.setUid(filterUid);
+        }
+        if (filterPackageName != null) {
+            request.setPackageName(filterPackageName);
+        }
+
+        context.getSystemService(AppOpsManager.class).getHistoricalOps(request.build(),
+                Runnable::run, result::complete);
+
+        return result;
+    }
+
+    /**
+     * @return {@code true} iff the fetch completed in time
+     */
+    private static boolean awaitFetch(@NonNull CompletableFuture<?> fetch, long timeoutMillis) {
+        try {
+            fetch.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            Log.w(LOG_TAG, "Historical ops not returned in " + timeoutMillis + "ms");
+        } catch (InterruptedException | ExecutionException e) {
+            Log.w(LOG_TAG, "Could not get historical ops", e);
+        }
+
+        return false;
+    }
+
+    /**
+     * Fetches the historical ops of a time window from the system.
+     */
+    @VisibleForTesting
+    interface Fetcher {
+        /**
+         * Start fetching the historical ops of a time window.
+         *
+         * @param context context to use when calling the platform
+         * @param beginTimeMillis start of the time window
+         * @param endTimeMillis end of the time window
+         * @param flags op flags to query
+         * @param historyFlags history flags to query
+         * @param filterUid uid to query or {@link Process#INVALID_UID} to query all uids
+         * @param filterPackageName package to query or {@code null} to query all packages
+         *
+         * @return The ops, completes once the system answered
+         */
+        @NonNull CompletableFuture<HistoricalOps> fetch(@NonNull Context context,
+                long beginTimeMillis, long endTimeMillis, int flags, int historyFlags,
+                int filterUid, @Nullable String filterPackageName);
+    }
+
+    /**
+     * All parameters of a {@link HistoricalOpsRequest} but the time window.
+     */
+    private static final class Key {
+        private final int mFlags;
+        private final int mHistoryFlags;
+        private final int mFilterUid;
+        private final @Nullable String mFilterPackageName;
+
+        Key(int flags, int historyFlags, int filterUid, @Nullable String filterPackageName) {
+            mFlags = flags;
+            mHistoryFlags = historyFlags;
+            mFilterUid = filterUid;
+            mFilterPackageName = filterPackageName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) o;
+            return mFlags == key.mFlags && mHistoryFlags == key.mHistoryFlags
+                    && mFilterUid == key.mFilterUid
+                    && Objects.equals(mFilterPackageName, key.mFilterPackageName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mFlags, mHistoryFlags, mFilterUid, mFilterPackageName);
+        }
+    }
+
+    /**
+     * The historical ops of a time window.
+     */
+    private static final class Slice {
+        final long mBeginTimeMillis;
+        final long mEndTimeMillis;
+
+        /** The ops, {@code null} if not fetched yet or if the system did not return any */
+        final @Nullable HistoricalOps mOps;
+
+        Slice(long beginTimeMillis, long endTimeMillis) {
+            this(beginTimeMillis, endTimeMillis, null);
+        }
+
+        Slice(long beginTimeMillis, long endTimeMillis, @Nullable HistoricalOps ops) {
+            mBeginTimeMillis = beginTimeMillis;
+            mEndTimeMillis = endTimeMillis;
+            mOps = ops;
+        }
+    }
+
+    /**
+     * The cached slices for a {@link Key}.
+     */
+    private static final class Entry {
+        /** Start of the requested window */
+        long mBeginTimeMillis;
+
+        /** Consecutive slices that cannot change anymore, ending at {@link #mStableUntilMillis} */
+        final @NonNull ArrayList<Slice> mStableSlices = new ArrayList<>();
+
+        /** End of the stable slices */
+        long mStableUntilMillis;
+
+        /** The slice after the stable slices, {@code null} if nothing was fetched yet */
+        @Nullable Slice mTail;
+
+        /** The slices currently being fetched, if any */
+        @Nullable CompletableFuture<Void> mPendingFetch;
+
+        /** When {@link #mPendingFetch} was started */
+        long mPendingFetchStartMillis;
+
+        /** Incremented for every fetch, results of older fetches are dropped */
+        int mFetchGeneration;
+
+        Entry(long beginTimeMillis) {
+            mBeginTimeMillis = beginTimeMillis;
+            mStableUntilMillis = beginTimeMillis;
+        }
+
+        /**
+         * @return The ops of all slices inside the window
+         */
+        @NonNull List<HistoricalOps> getSlices() {
+            ArrayList<HistoricalOps> slices = new ArrayList<>(mStableSlices.size() + 1);
+
+            int numStableSlices = mStableSlices.size();
+            for (int i = 0; i < numStableSlices; i++) {
+                Slice slice = mStableSlices.get(i);
+                if (slice.mBeginTimeMillis >= mBeginTimeMillis && slice.mOps != null) {
+                    slices.add(slice.mOps);
+                }
+            }
+            if (mTail != null && mTail.mBeginTimeMillis >= mBeginTimeMillis
+                    && mTail.mOps != null) {
+                slices.add(mTail.mOps);
+            }
+
+            return slices;
+        }
+    }
+}
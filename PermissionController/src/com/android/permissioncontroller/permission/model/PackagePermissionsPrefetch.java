@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.model;
+
+import static android.app.AppOpsManager.MODE_ALLOWED;
+import static android.app.AppOpsManager.OPSTR_LEGACY_STORAGE;
+
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageItemInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionGroupInfo;
+import android.content.pm.PermissionInfo;
+import android.os.Build;
+import android.os.UserHandle;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.permissioncontroller.permission.utils.Utils;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The permission state of a package that is needed to create its {@link AppPermissionGroup}s.
+ *
+ * <p>Every value is read from the system at most once. {@link #loadAll()} reads all values at
+ * once: the permission infos, flags and app-op modes, the exempted restricted permissions, the
+ * storage mode, and the info, permissions, labels and description of each group. After that
+ * creating the groups of the package via {@link AppPermissionGroup#createAll} does not call into
+ * the package manager or app ops anymore.
+ *
+ * <p>Groups are only cached per package. Creating the groups of many packages still reads each
+ * group once per package.
+ *
+ * <p>Not thread safe.
+ */
+public final class PackagePermissionsPrefetch {
+    private static final String PLATFORM_PACKAGE_NAME = "android";
+
+    private final @NonNull PackageManager mPackageManager;
+    private final @NonNull AppOpsManager mAppOpsManager;
+    private final @NonNull PackageInfo mPackageInfo;
+    private final @NonNull UserHandle mUser;
+
+    /** permission name -> info, {@code null} if the permission is not defined */
+    private final ArrayMap<String, PermissionInfo> mPermissionInfos = new ArrayMap<>();
+
+    /** group name -> info, {@code null} if the group is not defined */
+    private final ArrayMap<String, PermissionGroupInfo> mGroupInfos = new ArrayMap<>();
+
+    /** group name -> infos of the permissions of the group, {@code null} if not defined */
+    private final ArrayMap<String, List<PermissionInfo>> mGroupPermissionInfos = new ArrayMap<>();
+
+    /**
+     * name of the group, or of the permission for single permission groups -> label
+     */
+    private final ArrayMap<String, CharSequence> mLabels = new ArrayMap<>();
+
+    /**
+     * name of the group, or of the permission for single permission groups -> untruncated label
+     */
+    private final ArrayMap<String, CharSequence> mFullLabels = new ArrayMap<>();
+
+    /**
+     * name of the group, or of the permission for single permission groups -> description,
+     * {@code null} if it has none
+     */
+    private final ArrayMap<String, CharSequence> mDescriptions = new ArrayMap<>();
+
+    /** permission name -> flags */
+    private final ArrayMap<String, Integer> mPermissionFlags = new ArrayMap<>();
+
+    /** app op name -> raw mode */
+    private final ArrayMap<String, Integer> mAppOpModes = new ArrayMap<>();
+
+    private @Nullable Set<String> mExemptedRestrictedPermissions;
+    private @Nullable Boolean mIsNonIsolatedStorage;
+
+    /**
+     * Create a new prefetch. Values are only read once they are needed or {@link #loadAll()} is
+     * called.
+     *
+     * @param context the {@code Context} to retrieve system services.
+     * @param packageInfo package information about the app, including the requested permissions.
+     */
+    public PackagePermissionsPrefetch(@NonNull Context context, @NonNull PackageInfo packageInfo) {
+        mPackageManager = context.getPackageManager();
+        mAppOpsManager = context.getSystemService(AppOpsManager.class);
+        mPackageInfo = packageInfo;
+        mUser = UserHandle.getUserHandleForUid(packageInfo.applicationInfo.uid);
+    }
+
+    /**
+     * Read the state of all runtime permissions the package requests and of their groups.
+     */
+    public void loadAll() {
+        getExemptedRestrictedPermissions();
+        isNonIsolatedStorage();
+
+        if (mPackageInfo.requestedPermissions == null) {
+            return;
+        }
+
+        int numRequestedPerms = mPackageInfo.requestedPermissions.length;
+        for (int i = 0; i < numRequestedPerms; i++) {
+            PermissionInfo permInfo = getPermissionInfo(mPackageInfo.requestedPermissions[i]);
+            if (permInfo == null || !Utils.isPermissionDangerousInstalledNotRemoved(permInfo)) {
+                continue;
+            }
+
+            getPermissionFlags(permInfo.name);
+
+            PackageItemInfo groupInfo = permInfo;
+            String groupName = Utils.getGroupOfPermission(permInfo);
+            if (groupName != null) {
+                PermissionGroupInfo permGroupInfo = getPermissionGroupInfo(groupName);
+                if (permGroupInfo != null) {
+                    groupInfo = permGroupInfo;
+                    getPermissionInfosOfGroup(groupName);
+                }
+            }
+            getLabel(groupInfo);
+            getFullLabel(groupInfo);
+            getDescription(groupInfo);
+
+            if (PLATFORM_PACKAGE_NAME.equals(permInfo.packageName)) {
+                String appOp = AppOpsManager.permissionToOp(permInfo.name);
+                if (appOp != null) {
+                    getAppOpMode(appOp);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the package the state belongs to
+     */
+    public @NonNull PackageInfo getPackageInfo() {
+        return mPackageInfo;
+    }
+
+    /**
+     * @param permissionName the name of the permission
+     *
+     * @return the info of the permission or {@code null} if the permission is not defined
+     */
+    public @Nullable PermissionInfo getPermissionInfo(@NonNull String permissionName) {
+        int index = mPermissionInfos.indexOfKey(permissionName);
+        if (index >= 0) {
+            return mPermissionInfos.valueAt(index);
+        }
+
+        PermissionInfo permInfo;
+        try {
+            permInfo = mPackageManager.getPermissionInfo(permissionName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            permInfo = null;
+        }
+        mPermissionInfos.put(permissionName, permInfo);
+
+        return permInfo;
+    }
+
+    /**
+     * @param groupName the name of the permission group
+     *
+     * @return the info of the group or {@code null} if the group is not defined
+     */
+    public @Nullable PermissionGroupInfo getPermissionGroupInfo(@NonNull String groupName) {
+        int index = mGroupInfos.indexOfKey(groupName);
+        if (index >= 0) {
+            return mGroupInfos.valueAt(index);
+        }
+
+        PermissionGroupInfo groupInfo;
+        try {
+            groupInfo = mPackageManager.getPermissionGroupInfo(groupName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            groupInfo = null;
+        }
+        mGroupInfos.put(groupName, groupInfo);
+
+        return groupInfo;
+    }
+
+    /**
+     * @param groupName the name of the permission group
+     *
+     * @return the infos of the permissions of the group or {@code null} if the group is not
+     * defined, see {@link Utils#getPermissionInfosForGroup}
+     */
+    public @Nullable List<PermissionInfo> getPermissionInfosOfGroup(@NonNull String groupName) {
+        int index = mGroupPermissionInfos.indexOfKey(groupName);
+        if (index >= 0) {
+            return mGroupPermissionInfos.valueAt(index);
+        }
+
+        List<PermissionInfo> permInfos;
+        try {
+            permInfos = Utils.getPermissionInfosForGroup(mPackageManager, groupName);
+        } catch (PackageManager.NameNotFoundException e) {
+            permInfos = null;
+        }
+        mGroupPermissionInfos.put(groupName, permInfos);
+
+        return permInfos;
+    }
+
+    /**
+     * @param groupInfo the permission group, or the permission of a single permission group
+     *
+     * @return the label of the group
+     */
+    public @NonNull CharSequence getLabel(@NonNull PackageItemInfo groupInfo) {
+        CharSequence label = mLabels.get(groupInfo.name);
+        if (label == null) {
+            label = groupInfo.loadLabel(mPackageManager);
+            mLabels.put(groupInfo.name, label);
+        }
+
+        return label;
+    }
+
+    /**
+     * @param groupInfo the permission group, or the permission of a single permission group
+     *
+     * @return the untruncated label of the group
+     */
+    public @NonNull CharSequence getFullLabel(@NonNull PackageItemInfo groupInfo) {
+        CharSequence label = mFullLabels.get(groupInfo.name);
+        if (label == null) {
+            label = groupInfo.loadSafeLabel(mPackageManager, 0,
+                    TextUtils.SAFE_STRING_FLAG_TRIM | TextUtils.SAFE_STRING_FLAG_FIRST_LINE);
+            mFullLabels.put(groupInfo.name, label);
+        }
+
+        return label;
+    }
+
+    /**
+     * @param groupInfo the permission group, or the permission of a single permission group
+     *
+     * @return the description of the group or {@code null} if it has none
+     */
+    public @Nullable CharSequence getDescription(@NonNull PackageItemInfo groupInfo) {
+        int index = mDescriptions.indexOfKey(groupInfo.name);
+        if (index >= 0) {
+            return mDescriptions.valueAt(index);
+        }
+
+        CharSequence description = null;
+        if (groupInfo instanceof PermissionGroupInfo) {
+            description = ((PermissionGroupInfo) groupInfo).loadDescription(mPackageManager);
+        } else if (groupInfo instanceof PermissionInfo) {
+            description = ((PermissionInfo) groupInfo).loadDescription(mPackageManager);
+        }
+        mDescriptions.put(groupInfo.name, description);
+
+        return description;
+    }
+
+    /**
+     * @param permissionName the name of the permission
+     *
+     * @return the flags of the permission for the package
+     */
+    public int getPermissionFlags(@NonNull String permissionName) {
+        Integer flags = mPermissionFlags.get(permissionName);
+        if (flags == null) {
+            flags = mPackageManager.getPermissionFlags(permissionName, mPackageInfo.packageName,
+                    mUser);
+            mPermissionFlags.put(permissionName, flags);
+        }
+
+        return flags;
+    }
+
+    /**
+     * @param appOp the name of the app op
+     *
+     * @return the raw mode of the app op for the package
+     */
+    public int getAppOpMode(@NonNull String appOp) {
+        Integer mode = mAppOpModes.get(appOp);
+        if (mode == null) {
+            mode = mAppOpsManager.unsafeCheckOpRaw(appOp, mPackageInfo.applicationInfo.uid,
+                    mPackageInfo.packageName);
+            mAppOpModes.put(appOp, mode);
+        }
+
+        return mode;
+    }
+
+    /**
+     * @return the restricted permissions that are exempted for the package
+     */
+    public @NonNull Set<String> getExemptedRestrictedPermissions() {
+        if (mExemptedRestrictedPermissions == null) {
+            mExemptedRestrictedPermissions = mPackageManager.getWhitelistedRestrictedPermissions(
+                    mPackageInfo.packageName, Utils.FLAGS_PERMISSION_WHITELIST_ALL);
+        }
+
+        return mExemptedRestrictedPermissions;
+    }
+
+    /**
+     * @return {@code true} iff the package does not use isolated storage
+     */
+    public boolean isNonIsolatedStorage() {
+        if (mIsNonIsolatedStorage == null) {
+            int targetSDK = mPackageInfo.applicationInfo.targetSdkVersion;
+
+            mIsNonIsolatedStorage = targetSDK < Build.VERSION_CODES.P
+                    || (targetSDK < Build.VERSION_CODES.R
+                    && mAppOpsManager.unsafeCheckOpNoThrow(OPSTR_LEGACY_STORAGE,
+                    mPackageInfo.applicationInfo.uid, mPackageInfo.packageName) == MODE_ALLOWED);
+        }
+
+        return mIsNonIsolatedStorage;
+    }
+}
@@ -18,12 +18,15 @@ package com.android.permissioncontroller.permission.model;
 
 import static android.Manifest.permission.CAMERA;
 import static android.Manifest.permission.RECORD_AUDIO;
+import static android.Manifest.permission_group.MICROPHONE;
 
+import android.Manifest.permission_group;
 import android.app.AppOpsManager;
+import android.app.AppOpsManager.AttributedOpEntry;
 import android.app.AppOpsManager.HistoricalOps;
-import android.app.AppOpsManager.HistoricalOpsRequest;
 import android.app.AppOpsManager.HistoricalPackageOps;
 import android.app.AppOpsManager.HistoricalUidOps;
+import android.app.AppOpsManager.OpEntry;
 import android.app.AppOpsManager.PackageOps;
 import android.app.LoaderManager;
 import android.app.LoaderManager.LoaderCallbacks;
@@ -31,11 +34,18 @@ import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.content.Loader;
 import android.content.pm.PackageInfo;
+import android.content.pm.PackageItemInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
+import android.graphics.drawable.Drawable;
 import android.media.AudioManager;
 import android.media.AudioRecordingConfiguration;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Process;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Pair;
@@ -44,20 +54,19 @@ import android.util.SparseArray;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 
+import com.android.permissioncontroller.PermissionControllerApplication;
 import com.android.permissioncontroller.permission.model.AppPermissionUsage.Builder;
 import com.android.permissioncontroller.permission.model.legacy.PermissionApps.PermissionApp;
-import com.android.permissioncontroller.permission.model.legacy.PermissionGroup;
-import com.android.permissioncontroller.permission.model.legacy.PermissionGroups;
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo;
+import com.android.permissioncontroller.permission.utils.ArrayUtils;
 import com.android.permissioncontroller.permission.utils.Utils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Loads all permission usages for a set of apps and permission groups.
@@ -77,8 +86,6 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
     private static final String KEY_FILTER_END_TIME_MILLIS =  "KEY_FILTER_END_TIME_MILLIS";
     private static final String KEY_USAGE_FLAGS =  "KEY_USAGE_FLAGS";
     private static final String KEY_GET_UI_INFO =  "KEY_GET_UI_INFO";
-    private static final String KEY_GET_NON_PLATFORM_PERMISSIONS =
-            "KEY_GET_NON_PLATFORM_PERMISSIONS";
     private static final String TELECOM_PACKAGE = "com.android.server.telecom";
     private static final int DEFAULT_REQUIRED_PERMISSION_FLAG = 3;
 
@@ -87,6 +94,9 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
     private static final String OPSTR_PHONE_CALL_CAMERA = "android:phone_call_camera";
     public static final int HISTORY_FLAG_GET_ATTRIBUTION_CHAINS = 1 << 2;
 
+    /** Lazily initialized mapping of platform ops to their groups, see #getPlatformOpToGroup */
+    private static @Nullable ArrayMap<String, String> sPlatformOpToGroup;
+
     private @Nullable PermissionsUsagesChangeCallback mCallback;
 
     /**
@@ -113,23 +123,41 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
     public void load(@Nullable String filterPackageName,
             @Nullable String[] filterPermissionGroups, long filterBeginTimeMillis,
             long filterEndTimeMillis, int usageFlags, @NonNull LoaderManager loaderManager,
-            boolean getUiInfo, boolean getNonPlatformPermissions,
-            @NonNull PermissionsUsagesChangeCallback callback, boolean sync) {
+            boolean getUiInfo, @NonNull PermissionsUsagesChangeCallback callback, boolean sync) {
         load(Process.INVALID_UID, filterPackageName, filterPermissionGroups, filterBeginTimeMillis,
-                filterEndTimeMillis, usageFlags, loaderManager, getUiInfo,
-                getNonPlatformPermissions, callback, sync);
+                filterEndTimeMillis, usageFlags, loaderManager, getUiInfo, callback, sync);
     }
 
     /**
      * Start the {@link Loader} to load the permission usages in the background. Loads only
      * permissions for the specified {@code filterUid}.
+     *
+     * <p>Only apps that used a permission within the filter time are returned, hence the usages
+     * might be empty. Usages are only tracked for platform permissions.
      */
     public void load(int filterUid, @Nullable String filterPackageName,
             @Nullable String[] filterPermissionGroups, long filterBeginTimeMillis,
             long filterEndTimeMillis, int usageFlags, @NonNull LoaderManager loaderManager,
-            boolean getUiInfo, boolean getNonPlatformPermissions,
-            @NonNull PermissionsUsagesChangeCallback callback, boolean sync) {
+            boolean getUiInfo, @NonNull PermissionsUsagesChangeCallback callback, boolean sync) {
         mCallback = callback;
+        final Bundle args = createLoaderArgs(filterUid, filterPackageName, filterPermissionGroups,
+                filterBeginTimeMillis, filterEndTimeMillis, usageFlags, getUiInfo);
+        if (sync) {
+            final UsageLoader loader = new UsageLoader(mContext, args);
+            final List<AppPermissionUsage> usages = loader.loadInBackground();
+            onLoadFinished(loader, usages);
+        } else {
+            loaderManager.restartLoader(1, args, this);
+        }
+    }
+
+    /**
+     * Create the arguments of a {@link UsageLoader}.
+     */
+    @VisibleForTesting
+    static @NonNull Bundle createLoaderArgs(int filterUid, @Nullable String filterPackageName,
+            @Nullable String[] filterPermissionGroups, long filterBeginTimeMillis,
+            long filterEndTimeMillis, int usageFlags, boolean getUiInfo) {
         final Bundle args = new Bundle();
         args.putInt(KEY_FILTER_UID, filterUid);
         args.putString(KEY_FILTER_PACKAGE_NAME, filterPackageName);
@@ -138,14 +166,7 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
         args.putLong(KEY_FILTER_END_TIME_MILLIS, filterEndTimeMillis);
         args.putInt(KEY_USAGE_FLAGS, usageFlags);
         args.putBoolean(KEY_GET_UI_INFO, getUiInfo);
-        args.putBoolean(KEY_GET_NON_PLATFORM_PERMISSIONS, getNonPlatformPermissions);
-        if (sync) {
-            final UsageLoader loader = new UsageLoader(mContext, args);
-            final List<AppPermissionUsage> usages = loader.loadInBackground();
-            onLoadFinished(loader, usages);
-        } else {
-            loaderManager.restartLoader(1, args, this);
-        }
+        return args;
     }
 
     @Override
@@ -165,8 +186,9 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
 
     @Override
     public void onLoaderReset(@NonNull Loader<List<AppPermissionUsage>> loader) {
+        // The loader is reset when it is stopped. The callback already got the loaded usages and
+        // an empty list here would be indistinguishable from a load without usage.
         mUsages.clear();
-        mCallback.onPermissionUsagesChanged();
     }
 
     /**
@@ -183,7 +205,8 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
         loaderManager.destroyLoader(1);
     }
 
-    private static final class UsageLoader extends AsyncTaskLoader<List<AppPermissionUsage>> {
+    @VisibleForTesting
+    static final class UsageLoader extends AsyncTaskLoader<List<AppPermissionUsage>> {
         private final int mFilterUid;
         private @Nullable String mFilterPackageName;
         private @Nullable String[] mFilterPermissionGroups;
@@ -191,7 +214,6 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
         private final long mFilterEndTimeMillis;
         private final int mUsageFlags;
         private final boolean mGetUiInfo;
-        private final boolean mGetNonPlatformPermissions;
 
         UsageLoader(@NonNull Context context, @NonNull Bundle args) {
             super(context);
@@ -202,7 +224,6 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
             mFilterEndTimeMillis = args.getLong(KEY_FILTER_END_TIME_MILLIS);
             mUsageFlags = args.getInt(KEY_USAGE_FLAGS);
             mGetUiInfo = args.getBoolean(KEY_GET_UI_INFO);
-            mGetNonPlatformPermissions = args.getBoolean(KEY_GET_NON_PLATFORM_PERMISSIONS);
         }
 
         @Override
@@ -212,115 +233,29 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
 
         @Override
         public @NonNull List<AppPermissionUsage> loadInBackground() {
-            final List<PermissionGroup> groups = PermissionGroups.getPermissionGroups(
-                    getContext(), this::isLoadInBackgroundCanceled, mGetUiInfo,
-                    mGetNonPlatformPermissions, mFilterPermissionGroups, mFilterPackageName);
-            if (groups.isEmpty()) {
-                return Collections.emptyList();
-            }
+            final ArrayMap<String, String> opToGroup = getPlatformOpToGroup();
 
-            final List<AppPermissionUsage> usages = new ArrayList<>();
+            // Only look at the ops of the requested groups
             final ArraySet<String> opNames = new ArraySet<>();
-            final ArrayMap<Pair<Integer, String>, AppPermissionUsage.Builder> usageBuilders =
-                    new ArrayMap<>();
-
-            final int groupCount = groups.size();
-            boolean telecomMicAndCamAdded = false;
-            for (int groupIdx = 0; groupIdx < groupCount; groupIdx++) {
-                final PermissionGroup group = groups.get(groupIdx);
-                // Filter out third party permissions
-                if (!group.getDeclaringPackage().equals(Utils.OS_PKG)) {
-                    continue;
-                }
-
-                groups.add(group);
-
-                final List<PermissionApp> permissionApps = group.getPermissionApps().getApps();
-                final int appCount = permissionApps.size();
-                for (int appIdx = 0; appIdx < appCount; appIdx++) {
-                    final PermissionApp permissionApp = permissionApps.get(appIdx);
-                    if (mFilterUid != Process.INVALID_UID
-                            && permissionApp.getAppInfo().uid != mFilterUid) {
-                        continue;
-                    }
-
-                    final AppPermissionGroup appPermGroup = permissionApp.getPermissionGroup();
-                    if (!Utils.shouldShowPermission(getContext(), appPermGroup)) {
-                        continue;
-                    }
-                    final Pair<Integer, String> usageKey = Pair.create(permissionApp.getUid(),
-                            permissionApp.getPackageName());
-                    AppPermissionUsage.Builder usageBuilder = usageBuilders.get(usageKey);
-                    if (usageBuilder == null) {
-                        usageBuilder = new Builder(permissionApp);
-                        usageBuilders.put(usageKey, usageBuilder);
-                    }
-                    usageBuilder.addGroup(appPermGroup);
-
-                    // Since PermissionGroups.getPermissionGroups doesn't return
-                    // Telecom PermissionApp entity with Microphone and Camera permission groups,
-                    // we have to manually add those entries here.
-                    if (!telecomMicAndCamAdded
-                            && permissionApp.getPackageName().equals(TELECOM_PACKAGE)) {
-                        PackageInfo telecomPackageInfo = appPermGroup.getApp();
-
-                        String[] newReqPerms = Arrays.copyOf(
-                                telecomPackageInfo.requestedPermissions,
-                                telecomPackageInfo.requestedPermissions.length + 2);
-                        newReqPerms[telecomPackageInfo.requestedPermissions.length] = RECORD_AUDIO;
-                        newReqPerms[telecomPackageInfo.requestedPermissions.length + 1] = CAMERA;
-                        telecomPackageInfo.requestedPermissions = newReqPerms;
-
-                        int[] newReqPermsFlags = Arrays.copyOf(
-                                telecomPackageInfo.requestedPermissionsFlags,
-                                telecomPackageInfo.requestedPermissionsFlags.length + 2);
-                        newReqPermsFlags[telecomPackageInfo.requestedPermissionsFlags.length] =
-                                DEFAULT_REQUIRED_PERMISSION_FLAG;
-                        newReqPermsFlags[telecomPackageInfo.requestedPermissionsFlags.length + 1] =
-                                DEFAULT_REQUIRED_PERMISSION_FLAG;
-                        telecomPackageInfo.requestedPermissionsFlags = newReqPermsFlags;
-
-                        AppPermissionGroup micGroup = AppPermissionGroup.create(getContext(),
-                                telecomPackageInfo, RECORD_AUDIO, false);
-                        AppPermissionGroup camGroup = AppPermissionGroup.create(getContext(),
-                                telecomPackageInfo, CAMERA, false);
-
-                        if (micGroup != null) {
-                            usageBuilder.addGroup(micGroup);
-                        }
-
-                        if (camGroup != null) {
-                            usageBuilder.addGroup(camGroup);
-                        }
-
-                        telecomMicAndCamAdded = true;
-                    }
-
-                    final List<Permission> permissions = appPermGroup.getPermissions();
-                    final int permCount = permissions.size();
-                    for (int permIdx = 0; permIdx < permCount; permIdx++) {
-                        final Permission permission = permissions.get(permIdx);
-                        final String opName = permission.getAppOp();
-                        if (opName != null) {
-                            opNames.add(opName);
-                        }
-                    }
+            final int opCount = opToGroup.size();
+            for (int i = 0; i < opCount; i++) {
+                if (mFilterPermissionGroups == null || ArrayUtils.contains(mFilterPermissionGroups,
+                        opToGroup.valueAt(i))) {
+                    opNames.add(opToGroup.keyAt(i));
                 }
             }
-
-            if (usageBuilders.isEmpty()) {
+            if (opNames.isEmpty()) {
                 return Collections.emptyList();
             }
 
             final AppOpsManager appOpsManager = getContext().getSystemService(AppOpsManager.class);
+            final String[] opNamesArray = opNames.toArray(new String[opNames.size()]);
 
             // Get last usage data and put in a map for a quick lookup.
-            final ArrayMap<Pair<Integer, String>, PackageOps> lastUsages =
-                    new ArrayMap<>(usageBuilders.size());
-            opNames.add(OPSTR_PHONE_CALL_MICROPHONE);
-            opNames.add(OPSTR_PHONE_CALL_CAMERA);
-            final String[] opNamesArray = opNames.toArray(new String[opNames.size()]);
+            final ArrayMap<Pair<Integer, String>, PackageOps> lastUsages = new ArrayMap<>();
+            long runningSinceMillis = HistoricalOpsCache.RUNNING_SINCE_UNKNOWN;
             if ((mUsageFlags & USAGE_FLAG_LAST) != 0) {
+                runningSinceMillis = Long.MAX_VALUE;
                 final List<PackageOps> usageOps;
                 if (mFilterPackageName != null || mFilterUid != Process.INVALID_UID) {
                     usageOps = appOpsManager.getOpsForPackage(mFilterUid, mFilterPackageName,
@@ -334,6 +269,8 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
                         final PackageOps usageOp = usageOps.get(i);
                         lastUsages.put(Pair.create(usageOp.getUid(), usageOp.getPackageName()),
                                 usageOp);
+                        runningSinceMillis = Math.min(runningSinceMillis,
+                                getRunningSinceMillis(usageOp));
                     }
                 }
             }
@@ -343,46 +280,79 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
             }
 
             // Get historical usage data and put in a map for a quick lookup
-            final ArrayMap<Pair<Integer, String>, HistoricalPackageOps> historicalUsages =
-                    new ArrayMap<>(usageBuilders.size());
+            final ArrayMap<Pair<Integer, String>, List<HistoricalPackageOps>> historicalUsages =
+                    new ArrayMap<>();
             if ((mUsageFlags & USAGE_FLAG_HISTORICAL) != 0) {
-                final AtomicReference<HistoricalOps> historicalOpsRef = new AtomicReference<>();
-                final CountDownLatch latch = new CountDownLatch(1);
-
                 // query for discrete timeline data for location, mic and camera
-                final HistoricalOpsRequest request = new HistoricalOpsRequest.Builder(
-                        mFilterBeginTimeMillis, mFilterEndTimeMillis)
-                        .setFlags(AppOpsManager.OP_FLAG_SELF
-                                | AppOpsManager.OP_FLAG_TRUSTED_PROXIED)
-                        .setHistoryFlags(AppOpsManager.HISTORY_FLAG_DISCRETE
-                                | HISTORY_FLAG_GET_ATTRIBUTION_CHAINS)
-                        .build();
-                appOpsManager.getHistoricalOps(request, Runnable::run,
-                        (HistoricalOps ops) -> {
-                            historicalOpsRef.set(ops);
-                            latch.countDown();
-                        });
-                try {
-                    latch.await(5, TimeUnit.DAYS);
-                } catch (InterruptedException ignored) { }
-
-                final HistoricalOps historicalOps = historicalOpsRef.get();
-
-                if (historicalOps != null) {
+                final List<HistoricalOps> historicalOpsSlices = HistoricalOpsCache.getInstance()
+                        .getHistoricalOps(getContext(), mFilterBeginTimeMillis,
+                                mFilterEndTimeMillis,
+                                AppOpsManager.OP_FLAG_SELF | AppOpsManager.OP_FLAG_TRUSTED_PROXIED,
+                                AppOpsManager.HISTORY_FLAG_DISCRETE
+                                        | HISTORY_FLAG_GET_ATTRIBUTION_CHAINS,
+                                mFilterUid, mFilterPackageName, runningSinceMillis);
+
+                final int sliceCount = historicalOpsSlices.size();
+                for (int sliceNum = 0; sliceNum < sliceCount; sliceNum++) {
+                    final HistoricalOps historicalOps = historicalOpsSlices.get(sliceNum);
                     final int uidCount = historicalOps.getUidCount();
                     for (int i = 0; i < uidCount; i++) {
                         final HistoricalUidOps uidOps = historicalOps.getUidOpsAt(i);
                         final int packageCount = uidOps.getPackageCount();
                         for (int j = 0; j < packageCount; j++) {
                             final HistoricalPackageOps packageOps = uidOps.getPackageOpsAt(j);
-                            historicalUsages.put(
-                                    Pair.create(uidOps.getUid(), packageOps.getPackageName()),
-                                    packageOps);
+                            final Pair<Integer, String> key =
+                                    Pair.create(uidOps.getUid(), packageOps.getPackageName());
+                            List<HistoricalPackageOps> packageSlices = historicalUsages.get(key);
+                            if (packageSlices == null) {
+                                packageSlices = new ArrayList<>(sliceCount);
+                                historicalUsages.put(key, packageSlices);
+                            }
+                            packageSlices.add(packageOps);
                         }
                     }
                 }
             }
 
+            if (isLoadInBackgroundCanceled()) {
+                return Collections.emptyList();
+            }
+
+            // Find the groups each app used within the filter time. Only for these the heavy
+            // AppPermissionGroup objects are created.
+            final ArrayMap<Pair<Integer, String>, ArraySet<String>> usedGroups = new ArrayMap<>();
+            final int lastUsagesCount = lastUsages.size();
+            for (int i = 0; i < lastUsagesCount; i++) {
+                final List<OpEntry> ops = lastUsages.valueAt(i).getOps();
+                final int numOps = ops.size();
+                for (int opNum = 0; opNum < numOps; opNum++) {
+                    final OpEntry op = ops.get(opNum);
+                    final long lastAccessTime = op.getLastAccessTime(AppOpsManager.OP_FLAGS_ALL);
+                    if (op.isRunning() || (lastAccessTime >= mFilterBeginTimeMillis
+                            && lastAccessTime <= mFilterEndTimeMillis)) {
+                        addUsedGroup(usedGroups, lastUsages.keyAt(i),
+                                opToGroup.get(op.getOpStr()));
+                    }
+                }
+            }
+            final int historicalUsagesCount = historicalUsages.size();
+            for (int i = 0; i < historicalUsagesCount; i++) {
+                final List<HistoricalPackageOps> packageSlices = historicalUsages.valueAt(i);
+                final int sliceCount = packageSlices.size();
+                for (int sliceNum = 0; sliceNum < sliceCount; sliceNum++) {
+                    final HistoricalPackageOps packageOps = packageSlices.get(sliceNum);
+                    final int numOps = packageOps.getOpCount();
+                    for (int opNum = 0; opNum < numOps; opNum++) {
+                        addUsedGroup(usedGroups, historicalUsages.keyAt(i),
+                                opToGroup.get(packageOps.getOpAt(opNum).getOpName()));
+                    }
+                }
+            }
+
+            if (usedGroups.isEmpty()) {
+                return Collections.emptyList();
+            }
+
             // Get audio recording config
             List<AudioRecordingConfiguration> allRecordings = getContext()
                     .getSystemService(AudioManager.class).getActiveRecordingConfigurations();
@@ -402,21 +372,280 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
                 recordings.add(recording);
             }
 
-            // Construct the historical usages based on data we fetched
-            final int builderCount = usageBuilders.size();
-            for (int i = 0; i < builderCount; i++) {
-                final Pair<Integer, String> key = usageBuilders.keyAt(i);
-                final Builder usageBuilder = usageBuilders.valueAt(i);
-                final PackageOps lastUsage = lastUsages.get(key);
-                usageBuilder.setLastUsage(lastUsage);
-                final HistoricalPackageOps historicalUsage = historicalUsages.get(key);
+            // Construct the usages for the apps that used a permission
+            final List<UserHandle> profiles = getContext().getSystemService(UserManager.class)
+                    .getUserProfiles();
+            final ArrayMap<String, GroupData> groupDataCache = new ArrayMap<>();
+            final List<AppPermissionUsage> usages = new ArrayList<>();
+
+            final int usedAppCount = usedGroups.size();
+            for (int i = 0; i < usedAppCount; i++) {
+                if (isLoadInBackgroundCanceled()) {
+                    return Collections.emptyList();
+                }
 
-                usageBuilder.setHistoricalUsage(historicalUsage);
+                final Pair<Integer, String> key = usedGroups.keyAt(i);
+                if (mFilterUid != Process.INVALID_UID && key.first != mFilterUid) {
+                    continue;
+                }
+
+                final UserHandle user = UserHandle.getUserHandleForUid(key.first);
+                if (!profiles.contains(user)) {
+                    continue;
+                }
+
+                final Builder usageBuilder = createUsageBuilder(key.second, user,
+                        usedGroups.valueAt(i), groupDataCache);
+                if (usageBuilder == null) {
+                    continue;
+                }
+
+                usageBuilder.setLastUsage(lastUsages.get(key));
+                usageBuilder.setHistoricalUsages(historicalUsages.get(key));
                 usageBuilder.setRecordingConfiguration(recordingsByUid.get(key.first));
                 usages.add(usageBuilder.build());
             }
 
             return usages;
         }
+
+        /**
+         * Create a usage builder containing the {@link AppPermissionGroup groups} a package used.
+         *
+         * @param packageName The package that used the groups
+         * @param user The user of the package
+         * @param groupNames The names of the groups used
+         * @param groupDataCache Cache for the group data, shared between packages
+         *
+         * @return The builder or {@code null} if none of the groups should be shown
+         */
+        private @Nullable Builder createUsageBuilder(@NonNull String packageName,
+                @NonNull UserHandle user, @NonNull ArraySet<String> groupNames,
+                @NonNull ArrayMap<String, GroupData> groupDataCache) {
+            PackageInfo packageInfo;
+            try {
+                packageInfo = Utils.getUserContext(PermissionControllerApplication.get(), user)
+                        .getPackageManager().getPackageInfo(packageName,
+                                PackageManager.GET_PERMISSIONS);
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+
+            final LightPackageInfo lightPackageInfo = new LightPackageInfo(packageInfo);
+            final boolean isTelecom = packageName.equals(TELECOM_PACKAGE);
+
+            Builder usageBuilder = null;
+            final int groupCount = groupNames.size();
+            for (int i = 0; i < groupCount; i++) {
+                final String groupName = groupNames.valueAt(i);
+
+                GroupData groupData = groupDataCache.get(groupName);
+                if (groupData == null) {
+                    groupData = GroupData.load(getContext(), groupName);
+                    groupDataCache.put(groupName, groupData);
+                }
+                if (groupData == null) {
+                    continue;
+                }
+
+                PackageInfo groupPackageInfo = packageInfo;
+                if (!requestsAnyOf(lightPackageInfo, groupData.mPermissionInfos)) {
+                    // Telecom does not request the microphone and camera permissions but blames
+                    // the phone call ops on them. Pretend to request them so the usage can be
+                    // shown.
+                    if (isTelecom && (groupName.equals(MICROPHONE)
+                            || groupName.equals(permission_group.CAMERA))) {
+                        groupPackageInfo = withAdditionalRequestedPermission(packageInfo,
+                                groupName.equals(MICROPHONE) ? RECORD_AUDIO : CAMERA);
+                    } else {
+                        continue;
+                    }
+                }
+
+                final AppPermissionGroup group = AppPermissionGroup.create(getContext(),
+                        groupPackageInfo, groupData.mGroupInfo, groupData.mPermissionInfos,
+                        groupData.mLabel, groupData.mFullLabel, false);
+                if (group == null || !Utils.shouldShowPermission(getContext(), group)) {
+                    continue;
+                }
+
+                if (usageBuilder == null) {
+                    usageBuilder = new Builder(createPermissionApp(packageInfo, group));
+                }
+                usageBuilder.addGroup(group);
+            }
+
+            return usageBuilder;
+        }
+
+        private @NonNull PermissionApp createPermissionApp(@NonNull PackageInfo packageInfo,
+                @NonNull AppPermissionGroup group) {
+            final String label;
+            final Drawable icon;
+            if (mGetUiInfo) {
+                label = packageInfo.applicationInfo.loadLabel(getContext().getPackageManager())
+                        .toString();
+                icon = Utils.getBadgedIcon(getContext(), packageInfo.applicationInfo);
+            } else {
+                label = packageInfo.packageName;
+                icon = null;
+            }
+
+            return new PermissionApp(packageInfo.packageName, group, label, icon,
+                    packageInfo.applicationInfo);
+        }
+    }
+
+    /**
+     * The platform information about a permission group needed to create
+     * {@link AppPermissionGroup app permission groups}.
+     */
+    private static final class GroupData {
+        final @NonNull PackageItemInfo mGroupInfo;
+        final @NonNull List<PermissionInfo> mPermissionInfos;
+        final @NonNull CharSequence mLabel;
+        final @NonNull CharSequence mFullLabel;
+
+        private GroupData(@NonNull PackageItemInfo groupInfo,
+                @NonNull List<PermissionInfo> permissionInfos, @NonNull CharSequence label,
+                @NonNull CharSequence fullLabel) {
+            mGroupInfo = groupInfo;
+            mPermissionInfos = permissionInfos;
+            mLabel = label;
+            mFullLabel = fullLabel;
+        }
+
+        static @Nullable GroupData load(@NonNull Context context, @NonNull String groupName) {
+            final PackageItemInfo groupInfo = Utils.getGroupInfo(groupName, context);
+            if (groupInfo == null) {
+                return null;
+            }
+
+            final PackageManager pm = context.getPackageManager();
+            final List<PermissionInfo> permissionInfos;
+            try {
+                permissionInfos = Utils.getPermissionInfosForGroup(pm, groupName);
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+
+            return new GroupData(groupInfo, permissionInfos, groupInfo.loadLabel(pm),
+                    groupInfo.loadSafeLabel(pm, 0, TextUtils.SAFE_STRING_FLAG_TRIM
+                            | TextUtils.SAFE_STRING_FLAG_FIRST_LINE));
+        }
+    }
+
+    /**
+     * Get the static mapping of the ops backing platform permissions to their groups.
+     *
+     * @return op name -> group name
+     */
+    private static @NonNull ArrayMap<String, String> getPlatformOpToGroup() {
+        synchronized (PermissionUsages.class) {
+            if (sPlatformOpToGroup == null) {
+                final ArrayMap<String, String> opToGroup = new ArrayMap<>();
+
+                final List<String> groups = Utils.getPlatformPermissionGroups();
+                final int groupCount = groups.size();
+                for (int i = 0; i < groupCount; i++) {
+                    final String group = groups.get(i);
+                    final List<String> permissions = Utils.getPlatformPermissionNamesOfGroup(group);
+                    final int permissionCount = permissions.size();
+                    for (int j = 0; j < permissionCount; j++) {
+                        final String op = AppOpsManager.permissionToOp(permissions.get(j));
+                        if (op != null) {
+                            opToGroup.put(op, group);
+                        }
+                    }
+                }
+                opToGroup.put(OPSTR_PHONE_CALL_MICROPHONE, MICROPHONE);
+                opToGroup.put(OPSTR_PHONE_CALL_CAMERA, permission_group.CAMERA);
+
+                sPlatformOpToGroup = opToGroup;
+            }
+
+            return sPlatformOpToGroup;
+        }
+    }
+
+    /**
+     * @param packageOps the last usage of a package
+     *
+     * @return the start of the earliest access of the package that is still running, or
+     * {@link Long#MAX_VALUE} if none is running
+     */
+    private static long getRunningSinceMillis(@NonNull PackageOps packageOps) {
+        long runningSinceMillis = Long.MAX_VALUE;
+
+        final List<OpEntry> ops = packageOps.getOps();
+        final int numOps = ops.size();
+        for (int opNum = 0; opNum < numOps; opNum++) {
+            final OpEntry op = ops.get(opNum);
+            if (!op.isRunning()) {
+                continue;
+            }
+
+            for (AttributedOpEntry attributedOp : op.getAttributedOpEntries().values()) {
+                if (attributedOp.isRunning()) {
+                    runningSinceMillis = Math.min(runningSinceMillis,
+                            attributedOp.getLastAccessTime(AppOpsManager.OP_FLAGS_ALL));
+                }
+            }
+        }
+
+        return runningSinceMillis;
+    }
+
+    private static void addUsedGroup(
+            @NonNull ArrayMap<Pair<Integer, String>, ArraySet<String>> usedGroups,
+            @NonNull Pair<Integer, String> key, @Nullable String groupName) {
+        if (groupName == null) {
+            return;
+        }
+
+        ArraySet<String> groups = usedGroups.get(key);
+        if (groups == null) {
+            groups = new ArraySet<>();
+            usedGroups.put(key, groups);
+        }
+        groups.add(groupName);
+    }
+
+    private static boolean requestsAnyOf(@NonNull LightPackageInfo packageInfo,
+            @NonNull List<PermissionInfo> permissionInfos) {
+        final List<String> requestedPermissions = packageInfo.getRequestedPermissions();
+        final int permissionCount = permissionInfos.size();
+        for (int i = 0; i < permissionCount; i++) {
+            if (requestedPermissions.contains(permissionInfos.get(i).name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Create a copy of a package info that additionally requests a permission. The original
+     * package info is not modified.
+     */
+    private static @NonNull PackageInfo withAdditionalRequestedPermission(
+            @NonNull PackageInfo packageInfo, @NonNull String permission) {
+        final PackageInfo copy = new PackageInfo();
+        copy.packageName = packageInfo.packageName;
+        copy.versionCode = packageInfo.versionCode;
+        copy.applicationInfo = packageInfo.applicationInfo;
+        copy.permissions = packageInfo.permissions;
+        copy.attributions = packageInfo.attributions;
+
+        final String[] reqPerms = packageInfo.requestedPermissions == null
+                ? new String[0] : packageInfo.requestedPermissions;
+        final int[] reqPermsFlags = packageInfo.requestedPermissionsFlags == null
+                ? new int[0] : packageInfo.requestedPermissionsFlags;
+
+        copy.requestedPermissions = Arrays.copyOf(reqPerms, reqPerms.length + 1);
+        copy.requestedPermissions[reqPerms.length] = permission;
+        copy.requestedPermissionsFlags = Arrays.copyOf(reqPermsFlags, reqPermsFlags.length + 1);
+        copy.requestedPermissionsFlags[reqPermsFlags.length] = DEFAULT_REQUIRED_PERMISSION_FLAG;
+
+        return copy;
     }
 }
@@ -15,6 +15,7 @@
  */
 package com.android.permissioncontroller.permission.model.legacy;
 
+import android.app.Application;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
@@ -39,6 +40,7 @@ import androidx.annotation.Nullable;
 import com.android.modules.utils.build.SdkLevel;
 import com.android.permissioncontroller.R;
 import com.android.permissioncontroller.permission.model.AppPermissionGroup;
+import com.android.permissioncontroller.permission.utils.AppLabelIconCache;
 import com.android.permissioncontroller.permission.utils.Utils;
 
 import java.util.ArrayList;
@@ -289,7 +291,10 @@ public class PermissionApps {
                         if (appData != null) {
                             icon = appData.second;
                         } else {
-                            icon = Utils.getBadgedIcon(mContext, app.applicationInfo);
+                            icon = AppLabelIconCache.INSTANCE.getIcon(
+                                    (Application) mContext.getApplicationContext(),
+                                    app.applicationInfo, mContext.getResources()
+                                            .getDimensionPixelSize(android.R.dimen.app_icon_size));
                         }
                     }
 
@@ -523,7 +528,10 @@ public class PermissionApps {
             Pair<String, Drawable> data = dataForUser.get(app.packageName);
             if (data == null) {
                 data = Pair.create(app.loadLabel(mPm).toString(),
-                        Utils.getBadgedIcon(mContext, app));
+                        AppLabelIconCache.INSTANCE.getIcon(
+                                (Application) mContext.getApplicationContext(), app,
+                                mContext.getResources().getDimensionPixelSize(
+                                        android.R.dimen.app_icon_size)));
                 dataForUser.put(app.packageName, data);
             }
             return data;
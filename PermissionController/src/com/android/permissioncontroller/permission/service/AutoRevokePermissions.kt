@@ -82,7 +82,7 @@ suspend fun revokeAppPermissions(
 
             pkgPermGroups?.entries?.forEachInParallel(Main) { (groupName, _) ->
                 if (groupName == PackagePermissionsLiveData.NON_RUNTIME_NORMAL_PERMS ||
-                    groupName !in Utils.getPlatformPermissionGroups()) {
+                    !Utils.isModernPermissionGroup(groupName)) {
                     return@forEachInParallel
                 }
 
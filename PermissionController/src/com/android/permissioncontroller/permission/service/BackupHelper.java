@@ -16,12 +16,12 @@
 
 package com.android.permissioncontroller.permission.service;
 
-import static android.content.Context.MODE_PRIVATE;
 import static android.content.pm.PackageManager.FLAG_PERMISSION_POLICY_FIXED;
 import static android.content.pm.PackageManager.FLAG_PERMISSION_SYSTEM_FIXED;
 import static android.content.pm.PackageManager.GET_PERMISSIONS;
 import static android.util.Xml.newSerializer;
 
+import static com.android.permissioncontroller.Constants.DELAYED_RESTORE_PERMISSIONS_DIR;
 import static com.android.permissioncontroller.Constants.DELAYED_RESTORE_PERMISSIONS_FILE;
 
 import static org.xmlpull.v1.XmlPullParser.END_DOCUMENT;
@@ -30,16 +30,24 @@ import static org.xmlpull.v1.XmlPullParser.START_TAG;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
 import android.os.Build;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.permission.PermissionManager;
 import android.permission.PermissionManager.SplitPermissionInfo;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.AtomicFile;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.Xml;
 
+import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.os.BuildCompat;
@@ -47,17 +55,28 @@ import androidx.core.os.BuildCompat;
 import com.android.permissioncontroller.Constants;
 import com.android.permissioncontroller.permission.model.AppPermissionGroup;
 import com.android.permissioncontroller.permission.model.AppPermissions;
+import com.android.permissioncontroller.permission.model.PackagePermissionsPrefetch;
 import com.android.permissioncontroller.permission.model.Permission;
+import com.android.permissioncontroller.permission.utils.Utils;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Helper for creating and restoring permission backups.
@@ -84,10 +103,30 @@ public class BackupHelper {
     private static final int SYSTEM_RUNTIME_GRANT_MASK = FLAG_PERMISSION_POLICY_FIXED
             | FLAG_PERMISSION_SYSTEM_FIXED;
 
+    /** Number of threads reading the state of packages while creating a backup */
+    private static final int NUM_BACKUP_THREADS = 4;
+
+    /** Maximum number of packages read ahead of the package currently written to the backup */
+    private static final int MAX_BACKUP_PKGS_IN_FLIGHT = 4 * NUM_BACKUP_THREADS;
+
     /** Make sure only one user can change the delayed permissions at a time */
     private static final Object sLock = new Object();
 
+    /** Suffix of the per package files in {@link Constants#DELAYED_RESTORE_PERMISSIONS_DIR} */
+    private static final String DELAYED_RESTORE_FILE_SUFFIX = ".xml";
+
+    /**
+     * user id -> packages that still need to be restored.
+     *
+     * <p>Loaded once per process from the file names in
+     * {@link Constants#DELAYED_RESTORE_PERMISSIONS_DIR}. The state of a package is only parsed
+     * once the package is installed.
+     */
+    @GuardedBy("sLock")
+    private static final SparseArray<ArraySet<String>> sDelayedRestorePkgs = new SparseArray<>();
+
     private final Context mContext;
+    private final int mUserId;
 
     /**
      * Create a new backup utils for a user.
@@ -101,6 +140,7 @@ public class BackupHelper {
         } catch (PackageManager.NameNotFoundException doesNotHappen) {
             throw new IllegalStateException();
         }
+        mUserId = user.getIdentifier();
     }
 
     /**
@@ -210,7 +250,7 @@ public class BackupHelper {
      * Try to restore the permission state from XML.
      *
      * <p>If some apps could not be restored, the leftover apps are written to
-     * {@link Constants#DELAYED_RESTORE_PERMISSIONS_FILE}.
+     * {@link Constants#DELAYED_RESTORE_PERMISSIONS_DIR}.
      *
      * @param parser The xml to read
      */
@@ -220,21 +260,50 @@ public class BackupHelper {
         ArrayList<BackupPackageState> packagesToRestoreLater = new ArrayList<>();
         int numPkgStates = pkgStates.size();
         if (numPkgStates > 0) {
-            // Try to restore packages
+            long startTime = SystemClock.elapsedRealtime();
+
+            // Resolve all packages at once instead of querying each package separately
+            List<PackageInfo> installedPkgs = mContext.getPackageManager().getInstalledPackages(
+                    GET_PERMISSIONS);
+            ArrayMap<String, PackageInfo> installedPkgsByName = new ArrayMap<>(
+                    installedPkgs.size());
+            int numInstalledPkgs = installedPkgs.size();
+            for (int i = 0; i < numInstalledPkgs; i++) {
+                PackageInfo pkgInfo = installedPkgs.get(i);
+                installedPkgsByName.put(pkgInfo.packageName, pkgInfo);
+            }
+
+            // uid -> packages to restore. Packages sharing a uid are restored together so that
+            // the uid is killed at most once.
+            SparseArray<ArrayList<BackupPackageState>> pkgStatesByUid = new SparseArray<>();
+            SparseArray<ArrayList<PackageInfo>> pkgInfosByUid = new SparseArray<>();
             for (int i = 0; i < numPkgStates; i++) {
                 BackupPackageState pkgState = pkgStates.get(i);
 
-                PackageInfo pkgInfo;
-                try {
-                    pkgInfo = mContext.getPackageManager().getPackageInfo(pkgState.mPackageName,
-                            GET_PERMISSIONS);
-                } catch (PackageManager.NameNotFoundException ignored) {
+                PackageInfo pkgInfo = installedPkgsByName.get(pkgState.mPackageName);
+                if (pkgInfo == null) {
                     packagesToRestoreLater.add(pkgState);
                     continue;
                 }
 
-                pkgState.restore(mContext, pkgInfo);
+                int uid = pkgInfo.applicationInfo.uid;
+                if (pkgStatesByUid.get(uid) == null) {
+                    pkgStatesByUid.put(uid, new ArrayList<>());
+                    pkgInfosByUid.put(uid, new ArrayList<>());
+                }
+                pkgStatesByUid.get(uid).add(pkgState);
+                pkgInfosByUid.get(uid).add(pkgInfo);
+            }
+
+            int numUids = pkgStatesByUid.size();
+            for (int uidNum = 0; uidNum < numUids; uidNum++) {
+                restoreUid(pkgStatesByUid.keyAt(uidNum), pkgStatesByUid.valueAt(uidNum),
+                        pkgInfosByUid.valueAt(uidNum));
             }
+
+            Log.i(LOG_TAG, "Restored " + (numPkgStates - packagesToRestoreLater.size())
+                    + " packages in " + (SystemClock.elapsedRealtime() - startTime) + " ms, "
+                    + packagesToRestoreLater.size() + " packages delayed");
         }
 
         synchronized (sLock) {
@@ -242,6 +311,54 @@ public class BackupHelper {
         }
     }
 
+    /**
+     * Restore the state of packages that share a uid.
+     *
+     * <p>The uid is killed at most once, after all packages are restored.
+     *
+     * <p>Packages sharing a uid share their grant state, hence restoring a package changes the
+     * state of the packages restored after it. Only the package info of the first package is
+     * used, the others are queried again once the packages before them are restored.
+     *
+     * @param uid The uid of the packages
+     * @param pkgStates The states to restore
+     * @param pkgInfos The packages to restore, in the same order as {@code pkgStates}
+     */
+    private void restoreUid(int uid, @NonNull List<BackupPackageState> pkgStates,
+            @NonNull List<PackageInfo> pkgInfos) {
+        boolean shouldKillUid = false;
+
+        int numPkgs = pkgStates.size();
+        for (int i = 0; i < numPkgs; i++) {
+            BackupPackageState pkgState = pkgStates.get(i);
+            long startTime = SystemClock.elapsedRealtime();
+
+            PackageInfo pkgInfo = pkgInfos.get(i);
+            if (i > 0) {
+                try {
+                    pkgInfo = mContext.getPackageManager().getPackageInfo(pkgState.mPackageName,
+                            GET_PERMISSIONS);
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.e(LOG_TAG, "Could not restore permissions for " + pkgState.mPackageName,
+                            e);
+                    continue;
+                }
+            }
+
+            shouldKillUid |= pkgState.restore(mContext, pkgInfo);
+
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+                Log.d(LOG_TAG, "Restored " + pkgState.mPackageName + " in "
+                        + (SystemClock.elapsedRealtime() - startTime) + " ms");
+            }
+        }
+
+        if (shouldKillUid) {
+            mContext.getSystemService(ActivityManager.class).killUid(uid,
+                    Utils.KILL_REASON_APP_OP_CHANGE);
+        }
+    }
+
     /**
      * Write a xml file for the given packages.
      *
@@ -249,7 +366,27 @@ public class BackupHelper {
      * @param pkgs The packages to write
      */
     private static void writePkgsAsXml(@NonNull XmlSerializer serializer,
-            @NonNull ArrayList<BackupPackageState> pkgs) throws IOException {
+            @NonNull List<BackupPackageState> pkgs) throws IOException {
+        writeHeaderAsXml(serializer);
+
+        int numPkgs = pkgs.size();
+        for (int i = 0; i < numPkgs; i++) {
+            BackupPackageState packageState = pkgs.get(i);
+
+            if (packageState != null) {
+                packageState.writeAsXml(serializer);
+            }
+        }
+
+        writeFooterAsXml(serializer);
+    }
+
+    /**
+     * Start a xml file for packages. Write the packages and then call {@link #writeFooterAsXml}.
+     *
+     * @param serializer The file to write to
+     */
+    private static void writeHeaderAsXml(@NonNull XmlSerializer serializer) throws IOException {
         serializer.startDocument(null, true);
 
         serializer.startTag(null, TAG_PERMISSION_BACKUP);
@@ -264,111 +401,260 @@ public class BackupHelper {
         }
 
         serializer.startTag(null, TAG_ALL_GRANTS);
+    }
 
-        int numPkgs = pkgs.size();
-        for (int i = 0; i < numPkgs; i++) {
-            BackupPackageState packageState = pkgs.get(i);
+    /**
+     * Finish a xml file started by {@link #writeHeaderAsXml}.
+     *
+     * @param serializer The file to write to
+     */
+    private static void writeFooterAsXml(@NonNull XmlSerializer serializer) throws IOException {
+        serializer.endTag(null, TAG_ALL_GRANTS);
+        serializer.endTag(null, TAG_PERMISSION_BACKUP);
 
-            if (packageState != null) {
-                packageState.writeAsXml(serializer);
+        serializer.endDocument();
+    }
+
+    /**
+     * @return The directory containing the delayed restore state of this user
+     */
+    private @NonNull File getDelayedRestoreDir() {
+        return new File(mContext.getFilesDir(), DELAYED_RESTORE_PERMISSIONS_DIR);
+    }
+
+    /**
+     * @param packageName The package that still needs to be restored
+     *
+     * @return The file containing the delayed restore state of the package
+     */
+    private @NonNull AtomicFile getDelayedRestoreFile(@NonNull String packageName) {
+        return new AtomicFile(new File(getDelayedRestoreDir(),
+                packageName + DELAYED_RESTORE_FILE_SUFFIX));
+    }
+
+    /**
+     * Get the packages of this user that still need to be restored.
+     *
+     * <p>On first use this migrates the legacy {@link Constants#DELAYED_RESTORE_PERMISSIONS_FILE}
+     * to one file per package.
+     *
+     * @return The (mutable) index of the packages that still need to be restored
+     */
+    private @NonNull ArraySet<String> getDelayedRestorePkgsLocked() {
+        ArraySet<String> pkgs = sDelayedRestorePkgs.get(mUserId);
+        if (pkgs != null) {
+            return pkgs;
+        }
+
+        pkgs = new ArraySet<>();
+
+        File legacyFile = mContext.getFileStreamPath(DELAYED_RESTORE_PERMISSIONS_FILE);
+        if (legacyFile.exists()) {
+            try (FileInputStream delayedRestoreData = new FileInputStream(legacyFile)) {
+                ArrayList<BackupPackageState> legacyPkgs = readPkgsFromXml(delayedRestoreData);
+
+                int numPkgs = legacyPkgs.size();
+                for (int i = 0; i < numPkgs; i++) {
+                    writeDelayedStorePkgLocked(legacyPkgs.get(i));
+                }
+            } catch (IOException | XmlPullParserException e) {
+                Log.e(LOG_TAG, "Could not parse delayed permissions", e);
+            }
+
+            if (!legacyFile.delete()) {
+                Log.w(LOG_TAG, "Could not delete " + legacyFile);
             }
         }
 
-        serializer.endTag(null, TAG_ALL_GRANTS);
-        serializer.endTag(null, TAG_PERMISSION_BACKUP);
+        String[] fileNames = getDelayedRestoreDir().list();
+        if (fileNames != null) {
+            for (String fileName : fileNames) {
+                if (fileName.endsWith(DELAYED_RESTORE_FILE_SUFFIX)) {
+                    pkgs.add(fileName.substring(0,
+                            fileName.length() - DELAYED_RESTORE_FILE_SUFFIX.length()));
+                }
+            }
+        }
 
-        serializer.endDocument();
+        sDelayedRestorePkgs.put(mUserId, pkgs);
+        return pkgs;
     }
 
     /**
-     * Update the {@link Constants#DELAYED_RESTORE_PERMISSIONS_FILE} to contain the
-     * {@code packagesToRestoreLater}.
+     * Read the packages stored in a xml file.
      *
-     * @param packagesToRestoreLater The new pkgs in the delayed restore file
+     * @param in The file to read
+     *
+     * @return The packages in this file
      */
-    private void writeDelayedStorePkgsLocked(
-            @NonNull ArrayList<BackupPackageState> packagesToRestoreLater) {
-        try (OutputStream delayedRestoreData = mContext.openFileOutput(
-                DELAYED_RESTORE_PERMISSIONS_FILE, MODE_PRIVATE)) {
+    private @NonNull ArrayList<BackupPackageState> readPkgsFromXml(@NonNull InputStream in)
+            throws IOException, XmlPullParserException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(in, UTF_8.name());
+
+        return parseFromXml(parser);
+    }
+
+    /**
+     * Write the delayed restore file of a single package. Does not update the index.
+     *
+     * @param pkgState The package that still needs to be restored
+     *
+     * @return {@code true} iff the file was written
+     */
+    private boolean writeDelayedStorePkgLocked(@NonNull BackupPackageState pkgState) {
+        File dir = getDelayedRestoreDir();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(LOG_TAG, "Could not create " + dir);
+            return false;
+        }
+
+        AtomicFile file = getDelayedRestoreFile(pkgState.mPackageName);
+        FileOutputStream delayedRestoreData = null;
+        try {
+            delayedRestoreData = file.startWrite();
+
             XmlSerializer serializer = newSerializer();
             serializer.setOutput(delayedRestoreData, UTF_8.name());
 
-            writePkgsAsXml(serializer, packagesToRestoreLater);
+            writePkgsAsXml(serializer, Collections.singletonList(pkgState));
             serializer.flush();
+
+            file.finishWrite(delayedRestoreData);
+            return true;
         } catch (IOException e) {
-            Log.e(LOG_TAG, "Could not remember which packages still need to be restored", e);
+            Log.e(LOG_TAG, "Could not remember that " + pkgState.mPackageName
+                    + " still needs to be restored", e);
+            if (delayedRestoreData != null) {
+                file.failWrite(delayedRestoreData);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Replace the delayed restore state of this user with the {@code packagesToRestoreLater}.
+     *
+     * @param packagesToRestoreLater The new pkgs in the delayed restore state
+     */
+    private void writeDelayedStorePkgsLocked(
+            @NonNull ArrayList<BackupPackageState> packagesToRestoreLater) {
+        ArraySet<String> pkgs = getDelayedRestorePkgsLocked();
+
+        int numOldPkgs = pkgs.size();
+        for (int i = 0; i < numOldPkgs; i++) {
+            getDelayedRestoreFile(pkgs.valueAt(i)).delete();
+        }
+        pkgs.clear();
+
+        int numPkgs = packagesToRestoreLater.size();
+        for (int i = 0; i < numPkgs; i++) {
+            BackupPackageState pkgState = packagesToRestoreLater.get(i);
+
+            if (writeDelayedStorePkgLocked(pkgState)) {
+                pkgs.add(pkgState.mPackageName);
+            }
         }
     }
 
     /**
      * Write the state of all packages as XML.
      *
+     * <p>The state of the packages is read in parallel and each package is written as soon as
+     * it is read, in the order returned by the package manager.
+     *
      * @param serializer The xml to write to
      */
     void writeState(@NonNull XmlSerializer serializer) throws IOException {
         List<PackageInfo> pkgs = mContext.getPackageManager().getInstalledPackages(
                 GET_PERMISSIONS);
-        ArrayList<BackupPackageState> backupPkgs = new ArrayList<>();
+        PermissionDefinitions permDefs = new PermissionDefinitions(
+                mContext.getPackageManager());
 
-        int numPkgs = pkgs.size();
-        for (int i = 0; i < numPkgs; i++) {
-            BackupPackageState packageState = BackupPackageState.fromAppPermissions(mContext,
-                    pkgs.get(i));
+        ExecutorService readers = Executors.newFixedThreadPool(NUM_BACKUP_THREADS);
+        try {
+            writeHeaderAsXml(serializer);
+
+            ArrayDeque<Future<BackupPackageState>> pkgsInFlight = new ArrayDeque<>();
+            int numPkgs = pkgs.size();
+            int nextPkgNum = 0;
+            while (nextPkgNum < numPkgs || !pkgsInFlight.isEmpty()) {
+                while (nextPkgNum < numPkgs && pkgsInFlight.size() < MAX_BACKUP_PKGS_IN_FLIGHT) {
+                    PackageInfo pkgInfo = pkgs.get(nextPkgNum++);
+                    pkgsInFlight.add(readers.submit(
+                            () -> BackupPackageState.fromSnapshot(mContext, pkgInfo, permDefs)));
+                }
 
-            if (packageState != null) {
-                backupPkgs.add(packageState);
+                BackupPackageState packageState;
+                try {
+                    packageState = pkgsInFlight.remove().get();
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Could not back up permissions of a package", e);
+                    continue;
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while backing up permissions");
+                }
+
+                if (packageState != null) {
+                    packageState.writeAsXml(serializer);
+                }
             }
-        }
 
-        writePkgsAsXml(serializer, backupPkgs);
+            writeFooterAsXml(serializer);
+        } finally {
+            readers.shutdownNow();
+        }
     }
 
     /**
      * Restore delayed permission state for a package (if delayed during {@link #restoreState}).
      *
+     * <p>Packages without delayed state are answered from the in-memory index without parsing
+     * any state, hence this is cheap to call for every installed package.
+     *
      * @param packageName The package to be restored
      *
      * @return {@code true} if there is still delayed backup left
      */
     boolean restoreDelayedState(@NonNull String packageName) {
         synchronized (sLock) {
-            ArrayList<BackupPackageState> packagesToRestoreLater;
-
-            try (FileInputStream delayedRestoreData =
-                         mContext.openFileInput(DELAYED_RESTORE_PERMISSIONS_FILE)) {
-                XmlPullParser parser = Xml.newPullParser();
-                parser.setInput(delayedRestoreData, UTF_8.name());
-
-                packagesToRestoreLater = parseFromXml(parser);
-            } catch (IOException | XmlPullParserException e) {
-                Log.e(LOG_TAG, "Could not parse delayed permissions", e);
-                return false;
+            ArraySet<String> pkgs = getDelayedRestorePkgsLocked();
+            if (!pkgs.contains(packageName)) {
+                return !pkgs.isEmpty();
             }
 
-            PackageInfo pkgInfo = null;
+            PackageInfo pkgInfo;
             try {
                 pkgInfo = mContext.getPackageManager().getPackageInfo(packageName, GET_PERMISSIONS);
             } catch (PackageManager.NameNotFoundException e) {
                 Log.e(LOG_TAG, "Could not restore delayed permissions for " + packageName, e);
+                return true;
             }
 
-            if (pkgInfo != null) {
-                int numPkgs = packagesToRestoreLater.size();
-                for (int i = 0; i < numPkgs; i++) {
-                    BackupPackageState pkgState = packagesToRestoreLater.get(i);
-
-                    if (pkgState.mPackageName.equals(packageName)) {
-                        pkgState.restore(mContext, pkgInfo);
-                        packagesToRestoreLater.remove(i);
+            AtomicFile file = getDelayedRestoreFile(packageName);
+            ArrayList<BackupPackageState> pkgStates;
+            try (FileInputStream delayedRestoreData = file.openRead()) {
+                pkgStates = readPkgsFromXml(delayedRestoreData);
+            } catch (IOException | XmlPullParserException e) {
+                Log.e(LOG_TAG, "Could not parse delayed permissions for " + packageName, e);
+                pkgStates = new ArrayList<>();
+            }
 
-                        writeDelayedStorePkgsLocked(packagesToRestoreLater);
+            int numPkgStates = pkgStates.size();
+            for (int i = 0; i < numPkgStates; i++) {
+                BackupPackageState pkgState = pkgStates.get(i);
 
-                        break;
-                    }
+                if (pkgState.mPackageName.equals(packageName)) {
+                    restoreUid(pkgInfo.applicationInfo.uid, Collections.singletonList(pkgState),
+                            Collections.singletonList(pkgInfo));
+                    break;
                 }
             }
 
-            return packagesToRestoreLater.size() > 0;
+            file.delete();
+            pkgs.remove(packageName);
+
+            return !pkgs.isEmpty();
         }
     }
 
@@ -493,34 +779,6 @@ public class BackupHelper {
             }
         }
 
-        /**
-         * Get the states of all permissions of a group to back up.
-         *
-         * @param group The group of the permissions to back up
-         *
-         * @return The state to back up. Empty list if no permissions in the group need to be backed
-         * up
-         */
-        static @NonNull ArrayList<BackupPermissionState> fromPermissionGroup(
-                @NonNull AppPermissionGroup group) {
-            ArrayList<BackupPermissionState> permissionsToRestore = new ArrayList<>();
-            List<Permission> perms = group.getPermissions();
-
-            boolean appSupportsRuntimePermissions =
-                    group.getApp().applicationInfo.targetSdkVersion >= Build.VERSION_CODES.M;
-
-            int numPerms = perms.size();
-            for (int i = 0; i < numPerms; i++) {
-                BackupPermissionState permState = fromPermission(perms.get(i),
-                        appSupportsRuntimePermissions);
-                if (permState != null) {
-                    permissionsToRestore.add(permState);
-                }
-            }
-
-            return permissionsToRestore;
-        }
-
         /**
          * Write this state as XML.
          *
@@ -662,30 +920,43 @@ public class BackupHelper {
         /**
          * Get the state of a package to back up.
          *
+         * <p>This reads the same state as {@link AppPermissions}, but only for the runtime
+         * permissions the package requests and without loading groups, labels, or icons.
+         *
          * @param context A context to use
          * @param pkgInfo The package to back up.
+         * @param permDefs The permission definitions shared between all packages of the backup
          *
          * @return The state to back up or {@code null} if no permission of the package need to be
          * backed up.
          */
-        static @Nullable BackupPackageState fromAppPermissions(@NonNull Context context,
-                @NonNull PackageInfo pkgInfo) {
-            AppPermissions appPerms = new AppPermissions(context, pkgInfo, false, null);
+        static @Nullable BackupPackageState fromSnapshot(@NonNull Context context,
+                @NonNull PackageInfo pkgInfo, @NonNull PermissionDefinitions permDefs) {
+            if (pkgInfo.requestedPermissions == null) {
+                return null;
+            }
 
-            ArrayList<BackupPermissionState> permissionsToRestore = new ArrayList<>();
-            List<AppPermissionGroup> groups = appPerms.getPermissionGroups();
+            PackagePermissionsPrefetch prefetch = new PackagePermissionsPrefetch(context, pkgInfo);
 
-            int numGroups = groups.size();
-            for (int groupNum = 0; groupNum < numGroups; groupNum++) {
-                AppPermissionGroup group = groups.get(groupNum);
+            // permission name -> permission, as they are part of the AppPermissions
+            ArrayMap<String, Permission> perms = AppPermissionGroup.createPermissions(prefetch,
+                    permDefs::getRuntimePermissionInfo, permDefs::getGroupDeclaringPackage);
 
-                permissionsToRestore.addAll(BackupPermissionState.fromPermissionGroup(group));
+            boolean appSupportsRuntimePermissions =
+                    pkgInfo.applicationInfo.targetSdkVersion >= Build.VERSION_CODES.M;
 
-                // Background permissions are in a subgroup that is not part of
-                // {@link AppPermission#getPermissionGroups}. Hence add it explicitly here.
-                if (group.getBackgroundPermissions() != null) {
-                    permissionsToRestore.addAll(BackupPermissionState.fromPermissionGroup(
-                            group.getBackgroundPermissions()));
+            ArrayList<BackupPermissionState> permissionsToRestore = new ArrayList<>();
+            int numPerms = perms.size();
+            for (int i = 0; i < numPerms; i++) {
+                Permission perm = perms.valueAt(i);
+                if (!AppPermissionGroup.isRestrictionSatisfied(prefetch, perm)) {
+                    continue;
+                }
+
+                BackupPermissionState permState = BackupPermissionState.fromPermission(perm,
+                        appSupportsRuntimePermissions);
+                if (permState != null) {
+                    permissionsToRestore.add(permState);
                 }
             }
 
@@ -722,8 +993,11 @@ public class BackupHelper {
          *
          * @param context A context to use
          * @param pkgInfo The package to restore.
+         *
+         * @return {@code true} iff the app needs to be killed because of app ops changes. The
+         * app is not killed by this method.
          */
-        void restore(@NonNull Context context, @NonNull PackageInfo pkgInfo) {
+        boolean restore(@NonNull Context context, @NonNull PackageInfo pkgInfo) {
             AppPermissions appPerms = new AppPermissions(context, pkgInfo, false, true, null);
 
             // Restore background permissions after foreground permissions as for pre-M apps bg
@@ -754,7 +1028,101 @@ public class BackupHelper {
                 }
             }
 
-            appPerms.persistChanges(true);
+            return appPerms.persistChanges(false);
+        }
+    }
+
+    /**
+     * The definitions of the permissions requested by the packages of a backup.
+     *
+     * <p>Each definition is only read once from the system, no matter how many packages request
+     * the permission. Safe to use from multiple threads.
+     */
+    private static class PermissionDefinitions {
+        private final @NonNull PackageManager mPm;
+
+        /** permission name -> info, {@code null} if not a runtime permission */
+        @GuardedBy("mRuntimePermInfos")
+        private final ArrayMap<String, PermissionInfo> mRuntimePermInfos = new ArrayMap<>();
+
+        /** group name -> package declaring the group, {@code null} if the group is unknown */
+        @GuardedBy("mGroupDeclaringPkgs")
+        private final ArrayMap<String, String> mGroupDeclaringPkgs = new ArrayMap<>();
+
+        PermissionDefinitions(@NonNull PackageManager pm) {
+            mPm = pm;
+        }
+
+        /**
+         * Get the info of a permission if it is an installed runtime permission.
+         *
+         * @param permName The name of the permission
+         *
+         * @return The info or {@code null} if the permission is not an installed runtime
+         * permission
+         */
+        @Nullable PermissionInfo getRuntimePermissionInfo(@NonNull String permName) {
+            synchronized (mRuntimePermInfos) {
+                if (mRuntimePermInfos.containsKey(permName)) {
+                    return mRuntimePermInfos.get(permName);
+                }
+            }
+
+            PermissionInfo permInfo;
+            try {
+                permInfo = mPm.getPermissionInfo(permName, 0);
+
+                if ((permInfo.protectionLevel & PermissionInfo.PROTECTION_MASK_BASE)
+                        != PermissionInfo.PROTECTION_DANGEROUS
+                        || (permInfo.flags & PermissionInfo.FLAG_INSTALLED) == 0
+                        || (permInfo.flags & PermissionInfo.FLAG_REMOVED) != 0) {
+                    permInfo = null;
+                }
+            } catch (PackageManager.NameNotFoundException e) {
+                permInfo = null;
+            }
+
+            synchronized (mRuntimePermInfos) {
+                mRuntimePermInfos.put(permName, permInfo);
+            }
+
+            return permInfo;
+        }
+
+        /**
+         * Get the package declaring the group of a permission.
+         *
+         * @param permInfo The permission
+         *
+         * @return The package declaring the group or the permission if the permission has no
+         * (known) group
+         */
+        @NonNull String getGroupDeclaringPackage(@NonNull PermissionInfo permInfo) {
+            String groupName = Utils.getGroupOfPermission(permInfo);
+            if (groupName == null) {
+                return permInfo.packageName;
+            }
+
+            String declaringPkg;
+            boolean isCached;
+            synchronized (mGroupDeclaringPkgs) {
+                isCached = mGroupDeclaringPkgs.containsKey(groupName);
+                declaringPkg = mGroupDeclaringPkgs.get(groupName);
+            }
+
+            if (!isCached) {
+                try {
+                    declaringPkg = mPm.getPermissionGroupInfo(groupName, 0).packageName;
+                } catch (PackageManager.NameNotFoundException e) {
+                    declaringPkg = null;
+                }
+
+                synchronized (mGroupDeclaringPkgs) {
+                    mGroupDeclaringPkgs.put(groupName, declaringPkg);
+                }
+            }
+
+            return declaringPkg == null ? permInfo.packageName : declaringPkg;
         }
     }
 }
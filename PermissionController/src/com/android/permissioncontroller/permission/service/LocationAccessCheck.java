@@ -16,6 +16,7 @@
 
 package com.android.permissioncontroller.permission.service;
 
+import static android.Manifest.permission.ACCESS_BACKGROUND_LOCATION;
 import static android.Manifest.permission.ACCESS_FINE_LOCATION;
 import static android.Manifest.permission_group.LOCATION;
 import static android.app.AppOpsManager.OPSTR_FINE_LOCATION;
@@ -25,6 +26,7 @@ import static android.app.PendingIntent.FLAG_ONE_SHOT;
 import static android.app.PendingIntent.FLAG_UPDATE_CURRENT;
 import static android.app.PendingIntent.getBroadcast;
 import static android.app.job.JobScheduler.RESULT_SUCCESS;
+import static android.content.Context.MODE_APPEND;
 import static android.content.Context.MODE_PRIVATE;
 import static android.content.Intent.ACTION_MANAGE_APP_PERMISSION;
 import static android.content.Intent.EXTRA_PACKAGE_NAME;
@@ -35,6 +37,7 @@ import static android.content.Intent.FLAG_ACTIVITY_MULTIPLE_TASK;
 import static android.content.Intent.FLAG_ACTIVITY_NEW_TASK;
 import static android.content.Intent.FLAG_RECEIVER_FOREGROUND;
 import static android.content.pm.PackageManager.GET_PERMISSIONS;
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 import static android.graphics.Bitmap.Config.ARGB_8888;
 import static android.graphics.Bitmap.createBitmap;
 import static android.os.UserHandle.getUserHandleForUid;
@@ -140,6 +143,13 @@ public class LocationAccessCheck {
     /** Lock required for all methods called {@code ...Locked} */
     private static final Object sLock = new Object();
 
+    /**
+     * In-memory copy of {@link #LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE}, {@code null} until
+     * first read.
+     */
+    // @GuardedBy("sLock")
+    private static @Nullable ArraySet<UserPackage> sAlreadyNotifiedPackages;
+
     private final Random mRandom = new Random();
 
     private final @NonNull Context mContext;
@@ -199,6 +209,23 @@ public class LocationAccessCheck {
         return getPeriodicCheckIntervalMillis() - (long) (getFlexForPeriodicCheckMillis() * 2.1);
     }
 
+    /**
+     * Get the list of {@link UserPackage packages} we already shown a notification for.
+     *
+     * <p>The file is only read once per process, afterwards the in-memory copy is returned. The
+     * returned set is owned by this class and must only be modified via
+     * {@link #markAsNotified} or {@link #safeAlreadyNotifiedPackagesLocked}.
+     *
+     * @return The list of packages we already shown a notification for.
+     */
+    private @NonNull ArraySet<UserPackage> getAlreadyNotifiedPackagesLocked() {
+        if (sAlreadyNotifiedPackages == null) {
+            sAlreadyNotifiedPackages = loadAlreadyNotifiedPackagesLocked();
+        }
+
+        return sAlreadyNotifiedPackages;
+    }
+
     /**
      * Load the list of {@link UserPackage packages} we already shown a notification for.
      *
@@ -246,34 +273,64 @@ public class LocationAccessCheck {
     /**
      * Safe the list of {@link UserPackage packages} we have already shown a notification for.
      *
+     * <p>This replaces the in-memory copy and rewrites the whole file. Use
+     * {@link #appendAlreadyNotifiedPackageLocked} when only adding a single package.
+     *
      * @param packages The list of packages we already shown a notification for.
      */
     private void safeAlreadyNotifiedPackagesLocked(@NonNull ArraySet<UserPackage> packages) {
+        sAlreadyNotifiedPackages = packages;
+
         try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
                 mContext.openFileOutput(LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE,
                         MODE_PRIVATE)))) {
-            /*
-             * The format of the file is <package> <serial of user>, e.g.
-             *
-             * com.one.package 5630633845
-             * com.two.package 5630633853
-             * com.three.package 5630633853
-             */
             int numPkgs = packages.size();
             for (int i = 0; i < numPkgs; i++) {
-                UserPackage userPkg = packages.valueAt(i);
-
-                writer.append(userPkg.pkg);
-                writer.append(' ');
-                writer.append(
-                        Long.valueOf(mUserManager.getSerialNumberForUser(userPkg.user)).toString());
-                writer.newLine();
+                writeAlreadyNotifiedPackage(writer, packages.valueAt(i));
             }
         } catch (IOException e) {
             Log.e(LOG_TAG, "Could not write " + LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE, e);
         }
     }
 
+    /**
+     * Append a single {@link UserPackage package} to the file of packages we have already shown a
+     * notification for.
+     *
+     * @param userPkg The package we notified for
+     */
+    private void appendAlreadyNotifiedPackageLocked(@NonNull UserPackage userPkg) {
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                mContext.openFileOutput(LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE,
+                        MODE_PRIVATE | MODE_APPEND)))) {
+            writeAlreadyNotifiedPackage(writer, userPkg);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not append to " + LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE,
+                    e);
+        }
+    }
+
+    /**
+     * Write a single line of {@link #LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE}.
+     *
+     * @param writer The writer to write to
+     * @param userPkg The package to write
+     */
+    private void writeAlreadyNotifiedPackage(@NonNull BufferedWriter writer,
+            @NonNull UserPackage userPkg) throws IOException {
+        /*
+         * The format of the file is <package> <serial of user>, e.g.
+         *
+         * com.one.package 5630633845
+         * com.two.package 5630633853
+         * com.three.package 5630633853
+         */
+        writer.append(userPkg.pkg);
+        writer.append(' ');
+        writer.append(Long.valueOf(mUserManager.getSerialNumberForUser(userPkg.user)).toString());
+        writer.newLine();
+    }
+
     /**
      * Remember that we showed a notification for a {@link UserPackage}
      *
@@ -282,9 +339,10 @@ public class LocationAccessCheck {
      */
     private void markAsNotified(@NonNull String pkg, @NonNull UserHandle user) {
         synchronized (sLock) {
-            ArraySet<UserPackage> alreadyNotifiedPackages = loadAlreadyNotifiedPackagesLocked();
-            alreadyNotifiedPackages.add(new UserPackage(mContext, pkg, user));
-            safeAlreadyNotifiedPackagesLocked(alreadyNotifiedPackages);
+            UserPackage userPkg = new UserPackage(mContext, pkg, user);
+            if (getAlreadyNotifiedPackagesLocked().add(userPkg)) {
+                appendAlreadyNotifiedPackageLocked(userPkg);
+            }
         }
     }
 
@@ -436,6 +494,23 @@ public class LocationAccessCheck {
 
         LocationManager lm = mContext.getSystemService(LocationManager.class);
 
+        ArraySet<UserPackage> alreadyNotifiedPkgs = getAlreadyNotifiedPackagesLocked();
+        resetAlreadyNotifiedPackagesWithoutPermissionLocked(alreadyNotifiedPkgs);
+        alreadyNotifiedPkgs = getAlreadyNotifiedPackagesLocked();
+
+        // We show only bg accesses since the location access check feature was enabled
+        // to handle cases where the feature is remotely toggled since we don't want to
+        // notify for accesses before the feature was turned on.
+        long featureEnabledTime = getLocationAccessCheckEnabledTime();
+        if (featureEnabledTime < 0) {
+            return pkgsWithLocationAccess;
+        }
+
+        // First only look at the app-ops as this does not require any further IPCs. Only the
+        // packages that accessed the location in the background are then checked for their
+        // permission state.
+        List<UserPackage> candidates = new ArrayList<>();
+
         int numPkgs = allOps.size();
         for (int pkgNum = 0; pkgNum < numPkgs; pkgNum++) {
             PackageOps packageOps = allOps.get(pkgNum);
@@ -451,7 +526,26 @@ public class LocationAccessCheck {
                 continue;
             }
 
+            if (!hasTrustedBackgroundAccessSince(packageOps, featureEnabledTime, lm)) {
+                continue;
+            }
+
             UserPackage userPkg = new UserPackage(mContext, pkg, user);
+            if (!alreadyNotifiedPkgs.contains(userPkg)) {
+                candidates.add(userPkg);
+            }
+        }
+
+        int numCandidates = candidates.size();
+        for (int candidateNum = 0; candidateNum < numCandidates; candidateNum++) {
+            throwInterruptedExceptionIfTaskIsCanceled();
+
+            UserPackage userPkg = candidates.get(candidateNum);
+
+            // Cheap pre-check before resolving the full permission groups
+            if (!userPkg.isBackgroundLocationPermissionGranted()) {
+                continue;
+            }
 
             AppPermissionGroup bgLocationGroup = userPkg.getBackgroundLocationGroup();
             // Do not show notification that do not request the background permission anymore
@@ -478,41 +572,49 @@ public class LocationAccessCheck {
                 continue;
             }
 
-            int numOps = packageOps.getOps().size();
-            for (int opNum = 0; opNum < numOps; opNum++) {
-                OpEntry entry = packageOps.getOps().get(opNum);
-
-                // To protect against OEM apps that accidentally blame app ops on other packages
-                // since they can hold the privileged UPDATE_APP_OPS_STATS permission for location
-                // access in the background we trust only the OS and the location providers. Note
-                // that this mitigation only handles usage of AppOpsManager#noteProxyOp and not
-                // direct usage of AppOpsManager#noteOp, i.e. handles bad blaming and not bad
-                // attribution.
-                String proxyPackageName = entry.getProxyPackageName();
-                if (proxyPackageName != null && !proxyPackageName.equals(OS_PKG)
-                        && !lm.isProviderPackage(proxyPackageName)) {
-                    continue;
-                }
-
-                // We show only bg accesses since the location access check feature was enabled
-                // to handle cases where the feature is remotely toggled since we don't want to
-                // notify for accesses before the feature was turned on.
-                long featureEnabledTime = getLocationAccessCheckEnabledTime();
-                if (featureEnabledTime >= 0 && entry.getLastAccessBackgroundTime(
-                        AppOpsManager.OP_FLAGS_ALL_TRUSTED) >= featureEnabledTime) {
-                    pkgsWithLocationAccess.add(userPkg);
-                    break;
-                }
-            }
+            pkgsWithLocationAccess.add(userPkg);
         }
 
-        ArraySet<UserPackage> alreadyNotifiedPkgs = loadAlreadyNotifiedPackagesLocked();
-        throwInterruptedExceptionIfTaskIsCanceled();
+        return pkgsWithLocationAccess;
+    }
 
-        resetAlreadyNotifiedPackagesWithoutPermissionLocked(alreadyNotifiedPkgs);
+    /**
+     * Check if a package accessed the location in the background since a certain time, only
+     * counting accesses that were blamed on the package by trusted sources.
+     *
+     * @param packageOps The location ops of the package
+     * @param sinceTime The earliest access time to consider
+     * @param lm The location manager used to identify location providers
+     *
+     * @return {@code true} iff there is a trusted background access since {@code sinceTime}
+     */
+    private static boolean hasTrustedBackgroundAccessSince(@NonNull PackageOps packageOps,
+            long sinceTime, @NonNull LocationManager lm) {
+        List<OpEntry> ops = packageOps.getOps();
+
+        int numOps = ops.size();
+        for (int opNum = 0; opNum < numOps; opNum++) {
+            OpEntry entry = ops.get(opNum);
+
+            // To protect against OEM apps that accidentally blame app ops on other packages
+            // since they can hold the privileged UPDATE_APP_OPS_STATS permission for location
+            // access in the background we trust only the OS and the location providers. Note
+            // that this mitigation only handles usage of AppOpsManager#noteProxyOp and not
+            // direct usage of AppOpsManager#noteOp, i.e. handles bad blaming and not bad
+            // attribution.
+            String proxyPackageName = entry.getProxyPackageName();
+            if (proxyPackageName != null && !proxyPackageName.equals(OS_PKG)
+                    && !lm.isProviderPackage(proxyPackageName)) {
+                continue;
+            }
 
-        pkgsWithLocationAccess.removeAll(alreadyNotifiedPkgs);
-        return pkgsWithLocationAccess;
+            if (entry.getLastAccessBackgroundTime(AppOpsManager.OP_FLAGS_ALL_TRUSTED)
+                    >= sinceTime) {
+                return true;
+            }
+        }
+
+        return false;
     }
 
     /**
@@ -665,8 +767,8 @@ public class LocationAccessCheck {
      * Go through the list of packages we already shown a notification for and remove those that do
      * not request fine background location access.
      *
-     * @param alreadyNotifiedPkgs The packages we already shown a notification for. This paramter is
-     *                            modified inside of this method.
+     * @param alreadyNotifiedPkgs The packages we already shown a notification for. This parameter
+     *                            is not modified, the in-memory copy is replaced instead.
      *
      * @throws InterruptedException If {@link #mShouldCancel}
      */
@@ -684,8 +786,9 @@ public class LocationAccessCheck {
         }
 
         if (!packagesToRemove.isEmpty()) {
-            alreadyNotifiedPkgs.removeAll(packagesToRemove);
-            safeAlreadyNotifiedPackagesLocked(alreadyNotifiedPkgs);
+            ArraySet<UserPackage> remainingPkgs = new ArraySet<>(alreadyNotifiedPkgs);
+            remainingPkgs.removeAll(packagesToRemove);
+            safeAlreadyNotifiedPackagesLocked(remainingPkgs);
             throwInterruptedExceptionIfTaskIsCanceled();
         }
     }
@@ -705,9 +808,13 @@ public class LocationAccessCheck {
                         pkg, LOCATION_ACCESS_CHECK_NOTIFICATION_ID);
             }
 
-            ArraySet<UserPackage> packages = loadAlreadyNotifiedPackagesLocked();
-            packages.remove(new UserPackage(mContext, pkg, user));
-            safeAlreadyNotifiedPackagesLocked(packages);
+            UserPackage userPkg = new UserPackage(mContext, pkg, user);
+            ArraySet<UserPackage> packages = getAlreadyNotifiedPackagesLocked();
+            if (packages.contains(userPkg)) {
+                packages = new ArraySet<>(packages);
+                packages.remove(userPkg);
+                safeAlreadyNotifiedPackagesLocked(packages);
+            }
         }
     }
 
@@ -978,6 +1085,19 @@ public class LocationAccessCheck {
             return mContext.getPackageManager().getPackageInfo(pkg, GET_PERMISSIONS);
         }
 
+        /**
+         * Check if {@link android.Manifest.permission#ACCESS_BACKGROUND_LOCATION} is granted to
+         * this user package. This is a single call and does not consider the app-op, hence it
+         * can only be used to rule out packages before resolving the
+         * {@link #getBackgroundLocationGroup() full group}.
+         *
+         * @return {@code true} iff the permission is granted
+         */
+        boolean isBackgroundLocationPermissionGranted() {
+            return mContext.getPackageManager().checkPermission(ACCESS_BACKGROUND_LOCATION, pkg)
+                    == PERMISSION_GRANTED;
+        }
+
         /**
          * Get the {@link AppPermissionGroup} for
          * {@link android.Manifest.permission#ACCESS_FINE_LOCATION} and this user package.
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.service
+
+import android.app.Application
+import android.content.pm.PackageManager
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.os.UserHandle
+import android.permission.PermissionControllerManager.COUNT_ONLY_WHEN_GRANTED
+import android.permission.PermissionControllerManager.COUNT_WHEN_SYSTEM
+import com.android.permissioncontroller.permission.data.AppPermGroupUiInfoLiveData
+import com.android.permissioncontroller.permission.data.PackageBroadcastReceiver
+import com.android.permissioncontroller.permission.data.PackageEvent
+import com.android.permissioncontroller.permission.data.PackageEventFilter
+import com.android.permissioncontroller.permission.data.PermGroupLiveData
+import com.android.permissioncontroller.permission.data.PermStateLiveData
+import com.android.permissioncontroller.permission.data.PermissionListenerMultiplexer
+import com.android.permissioncontroller.permission.model.livedatatypes.AppPermGroupUiInfo.PermGrantState
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.PermGroup
+import com.android.permissioncontroller.permission.utils.IPC
+import com.android.permissioncontroller.permission.utils.Utils
+import kotlinx.coroutines.Dispatchers.Main
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.withContext
+
+/**
+ * Counts the apps that have at least one of a list of permissions, see
+ * [PermissionControllerServiceModel.onCountPermissionAppsLiveData].
+ *
+ * The state of all packages is computed in one pass from the already loaded packages and the
+ * permission flags, without creating a [AppPermGroupUiInfoLiveData] per package and group. There
+ * is no call to read the flags of many permissions at once, hence they are only read for groups
+ * that are shown and only if they can change the result.
+ *
+ * Settings asks for the count of every permission it shows, hence results are cached for a short
+ * time. The cache is dropped whenever a permission changes or a package that might define
+ * permissions is installed, updated or removed. These changes are received via the shared
+ * [PermissionListenerMultiplexer] and [PackageBroadcastReceiver]. The listeners are added before
+ * the first count is loaded and removed once nothing is cached or loading anymore.
+ *
+ * The cache and the listeners are only accessed on the main thread.
+ */
+object PermissionAppsCounter : PermissionListenerMultiplexer.PermissionChangeBatchCallback,
+    PackageBroadcastReceiver.PackageEventListener {
+
+    /** How long a count is reused */
+    private const val CACHE_TIMEOUT_MILLIS = 5000L
+
+    /** Package events that can change the definition of permissions and groups */
+    private val packageEventFilter = PackageEventFilter(kinds = PackageEventFilter.MANIFEST_KINDS)
+
+    private val handler = Handler(Looper.getMainLooper())
+
+    /** (permission names, flags, user, identity of the packages) -> count */
+    private val cache = mutableMapOf<CacheKey, CachedCount>()
+
+    /** Incremented whenever the packages or their permissions change */
+    private var version = 0
+
+    /** Number of counts currently loading */
+    private var pendingLoads = 0
+
+    private var isListening = false
+
+    /**
+     * Count the apps that have at least one of a list of permissions.
+     *
+     * @param app The current application
+     * @param permissionNames The list of permission names whose apps we want to count
+     * @param flags Flags specifying if we want to count system apps, and count only granted apps
+     * @param packageInfos The packages of the user
+     * @param user The user of the packages
+     *
+     * @return The number of apps
+     */
+    suspend fun countPermissionApps(
+        app: Application,
+        permissionNames: List<String>,
+        flags: Int,
+        packageInfos: List<LightPackageInfo>,
+        user: UserHandle
+    ): Int {
+        // The packages might have been loaded before the last change, hence they are part of the
+        // key. A reloaded list is a new instance, hence comparing the lists by identity is enough
+        // and avoids hashing and comparing all packages on every call.
+        val key = CacheKey(permissionNames.toSet(), flags, user, PackagesIdentity(packageInfos))
+
+        var startVersion = 0
+        val cachedCount = withContext(Main.immediate) {
+            val cachedCount = cache[key]
+            if (cachedCount != null &&
+                SystemClock.elapsedRealtime() - cachedCount.timeMillis < CACHE_TIMEOUT_MILLIS) {
+                return@withContext cachedCount.count
+            }
+
+            // Listen before loading, so that changes while loading are noticed
+            pendingLoads++
+            startListening()
+            startVersion = version
+            null
+        }
+        if (cachedCount != null) {
+            return cachedCount
+        }
+
+        var count: Int? = null
+        try {
+            count = withContext(IPC) {
+                loadCount(app, key.permissionNames, flags, packageInfos, user)
+            }
+        } finally {
+            withContext(NonCancellable + Main.immediate) {
+                pendingLoads--
+
+                // Do not cache a result that might already be outdated
+                if (count != null && version == startVersion) {
+                    cache[key] = CachedCount(count!!, SystemClock.elapsedRealtime())
+                    handler.postDelayed(::removeExpiredCounts, CACHE_TIMEOUT_MILLIS)
+                }
+
+                stopListeningIfUnused()
+            }
+        }
+
+        return count!!
+    }
+
+    private suspend fun loadCount(
+        app: Application,
+        permissionNames: Set<String>,
+        flags: Int,
+        packageInfos: List<LightPackageInfo>,
+        user: UserHandle
+    ): Int {
+        val countSystem = flags and COUNT_WHEN_SYSTEM != 0
+        val countOnlyGranted = flags and COUNT_ONLY_WHEN_GRANTED != 0
+        val userContext = Utils.getUserContext(app, user)
+
+        // Store the group of all installed, runtime permissions in permissionNames
+        val permToGroup = mutableMapOf<String, String>()
+        for (permName in permissionNames) {
+            val permInfo = try {
+                app.packageManager.getPermissionInfo(permName, 0)
+            } catch (e: PackageManager.NameNotFoundException) {
+                continue
+            }
+
+            if (Utils.isPermissionDangerousInstalledNotRemoved(permInfo)) {
+                Utils.getGroupOfPermission(permInfo)?.let { permToGroup[permName] = it }
+            }
+        }
+
+        if (permToGroup.isEmpty()) {
+            return 0
+        }
+
+        // Each group is loaded once, not once per package
+        val permGroups = mutableMapOf<String, PermGroup>()
+        for (groupName in permToGroup.values.toSet()) {
+            PermGroupLiveData.loadPermGroup(app, groupName)?.let { permGroups[groupName] = it }
+        }
+
+        return coroutineScope {
+            packageInfos.map { packageInfo ->
+                async {
+                    val groupNames = mutableSetOf<String>()
+                    for (permName in packageInfo.requestedPermissions) {
+                        permToGroup[permName]?.let { groupNames.add(it) }
+                    }
+
+                    for (groupName in groupNames) {
+                        val permGroup = permGroups[groupName] ?: continue
+                        if (!AppPermGroupUiInfoLiveData.shouldShow(packageInfo, permGroup)) {
+                            continue
+                        }
+
+                        // The flags can only hide system apps or change the grant state
+                        if (countSystem && !countOnlyGranted) {
+                            return@async true
+                        }
+
+                        val permStates = PermStateLiveData.getPermStates(userContext,
+                            packageInfo, permGroup, user)!!
+                        val uiInfo = AppPermGroupUiInfoLiveData.getAppPermGroupUiInfo(app,
+                            packageInfo, permGroup, permStates, user)
+
+                        if (uiInfo.isSystem && !countSystem) {
+                            continue
+                        }
+
+                        // The permission might not be granted, but some permissions of the
+                        // group are granted. In this case the permission is granted silently
+                        // when the app asks for it.
+                        // Hence this is as-good-as-granted and we count it.
+                        val granted = uiInfo.permGrantState != PermGrantState.PERMS_DENIED &&
+                            uiInfo.permGrantState != PermGrantState.PERMS_ASK
+                        if (granted || !countOnlyGranted) {
+                            return@async true
+                        }
+                    }
+
+                    false
+                }
+            }.awaitAll().count { it }
+        }
+    }
+
+    private fun startListening() {
+        if (isListening) {
+            return
+        }
+
+        PermissionListenerMultiplexer.addBatchCallback(this)
+        PackageBroadcastReceiver.addEventCallback(packageEventFilter, this)
+        isListening = true
+    }
+
+    private fun stopListeningIfUnused() {
+        if (!isListening || cache.isNotEmpty() || pendingLoads > 0) {
+            return
+        }
+
+        PermissionListenerMultiplexer.removeBatchCallback(this)
+        PackageBroadcastReceiver.removeEventCallback(this)
+        isListening = false
+    }
+
+    private fun removeExpiredCounts() {
+        val now = SystemClock.elapsedRealtime()
+        cache.values.removeAll { now - it.timeMillis >= CACHE_TIMEOUT_MILLIS }
+
+        stopListeningIfUnused()
+    }
+
+    private fun invalidate() {
+        version++
+        cache.clear()
+
+        // Loads in progress still need to notice further changes
+        stopListeningIfUnused()
+    }
+
+    override fun onPermissionsChanged(uids: Set<Int>) {
+        invalidate()
+    }
+
+    override fun onPackageEvents(events: List<PackageEvent>) {
+        invalidate()
+    }
+
+    private data class CacheKey(
+        val permissionNames: Set<String>,
+        val flags: Int,
+        val user: UserHandle,
+        val packages: PackagesIdentity
+    )
+
+    /**
+     * A list of packages that is equal only to the same list instance
+     */
+    private class PackagesIdentity(val packageInfos: List<LightPackageInfo>) {
+        override fun equals(other: Any?): Boolean {
+            return other is PackagesIdentity && other.packageInfos === packageInfos
+        }
+
+        override fun hashCode(): Int {
+            return System.identityHashCode(packageInfos)
+        }
+    }
+
+    private class CachedCount(val count: Int, val timeMillis: Long)
+}
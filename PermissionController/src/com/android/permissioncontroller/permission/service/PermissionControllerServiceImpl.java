@@ -28,6 +28,7 @@ import static com.android.permissioncontroller.PermissionControllerStatsLog.PERM
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import android.app.ActivityManager;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -44,13 +45,16 @@ import android.permission.RuntimePermissionUsageInfo;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.Xml;
 
+import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.android.permissioncontroller.PermissionControllerProto.PermissionControllerDumpProto;
 import com.android.permissioncontroller.PermissionControllerStatsLog;
+import com.android.permissioncontroller.permission.data.BinderTransactionCounter;
 import com.android.permissioncontroller.permission.model.AppPermissionGroup;
 import com.android.permissioncontroller.permission.model.AppPermissions;
 import com.android.permissioncontroller.permission.model.Permission;
@@ -76,6 +80,7 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -101,6 +106,15 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
     private static final int MAX_RETRY_ATTEMPTS = 3;
     private static final long RETRY_DELAY_MS = 500;
 
+    /** Dump arguments to turn counting the binder transactions of LiveData loads on and off */
+    private static final String DUMP_ARG_ENABLE_IPC_STATS = "--enable-ipc-stats";
+    private static final String DUMP_ARG_DISABLE_IPC_STATS = "--disable-ipc-stats";
+
+    /** target SDK -> split permission -> new permissions, see {@link #getSplitPermissions} */
+    @GuardedBy("mSplitPermissionsByTargetSdk")
+    private final SparseArray<ArrayMap<String, ArrayList<String>>> mSplitPermissionsByTargetSdk =
+            new SparseArray<>();
+
 
     private final PermissionControllerServiceModel mServiceModel = new
             PermissionControllerServiceModel(this);
@@ -113,6 +127,12 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
 
     @Override
     public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (ArrayUtils.contains(args, DUMP_ARG_ENABLE_IPC_STATS)) {
+            BinderTransactionCounter.INSTANCE.setEnabled(true);
+        } else if (ArrayUtils.contains(args, DUMP_ARG_DISABLE_IPC_STATS)) {
+            BinderTransactionCounter.INSTANCE.setEnabled(false);
+        }
+
         PermissionControllerDumpProto dump;
         try {
             dump = BuildersKt.runBlocking(
@@ -145,27 +165,59 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
      */
     private @NonNull ArrayList<String> addSplitPermissions(@NonNull List<String> perms,
             int targetSDK) {
-        List<PermissionManager.SplitPermissionInfo> splitPerms =
-                getSystemService(PermissionManager.class).getSplitPermissions();
+        ArrayMap<String, ArrayList<String>> splitPerms = getSplitPermissions(targetSDK);
 
         // Add split permissions to the request
         ArrayList<String> expandedPerms = new ArrayList<>(perms);
         int numReqPerms = perms.size();
         for (int reqPermNum = 0; reqPermNum < numReqPerms; reqPermNum++) {
-            String reqPerm = perms.get(reqPermNum);
+            ArrayList<String> newPerms = splitPerms.get(perms.get(reqPermNum));
 
+            if (newPerms != null) {
+                expandedPerms.addAll(newPerms);
+            }
+        }
+
+        return expandedPerms;
+    }
+
+    /**
+     * Get the permissions that were split for an app with the given targetSDK.
+     *
+     * @param targetSDK The target SDK
+     *
+     * @return map of split permission to the permissions it was split into
+     */
+    private @NonNull ArrayMap<String, ArrayList<String>> getSplitPermissions(int targetSDK) {
+        synchronized (mSplitPermissionsByTargetSdk) {
+            ArrayMap<String, ArrayList<String>> splitPermsForTargetSdk =
+                    mSplitPermissionsByTargetSdk.get(targetSDK);
+            if (splitPermsForTargetSdk != null) {
+                return splitPermsForTargetSdk;
+            }
+
+            List<PermissionManager.SplitPermissionInfo> splitPerms =
+                    getSystemService(PermissionManager.class).getSplitPermissions();
+
+            splitPermsForTargetSdk = new ArrayMap<>();
             int numSplitPerms = splitPerms.size();
             for (int splitPermNum = 0; splitPermNum < numSplitPerms; splitPermNum++) {
                 PermissionManager.SplitPermissionInfo splitPerm = splitPerms.get(splitPermNum);
 
-                if (targetSDK < splitPerm.getTargetSdk()
-                        && splitPerm.getSplitPermission().equals(reqPerm)) {
-                    expandedPerms.addAll(splitPerm.getNewPermissions());
+                if (targetSDK < splitPerm.getTargetSdk()) {
+                    ArrayList<String> newPerms = splitPermsForTargetSdk.get(
+                            splitPerm.getSplitPermission());
+                    if (newPerms == null) {
+                        newPerms = new ArrayList<>();
+                        splitPermsForTargetSdk.put(splitPerm.getSplitPermission(), newPerms);
+                    }
+                    newPerms.addAll(splitPerm.getNewPermissions());
                 }
             }
-        }
 
-        return expandedPerms;
+            mSplitPermissionsByTargetSdk.put(targetSDK, splitPermsForTargetSdk);
+            return splitPermsForTargetSdk;
+        }
     }
 
     /**
@@ -293,31 +345,48 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
         }
         int callerTargetSdk = callerPkgInfo.applicationInfo.targetSdkVersion;
 
-        Map<String, List<String>> actuallyRevokedPerms = new ArrayMap<>();
-        ArrayList<AppPermissions> appsWithRevokedPerms = new ArrayList<>();
-
+        // Permissions are per UID. Hence permissions will be removed from all apps sharing an
+        // UID. Collect the permissions to revoke per UID first, so that each UID is only handled
+        // once, even if several of its packages are requested.
+        SparseArray<ArraySet<String>> permsToRevokeByUid = new SparseArray<>();
         for (Map.Entry<String, List<String>> appRequest : request.entrySet()) {
-            PackageInfo requestedPkgInfo = getPkgInfo(appRequest.getKey());
-            if (requestedPkgInfo == null) {
+            int uid;
+            try {
+                uid = pm.getPackageUid(appRequest.getKey(), 0);
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.w(LOG_TAG, appRequest.getKey() + " not found", e);
                 continue;
             }
 
-            // Permissions are per UID. Hence permissions will be removed from all apps sharing an
-            // UID.
-            String[] pkgNames = pm.getPackagesForUid(requestedPkgInfo.applicationInfo.uid);
+            ArraySet<String> permsToRevoke = permsToRevokeByUid.get(uid);
+            if (permsToRevoke == null) {
+                permsToRevoke = new ArraySet<>();
+                permsToRevokeByUid.put(uid, permsToRevoke);
+            }
+
+            // In rare cases the caller does not know about the permissions that have been added
+            // due to splits. Hence add them now.
+            permsToRevoke.addAll(addSplitPermissions(appRequest.getValue(), callerTargetSdk));
+        }
+
+        Map<String, List<String>> actuallyRevokedPerms = new ArrayMap<>();
+
+        int numUids = permsToRevokeByUid.size();
+        for (int uidNum = 0; uidNum < numUids; uidNum++) {
+            int uid = permsToRevokeByUid.keyAt(uidNum);
+            ArrayList<String> permsToRevoke = new ArrayList<>(permsToRevokeByUid.valueAt(uidNum));
+
+            String[] pkgNames = pm.getPackagesForUid(uid);
             if (pkgNames == null) {
                 continue;
             }
 
+            ArrayList<PackageInfo> pkgInfos = new ArrayList<>();
+
             int numPkgNames = pkgNames.length;
             for (int pkgNum = 0; pkgNum < numPkgNames; pkgNum++) {
                 String pkgName = pkgNames[pkgNum];
 
-                PackageInfo pkgInfo = getPkgInfo(pkgName);
-                if (pkgInfo == null) {
-                    continue;
-                }
-
                 // If the revocation is because of a market policy violation only the installer can
                 // revoke the permissions.
                 if (reason == REASON_INSTALLER_POLICY_VIOLATION
@@ -327,10 +396,35 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
                     continue;
                 }
 
-                // In rare cases the caller does not know about the permissions that have been added
-                // due to splits. Hence add them now.
-                ArrayList<String> expandedPerms = addSplitPermissions(appRequest.getValue(),
-                        callerTargetSdk);
+                PackageInfo pkgInfo = getPkgInfo(pkgName);
+                if (pkgInfo != null && pkgInfo.requestedPermissions != null) {
+                    pkgInfos.add(pkgInfo);
+                }
+            }
+
+            // The package manager only changes permissions a package requested itself, hence the
+            // state cannot be loaded for the UID as a whole. But as permissions are per UID, the
+            // state only has to be loaded for the packages that request permissions none of the
+            // already loaded packages requested. Most packages of a shared UID request a subset of
+            // the permissions of another package, hence start with the ones requesting the most.
+            pkgInfos.sort((a, b) -> b.requestedPermissions.length
+                    - a.requestedPermissions.length);
+
+            ArrayList<AppPermissions> appsWithRevokedPerms = new ArrayList<>();
+            ArraySet<String> loadedPerms = new ArraySet<>();
+            ArraySet<String> revokedUidPerms = new ArraySet<>();
+            ArrayList<PackageInfo> notLoadedPkgInfos = new ArrayList<>();
+
+            int numPkgInfos = pkgInfos.size();
+            for (int pkgNum = 0; pkgNum < numPkgInfos; pkgNum++) {
+                PackageInfo pkgInfo = pkgInfos.get(pkgNum);
+                List<String> requestedPerms = Arrays.asList(pkgInfo.requestedPermissions);
+
+                if (loadedPerms.containsAll(requestedPerms)) {
+                    notLoadedPkgInfos.add(pkgInfo);
+                    continue;
+                }
+                loadedPerms.addAll(requestedPerms);
 
                 AppPermissions appPerms = new AppPermissions(this, pkgInfo, false, true, null);
 
@@ -338,23 +432,48 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
                 // these groups. This is needed as soon as a single permission in the group is
                 // granted, all other permissions get auto-granted on request.
                 ArrayList<AppPermissionGroup> groupsToRevoke = getRevocableGroupsForPermissions(
-                        expandedPerms, appPerms);
+                        permsToRevoke, appPerms);
                 ArrayList<String> revokedPerms = revokePermissionGroups(groupsToRevoke);
 
                 // In racy conditions the group might not have had granted permissions anymore
                 if (!revokedPerms.isEmpty()) {
-                    actuallyRevokedPerms.put(pkgName, revokedPerms);
+                    actuallyRevokedPerms.put(pkgInfo.packageName, revokedPerms);
+                    revokedUidPerms.addAll(revokedPerms);
                     appsWithRevokedPerms.add(appPerms);
                 }
             }
-        }
 
-        // Persist changes after we computed everything to remove
-        // This is necessary as we would otherwise only look at the first app of a shared UID.
-        if (!doDryRun) {
-            int numChangedApps = appsWithRevokedPerms.size();
-            for (int i = 0; i < numChangedApps; i++) {
-                appsWithRevokedPerms.get(i).persistChanges(true);
+            // The packages whose state was not loaded lose the permissions of the UID they request
+            int numNotLoadedPkgInfos = notLoadedPkgInfos.size();
+            for (int pkgNum = 0; pkgNum < numNotLoadedPkgInfos; pkgNum++) {
+                PackageInfo pkgInfo = notLoadedPkgInfos.get(pkgNum);
+
+                ArrayList<String> revokedPerms = new ArrayList<>();
+                for (String perm : pkgInfo.requestedPermissions) {
+                    if (revokedUidPerms.contains(perm)) {
+                        revokedPerms.add(perm);
+                    }
+                }
+
+                if (!revokedPerms.isEmpty()) {
+                    actuallyRevokedPerms.put(pkgInfo.packageName, revokedPerms);
+                }
+            }
+
+            // Persist changes after we computed everything to remove
+            // This is necessary as we would otherwise only look at the first app of a shared UID.
+            if (!doDryRun) {
+                boolean shouldKillUid = false;
+
+                int numChangedApps = appsWithRevokedPerms.size();
+                for (int i = 0; i < numChangedApps; i++) {
+                    shouldKillUid |= appsWithRevokedPerms.get(i).persistChanges(false);
+                }
+
+                if (shouldKillUid) {
+                    getSystemService(ActivityManager.class).killUid(uid,
+                            Utils.KILL_REASON_APP_OP_CHANGE);
+                }
             }
         }
 
@@ -432,7 +551,7 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
             for (Pair<String, AppPermGroupUiInfo> groupNameAndUiInfo : groupUiInfos) {
                 String groupName = groupNameAndUiInfo.getFirst();
                 AppPermGroupUiInfo uiInfo = groupNameAndUiInfo.getSecond();
-                boolean isPlatform = Utils.getPlatformPermissionGroups().contains(groupName);
+                boolean isPlatform = Utils.isModernPermissionGroup(groupName);
                 CharSequence label = KotlinUtils.INSTANCE.getPermGroupLabel(this, groupName);
 
                 RuntimePermissionPresentationInfo permission =
@@ -643,16 +762,9 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
             throw new RuntimeException(e);
         }
 
-        String[] permissions = packageInfo.requestedPermissions;
-        if (permissions == null) {
-            return;
-        }
-
         Set<AppPermissionGroup> groups = new ArraySet<>();
-        for (String permission : permissions) {
-            AppPermissionGroup group = AppPermissionGroup.create(this, packageInfo, permission,
-                    true);
-            if (group != null && group.isOneTime()) {
+        for (AppPermissionGroup group : AppPermissionGroup.createAll(this, packageInfo, true)) {
+            if (group.isOneTime()) {
                 groups.add(group);
             }
         }
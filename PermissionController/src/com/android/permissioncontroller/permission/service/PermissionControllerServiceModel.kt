@@ -16,10 +16,7 @@
 
 package com.android.permissioncontroller.permission.service
 
-import android.content.pm.PackageManager
 import android.os.Process
-import android.permission.PermissionControllerManager.COUNT_ONLY_WHEN_GRANTED
-import android.permission.PermissionControllerManager.COUNT_WHEN_SYSTEM
 import androidx.core.util.Consumer
 import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.LiveData
@@ -27,15 +24,15 @@ import androidx.lifecycle.Observer
 import com.android.permissioncontroller.DumpableLog
 import com.android.permissioncontroller.PermissionControllerProto.PermissionControllerDumpProto
 import com.android.permissioncontroller.permission.data.AppPermGroupUiInfoLiveData
+import com.android.permissioncontroller.permission.data.DataRepositoryBudget
+import com.android.permissioncontroller.permission.data.LoadStats
 import com.android.permissioncontroller.permission.data.PackagePermissionsLiveData
 import com.android.permissioncontroller.permission.data.SmartUpdateMediatorLiveData
 import com.android.permissioncontroller.permission.data.UserPackageInfosLiveData
 import com.android.permissioncontroller.permission.data.get
 import com.android.permissioncontroller.permission.model.livedatatypes.AppPermGroupUiInfo
-import com.android.permissioncontroller.permission.model.livedatatypes.AppPermGroupUiInfo.PermGrantState
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
 import com.android.permissioncontroller.permission.utils.IPC
-import com.android.permissioncontroller.permission.utils.Utils
 import kotlinx.coroutines.Dispatchers.IO
 import kotlinx.coroutines.Dispatchers.Main
 import kotlinx.coroutines.GlobalScope
@@ -116,7 +113,7 @@ class PermissionControllerServiceModel(private val service: PermissionController
 
     /**
      * Counts the number of apps that have at least one of a provided list of permissions, subject
-     * to the options specified in flags. This data is gathered from a series of LiveData objects.
+     * to the options specified in flags.
      *
      * @param permissionNames The list of permission names whose apps we want to count
      * @param flags Flags specifying if we want to count system apps, and count only granted apps
@@ -136,10 +133,8 @@ class PermissionControllerServiceModel(private val service: PermissionController
 
     /**
      * Called upon receiving a list of packages which we want to filter by a list of permissions
-     * and flags. Observes the AppPermGroupUiInfoLiveData for every app, and, upon receiving a
-     * non-stale update, adds it to the count if it matches the permission list and flags. Will
-     * only use the first non-stale update, so if an app is updated after this update, but before
-     * execution is complete, the changes will not be reflected until the method is called again.
+     * and flags. Counts all packages in one pass, see [PermissionAppsCounter]. If an app is
+     * updated while counting, the changes will not be reflected until the method is called again.
      *
      * @param permissionNames The list of permission names whose apps we want to count
      * @param flags Flags specifying if we want to count system apps, and count only granted apps
@@ -157,73 +152,9 @@ class PermissionControllerServiceModel(private val service: PermissionController
             return
         }
 
-        val countSystem = flags and COUNT_WHEN_SYSTEM != 0
-        val countOnlyGranted = flags and COUNT_ONLY_WHEN_GRANTED != 0
-
-        // Store the group of all installed, runtime permissions in permissionNames
-        val permToGroup = mutableMapOf<String, String?>()
-        for (permName in permissionNames) {
-            val permInfo = try {
-                service.packageManager.getPermissionInfo(permName, 0)
-            } catch (e: PackageManager.NameNotFoundException) {
-                continue
-            }
-
-            if (Utils.isPermissionDangerousInstalledNotRemoved(permInfo)) {
-                permToGroup[permName] = Utils.getGroupOfPermission(permInfo)
-            }
-        }
-
-        val uiLiveDatasPerPackage = mutableListOf<MutableSet<AppPermGroupUiInfoLiveData>>()
-        var numLiveDatas = 0
-        for ((packageName, _, requestedPermissions) in packageInfos) {
-            val packageUiLiveDatas = mutableSetOf<AppPermGroupUiInfoLiveData>()
-            for (permName in permToGroup.keys) {
-                if (requestedPermissions.contains(permName)) {
-                    packageUiLiveDatas.add(AppPermGroupUiInfoLiveData[packageName,
-                        permToGroup[permName]!!, Process.myUserHandle()])
-                }
-            }
-            if (packageUiLiveDatas.isNotEmpty()) {
-                uiLiveDatasPerPackage.add(packageUiLiveDatas)
-                numLiveDatas += packageUiLiveDatas.size
-            }
-        }
-
-        if (numLiveDatas == 0) {
-            callback.accept(0)
-        }
-
-        var packagesWithPermission = 0
-        var numPermAppsChecked = 0
-
-        for (packageUiInfoLiveDatas in uiLiveDatasPerPackage) {
-            var packageAdded = false
-            // We don't need to check for new packages in between the updates of the ui info live
-            // datas, because this method is used primarily for UI, and there is inherent delay
-            // when calling this method, due to binder calls, so some staleness is acceptable
-            for (packageUiInfoLiveData in packageUiInfoLiveDatas) {
-                observeAndCheckForLifecycleState(packageUiInfoLiveData) { uiInfo ->
-                    numPermAppsChecked++
-
-                    if (uiInfo != null && uiInfo.shouldShow && (!uiInfo.isSystem || countSystem)) {
-                        val granted = uiInfo.permGrantState != PermGrantState.PERMS_DENIED &&
-                            uiInfo.permGrantState != PermGrantState.PERMS_ASK
-                        if (granted || !countOnlyGranted && !packageAdded) {
-                            // The permission might not be granted, but some permissions of the
-                            // group are granted. In this case the permission is granted silently
-                            // when the app asks for it.
-                            // Hence this is as-good-as-granted and we count it.
-                            packageAdded = true
-                            packagesWithPermission++
-                        }
-                    }
-
-                    if (numPermAppsChecked == numLiveDatas) {
-                        callback.accept(packagesWithPermission)
-                    }
-                }
-            }
+        GlobalScope.launch(IPC) {
+            callback.accept(PermissionAppsCounter.countPermissionApps(service.application,
+                permissionNames, flags, packageInfos, Process.myUserHandle()))
         }
     }
 
@@ -287,6 +218,8 @@ class PermissionControllerServiceModel(private val service: PermissionController
 
             PermissionControllerDumpProto.newBuilder()
                     .addAllLogs(dumpedLogs.await())
+                    .setDataRepositories(DataRepositoryBudget.dump())
+                    .addAllLiveDataLoads(LoadStats.dumpAll())
                     .build()
         }
     }
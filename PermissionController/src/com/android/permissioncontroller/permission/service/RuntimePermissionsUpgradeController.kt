@@ -38,12 +38,16 @@ import com.android.permissioncontroller.permission.model.livedatatypes.LightAppP
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPermission
 import com.android.permissioncontroller.permission.utils.IPC
+import com.android.permissioncontroller.permission.utils.IPC_THREAD_POOL_COUNT
 import com.android.permissioncontroller.permission.utils.KotlinUtils.grantBackgroundRuntimePermissions
 import com.android.permissioncontroller.permission.utils.KotlinUtils.grantForegroundRuntimePermissions
-import com.android.permissioncontroller.permission.utils.Utils.getPlatformPermissionNamesOfGroup
 import com.android.permissioncontroller.permission.utils.Utils.getRuntimePlatformPermissionNames
+import com.android.permissioncontroller.permission.utils.Utils.isPlatformPermissionOfGroup
 import com.android.permissioncontroller.permission.utils.application
 import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.launch
 
 /**
@@ -100,6 +104,41 @@ internal object RuntimePermissionsUpgradeController {
         return exemptions
     }
 
+    /**
+     * Apply exemptions to the platform.
+     *
+     * <p>Exemptions are grouped per package so that each package only needs a single read of its
+     * current allowlist and only the missing permissions are added. Packages are processed in
+     * parallel, but never with more workers than the [IPC_THREAD_POOL_COUNT] threads of the [IPC]
+     * dispatcher.
+     *
+     * @param context context to use when calling the platform
+     * @param exemptions exemptions to apply
+     */
+    private suspend fun applyExemptionsToPlatform(
+        context: Context,
+        exemptions: Collection<RestrictionExemption>
+    ) {
+        val pkgExemptions = exemptions.groupBy({ it.pkgName to it.flags }, { it.permission })
+                .map { (key, permissions) ->
+                    PackageRestrictionExemption(key.first, permissions.toSet(), key.second)
+                }
+        if (pkgExemptions.isEmpty()) {
+            return
+        }
+
+        val chunkSize = (pkgExemptions.size + IPC_THREAD_POOL_COUNT - 1) / IPC_THREAD_POOL_COUNT
+        coroutineScope {
+            pkgExemptions.chunked(chunkSize).map { chunk ->
+                async(IPC) {
+                    for (pkgExemption in chunk) {
+                        pkgExemption.applyToPlatform(context)
+                    }
+                }
+            }.awaitAll()
+        }
+    }
+
     /**
      * You must perform all necessary mutations to bring the runtime permissions
      * database from the old to the new version. When you add a new upgrade step
@@ -306,10 +345,7 @@ internal object RuntimePermissionsUpgradeController {
                 upgradeData.pkgs, upgradeData.restrictedPermissions,
                 upgradeData.bgGroups, upgradeData.storageGroups, upgradeData.bgMicGroups)
 
-        // Do not run in parallel. Measurements have shown that this is slower than sequential
-        for (exemption in (preinstalledAppExemptions union upgradeExemptions)) {
-            exemption.applyToPlatform(context)
-        }
+        applyExemptionsToPlatform(context, preinstalledAppExemptions union upgradeExemptions)
 
         for (grant in grants) {
             grant.applyToPlatform(context)
@@ -350,9 +386,10 @@ internal object RuntimePermissionsUpgradeController {
         if (currentVersion == 0) {
             Log.i(LOG_TAG, "Grandfathering SMS and CallLog permissions")
 
-            val permissions = restrictedPermissions intersect
-                    (getPlatformPermissionNamesOfGroup(permission_group.SMS) +
-                    getPlatformPermissionNamesOfGroup(permission_group.CALL_LOG))
+            val permissions = restrictedPermissions.filterTo(mutableSetOf()) {
+                isPlatformPermissionOfGroup(it, permission_group.SMS) ||
+                    isPlatformPermissionOfGroup(it, permission_group.CALL_LOG)
+            }
 
             exemptions.addAll(getExemptions(permissions, pkgs))
 
@@ -404,8 +441,9 @@ internal object RuntimePermissionsUpgradeController {
         if (currentVersion == 5) {
             Log.i(LOG_TAG, "Grandfathering Storage permissions")
 
-            val permissions = restrictedPermissions intersect
-                    getPlatformPermissionNamesOfGroup(permission_group.STORAGE)
+            val permissions = restrictedPermissions.filterTo(mutableSetOf()) {
+                isPlatformPermissionOfGroup(it, permission_group.STORAGE)
+            }
 
             // We don't want to allow modification of storage post install, so put it
             // on the internal system exemptlist to prevent the installer changing it.
@@ -504,14 +542,34 @@ internal object RuntimePermissionsUpgradeController {
         val permission: String,
         /** Name of permissions to exempt */
         val flags: Int = FLAG_PERMISSION_WHITELIST_UPGRADE
+    )
+
+    /**
+     * All restricted permissions of an app that should be exempted with the same flags
+     */
+    private data class PackageRestrictionExemption(
+        /** Name of package to exempt */
+        val pkgName: String,
+        /** Names of permissions to exempt */
+        val permissions: Set<String>,
+        /** Allowlist to add the permissions to */
+        val flags: Int
     ) {
         /**
-         * Exempt the permission by updating the platform state.
+         * Exempt the permissions by updating the platform state. Permissions that are already
+         * exempted are skipped.
          *
          * @param context context to use when calling the platform
          */
         fun applyToPlatform(context: Context) {
-            context.packageManager.addWhitelistedRestrictedPermission(pkgName, permission, flags)
+            val pm = context.packageManager
+            val alreadyExempted = pm.getWhitelistedRestrictedPermissions(pkgName, flags)
+
+            for (permission in permissions) {
+                if (permission !in alreadyExempted) {
+                    pm.addWhitelistedRestrictedPermission(pkgName, permission, flags)
+                }
+            }
         }
     }
 
@@ -46,6 +46,7 @@ import androidx.navigation.fragment.NavHostFragment;
 
 import com.android.permissioncontroller.Constants;
 import com.android.permissioncontroller.DeviceUtils;
+import com.android.permissioncontroller.PermissionControllerApplication;
 import com.android.permissioncontroller.PermissionControllerStatsLog;
 import com.android.permissioncontroller.R;
 import com.android.permissioncontroller.permission.ui.auto.AutoAllAppPermissionsFragment;
@@ -115,6 +116,8 @@ public final class ManagePermissionsActivity extends SettingsActivity {
         }
         super.onCreate(savedInstanceState);
 
+        PermissionControllerApplication.get().preloadAppLabels();
+
         // If this is not a phone (which uses the Navigation component), and there is a previous
         // instance, re-use its Fragment instead of making a new one.
         if ((DeviceUtils.isTelevision(this) || DeviceUtils.isAuto(this)
@@ -150,7 +150,7 @@ public class AutoAppPermissionsFragment extends AutoSettingsFrameFragment implem
                     Instant.EPOCH.toEpochMilli());
             mPermissionUsages.load(null, null, filterTimeBeginMillis, Long.MAX_VALUE,
                     PermissionUsages.USAGE_FLAG_LAST, getActivity().getLoaderManager(),
-                    false, false, this, false);
+                    false, this, false);
         }
     }
 
@@ -163,9 +163,6 @@ public class AutoAppPermissionsFragment extends AutoSettingsFrameFragment implem
     @Override
     @RequiresApi(Build.VERSION_CODES.S)
     public void onPermissionUsagesChanged() {
-        if (mPermissionUsages.getUsages().isEmpty()) {
-            return;
-        }
         if (getContext() == null) {
             // Async result has come in after our context is gone.
             return;
@@ -48,6 +48,7 @@ import com.android.permissioncontroller.permission.ui.Category;
 import com.android.permissioncontroller.permission.ui.handheld.SmartIconLoadPackagePermissionPreference;
 import com.android.permissioncontroller.permission.ui.model.PermissionAppsViewModel;
 import com.android.permissioncontroller.permission.ui.model.PermissionAppsViewModelFactory;
+import com.android.permissioncontroller.permission.utils.AppLabelIconCache;
 import com.android.permissioncontroller.permission.utils.KotlinUtils;
 import com.android.permissioncontroller.permission.utils.Utils;
 import com.android.settingslib.utils.applications.AppUtils;
@@ -84,6 +85,8 @@ public class AutoPermissionAppsFragment extends AutoSettingsFrameFragment implem
     private PermissionAppsViewModel mViewModel;
     private PermissionUsages mPermissionUsages;
     private List<AppPermissionUsage> mAppPermissionUsages = new ArrayList<>();
+    /** Labels loaded by {@link #loadLabels} that might not be cached anymore */
+    private final ArrayMap<Pair<String, UserHandle>, String> mLoadedLabels = new ArrayMap<>();
     private String mPermGroupName;
 
     private Collator mCollator;
@@ -132,7 +135,7 @@ public class AutoPermissionAppsFragment extends AutoSettingsFrameFragment implem
             long filterTimeBeginMillis = mViewModel.getFilterTimeBeginMillis();
             mPermissionUsages.load(null, null, filterTimeBeginMillis, Long.MAX_VALUE,
                     PermissionUsages.USAGE_FLAG_LAST, getActivity().getLoaderManager(),
-                    false, false, this, false);
+                    false, this, false);
         }
     }
 
@@ -204,6 +207,7 @@ public class AutoPermissionAppsFragment extends AutoSettingsFrameFragment implem
         Map<String, Long> groupUsageLastAccessTime =
                 mViewModel.extractGroupUsageLastAccessTime(mAppPermissionUsages);
 
+        List<Pair<String, UserHandle>> packagesWithoutLabel = new ArrayList<>();
         for (Category grantCategory : categories.keySet()) {
             List<Pair<String, UserHandle>> packages = categories.get(grantCategory);
             PreferenceCategory category = findPreference(grantCategory.getCategoryName());
@@ -236,6 +240,13 @@ public class AutoPermissionAppsFragment extends AutoSettingsFrameFragment implem
 
                 String key = user + packageName;
 
+                String label = getKnownLabel(packageUserLabel);
+                if (label == null) {
+                    // Show the package name until the label is loaded in the background
+                    label = packageName;
+                    packagesWithoutLabel.add(packageUserLabel);
+                }
+
                 Long lastAccessTime = groupUsageLastAccessTime.get(key);
                 Pair<String, Integer> summaryTimestamp = Utils
                         .getPermissionLastAccessSummaryTimestamp(
@@ -243,6 +254,7 @@ public class AutoPermissionAppsFragment extends AutoSettingsFrameFragment implem
 
                 Preference existingPref = existingPrefs.get(key);
                 if (existingPref != null) {
+                    existingPref.setTitle(label);
                     updatePreferenceSummary(existingPref, summaryTimestamp);
                     category.addPreference(existingPref);
                     continue;
@@ -252,8 +264,7 @@ public class AutoPermissionAppsFragment extends AutoSettingsFrameFragment implem
                         new SmartIconLoadPackagePermissionPreference(getActivity().getApplication(),
                                 packageName, user, context);
                 pref.setKey(key);
-                pref.setTitle(KotlinUtils.INSTANCE.getPackageLabel(getActivity().getApplication(),
-                        packageName, user));
+                pref.setTitle(label);
                 pref.setOnPreferenceClickListener((Preference p) -> {
                     Intent intent = new Intent(Intent.ACTION_MANAGE_APP_PERMISSION);
                     intent.putExtra(Intent.EXTRA_PACKAGE_NAME, packageName);
@@ -281,9 +292,36 @@ public class AutoPermissionAppsFragment extends AutoSettingsFrameFragment implem
 
         mViewModel.setCreationLogged(true);
 
+        if (!packagesWithoutLabel.isEmpty()) {
+            loadLabels(packagesWithoutLabel);
+        }
+
         setLoading(false);
     }
 
+    /**
+     * @return The label of the package if it is cached or was loaded, otherwise {@code null}
+     */
+    private String getKnownLabel(Pair<String, UserHandle> packageUser) {
+        String label = AppLabelIconCache.INSTANCE.getCachedLabel(packageUser.getFirst(),
+                packageUser.getSecond());
+        return label != null ? label : mLoadedLabels.get(packageUser);
+    }
+
+    /**
+     * Load the labels of packages in the background and show them once they are loaded.
+     */
+    private void loadLabels(List<Pair<String, UserHandle>> packages) {
+        AppLabelIconCache.INSTANCE.loadLabelsAsync(getActivity().getApplication(), packages,
+                labels -> {
+                    mLoadedLabels.putAll(labels);
+                    if (getContext() != null) {
+                        // Sort the preferences again by their labels
+                        onPackagesLoaded(mViewModel.getCategorizedAppsLiveData().getValue());
+                    }
+                });
+    }
+
     @Override
     public void onCreatePreferences(Bundle bundle, String s) {
         setPreferenceScreen(getPreferenceManager().createPreferenceScreen(getContext()));
@@ -306,9 +344,6 @@ public class AutoPermissionAppsFragment extends AutoSettingsFrameFragment implem
     @Override
     @RequiresApi(Build.VERSION_CODES.S)
     public void onPermissionUsagesChanged() {
-        if (mPermissionUsages.getUsages().isEmpty()) {
-            return;
-        }
         if (getContext() == null) {
             // Async result has come in after our context is gone.
             return;
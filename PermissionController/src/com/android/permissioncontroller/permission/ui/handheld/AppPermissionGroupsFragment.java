@@ -187,7 +187,7 @@ public final class AppPermissionGroupsFragment extends SettingsWithLargeHeader i
                     Instant.EPOCH.toEpochMilli());
             mPermissionUsages.load(null, null, filterTimeBeginMillis, Long.MAX_VALUE,
                     PermissionUsages.USAGE_FLAG_LAST, getActivity().getLoaderManager(),
-                    false, false, this, false);
+                    false, this, false);
         }
 
         updatePreferences(mViewModel.getPackagePermGroupsLiveData().getValue());
@@ -203,9 +203,6 @@ public final class AppPermissionGroupsFragment extends SettingsWithLargeHeader i
     @Override
     @RequiresApi(Build.VERSION_CODES.S)
     public void onPermissionUsagesChanged() {
-        if (mPermissionUsages.getUsages().isEmpty()) {
-            return;
-        }
         if (getContext() == null) {
             // Async result has come in after our context is gone.
             return;
@@ -54,6 +54,7 @@ import com.android.permissioncontroller.permission.ui.Category;
 import com.android.permissioncontroller.permission.ui.ManagePermissionsActivity;
 import com.android.permissioncontroller.permission.ui.model.PermissionAppsViewModel;
 import com.android.permissioncontroller.permission.ui.model.PermissionAppsViewModelFactory;
+import com.android.permissioncontroller.permission.utils.AppLabelIconCache;
 import com.android.permissioncontroller.permission.utils.KotlinUtils;
 import com.android.permissioncontroller.permission.utils.Utils;
 import com.android.settingslib.HelpUtils;
@@ -107,6 +108,8 @@ public final class PermissionAppsFragment extends SettingsWithLargeHeader implem
     private PermissionAppsViewModel mViewModel;
     private PermissionUsages mPermissionUsages;
     private List<AppPermissionUsage> mAppPermissionUsages = new ArrayList<>();
+    /** Labels loaded by {@link #loadLabels} that might not be cached anymore */
+    private final ArrayMap<Pair<String, UserHandle>, String> mLoadedLabels = new ArrayMap<>();
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -154,16 +157,13 @@ public final class PermissionAppsFragment extends SettingsWithLargeHeader implem
             long filterTimeBeginMillis = mViewModel.getFilterTimeBeginMillis();
             mPermissionUsages.load(null, null, filterTimeBeginMillis, Long.MAX_VALUE,
                     PermissionUsages.USAGE_FLAG_LAST, getActivity().getLoaderManager(),
-                    false, false, this, false);
+                    false, this, false);
         }
     }
 
     @Override
     @RequiresApi(Build.VERSION_CODES.S)
     public void onPermissionUsagesChanged() {
-        if (mPermissionUsages.getUsages().isEmpty()) {
-            return;
-        }
         if (getContext() == null) {
             // Async result has come in after our context is gone.
             return;
@@ -294,6 +294,7 @@ public final class PermissionAppsFragment extends SettingsWithLargeHeader implem
         Map<String, Long> groupUsageLastAccessTime =
                 mViewModel.extractGroupUsageLastAccessTime(mAppPermissionUsages);
 
+        List<Pair<String, UserHandle>> packagesWithoutLabel = new ArrayList<>();
         for (Category grantCategory : categories.keySet()) {
             List<Pair<String, UserHandle>> packages = categories.get(grantCategory);
             PreferenceCategory category = findPreference(grantCategory.getCategoryName());
@@ -328,6 +329,13 @@ public final class PermissionAppsFragment extends SettingsWithLargeHeader implem
 
                 String key = user + packageName;
 
+                String label = getKnownLabel(packageUserLabel);
+                if (label == null) {
+                    // Show the package name until the label is loaded in the background
+                    label = packageName;
+                    packagesWithoutLabel.add(packageUserLabel);
+                }
+
                 Long lastAccessTime = groupUsageLastAccessTime.get(key);
                 Pair<String, Integer> summaryTimestamp = Utils
                         .getPermissionLastAccessSummaryTimestamp(
@@ -341,6 +349,7 @@ public final class PermissionAppsFragment extends SettingsWithLargeHeader implem
 
                 Preference existingPref = existingPrefs.get(key);
                 if (existingPref != null) {
+                    existingPref.setTitle(label);
                     updatePreferenceSummary(existingPref, summaryTimestamp);
                     category.addPreference(existingPref);
                     continue;
@@ -350,8 +359,7 @@ public final class PermissionAppsFragment extends SettingsWithLargeHeader implem
                         new SmartIconLoadPackagePermissionPreference(getActivity().getApplication(),
                                 packageName, user, context);
                 pref.setKey(key);
-                pref.setTitle(KotlinUtils.INSTANCE.getPackageLabel(getActivity().getApplication(),
-                        packageName, user));
+                pref.setTitle(label);
                 pref.setOnPreferenceClickListener((Preference p) -> {
                     mViewModel.navigateToAppPermission(this, packageName, user,
                             AppPermissionFragment.createArgs(packageName, null, mPermGroupName,
@@ -399,9 +407,36 @@ public final class PermissionAppsFragment extends SettingsWithLargeHeader implem
 
         mViewModel.setCreationLogged(true);
 
+        if (!packagesWithoutLabel.isEmpty()) {
+            loadLabels(packagesWithoutLabel);
+        }
+
         setLoading(false /* loading */, true /* animate */);
     }
 
+    /**
+     * @return The label of the package if it is cached or was loaded, otherwise {@code null}
+     */
+    private String getKnownLabel(Pair<String, UserHandle> packageUser) {
+        String label = AppLabelIconCache.INSTANCE.getCachedLabel(packageUser.getFirst(),
+                packageUser.getSecond());
+        return label != null ? label : mLoadedLabels.get(packageUser);
+    }
+
+    /**
+     * Load the labels of packages in the background and show them once they are loaded.
+     */
+    private void loadLabels(List<Pair<String, UserHandle>> packages) {
+        AppLabelIconCache.INSTANCE.loadLabelsAsync(getActivity().getApplication(), packages,
+                labels -> {
+                    mLoadedLabels.putAll(labels);
+                    if (getContext() != null) {
+                        // Sort the preferences again by their labels
+                        onPackagesLoaded(mViewModel.getCategorizedAppsLiveData().getValue());
+                    }
+                });
+    }
+
     private void updatePreferenceSummary(Preference preference,
             Pair<String, Integer> summaryTimestamp) {
         String summary = mViewModel.getPreferenceSummary(getResources(), summaryTimestamp);
@@ -18,6 +18,8 @@ package com.android.permissioncontroller.permission.ui.handheld
 
 import android.app.Application
 import android.content.Context
+import android.graphics.Color
+import android.graphics.drawable.GradientDrawable
 import android.os.UserHandle
 import android.text.TextUtils
 import android.view.View
@@ -27,7 +29,7 @@ import androidx.preference.AndroidResources
 import androidx.preference.Preference
 import androidx.preference.PreferenceViewHolder
 import com.android.permissioncontroller.R
-import com.android.permissioncontroller.permission.utils.KotlinUtils
+import com.android.permissioncontroller.permission.utils.AppLabelIconCache
 
 /**
  * A Preference representing a package for a user, which loads and displays its icon only upon
@@ -49,8 +51,8 @@ open class SmartIconLoadPackagePermissionPreference constructor(
     private var titleContentDescription: CharSequence? = null
 
     /**
-     * Loads the package's badged icon upon being bound to a viewholder. This allows us to load
-     * icons synchronously, because we only load the icons that are visible on the screen.
+     * Shows the package's badged icon upon being bound to a viewholder. If the icon is not cached
+     * yet, a placeholder is shown until the icon is loaded in the background.
      */
     override fun onBindViewHolder(holder: PreferenceViewHolder) {
         super.onBindViewHolder(holder)
@@ -61,11 +63,22 @@ open class SmartIconLoadPackagePermissionPreference constructor(
 
         val imageView = holder.findViewById(android.R.id.icon) as ImageView
 
-        imageView.maxWidth =
-            context.resources.getDimensionPixelSize(R.dimen.secondary_app_icon_size)
-        imageView.maxHeight =
-            context.resources.getDimensionPixelSize(R.dimen.secondary_app_icon_size)
-        imageView.setImageDrawable(KotlinUtils.getBadgedPackageIcon(app, packageName, user))
+        val iconSize = context.resources.getDimensionPixelSize(R.dimen.secondary_app_icon_size)
+        imageView.maxWidth = iconSize
+        imageView.maxHeight = iconSize
+
+        imageView.tag = this
+        val icon = AppLabelIconCache.getCachedIconOrLoadAsync(app, packageName, user,
+            iconSize) { loaded ->
+            // The view might have been bound to another preference in the meantime
+            if (imageView.tag == this) {
+                imageView.setImageDrawable(loaded)
+            }
+        }
+        imageView.setImageDrawable(icon ?: GradientDrawable().apply {
+            setSize(iconSize, iconSize)
+            setColor(Color.TRANSPARENT)
+        })
         imageView.visibility = View.VISIBLE
 
         var imageFrame: View? = holder.findViewById(R.id.icon_frame)
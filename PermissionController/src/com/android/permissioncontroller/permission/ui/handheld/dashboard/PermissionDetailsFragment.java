@@ -37,7 +37,6 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.UserHandle;
 import android.text.format.DateFormat;
-import android.util.ArraySet;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -56,7 +55,6 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.android.permissioncontroller.PermissionControllerApplication;
 import com.android.permissioncontroller.R;
-import com.android.permissioncontroller.permission.model.AppPermissionGroup;
 import com.android.permissioncontroller.permission.model.AppPermissionUsage;
 import com.android.permissioncontroller.permission.model.PermissionUsages;
 import com.android.permissioncontroller.permission.model.legacy.PermissionApps;
@@ -214,13 +212,10 @@ public class PermissionDetailsFragment extends SettingsWithLargeHeader implement
 
     @Override
     public void onPermissionUsagesChanged() {
-        if (mPermissionUsages.getUsages().isEmpty()) {
-            return;
-        }
         mAppPermissionUsages = new ArrayList<>(mPermissionUsages.getUsages());
 
         // Ensure the group name is valid.
-        if (getGroup(mFilterGroup) == null) {
+        if (!Utils.isModernPermissionGroup(mFilterGroup)) {
             mFilterGroup = null;
         }
 
@@ -279,7 +274,7 @@ public class PermissionDetailsFragment extends SettingsWithLargeHeader implement
     }
 
     private void updateUI() {
-        if (mAppPermissionUsages.isEmpty() || getActivity() == null) {
+        if (getActivity() == null) {
             return;
         }
         Context context = getActivity();
@@ -542,52 +537,6 @@ public class PermissionDetailsFragment extends SettingsWithLargeHeader implement
         return category;
     }
 
-    /**
-     * Get an AppPermissionGroup that represents the given permission group (and an arbitrary app).
-     *
-     * @param groupName The name of the permission group.
-     *
-     * @return an AppPermissionGroup representing the given permission group or null if no such
-     * AppPermissionGroup is found.
-     */
-    private @Nullable AppPermissionGroup getGroup(@NonNull String groupName) {
-        List<AppPermissionGroup> groups = getOSPermissionGroups();
-        int numGroups = groups.size();
-        for (int i = 0; i < numGroups; i++) {
-            if (groups.get(i).getName().equals(groupName)) {
-                return groups.get(i);
-            }
-        }
-        return null;
-    }
-
-    /**
-     * Get the permission groups declared by the OS.
-     *
-     * TODO: theianchen change the method name to make that clear,
-     * and return a list of string group names, not AppPermissionGroups.
-     * @return a list of the permission groups declared by the OS.
-     */
-    private @NonNull List<AppPermissionGroup> getOSPermissionGroups() {
-        final List<AppPermissionGroup> groups = new ArrayList<>();
-        final Set<String> seenGroups = new ArraySet<>();
-        final int numGroups = mAppPermissionUsages.size();
-        for (int i = 0; i < numGroups; i++) {
-            final AppPermissionUsage appUsage = mAppPermissionUsages.get(i);
-            final List<AppPermissionUsage.GroupUsage> groupUsages = appUsage.getGroupUsages();
-            final int groupUsageCount = groupUsages.size();
-            for (int j = 0; j < groupUsageCount; j++) {
-                final AppPermissionUsage.GroupUsage groupUsage = groupUsages.get(j);
-                if (Utils.isModernPermissionGroup(groupUsage.getGroup().getName())) {
-                    if (seenGroups.add(groupUsage.getGroup().getName())) {
-                        groups.add(groupUsage.getGroup());
-                    }
-                }
-            }
-        }
-        return groups;
-    }
-
     private void reloadData() {
         final TimeFilterItem timeFilterItem = mFilterTimes.get(mFilterTimeIndex);
         final long filterTimeBeginMillis = Math.max(System.currentTimeMillis()
@@ -595,8 +544,7 @@ public class PermissionDetailsFragment extends SettingsWithLargeHeader implement
         mPermissionUsages.load(null /*filterPackageName*/, null /*filterPermissionGroups*/,
                 filterTimeBeginMillis, Long.MAX_VALUE, PermissionUsages.USAGE_FLAG_LAST
                         | PermissionUsages.USAGE_FLAG_HISTORICAL, getActivity().getLoaderManager(),
-                false /*getUiInfo*/, false /*getNonPlatformPermissions*/, this /*callback*/,
-                false /*sync*/);
+                false /*getUiInfo*/, this /*callback*/, false /*sync*/);
         if (mFinishedInitialLoad) {
             setProgressBarVisible(true);
         }
@@ -32,6 +32,7 @@ import android.app.role.RoleManager;
 import android.content.Context;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.UserHandle;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
@@ -49,7 +50,7 @@ import androidx.preference.PreferenceScreen;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.android.permissioncontroller.R;
-import com.android.permissioncontroller.permission.model.AppPermissionGroup;
+import com.android.permissioncontroller.permission.data.PermGroupsPackagesLiveData;
 import com.android.permissioncontroller.permission.model.AppPermissionUsage;
 import com.android.permissioncontroller.permission.model.AppPermissionUsage.GroupUsage;
 import com.android.permissioncontroller.permission.model.PermissionUsages;
@@ -67,6 +68,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import kotlin.Pair;
+
 /**
  * The main page for the privacy dashboard.
  */
@@ -99,6 +102,10 @@ public class PermissionUsageV2Fragment extends SettingsWithLargeHeader implement
 
     private @NonNull PermissionUsages mPermissionUsages;
     private @Nullable List<AppPermissionUsage> mAppPermissionUsages = new ArrayList<>();
+    private boolean mHasLoadedUsages;
+
+    /** The platform permission groups requested by any package, {@code null} until loaded */
+    private @Nullable Set<String> mRequestedGroups;
 
     private boolean mShowSystem;
     private boolean mHasSystemApps;
@@ -146,9 +153,27 @@ public class PermissionUsageV2Fragment extends SettingsWithLargeHeader implement
         mPermissionUsages = new PermissionUsages(context);
         mRoleManager = Utils.getSystemServiceSafe(context, RoleManager.class);
 
+        PermGroupsPackagesLiveData.get(false).observe(this, this::onPermGroupsPackagesChanged);
+
         reloadData();
     }
 
+    private void onPermGroupsPackagesChanged(
+            @Nullable Map<String, Set<Pair<String, UserHandle>>> groupPackages) {
+        if (groupPackages == null) {
+            return;
+        }
+
+        Set<String> requestedGroups = new ArraySet<>();
+        for (Map.Entry<String, Set<Pair<String, UserHandle>>> entry : groupPackages.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                requestedGroups.add(entry.getKey());
+            }
+        }
+        mRequestedGroups = requestedGroups;
+        updateUI();
+    }
+
     @Override
     public RecyclerView.Adapter onCreateAdapter(PreferenceScreen preferenceScreen) {
         PreferenceGroupAdapter adapter =
@@ -269,10 +294,8 @@ public class PermissionUsageV2Fragment extends SettingsWithLargeHeader implement
 
     @Override
     public void onPermissionUsagesChanged() {
-        if (mPermissionUsages.getUsages().isEmpty()) {
-            return;
-        }
         mAppPermissionUsages = new ArrayList<>(mPermissionUsages.getUsages());
+        mHasLoadedUsages = true;
         updateUI();
     }
 
@@ -290,7 +313,7 @@ public class PermissionUsageV2Fragment extends SettingsWithLargeHeader implement
     }
 
     private void updateUI() {
-        if (mAppPermissionUsages.isEmpty() || getActivity() == null) {
+        if (getActivity() == null || !mHasLoadedUsages || mRequestedGroups == null) {
             return;
         }
         Context context = getActivity();
@@ -318,11 +341,13 @@ public class PermissionUsageV2Fragment extends SettingsWithLargeHeader implement
                 Instant.EPOCH.toEpochMilli());
 
         mGroupAppCounts.clear();
-        // Permission group to count mapping.
+        // Permission group to count mapping. Only the groups requested by any package are shown.
         Map<String, Integer> usages = new HashMap<>();
-        List<AppPermissionGroup> permissionGroups = getOSPermissionGroups();
+        List<String> permissionGroups = Utils.getPlatformPermissionGroups();
         for (int i = 0; i < permissionGroups.size(); i++) {
-            usages.put(permissionGroups.get(i).getName(), 0);
+            if (mRequestedGroups.contains(permissionGroups.get(i))) {
+                usages.put(permissionGroups.get(i), 0);
+            }
         }
         ArrayList<PermissionApps.PermissionApp> permApps = new ArrayList<>();
 
@@ -507,8 +532,7 @@ public class PermissionUsageV2Fragment extends SettingsWithLargeHeader implement
         mPermissionUsages.load(null /*filterPackageName*/, null /*filterPermissionGroups*/,
                 filterTimeBeginMillis, Long.MAX_VALUE, PermissionUsages.USAGE_FLAG_LAST
                         | PermissionUsages.USAGE_FLAG_HISTORICAL, getActivity().getLoaderManager(),
-                false /*getUiInfo*/, false /*getNonPlatformPermissions*/, this /*callback*/,
-                false /*sync*/);
+                false /*getUiInfo*/, this /*callback*/, false /*sync*/);
         if (mFinishedInitialLoad) {
             setProgressBarVisible(true);
         }
@@ -528,29 +552,4 @@ public class PermissionUsageV2Fragment extends SettingsWithLargeHeader implement
         return groupUsageNameToLabelMapping.get(first.getKey()).toString()
                 .compareTo(groupUsageNameToLabelMapping.get(second.getKey()).toString());
     }
-
-    /**
-     * Get the permission groups declared by the OS.
-     *
-     * @return a list of the permission groups declared by the OS.
-     */
-    private @NonNull List<AppPermissionGroup> getOSPermissionGroups() {
-        final List<AppPermissionGroup> groups = new ArrayList<>();
-        final Set<String> seenGroups = new ArraySet<>();
-        final int numGroups = mAppPermissionUsages.size();
-        for (int i = 0; i < numGroups; i++) {
-            final AppPermissionUsage appUsage = mAppPermissionUsages.get(i);
-            final List<GroupUsage> groupUsages = appUsage.getGroupUsages();
-            final int groupUsageCount = groupUsages.size();
-            for (int j = 0; j < groupUsageCount; j++) {
-                final GroupUsage groupUsage = groupUsages.get(j);
-                if (Utils.isModernPermissionGroup(groupUsage.getGroup().getName())) {
-                    if (seenGroups.add(groupUsage.getGroup().getName())) {
-                        groups.add(groupUsage.getGroup());
-                    }
-                }
-            }
-        }
-        return groups;
-    }
 }
@@ -155,7 +155,7 @@ class AppPermissionGroupsViewModel(
             }
 
             for (groupName in groups) {
-                val isSystem = Utils.getPlatformPermissionGroups().contains(groupName)
+                val isSystem = Utils.isModernPermissionGroup(groupName)
                 appPermGroupUiInfoLiveDatas[groupName]?.value?.let { uiInfo ->
                     if (groupName == Manifest.permission_group.STORAGE &&
                         (fullStorageState?.isGranted == true && !fullStorageState.isLegacy)) {
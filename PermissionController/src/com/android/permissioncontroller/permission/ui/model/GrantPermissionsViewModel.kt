@@ -53,8 +53,8 @@ import com.android.permissioncontroller.PermissionControllerStatsLog.PERMISSION_
 import com.android.permissioncontroller.PermissionControllerStatsLog.PERMISSION_GRANT_REQUEST_RESULT_REPORTED__RESULT__USER_GRANTED_IN_SETTINGS
 import com.android.permissioncontroller.PermissionControllerStatsLog.PERMISSION_GRANT_REQUEST_RESULT_REPORTED__RESULT__USER_GRANTED_ONE_TIME
 import com.android.permissioncontroller.PermissionControllerStatsLog.PERMISSION_GRANT_REQUEST_RESULT_REPORTED__RESULT__USER_IGNORED
+import com.android.permissioncontroller.permission.data.GrantRequestLoader
 import com.android.permissioncontroller.permission.data.LightAppPermGroupLiveData
-import com.android.permissioncontroller.permission.data.LightPackageInfoLiveData
 import com.android.permissioncontroller.permission.data.PackagePermissionsLiveData
 import com.android.permissioncontroller.permission.data.SmartUpdateMediatorLiveData
 import com.android.permissioncontroller.permission.data.get
@@ -120,7 +120,6 @@ class GrantPermissionsViewModel(
 ) : ViewModel() {
     private val LOG_TAG = GrantPermissionsViewModel::class.java.simpleName
     private val user = Process.myUserHandle()
-    private val packageInfoLiveData = LightPackageInfoLiveData[packageName, user]
     private val dpm = app.getSystemService(DevicePolicyManager::class.java)!!
     private val permissionPolicy = dpm.getPermissionPolicy(null)
     private val permGroupsToSkip = mutableListOf<String>()
@@ -162,18 +161,22 @@ class GrantPermissionsViewModel(
     val requestInfosLiveData = object :
         SmartUpdateMediatorLiveData<List<RequestInfo>>() {
         private val LOG_TAG = GrantPermissionsViewModel::class.java.simpleName
-        private val packagePermissionsLiveData = PackagePermissionsLiveData[packageName, user]
         private val appPermGroupLiveDatas = mutableMapOf<String, LightAppPermGroupLiveData>()
 
         init {
             GlobalScope.launch(Main.immediate) {
-                val groups = packagePermissionsLiveData.getInitializedValue()
-                if (groups == null || groups.isEmpty()) {
+                val (loadedPackageInfo, groups) =
+                    GrantRequestLoader.loadPackage(app, packageName, user) ?: run {
+                        Log.e(LOG_TAG, "Package $packageName not found")
+                        value = null
+                        return@launch
+                    }
+                if (groups.isEmpty()) {
                     Log.e(LOG_TAG, "Package $packageName not found")
                     value = null
                     return@launch
                 }
-                packageInfo = packageInfoLiveData.getInitializedValue()
+                packageInfo = loadedPackageInfo
 
                 if (packageInfo.requestedPermissions.isEmpty() ||
                     packageInfo.targetSdkVersion < Build.VERSION_CODES.M) {
@@ -195,7 +198,7 @@ class GrantPermissionsViewModel(
             }
         }
 
-        private fun getAppPermGroups(groups: Map<String, List<String>>) {
+        private suspend fun getAppPermGroups(groups: Map<String, List<String>>) {
 
             val requestedGroups = groups.filter { (_, perms) ->
                 perms.any { it in unfilteredAffectedPermissions }
@@ -208,6 +211,19 @@ class GrantPermissionsViewModel(
                 return
             }
 
+            // Show the first request from the prefetched state. The LiveDatas are only used to
+            // follow later changes.
+            val appPermGroups = GrantRequestLoader.loadAppPermGroups(app, packageInfo,
+                requestedGroups.keys, user)
+            for ((groupName, appPermGroup) in appPermGroups) {
+                if (appPermGroup == null) {
+                    Log.e(LOG_TAG, "Group $packageName $groupName invalid")
+                }
+            }
+            groupStates = getRequiredGroupStates(appPermGroups
+                .filterKeys { it !in permGroupsToSkip }.values.filterNotNull())
+            getRequestInfosFromGroupStates()
+
             val getLiveDataFun = { groupName: String ->
                 LightAppPermGroupLiveData[packageName, groupName, user]
             }
@@ -216,6 +232,10 @@ class GrantPermissionsViewModel(
 
         override fun onUpdate() {
             if (appPermGroupLiveDatas.any { it.value.isStale }) {
+                // Until the LiveDatas are loaded, keep serving the prefetched groups
+                if (groupStates.isNotEmpty()) {
+                    getRequestInfosFromGroupStates()
+                }
                 return
             }
             var newGroups = false
@@ -974,8 +994,8 @@ class GrantPermissionsViewModel(
      * otherwise.
      */
     fun shouldReturnPermissionState(): Boolean {
-        return if (packageInfoLiveData.value != null) {
-            packageInfoLiveData.value!!.targetSdkVersion >= Build.VERSION_CODES.M
+        return if (::packageInfo.isInitialized) {
+            packageInfo.targetSdkVersion >= Build.VERSION_CODES.M
         } else {
             // Should not be reached, as this method shouldn't be called before data is passed to
             // the activity for the first time
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.utils
+
+import android.app.Application
+import android.content.ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+import android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+import android.content.pm.ActivityInfo
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageManager
+import android.content.res.Configuration
+import android.graphics.Bitmap
+import android.graphics.drawable.BitmapDrawable
+import android.graphics.drawable.Drawable
+import android.os.UserHandle
+import android.util.Log
+import android.util.LruCache
+import androidx.annotation.GuardedBy
+import com.android.permissioncontroller.permission.data.PackageBroadcastReceiver
+import com.android.permissioncontroller.permission.data.PackageEvent
+import com.android.permissioncontroller.permission.data.PackageEventFilter
+import java.util.function.Consumer
+import kotlinx.coroutines.Dispatchers.Main
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+
+/**
+ * Process wide cache of the labels and badged icons of packages.
+ *
+ * Icons are downsampled to the size requested by the caller before they are cached, hence icons
+ * of different sizes are cached separately. Entries are dropped when a package changes and when
+ * the system asks to trim memory. Labels are dropped when the locale changes, icons when the
+ * density changes. Labels and icons that were loaded before they were dropped are not cached.
+ */
+object AppLabelIconCache : PackageBroadcastReceiver.PackageEventListener {
+    private val LOG_TAG = AppLabelIconCache::class.java.simpleName
+
+    /** Maximum number of bytes used by cached icons */
+    private const val MAX_ICON_BYTES = 4 * 1024 * 1024
+
+    /** Maximum number of bytes used by cached labels */
+    private const val MAX_LABEL_BYTES = 64 * 1024
+
+    /** Passed as icon size to get icons in the size the package provides them */
+    const val ORIGINAL_SIZE = 0
+
+    private val lock = Any()
+
+    @GuardedBy("lock")
+    private val labels = object : LruCache<Pair<String, UserHandle>, String>(MAX_LABEL_BYTES) {
+        override fun sizeOf(key: Pair<String, UserHandle>, value: String): Int {
+            return (key.first.length + value.length) * Character.BYTES
+        }
+    }
+
+    @GuardedBy("lock")
+    private val icons = object : LruCache<IconKey, Bitmap>(MAX_ICON_BYTES) {
+        override fun sizeOf(key: IconKey, value: Bitmap): Int {
+            return value.allocationByteCount
+        }
+    }
+
+    /** Incremented whenever [labels] are dropped, so that labels loaded before are not cached */
+    @GuardedBy("lock")
+    private var labelsGeneration = 0
+
+    /** Incremented whenever [icons] are dropped, so that icons loaded before are not cached */
+    @GuardedBy("lock")
+    private var iconsGeneration = 0
+
+    /** The configuration the cached labels and icons were loaded with */
+    @GuardedBy("lock")
+    private var configuration: Configuration? = null
+
+    /** Icon -> callbacks of [getCachedIconOrLoadAsync] waiting for the icon to be loaded */
+    @GuardedBy("lock")
+    private val pendingIconCallbacks = mutableMapOf<IconKey, MutableList<(Drawable?) -> Unit>>()
+
+    @GuardedBy("lock")
+    private var isListening = false
+
+    /**
+     * Get the label of a package.
+     *
+     * @param app The current application
+     * @param packageName The name of the package
+     * @param user The user of the package
+     *
+     * @return The label of the package, or the package name if the package does not exist
+     */
+    fun getLabel(app: Application, packageName: String, user: UserHandle): String {
+        val key = packageName to user
+        val generation = synchronized(lock) {
+            labels.get(key)?.let { return it }
+            rememberConfiguration(app)
+            labelsGeneration
+        }
+
+        val appInfo = getApplicationInfo(app, packageName, user) ?: return packageName
+        val label = Utils.getFullAppLabel(appInfo, app)
+
+        synchronized(lock) {
+            if (generation == labelsGeneration) {
+                labels.put(key, label)
+                startListening()
+            }
+        }
+        return label
+    }
+
+    /**
+     * Get the badged icon of a package.
+     *
+     * @param app The current application
+     * @param packageName The name of the package
+     * @param user The user of the package
+     * @param sizePx The maximum width and height of the icon, or [ORIGINAL_SIZE]
+     *
+     * @return The icon of the package, or `null` if the package does not exist
+     */
+    @JvmOverloads
+    fun getIcon(
+        app: Application,
+        packageName: String,
+        user: UserHandle,
+        sizePx: Int = ORIGINAL_SIZE
+    ): Drawable? {
+        val key = IconKey(packageName, user, sizePx)
+        val bitmap = getCachedIconBitmap(key)
+            ?: loadIconBitmap(app, getApplicationInfo(app, packageName, user) ?: return null, key)
+        return BitmapDrawable(app.resources, bitmap)
+    }
+
+    /**
+     * Get the badged icon of a package whose [ApplicationInfo] is already known.
+     *
+     * @param app The current application
+     * @param appInfo The application info of the package
+     * @param sizePx The maximum width and height of the icon, or [ORIGINAL_SIZE]
+     *
+     * @return The icon of the package
+     */
+    @JvmOverloads
+    fun getIcon(app: Application, appInfo: ApplicationInfo, sizePx: Int = ORIGINAL_SIZE): Drawable {
+        val key = IconKey(appInfo.packageName, UserHandle.getUserHandleForUid(appInfo.uid), sizePx)
+        val bitmap = getCachedIconBitmap(key) ?: loadIconBitmap(app, appInfo, key)
+        return BitmapDrawable(app.resources, bitmap)
+    }
+
+    /**
+     * Get the badged icon of a package if it is cached, otherwise load it in the background.
+     *
+     * @param app The current application
+     * @param packageName The name of the package
+     * @param user The user of the package
+     * @param sizePx The maximum width and height of the icon, or [ORIGINAL_SIZE]
+     * @param onLoaded Called on the main thread once the icon was loaded in the background. Not
+     * called if the icon was cached. Concurrent requests for the same icon share one load.
+     *
+     * @return The cached icon, or `null` if the icon is loaded in the background
+     */
+    fun getCachedIconOrLoadAsync(
+        app: Application,
+        packageName: String,
+        user: UserHandle,
+        sizePx: Int,
+        onLoaded: (Drawable?) -> Unit
+    ): Drawable? {
+        val key = IconKey(packageName, user, sizePx)
+        getCachedIconBitmap(key)?.let {
+            return BitmapDrawable(app.resources, it)
+        }
+
+        synchronized(lock) {
+            val callbacks = pendingIconCallbacks[key]
+            if (callbacks != null) {
+                callbacks.add(onLoaded)
+                return null
+            }
+            pendingIconCallbacks[key] = mutableListOf(onLoaded)
+        }
+
+        GlobalScope.launch(IPC) {
+            var bitmap: Bitmap? = null
+            try {
+                bitmap = getCachedIconBitmap(key) ?: getApplicationInfo(app, packageName, user)
+                    ?.let { loadIconBitmap(app, it, key) }
+            } catch (e: RuntimeException) {
+                Log.w(LOG_TAG, "Could not load icon of $packageName", e)
+            }
+            // Always remove the pending load, otherwise later requests would wait for it forever
+            val callbacks = synchronized(lock) {
+                pendingIconCallbacks.remove(key)!!
+            }
+
+            withContext(Main) {
+                for (callback in callbacks) {
+                    // Drawables have mutable state, hence every caller gets its own
+                    callback(bitmap?.let { BitmapDrawable(app.resources, it) })
+                }
+            }
+        }
+        return null
+    }
+
+    /**
+     * Get the label of a package if it is cached.
+     *
+     * @param packageName The name of the package
+     * @param user The user of the package
+     *
+     * @return The cached label, or `null` if the label is not cached
+     */
+    fun getCachedLabel(packageName: String, user: UserHandle): String? {
+        synchronized(lock) {
+            return labels.get(packageName to user)
+        }
+    }
+
+    /**
+     * Load the labels of packages in the background, see [getLabel].
+     *
+     * @param app The current application
+     * @param packages The packages and their users
+     * @param onLoaded Called on the main thread with the labels of all packages
+     */
+    fun loadLabelsAsync(
+        app: Application,
+        packages: List<Pair<String, UserHandle>>,
+        onLoaded: Consumer<Map<Pair<String, UserHandle>, String>>
+    ) {
+        GlobalScope.launch(IPC) {
+            val loaded = mutableMapOf<Pair<String, UserHandle>, String>()
+            for (packageUser in packages) {
+                loaded[packageUser] = try {
+                    getLabel(app, packageUser.first, packageUser.second)
+                } catch (e: RuntimeException) {
+                    Log.w(LOG_TAG, "Could not load label of ${packageUser.first}", e)
+                    packageUser.first
+                }
+            }
+
+            withContext(Main) {
+                onLoaded.accept(loaded)
+            }
+        }
+    }
+
+    /**
+     * Drop cached data as the system is low on memory.
+     *
+     * @param level The level passed to [android.content.ComponentCallbacks2.onTrimMemory]
+     */
+    fun onTrimMemory(level: Int) {
+        synchronized(lock) {
+            if (level >= TRIM_MEMORY_BACKGROUND) {
+                icons.evictAll()
+                labels.evictAll()
+
+                if (isListening) {
+                    PackageBroadcastReceiver.removeEventCallback(this)
+                    isListening = false
+                }
+            } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                icons.trimToSize(MAX_ICON_BYTES / 2)
+            }
+        }
+    }
+
+    /**
+     * Drop cached data that depends on the configuration.
+     *
+     * @param newConfig The configuration passed to
+     * [android.content.ComponentCallbacks.onConfigurationChanged]
+     */
+    fun onConfigurationChanged(newConfig: Configuration) {
+        synchronized(lock) {
+            val changes = configuration?.diff(newConfig) ?: 0
+            configuration = Configuration(newConfig)
+
+            if (changes and ActivityInfo.CONFIG_LOCALE != 0) {
+                labels.evictAll()
+                labelsGeneration++
+            }
+            if (changes and ActivityInfo.CONFIG_DENSITY != 0) {
+                icons.evictAll()
+                iconsGeneration++
+            }
+        }
+    }
+
+    override fun onPackageEvents(events: List<PackageEvent>) {
+        synchronized(lock) {
+            // Labels and icons of the changed packages that are currently loading might be
+            // outdated
+            labelsGeneration++
+            iconsGeneration++
+
+            for (event in events) {
+                val user = event.user
+                for (key in labels.snapshot().keys) {
+                    if (key.first == event.packageName && (user == null || key.second == user)) {
+                        labels.remove(key)
+                    }
+                }
+                for (key in icons.snapshot().keys) {
+                    if (key.packageName == event.packageName &&
+                        (user == null || key.user == user)) {
+                        icons.remove(key)
+                    }
+                }
+            }
+        }
+    }
+
+    private fun getCachedIconBitmap(key: IconKey): Bitmap? {
+        synchronized(lock) {
+            return icons.get(key)
+        }
+    }
+
+    private fun loadIconBitmap(app: Application, appInfo: ApplicationInfo, key: IconKey): Bitmap {
+        val generation = synchronized(lock) {
+            rememberConfiguration(app)
+            iconsGeneration
+        }
+
+        val icon = Utils.getBadgedIcon(app, appInfo) as BitmapDrawable
+
+        var bitmap = icon.bitmap
+        if (key.sizePx != ORIGINAL_SIZE &&
+            (bitmap.width > key.sizePx || bitmap.height > key.sizePx)) {
+            bitmap = Bitmap.createScaledBitmap(bitmap, key.sizePx, key.sizePx, true)
+        }
+
+        synchronized(lock) {
+            if (generation == iconsGeneration) {
+                icons.put(key, bitmap)
+                startListening()
+            }
+        }
+        return bitmap
+    }
+
+    private fun getApplicationInfo(
+        app: Application,
+        packageName: String,
+        user: UserHandle
+    ): ApplicationInfo? {
+        return try {
+            Utils.getUserContext(app, user).packageManager.getApplicationInfo(packageName, 0)
+        } catch (e: PackageManager.NameNotFoundException) {
+            null
+        }
+    }
+
+    @GuardedBy("lock")
+    private fun rememberConfiguration(app: Application) {
+        if (configuration == null) {
+            configuration = Configuration(app.resources.configuration)
+        }
+    }
+
+    @GuardedBy("lock")
+    private fun startListening() {
+        if (!isListening) {
+            PackageBroadcastReceiver.addEventCallback(
+                PackageEventFilter(kinds = PackageEventFilter.PACKAGE_KINDS), this)
+            isListening = true
+        }
+    }
+
+    /**
+     * A cached icon: the package, its user and the maximum size of the icon
+     */
+    private data class IconKey(val packageName: String, val user: UserHandle, val sizePx: Int)
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.utils
+
+import android.app.ActivityManager
+import android.app.AppOpsManager
+import android.app.Application
+import androidx.annotation.VisibleForTesting
+import com.android.permissioncontroller.permission.model.livedatatypes.LightAppPermGroup
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPermission
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+/**
+ * Collects the changes to the permissions of a [LightAppPermGroup] in memory and then applies
+ * them to the system at once.
+ *
+ * [apply] makes at most one grant or revoke call and at most one flag update per permission, with
+ * all flag changes merged. Every app op of the uid is checked and set at most once, and the app is
+ * killed at most once.
+ *
+ * @param app The current application
+ * @param group The group in its current state
+ */
+class AppPermGroupMutations(
+    private val app: Application,
+    private val group: LightAppPermGroup
+) {
+    private val newPerms = group.permissions.toMutableMap()
+    private val permsToGrant = mutableSetOf<String>()
+    private val permsToRevoke = mutableSetOf<String>()
+
+    /** Map<app op name, mode>, in the order the modes were first set */
+    private val appOpModes = mutableMapOf<String, Int>()
+
+    private var shouldKill = false
+
+    /**
+     * The permissions of the group, including all changes made so far
+     */
+    val permissions: Map<String, LightPermission>
+        get() = newPerms
+
+    /**
+     * Change the state of a permission.
+     *
+     * @param perm The permission in its new state
+     */
+    fun setPermission(perm: LightPermission) {
+        newPerms[perm.name] = perm
+    }
+
+    /**
+     * Grant a runtime permission in the system.
+     *
+     * @param permName The name of the permission
+     */
+    fun grant(permName: String) {
+        permsToRevoke.remove(permName)
+        permsToGrant.add(permName)
+    }
+
+    /**
+     * Revoke a runtime permission in the system.
+     *
+     * @param permName The name of the permission
+     */
+    fun revoke(permName: String) {
+        permsToGrant.remove(permName)
+        permsToRevoke.add(permName)
+    }
+
+    /**
+     * Set the mode of an app op of the uid. If the mode of an app op is set several times, only
+     * the last mode is applied.
+     *
+     * @param appOpName The name of the app op
+     * @param mode The new mode
+     */
+    fun setAppOpMode(appOpName: String, mode: Int) {
+        appOpModes[appOpName] = mode
+    }
+
+    /**
+     * Kill the app once all changes were applied.
+     */
+    fun killApp() {
+        shouldKill = true
+    }
+
+    /**
+     * Apply all changes to the system.
+     *
+     * @param flagMask The permission flags that might have been changed
+     * @param killReason The reason to give when killing the app
+     *
+     * @return a new LightAppPermGroup, reflecting the new state
+     */
+    fun apply(flagMask: Int, killReason: String): LightAppPermGroup {
+        val packageName = group.packageName
+        val uid = group.packageInfo.uid
+        val user = group.userHandle
+
+        for (permName in permsToGrant) {
+            countIpc(Ipc.GRANT)
+            app.packageManager.grantRuntimePermission(packageName, permName, user)
+        }
+        for (permName in permsToRevoke) {
+            countIpc(Ipc.REVOKE)
+            app.packageManager.revokeRuntimePermission(packageName, permName, user)
+        }
+
+        if (appOpModes.isNotEmpty()) {
+            val appOpsManager = app.getSystemService(AppOpsManager::class.java)!!
+            for ((appOpName, mode) in appOpModes) {
+                countIpc(Ipc.CHECK_APP_OP)
+                if (appOpsManager.unsafeCheckOpRaw(appOpName, uid, packageName) == mode) {
+                    continue
+                }
+
+                countIpc(Ipc.SET_APP_OP)
+                appOpsManager.setUidMode(appOpName, uid, mode)
+            }
+        }
+
+        for ((permName, newPerm) in newPerms) {
+            val oldPerm = group.permissions[permName]
+            if (oldPerm == null || oldPerm.flags == newPerm.flags) {
+                continue
+            }
+
+            countIpc(Ipc.UPDATE_FLAGS)
+            app.packageManager.updatePermissionFlags(permName, packageName, flagMask,
+                newPerm.flags, user)
+        }
+
+        if (shouldKill) {
+            countIpc(Ipc.KILL_UID)
+            app.getSystemService(ActivityManager::class.java)!!.killUid(uid, killReason)
+        }
+
+        return LightAppPermGroup(group.packageInfo, group.permGroupInfo, newPerms,
+            group.hasInstallToRuntimeSplit, group.specialLocationGrant)
+    }
+
+    /**
+     * The calls into the system made by [apply]
+     */
+    enum class Ipc {
+        GRANT,
+        REVOKE,
+        CHECK_APP_OP,
+        SET_APP_OP,
+        UPDATE_FLAGS,
+        KILL_UID
+    }
+
+    companion object {
+        private val ipcCounts = AtomicIntegerArray(Ipc.values().size)
+
+        private fun countIpc(ipc: Ipc) {
+            ipcCounts.incrementAndGet(ipc.ordinal)
+        }
+
+        /**
+         * @param ipc The kind of call
+         *
+         * @return How often [apply] made the call since the last [resetIpcCounts]
+         */
+        @VisibleForTesting
+        fun getIpcCount(ipc: Ipc): Int {
+            return ipcCounts.get(ipc.ordinal)
+        }
+
+        /**
+         * Reset all counts returned by [getIpcCount].
+         */
+        @VisibleForTesting
+        fun resetIpcCounts() {
+            for (ipc in Ipc.values()) {
+                ipcCounts.set(ipc.ordinal, 0)
+            }
+        }
+    }
+}
@@ -87,8 +87,6 @@ object KotlinUtils {
         FLAG_PERMISSION_REVIEW_REQUIRED or
         FLAG_PERMISSION_AUTO_REVOKED
 
-    private const val KILL_REASON_APP_OP_CHANGE = "Permission related app op changed"
-
     /**
      * Importance level to define the threshold for whether a package is in a state which resets the
      * timer on its one-time permission session
@@ -288,7 +286,7 @@ object KotlinUtils {
     }
 
     /**
-     * Gets a package's badged icon from the system.
+     * Gets a package's badged icon, see [AppLabelIconCache].
      *
      * @param app The current application
      * @param packageName The name of the package whose icon we want
@@ -302,17 +300,11 @@ object KotlinUtils {
         packageName: String,
         user: UserHandle
     ): Drawable? {
-        return try {
-            val userContext = Utils.getUserContext(app, user)
-            val appInfo = userContext.packageManager.getApplicationInfo(packageName, 0)
-            Utils.getBadgedIcon(app, appInfo)
-        } catch (e: PackageManager.NameNotFoundException) {
-            null
-        }
+        return AppLabelIconCache.getIcon(app, packageName, user)
     }
 
     /**
-     * Gets a package's badged label from the system.
+     * Gets a package's badged label, see [AppLabelIconCache].
      *
      * @param app The current application
      * @param packageName The name of the package whose label we want
@@ -321,13 +313,7 @@ object KotlinUtils {
      * @return The package's label
      */
     fun getPackageLabel(app: Application, packageName: String, user: UserHandle): String {
-        return try {
-            val userContext = Utils.getUserContext(app, user)
-            val appInfo = userContext.packageManager.getApplicationInfo(packageName, 0)
-            Utils.getFullAppLabel(appInfo, app)
-        } catch (e: PackageManager.NameNotFoundException) {
-            packageName
-        }
+        return AppLabelIconCache.getLabel(app, packageName, user)
     }
 
     /**
@@ -498,25 +484,17 @@ object KotlinUtils {
         isOneTime: Boolean = false,
         filterPermissions: List<String> = group.permissions.keys.toList()
     ): LightAppPermGroup {
-        val wasOneTime = group.isOneTime
-        val newPerms = group.permissions.toMutableMap()
-        var shouldKillForAnyPermission = false
+        val mutations = AppPermGroupMutations(app, group)
         for (permName in filterPermissions) {
             val perm = group.permissions[permName] ?: continue
             val isBackgroundPerm = permName in group.backgroundPermNames
             if (isBackgroundPerm == grantBackground) {
-                val (newPerm, shouldKill) = grantRuntimePermission(app, perm, isOneTime, group)
-                newPerms[newPerm.name] = newPerm
-                shouldKillForAnyPermission = shouldKillForAnyPermission || shouldKill
+                grantRuntimePermission(app, perm, isOneTime, group, mutations)
             }
         }
 
-        if (shouldKillForAnyPermission) {
-            (app.getSystemService(ActivityManager::class.java) as ActivityManager).killUid(
-                group.packageInfo.uid, KILL_REASON_APP_OP_CHANGE)
-        }
-        val newGroup = LightAppPermGroup(group.packageInfo, group.permGroupInfo, newPerms,
-            group.hasInstallToRuntimeSplit, group.specialLocationGrant)
+        val newGroup = mutations.apply(PERMISSION_CONTROLLER_CHANGED_FLAG_MASK,
+            Utils.KILL_REASON_APP_OP_CHANGE)
         // If any permission in the group is one time granted, start one time permission session.
         if (newGroup.permissions.any { it.value.isOneTime && it.value.isGrantedIncludingAppOp }) {
             app.getSystemService(PermissionManager::class.java)!!.startOneTimePermissionSession(
@@ -534,30 +512,27 @@ object KotlinUtils {
      * @param perm The permission which should be granted.
      * @param group An optional app permission group in which to look for background or foreground
      * permissions
-     *
-     * @return a LightPermission and boolean pair <permission with updated state (or the original
-     * state, if it wasn't changed), should kill app>
+     * @param mutations Collects the changes to apply to the system
      */
     private fun grantRuntimePermission(
         app: Application,
         perm: LightPermission,
         isOneTime: Boolean,
-        group: LightAppPermGroup
-    ): Pair<LightPermission, Boolean> {
+        group: LightAppPermGroup,
+        mutations: AppPermGroupMutations
+    ) {
         val pkgInfo = group.packageInfo
-        val user = UserHandle.getUserHandleForUid(pkgInfo.uid)
         val supportsRuntime = pkgInfo.targetSdkVersion >= Build.VERSION_CODES.M
                 || Utils.isSpecialRuntimePermission(perm.name)
         val isGrantingAllowed = (!pkgInfo.isInstantApp || perm.isInstantPerm) &&
             (supportsRuntime || !perm.isRuntimeOnly)
         // Do not touch permissions fixed by the system, or permissions that cannot be granted
         if (!isGrantingAllowed || perm.isSystemFixed) {
-            return perm to false
+            return
         }
 
         var newFlags = perm.flags
         var isGranted = perm.isGrantedIncludingAppOp
-        var shouldKill = false
 
         // Grant the permission if needed.
         if (!perm.isGrantedIncludingAppOp) {
@@ -565,14 +540,14 @@ object KotlinUtils {
 
             // TODO 195016052: investigate adding split permission handling
             if (supportsRuntime) {
-                app.packageManager.grantRuntimePermission(group.packageName, perm.name, user)
+                mutations.grant(perm.name)
                 isGranted = true
             } else if (affectsAppOp) {
                 // Legacy apps do not know that they have to retry access to a
                 // resource due to changes in runtime permissions (app ops in this
                 // case). Therefore, we restart them on app op change, so they
                 // can pick up the change.
-                shouldKill = true
+                mutations.killApp()
                 isGranted = true
             }
             newFlags = newFlags.clearFlag(PackageManager.FLAG_PERMISSION_REVOKED_COMPAT)
@@ -580,7 +555,7 @@ object KotlinUtils {
             // If this permission affects an app op, ensure the permission app op is enabled
             // before the permission grant.
             if (affectsAppOp) {
-                allowAppOp(app, perm, group)
+                allowAppOp(perm, group, mutations)
             }
         }
 
@@ -618,14 +593,9 @@ object KotlinUtils {
             }
         }
 
-        if (perm.flags != newFlags) {
-            app.packageManager.updatePermissionFlags(perm.name, group.packageInfo.packageName,
-                PERMISSION_CONTROLLER_CHANGED_FLAG_MASK, newFlags, user)
-        }
-
         val newState = PermState(newFlags, isGranted)
-        return LightPermission(perm.pkgInfo, perm.permInfo, newState,
-            perm.foregroundPerms) to shouldKill
+        mutations.setPermission(LightPermission(perm.pkgInfo, perm.permInfo, newState,
+            perm.foregroundPerms))
     }
 
     /**
@@ -688,26 +658,17 @@ object KotlinUtils {
         filterPermissions: List<String>
     ): LightAppPermGroup {
         val wasOneTime = group.isOneTime
-        val newPerms = group.permissions.toMutableMap()
-        var shouldKillForAnyPermission = false
+        val mutations = AppPermGroupMutations(app, group)
         for (permName in filterPermissions) {
             val perm = group.permissions[permName] ?: continue
             val isBackgroundPerm = permName in group.backgroundPermNames
             if (isBackgroundPerm == revokeBackground) {
-                val (newPerm, shouldKill) =
-                    revokeRuntimePermission(app, perm, userFixed, oneTime, group)
-                newPerms[newPerm.name] = newPerm
-                shouldKillForAnyPermission = shouldKillForAnyPermission || shouldKill
+                revokeRuntimePermission(app, perm, userFixed, oneTime, group, mutations)
             }
         }
 
-        if (shouldKillForAnyPermission) {
-            (app.getSystemService(ActivityManager::class.java) as ActivityManager).killUid(
-                group.packageInfo.uid, KILL_REASON_APP_OP_CHANGE)
-        }
-
-        val newGroup = LightAppPermGroup(group.packageInfo, group.permGroupInfo, newPerms,
-            group.hasInstallToRuntimeSplit, group.specialLocationGrant)
+        val newGroup = mutations.apply(PERMISSION_CONTROLLER_CHANGED_FLAG_MASK,
+            Utils.KILL_REASON_APP_OP_CHANGE)
 
         if (wasOneTime && !anyPermsOfPackageOneTimeGranted(app, newGroup.packageInfo, newGroup)) {
             app.getSystemService(PermissionManager::class.java)!!.stopOneTimePermissionSession(
@@ -757,28 +718,25 @@ object KotlinUtils {
      * @param userFixed If the user requested that they do not want to be asked again
      * @param group An optional app permission group in which to look for background or foreground
      * permissions
-     *
-     * @return a LightPermission and boolean pair <permission with updated state (or the original
-     * state, if it wasn't changed), should kill app>
+     * @param mutations Collects the changes to apply to the system
      */
     private fun revokeRuntimePermission(
         app: Application,
         perm: LightPermission,
         userFixed: Boolean,
         oneTime: Boolean,
-        group: LightAppPermGroup
-    ): Pair<LightPermission, Boolean> {
+        group: LightAppPermGroup,
+        mutations: AppPermGroupMutations
+    ) {
         // Do not touch permissions fixed by the system.
         if (perm.isSystemFixed) {
-            return perm to false
+            return
         }
 
-        val user = UserHandle.getUserHandleForUid(group.packageInfo.uid)
         var newFlags = perm.flags
         var isGranted = perm.isGrantedIncludingAppOp
         val supportsRuntime = group.packageInfo.targetSdkVersion >= Build.VERSION_CODES.M
                 || Utils.isSpecialRuntimePermission(perm.name)
-        var shouldKill = false
 
         val affectsAppOp = permissionToOp(perm.name) != null || perm.isBackgroundPermission
 
@@ -786,8 +744,7 @@ object KotlinUtils {
             if (supportsRuntime && !isPermissionSplitFromNonRuntime(app, perm.name,
                             group.packageInfo.targetSdkVersion)) {
                 // Revoke the permission if needed.
-                app.packageManager.revokeRuntimePermission(group.packageInfo.packageName,
-                    perm.name, user)
+                mutations.revoke(perm.name)
                 isGranted = false
             } else if (affectsAppOp) {
                 // If the permission has no corresponding app op, then it is a
@@ -796,14 +753,14 @@ object KotlinUtils {
                 // Disabling an app op may put the app in a situation in which it
                 // has a handle to state it shouldn't have, so we have to kill the
                 // app. This matches the revoke runtime permission behavior.
-                shouldKill = true
+                mutations.killApp()
                 newFlags = newFlags.setFlag(PackageManager.FLAG_PERMISSION_REVOKED_COMPAT)
                 newFlags = newFlags.clearFlag(PackageManager.FLAG_PERMISSION_REVOKE_WHEN_REQUESTED)
                 isGranted = false
             }
 
             if (affectsAppOp) {
-                disallowAppOp(app, perm, group)
+                disallowAppOp(perm, group, mutations)
             }
         }
 
@@ -817,14 +774,9 @@ object KotlinUtils {
         else newFlags.clearFlag(PackageManager.FLAG_PERMISSION_ONE_TIME)
         newFlags = newFlags.clearFlag(PackageManager.FLAG_PERMISSION_AUTO_REVOKED)
 
-        if (perm.flags != newFlags) {
-            app.packageManager.updatePermissionFlags(perm.name, group.packageInfo.packageName,
-                PERMISSION_CONTROLLER_CHANGED_FLAG_MASK, newFlags, user)
-        }
-
         val newState = PermState(newFlags, isGranted)
-        return LightPermission(perm.pkgInfo, perm.permInfo, newState,
-            perm.foregroundPerms) to shouldKill
+        mutations.setPermission(LightPermission(perm.pkgInfo, perm.permInfo, newState,
+            perm.foregroundPerms))
     }
 
     private fun Int.setFlag(flagToSet: Int): Int {
@@ -854,53 +806,44 @@ object KotlinUtils {
      * {@link AppOpsManager#MODE_ALLOWED}</dd>
      * </dl>
      *
-     * @param app The current application
      * @param perm The LightPermission whose app op should be allowed
      * @param group The LightAppPermGroup which will be looked in for foreground or
      * background LightPermission objects
-     *
-     * @return {@code true} iff app-op was changed
+     * @param mutations Collects the app op modes to set
      */
     private fun allowAppOp(
-        app: Application,
         perm: LightPermission,
-        group: LightAppPermGroup
-    ): Boolean {
-        val packageName = group.packageInfo.packageName
-        val uid = group.packageInfo.uid
-        val appOpsManager = app.getSystemService(AppOpsManager::class.java) as AppOpsManager
-        var wasChanged = false
-
+        group: LightAppPermGroup,
+        mutations: AppPermGroupMutations
+    ) {
         if (perm.isBackgroundPermission && perm.foregroundPerms != null) {
             for (foregroundPermName in perm.foregroundPerms) {
                 val fgPerm = group.permissions[foregroundPermName]
                 val appOpName = permissionToOp(foregroundPermName) ?: continue
 
                 if (fgPerm != null && fgPerm.isGrantedIncludingAppOp) {
-                    wasChanged = wasChanged || setOpMode(appOpName, uid, packageName, MODE_ALLOWED,
-                        appOpsManager)
+                    mutations.setAppOpMode(appOpName, MODE_ALLOWED)
                 }
             }
         } else {
-            val appOpName = permissionToOp(perm.name) ?: return false
+            val appOpName = permissionToOp(perm.name) ?: return
             if (perm.backgroundPermission != null) {
-                wasChanged = if (group.permissions.containsKey(perm.backgroundPermission)) {
+                if (group.permissions.containsKey(perm.backgroundPermission)) {
                     val bgPerm = group.permissions[perm.backgroundPermission]
                     val mode = if (bgPerm != null && bgPerm.isGrantedIncludingAppOp) MODE_ALLOWED
                     else MODE_FOREGROUND
 
-                    setOpMode(appOpName, uid, packageName, mode, appOpsManager)
+                    mutations.setAppOpMode(appOpName, mode)
                 } else {
                     // The app requested a permission that has a background permission but it did
                     // not request the background permission, hence it can never get background
                     // access
-                    setOpMode(appOpName, uid, packageName, MODE_FOREGROUND, appOpsManager)
+                    mutations.setAppOpMode(appOpName, MODE_FOREGROUND)
                 }
             } else {
-                wasChanged = setOpMode(appOpName, uid, packageName, MODE_ALLOWED, appOpsManager)
+                mutations.setAppOpMode(appOpName, MODE_ALLOWED)
             }
         }
-        return wasChanged
     }
 
     /**
@@ -917,63 +860,28 @@ object KotlinUtils {
      * {@link AppOpsManager#MODE_FOREGROUND}</dd>
      * </dl>
      *
-     * @param app The current application
      * @param perm The LightPermission whose app op should be allowed
      * @param group The LightAppPermGroup which will be looked in for foreground or
      * background LightPermission objects
-     *
-     * @return {@code true} iff app-op was changed
+     * @param mutations Collects the app op modes to set
      */
     private fun disallowAppOp(
-        app: Application,
         perm: LightPermission,
-        group: LightAppPermGroup
-    ): Boolean {
-        val packageName = group.packageInfo.packageName
-        val uid = group.packageInfo.uid
-        val appOpsManager = app.getSystemService(AppOpsManager::class.java) as AppOpsManager
-        var wasChanged = false
-
+        group: LightAppPermGroup,
+        mutations: AppPermGroupMutations
+    ) {
         if (perm.isBackgroundPermission && perm.foregroundPerms != null) {
             for (foregroundPermName in perm.foregroundPerms) {
                 val fgPerm = group.permissions[foregroundPermName]
                 if (fgPerm != null && fgPerm.isGrantedIncludingAppOp) {
-                    val appOpName = permissionToOp(foregroundPermName) ?: return false
-                    wasChanged = wasChanged || setOpMode(appOpName, uid, packageName,
-                        MODE_FOREGROUND, appOpsManager)
+                    val appOpName = permissionToOp(foregroundPermName) ?: continue
+                    mutations.setAppOpMode(appOpName, MODE_FOREGROUND)
                 }
             }
         } else {
-            val appOpName = permissionToOp(perm.name) ?: return false
-            wasChanged = setOpMode(appOpName, uid, packageName, MODE_IGNORED, appOpsManager)
-        }
-        return wasChanged
-    }
-
-    /**
-     * Set mode of an app-op if needed.
-     *
-     * @param op The op to set
-     * @param uid The uid the app-op belongs to
-     * @param packageName The package the app-op belongs to
-     * @param mode The new mode
-     * @param manager The app ops manager to use to change the app op
-     *
-     * @return {@code true} iff app-op was changed
-     */
-    private fun setOpMode(
-        op: String,
-        uid: Int,
-        packageName: String,
-        mode: Int,
-        manager: AppOpsManager
-    ): Boolean {
-        val currentMode = manager.unsafeCheckOpRaw(op, uid, packageName)
-        if (currentMode == mode) {
-            return false
+            val appOpName = permissionToOp(perm.name) ?: return
+            mutations.setAppOpMode(appOpName, MODE_IGNORED)
         }
-        manager.setUidMode(op, uid, mode)
-        return true
     }
 
     /**
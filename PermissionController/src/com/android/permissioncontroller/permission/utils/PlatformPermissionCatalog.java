@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable catalog of the runtime platform permissions and their groups.
+ *
+ * <p>Every permission and group gets a small integer id at construction time. Membership of a
+ * permission in a group is stored as a bit set, all other lookups are hash or array lookups. The
+ * lists returned are shared and unmodifiable.
+ *
+ * <p>Backs the platform permission lookups of {@link Utils}.
+ */
+final class PlatformPermissionCatalog {
+    /** Id returned for unknown permissions and groups */
+    private static final int INVALID_ID = -1;
+
+    /** permission id -> name */
+    private final @NonNull String[] mPermissionNames;
+    /** group id -> name */
+    private final @NonNull String[] mGroupNames;
+
+    private final @NonNull HashMap<String, Integer> mPermissionIds = new HashMap<>();
+    private final @NonNull HashMap<String, Integer> mGroupIds = new HashMap<>();
+
+    /** permission id -> group id */
+    private final @NonNull int[] mGroupOfPermission;
+    /** group id -> ids of the permissions in the group */
+    private final @NonNull BitSet[] mPermissionsOfGroup;
+    /** group id -> names of the permissions in the group */
+    private final @NonNull List<String>[] mPermissionNamesOfGroup;
+
+    private final @NonNull List<String> mPermissionNameList;
+    private final @NonNull List<String> mGroupNameList;
+
+    /**
+     * Create a new catalog.
+     *
+     * @param permissionToGroup permission -> group for all runtime platform permissions, in the
+     *                          order the permissions should be listed
+     */
+    @SuppressWarnings("unchecked")
+    PlatformPermissionCatalog(@NonNull Map<String, String> permissionToGroup) {
+        int numPermissions = permissionToGroup.size();
+
+        mPermissionNames = new String[numPermissions];
+        mGroupOfPermission = new int[numPermissions];
+
+        ArrayList<String> groupNames = new ArrayList<>();
+        int permissionId = 0;
+        for (Map.Entry<String, String> permissionAndGroup : permissionToGroup.entrySet()) {
+            String permissionName = permissionAndGroup.getKey().intern();
+            String groupName = permissionAndGroup.getValue().intern();
+
+            Integer groupId = mGroupIds.get(groupName);
+            if (groupId == null) {
+                groupId = groupNames.size();
+                groupNames.add(groupName);
+                mGroupIds.put(groupName, groupId);
+            }
+
+            mPermissionNames[permissionId] = permissionName;
+            mPermissionIds.put(permissionName, permissionId);
+            mGroupOfPermission[permissionId] = groupId;
+            permissionId++;
+        }
+
+        int numGroups = groupNames.size();
+        mGroupNames = groupNames.toArray(new String[numGroups]);
+        mPermissionsOfGroup = new BitSet[numGroups];
+        mPermissionNamesOfGroup = new List[numGroups];
+        for (int groupId = 0; groupId < numGroups; groupId++) {
+            mPermissionsOfGroup[groupId] = new BitSet(numPermissions);
+        }
+
+        ArrayList<String>[] permissionNamesOfGroup = new ArrayList[numGroups];
+        for (int groupId = 0; groupId < numGroups; groupId++) {
+            permissionNamesOfGroup[groupId] = new ArrayList<>();
+        }
+        for (permissionId = 0; permissionId < numPermissions; permissionId++) {
+            int groupId = mGroupOfPermission[permissionId];
+
+            mPermissionsOfGroup[groupId].set(permissionId);
+            permissionNamesOfGroup[groupId].add(mPermissionNames[permissionId]);
+        }
+        for (int groupId = 0; groupId < numGroups; groupId++) {
+            mPermissionNamesOfGroup[groupId] = Collections.unmodifiableList(
+                    permissionNamesOfGroup[groupId]);
+        }
+
+        mPermissionNameList = Collections.unmodifiableList(Arrays.asList(mPermissionNames));
+        mGroupNameList = Collections.unmodifiableList(Arrays.asList(mGroupNames));
+    }
+
+    /**
+     * @param permission the name of the permission
+     *
+     * @return the id of the permission or {@link #INVALID_ID} if it is not a runtime platform
+     * permission
+     */
+    private int getPermissionId(@Nullable String permission) {
+        Integer id = mPermissionIds.get(permission);
+        return id == null ? INVALID_ID : id;
+    }
+
+    /**
+     * @param group the name of the group
+     *
+     * @return the id of the group or {@link #INVALID_ID} if it is not a platform permission group
+     */
+    private int getGroupId(@Nullable String group) {
+        Integer id = mGroupIds.get(group);
+        return id == null ? INVALID_ID : id;
+    }
+
+    /**
+     * @return the names of all runtime platform permissions
+     */
+    public @NonNull List<String> getPermissionNames() {
+        return mPermissionNameList;
+    }
+
+    /**
+     * @return the names of all platform permission groups
+     */
+    public @NonNull List<String> getGroupNames() {
+        return mGroupNameList;
+    }
+
+    /**
+     * @param permission the name of the permission
+     *
+     * @return {@code true} iff the permission is a runtime platform permission
+     */
+    public boolean isPlatformPermission(@Nullable String permission) {
+        return mPermissionIds.containsKey(permission);
+    }
+
+    /**
+     * @param group the name of the group
+     *
+     * @return {@code true} iff the group is a platform permission group
+     */
+    public boolean isPlatformGroup(@Nullable String group) {
+        return mGroupIds.containsKey(group);
+    }
+
+    /**
+     * @param permission the name of the permission
+     *
+     * @return the group of the permission or {@code null} if it is not a runtime platform
+     * permission
+     */
+    public @Nullable String getGroupOfPermission(@Nullable String permission) {
+        int permissionId = getPermissionId(permission);
+        return permissionId == INVALID_ID ? null : mGroupNames[mGroupOfPermission[permissionId]];
+    }
+
+    /**
+     * @param group the name of the group
+     *
+     * @return the names of the runtime platform permissions of the group, empty if the group is not
+     * a platform permission group
+     */
+    public @NonNull List<String> getPermissionNamesOfGroup(@Nullable String group) {
+        int groupId = getGroupId(group);
+        return groupId == INVALID_ID ? Collections.emptyList() : mPermissionNamesOfGroup[groupId];
+    }
+
+    /**
+     * @param permission the name of the permission
+     * @param group the name of the group
+     *
+     * @return {@code true} iff the permission is a runtime platform permission of the group
+     */
+    public boolean isPermissionOfGroup(@Nullable String permission, @Nullable String group) {
+        int permissionId = getPermissionId(permission);
+        int groupId = getGroupId(group);
+        return permissionId != INVALID_ID && groupId != INVALID_ID
+                && mPermissionsOfGroup[groupId].get(permissionId);
+    }
+}
@@ -133,6 +133,9 @@ public final class Utils {
 
     public static final String OS_PKG = "android";
 
+    /** The reason passed when killing an app because an app op of its permissions changed */
+    public static final String KILL_REASON_APP_OP_CHANGE = "Permission related app op changed";
+
     public static final float DEFAULT_MAX_LABEL_SIZE_PX = 500f;
 
     /** The time an app needs to be unused in order to be hibernated */
@@ -184,8 +187,8 @@ public final class Utils {
     /** Mapping permission -> group for all dangerous platform permissions */
     private static final ArrayMap<String, String> PLATFORM_PERMISSIONS;
 
-    /** Mapping group -> permissions for all dangerous platform permissions */
-    private static final ArrayMap<String, ArrayList<String>> PLATFORM_PERMISSION_GROUPS;
+    /** Lookup table for all dangerous platform permissions and their groups */
+    private static final PlatformPermissionCatalog PLATFORM_PERMISSION_CATALOG;
 
     /** Set of groups that will be able to receive one-time grant */
     private static final ArraySet<String> ONE_TIME_PERMISSION_GROUPS;
@@ -293,21 +296,7 @@ public final class Utils {
         SPECIAL_RUNTIME_PERMISSIONS.put(Manifest.permission.INTERNET, NETWORK);
         SPECIAL_RUNTIME_PERMISSIONS.put(Manifest.permission.OTHER_SENSORS, OTHER_SENSORS);
 
-        PLATFORM_PERMISSION_GROUPS = new ArrayMap<>();
-        int numPlatformPermissions = PLATFORM_PERMISSIONS.size();
-        for (int i = 0; i < numPlatformPermissions; i++) {
-            String permission = PLATFORM_PERMISSIONS.keyAt(i);
-            String permissionGroup = PLATFORM_PERMISSIONS.valueAt(i);
-
-            ArrayList<String> permissionsOfThisGroup = PLATFORM_PERMISSION_GROUPS.get(
-                    permissionGroup);
-            if (permissionsOfThisGroup == null) {
-                permissionsOfThisGroup = new ArrayList<>();
-                PLATFORM_PERMISSION_GROUPS.put(permissionGroup, permissionsOfThisGroup);
-            }
-
-            permissionsOfThisGroup.add(permission);
-        }
+        PLATFORM_PERMISSION_CATALOG = new PlatformPermissionCatalog(PLATFORM_PERMISSIONS);
 
         ONE_TIME_PERMISSION_GROUPS = new ArraySet<>();
         ONE_TIME_PERMISSION_GROUPS.add(LOCATION);
@@ -451,7 +440,20 @@ public final class Utils {
      * @return The group the permission belongs to
      */
     public static @Nullable String getGroupOfPlatformPermission(@NonNull String permission) {
-        return PLATFORM_PERMISSIONS.get(permission);
+        return PLATFORM_PERMISSION_CATALOG.getGroupOfPermission(permission);
+    }
+
+    /**
+     * Is a permission a runtime platform permission of a group.
+     *
+     * @param permission the permission to check
+     * @param group the group
+     *
+     * @return {@code true} iff the permission belongs to the platform permission group
+     */
+    public static boolean isPlatformPermissionOfGroup(@NonNull String permission,
+            @NonNull String group) {
+        return PLATFORM_PERMISSION_CATALOG.isPermissionOfGroup(permission, group);
     }
 
     /**
@@ -475,12 +477,11 @@ public final class Utils {
      *
      * @param group the group
      *
-     * @return The permission names  or an empty list if the
+     * @return The unmodifiable permission names or an empty list if the
      *         group is not does not have platform runtime permissions
      */
     public static @NonNull List<String> getPlatformPermissionNamesOfGroup(@NonNull String group) {
-        final ArrayList<String> permissions = PLATFORM_PERMISSION_GROUPS.get(group);
-        return (permissions != null) ? permissions : Collections.emptyList();
+        return PLATFORM_PERMISSION_CATALOG.getPermissionNamesOfGroup(group);
     }
 
     /**
@@ -496,8 +497,8 @@ public final class Utils {
             @NonNull PackageManager pm, @NonNull String group) {
         ArrayList<PermissionInfo> permInfos = new ArrayList<>();
 
-        ArrayList<String> permissions = PLATFORM_PERMISSION_GROUPS.get(group);
-        if (permissions == null) {
+        List<String> permissions = PLATFORM_PERMISSION_CATALOG.getPermissionNamesOfGroup(group);
+        if (permissions.isEmpty()) {
             return Collections.emptyList();
         }
 
@@ -702,25 +703,25 @@ public final class Utils {
     }
 
     public static boolean isModernPermissionGroup(String name) {
-        return PLATFORM_PERMISSION_GROUPS.containsKey(name);
+        return PLATFORM_PERMISSION_CATALOG.isPlatformGroup(name);
     }
 
     /**
      * Get the names of the platform permission groups.
      *
-     * @return the names of the platform permission groups.
+     * @return the unmodifiable names of the platform permission groups.
      */
     public static List<String> getPlatformPermissionGroups() {
-        return new ArrayList<>(PLATFORM_PERMISSION_GROUPS.keySet());
+        return PLATFORM_PERMISSION_CATALOG.getGroupNames();
     }
 
     /**
      * Get the names of the runtime platform permissions
      *
-     * @return the names of the runtime platform permissions.
+     * @return the unmodifiable names of the runtime platform permissions.
      */
     public static List<String> getRuntimePlatformPermissionNames() {
-        return new ArrayList<>(PLATFORM_PERMISSIONS.keySet());
+        return PLATFORM_PERMISSION_CATALOG.getPermissionNames();
     }
 
     /**
@@ -729,7 +730,7 @@ public final class Utils {
      * @return the names of the runtime platform permissions.
      */
     public static boolean isRuntimePlatformPermission(@NonNull String permission) {
-        return PLATFORM_PERMISSIONS.containsKey(permission);
+        return PLATFORM_PERMISSION_CATALOG.isPlatformPermission(permission);
     }
 
     /**
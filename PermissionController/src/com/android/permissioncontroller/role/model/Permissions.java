@@ -180,16 +180,14 @@ public class Permissions {
         Set<String> whitelistedRestrictedPermissions = new ArraySet<>(
                 packageManager.getWhitelistedRestrictedPermissions(packageName,
                         PackageManager.FLAG_PERMISSION_WHITELIST_SYSTEM));
-        List<String> smsPermissions = Utils.getPlatformPermissionNamesOfGroup(
-                Manifest.permission_group.SMS);
-        List<String> callLogPermissions = Utils.getPlatformPermissionNamesOfGroup(
-                Manifest.permission_group.CALL_LOG);
 
         int sortedPermissionsToGrantLength = sortedPermissionsToGrant.length;
         for (int i = 0; i < sortedPermissionsToGrantLength; i++) {
             String permission = sortedPermissionsToGrant[i];
 
-            if ((smsPermissions.contains(permission) || callLogPermissions.contains(permission))
+            if ((Utils.isPlatformPermissionOfGroup(permission, Manifest.permission_group.SMS)
+                    || Utils.isPlatformPermissionOfGroup(permission,
+                    Manifest.permission_group.CALL_LOG))
                     && whitelistedRestrictedPermissions.add(permission)) {
                 packageManager.addWhitelistedRestrictedPermission(packageName, permission,
                         PackageManager.FLAG_PERMISSION_WHITELIST_SYSTEM);
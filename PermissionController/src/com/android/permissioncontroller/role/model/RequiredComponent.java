@@ -85,8 +85,24 @@ public abstract class RequiredComponent {
     @Nullable
     public ComponentName getQualifyingComponentForPackage(@NonNull String packageName,
             @NonNull Context context) {
-        List<ComponentName> componentNames = getQualifyingComponentsInternal(packageName,
-                Process.myUserHandle(), context);
+        return getQualifyingComponentForPackageAsUser(packageName, Process.myUserHandle(),
+                context);
+    }
+
+    /**
+     * Get the component that matches this required component within a package of a user, if any.
+     *
+     * @param packageName the package name for this query
+     * @param user the user of the package
+     * @param context the {@code Context} to retrieve system services
+     *
+     * @return the matching component, or {@code null} if none.
+     */
+    @Nullable
+    public ComponentName getQualifyingComponentForPackageAsUser(@NonNull String packageName,
+            @NonNull UserHandle user, @NonNull Context context) {
+        List<ComponentName> componentNames = getQualifyingComponentsInternal(packageName, user,
+                context);
         return !componentNames.isEmpty() ? componentNames.get(0) : null;
     }
 
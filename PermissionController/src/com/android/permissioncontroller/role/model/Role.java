@@ -647,6 +647,35 @@ public class Role {
         return true;
     }
 
+    /**
+     * Check whether a package of a user might be in the list of
+     * {@link #getQualifyingPackagesAsUser(UserHandle, Context) qualifying packages}. This only
+     * queries the components of the package, hence it is much cheaper than getting the list.
+     *
+     * @param packageName the package name to check for
+     * @param user the user of the package
+     * @param context the {@code Context} to retrieve system services
+     *
+     * @return {@code false} if the package is certainly not qualified for this role
+     */
+    public boolean mightPackageBeQualifiedAsUser(@NonNull String packageName,
+            @NonNull UserHandle user, @NonNull Context context) {
+        // The behavior might select the qualifying packages in any way
+        if (mBehavior != null) {
+            return true;
+        }
+
+        int requiredComponentsSize = mRequiredComponents.size();
+        for (int i = 0; i < requiredComponentsSize; i++) {
+            RequiredComponent requiredComponent = mRequiredComponents.get(i);
+            if (requiredComponent.getQualifyingComponentForPackageAsUser(packageName, user,
+                    context) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Get the list of packages that are qualified for this role, i.e. packages containing all the
      * required components (plus meeting some other general restrictions).
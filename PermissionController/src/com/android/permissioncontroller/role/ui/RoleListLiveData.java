@@ -16,22 +16,14 @@
 
 package com.android.permissioncontroller.role.ui;
 
-import android.app.role.OnRoleHoldersChangedListener;
-import android.app.role.RoleManager;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
 import android.os.UserHandle;
 import android.util.ArrayMap;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.WorkerThread;
+import androidx.annotation.Nullable;
 import androidx.lifecycle.LiveData;
-
-import com.android.permissioncontroller.AsyncTaskLiveData;
-import com.android.permissioncontroller.role.model.Role;
-import com.android.permissioncontroller.role.model.Roles;
-import com.android.permissioncontroller.role.utils.PackageUtils;
+import androidx.lifecycle.MediatorLiveData;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -39,92 +31,43 @@ import java.util.List;
 /**
  * {@link LiveData} for a list of roles.
  */
-public class RoleListLiveData extends AsyncTaskLiveData<List<RoleItem>>
-        implements OnRoleHoldersChangedListener {
-
-    private static final String LOG_TAG = RoleListLiveData.class.getSimpleName();
+public class RoleListLiveData extends MediatorLiveData<List<RoleItem>> {
 
     private final boolean mExclusive;
-    @NonNull
-    private final UserHandle mUser;
-    @NonNull
-    private final Context mContext;
 
     public RoleListLiveData(boolean exclusive, @NonNull UserHandle user, @NonNull Context context) {
         mExclusive = exclusive;
-        mUser = user;
-        mContext = context;
-    }
-
-    @Override
-    protected void onActive() {
-        loadValue();
-
-        RoleManager roleManager = mContext.getSystemService(RoleManager.class);
-        roleManager.addOnRoleHoldersChangedListenerAsUser(mContext.getMainExecutor(), this,
-                mUser);
-    }
-
-    @Override
-    protected void onInactive() {
-        RoleManager roleManager = mContext.getSystemService(RoleManager.class);
-        roleManager.removeOnRoleHoldersChangedListenerAsUser(this, mUser);
-    }
 
-    @Override
-    public void onRoleHoldersChanged(@NonNull String roleName, @NonNull UserHandle user) {
-        loadValue();
+        addSource(RoleStatesLiveData.get(user, context), this::onRoleStatesChanged);
     }
 
-    @NonNull
-    @Override
-    @WorkerThread
-    protected List<RoleItem> loadValueInBackground() {
-        ArrayMap<String, Role> roles = Roles.get(mContext);
+    private void onRoleStatesChanged(@Nullable ArrayMap<String, RoleState> roleStates) {
+        if (roleStates == null) {
+            // The state is being loaded again
+            return;
+        }
 
         List<RoleItem> roleItems = new ArrayList<>();
-        RoleManager roleManager = mContext.getSystemService(RoleManager.class);
-        int rolesSize = roles.size();
-        for (int rolesIndex = 0; rolesIndex < rolesSize; rolesIndex++) {
-            Role role = roles.valueAt(rolesIndex);
-
-            if (role.isExclusive() != mExclusive) {
-                continue;
-            }
+        int roleStatesSize = roleStates.size();
+        for (int i = 0; i < roleStatesSize; i++) {
+            RoleState roleState = roleStates.valueAt(i);
 
-            if (!role.isAvailableAsUser(mUser, mContext)) {
+            if (roleState.getRole().isExclusive() != mExclusive) {
                 continue;
             }
 
-            if (!role.isVisibleAsUser(mUser, mContext)) {
+            if (!roleState.isVisible()) {
                 continue;
             }
 
-            if (mExclusive && role.getQualifyingPackagesAsUser(mUser, mContext).isEmpty()) {
+            if (mExclusive && roleState.getQualifyingPackageNames().isEmpty()) {
                 continue;
             }
 
-            List<ApplicationInfo> holderApplicationInfos = new ArrayList<>();
-            List<String> holderPackageNames = roleManager.getRoleHoldersAsUser(role.getName(),
-                    mUser);
-            int holderPackageNamesSize = holderPackageNames.size();
-            for (int holderPackageNamesIndex = 0; holderPackageNamesIndex < holderPackageNamesSize;
-                    holderPackageNamesIndex++) {
-                String holderPackageName = holderPackageNames.get(holderPackageNamesIndex);
-
-                ApplicationInfo holderApplicationInfo = PackageUtils.getApplicationInfoAsUser(
-                        holderPackageName, mUser, mContext);
-                if (holderApplicationInfo == null) {
-                    Log.w(LOG_TAG, "Cannot get ApplicationInfo for application, package name: "
-                            + holderPackageName + ", user id: " + mUser.getIdentifier());
-                    continue;
-                }
-                holderApplicationInfos.add(holderApplicationInfo);
-            }
-
-            roleItems.add(new RoleItem(role, holderApplicationInfos));
+            roleItems.add(new RoleItem(roleState.getRole(),
+                    roleState.getHolderApplicationInfos()));
         }
 
-        return roleItems;
+        setValue(roleItems);
     }
 }
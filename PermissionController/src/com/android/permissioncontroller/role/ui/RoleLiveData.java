@@ -16,21 +16,18 @@
 
 package com.android.permissioncontroller.role.ui;
 
-import android.app.role.OnRoleHoldersChangedListener;
-import android.app.role.RoleManager;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.os.UserHandle;
-import android.util.Log;
+import android.util.ArrayMap;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.WorkerThread;
+import androidx.annotation.Nullable;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MediatorLiveData;
 
-import com.android.permissioncontroller.AsyncTaskLiveData;
 import com.android.permissioncontroller.role.model.Role;
-import com.android.permissioncontroller.role.utils.PackageUtils;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -38,69 +35,54 @@ import java.util.List;
 /**
  * {@link LiveData} for a role.
  */
-public class RoleLiveData extends AsyncTaskLiveData<List<Pair<ApplicationInfo, Boolean>>>
-        implements OnRoleHoldersChangedListener {
-
-    private static final String LOG_TAG = RoleLiveData.class.getSimpleName();
+public class RoleLiveData extends MediatorLiveData<List<Pair<ApplicationInfo, Boolean>>> {
 
     @NonNull
     private final Role mRole;
-    @NonNull
-    private final UserHandle mUser;
-    @NonNull
-    private final Context mContext;
+
+    /**
+     * The state the value was computed from, states of unchanged roles are reused by
+     * {@link RoleStatesLiveData}.
+     */
+    @Nullable
+    private RoleState mRoleState;
 
     public RoleLiveData(@NonNull Role role, @NonNull UserHandle user, @NonNull Context context) {
         mRole = role;
-        mUser = user;
-        mContext = context;
-    }
-
-    @Override
-    protected void onActive() {
-        loadValue();
 
-        RoleManager roleManager = mContext.getSystemService(RoleManager.class);
-        roleManager.addOnRoleHoldersChangedListenerAsUser(mContext.getMainExecutor(), this, mUser);
+        addSource(RoleStatesLiveData.get(user, context), this::onRoleStatesChanged);
     }
 
-    @Override
-    protected void onInactive() {
-        RoleManager roleManager = mContext.getSystemService(RoleManager.class);
-        roleManager.removeOnRoleHoldersChangedListenerAsUser(this, mUser);
-    }
+    private void onRoleStatesChanged(@Nullable ArrayMap<String, RoleState> roleStates) {
+        if (roleStates == null) {
+            // The state is being loaded again
+            return;
+        }
 
-    @Override
-    public void onRoleHoldersChanged(@NonNull String roleName, @NonNull UserHandle user) {
-        loadValue();
-    }
+        RoleState roleState = roleStates.get(mRole.getName());
+        if (getValue() != null && roleState == mRoleState) {
+            return;
+        }
+        mRoleState = roleState;
 
-    @Override
-    @WorkerThread
-    protected List<Pair<ApplicationInfo, Boolean>> loadValueInBackground() {
-        RoleManager roleManager = mContext.getSystemService(RoleManager.class);
-        List<String> holderPackageNames = roleManager.getRoleHoldersAsUser(mRole.getName(), mUser);
+        if (roleState == null) {
+            setValue(new ArrayList<>());
+            return;
+        }
 
-        List<String> qualifyingPackageNames = mRole.getQualifyingPackagesAsUser(mUser, mContext);
+        List<String> holderPackageNames = roleState.getHolderPackageNames();
+        List<ApplicationInfo> qualifyingApplicationInfos =
+                roleState.getVisibleQualifyingApplicationInfos();
         List<Pair<ApplicationInfo, Boolean>> qualifyingApplications = new ArrayList<>();
-        int qualifyingPackageNamesSize = qualifyingPackageNames.size();
-        for (int i = 0; i < qualifyingPackageNamesSize; i++) {
-            String qualifyingPackageName = qualifyingPackageNames.get(i);
-
-            ApplicationInfo qualifyingApplicationInfo = PackageUtils.getApplicationInfoAsUser(
-                    qualifyingPackageName, mUser, mContext);
-            if (qualifyingApplicationInfo == null) {
-                Log.w(LOG_TAG, "Cannot get ApplicationInfo for application, skipping: "
-                        + qualifyingPackageName);
-                continue;
-            }
-            if (!mRole.isApplicationVisibleAsUser(qualifyingApplicationInfo, mUser, mContext)) {
-                continue;
-            }
-            boolean isHolderApplication = holderPackageNames.contains(qualifyingPackageName);
+        int qualifyingApplicationInfosSize = qualifyingApplicationInfos.size();
+        for (int i = 0; i < qualifyingApplicationInfosSize; i++) {
+            ApplicationInfo qualifyingApplicationInfo = qualifyingApplicationInfos.get(i);
+
+            boolean isHolderApplication = holderPackageNames.contains(
+                    qualifyingApplicationInfo.packageName);
             qualifyingApplications.add(new Pair<>(qualifyingApplicationInfo, isHolderApplication));
         }
 
-        return qualifyingApplications;
+        setValue(qualifyingApplications);
     }
 }
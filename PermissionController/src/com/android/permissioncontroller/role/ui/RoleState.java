@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.role.ui;
+
+import android.content.pm.ApplicationInfo;
+
+import androidx.annotation.NonNull;
+
+import com.android.permissioncontroller.role.model.Role;
+
+import java.util.List;
+
+/**
+ * Snapshot of the state of a role for a user, as needed by the role screens.
+ *
+ * @see RoleStatesLiveData
+ */
+public class RoleState {
+
+    /**
+     * The {@link Role} for this role.
+     */
+    @NonNull
+    private final Role mRole;
+
+    /**
+     * Whether the role is available for the user.
+     */
+    private final boolean mAvailable;
+
+    /**
+     * Whether the role is available and visible to the user.
+     */
+    private final boolean mVisible;
+
+    /**
+     * The names of the packages qualifying for the role, empty if the role is not visible.
+     */
+    @NonNull
+    private final List<String> mQualifyingPackageNames;
+
+    /**
+     * The {@link ApplicationInfo} of the qualifying applications that should be visible to the
+     * user, empty if the role is not visible.
+     */
+    @NonNull
+    private final List<ApplicationInfo> mVisibleQualifyingApplicationInfos;
+
+    /**
+     * The names of the packages holding the role.
+     */
+    @NonNull
+    private final List<String> mHolderPackageNames;
+
+    /**
+     * The {@link ApplicationInfo} of the applications holding the role.
+     */
+    @NonNull
+    private final List<ApplicationInfo> mHolderApplicationInfos;
+
+    public RoleState(@NonNull Role role, boolean available, boolean visible,
+            @NonNull List<String> qualifyingPackageNames,
+            @NonNull List<ApplicationInfo> visibleQualifyingApplicationInfos,
+            @NonNull List<String> holderPackageNames,
+            @NonNull List<ApplicationInfo> holderApplicationInfos) {
+        mRole = role;
+        mAvailable = available;
+        mVisible = visible;
+        mQualifyingPackageNames = qualifyingPackageNames;
+        mVisibleQualifyingApplicationInfos = visibleQualifyingApplicationInfos;
+        mHolderPackageNames = holderPackageNames;
+        mHolderApplicationInfos = holderApplicationInfos;
+    }
+
+    @NonNull
+    public Role getRole() {
+        return mRole;
+    }
+
+    public boolean isAvailable() {
+        return mAvailable;
+    }
+
+    public boolean isVisible() {
+        return mVisible;
+    }
+
+    @NonNull
+    public List<String> getQualifyingPackageNames() {
+        return mQualifyingPackageNames;
+    }
+
+    @NonNull
+    public List<ApplicationInfo> getVisibleQualifyingApplicationInfos() {
+        return mVisibleQualifyingApplicationInfos;
+    }
+
+    @NonNull
+    public List<String> getHolderPackageNames() {
+        return mHolderPackageNames;
+    }
+
+    @NonNull
+    public List<ApplicationInfo> getHolderApplicationInfos() {
+        return mHolderApplicationInfos;
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.role.ui;
+
+import android.app.role.OnRoleHoldersChangedListener;
+import android.app.role.RoleManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import androidx.lifecycle.LiveData;
+
+import com.android.permissioncontroller.CoalescingAsyncLiveData;
+import com.android.permissioncontroller.permission.data.PackageBroadcastReceiver;
+import com.android.permissioncontroller.permission.data.PackageEvent;
+import com.android.permissioncontroller.permission.data.PackageEventFilter;
+import com.android.permissioncontroller.role.model.Role;
+import com.android.permissioncontroller.role.model.Roles;
+import com.android.permissioncontroller.role.utils.PackageUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link LiveData} for the state of all roles of a user, shared by all role screens of the user.
+ *
+ * <p>The state is loaded once and then updated incrementally: a change of role holders only
+ * reloads the holders of that role, a package change reuses the {@link ApplicationInfo} of all
+ * other packages and only reloads the qualifying packages of the roles the changed packages
+ * might qualify for. The state stays up to date for a short while after the last observer is
+ * gone, so navigating between role screens does not load it again. After that the value is reset
+ * to {@code null}, so that the outdated state is not delivered once the state is observed again.
+ *
+ * <p>The value maps role names to their {@link RoleState} and must not be modified. It is
+ * {@code null} until the state was loaded.
+ */
+public class RoleStatesLiveData extends CoalescingAsyncLiveData<ArrayMap<String, RoleState>>
+        implements OnRoleHoldersChangedListener,
+        PackageBroadcastReceiver.PackageEventListener {
+
+    private static final String LOG_TAG = RoleStatesLiveData.class.getSimpleName();
+
+    /**
+     * How long to keep the state up to date after the last observer is gone.
+     */
+    private static final long STOP_LISTENING_DELAY_MILLIS = 5000;
+
+    @NonNull
+    private static final ArrayMap<UserHandle, RoleStatesLiveData> sInstances = new ArrayMap<>();
+
+    @NonNull
+    private final UserHandle mUser;
+    @NonNull
+    private final Context mContext;
+
+    @NonNull
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    @NonNull
+    private final Runnable mStopListeningRunnable = this::stopListening;
+
+    private boolean mIsListening;
+
+    private final Object mLock = new Object();
+
+    /**
+     * The roles whose holders changed since the last load, {@code null} if all roles need to be
+     * loaded.
+     */
+    @GuardedBy("mLock")
+    @Nullable
+    private ArraySet<String> mChangedRoleNames;
+
+    /**
+     * The packages that changed since the last load.
+     */
+    @GuardedBy("mLock")
+    @NonNull
+    private ArraySet<String> mChangedPackageNames = new ArraySet<>();
+
+    /**
+     * The packages that were installed, updated or changed since the last load, i.e. the changed
+     * packages that might now qualify for roles they did not qualify for before.
+     */
+    @GuardedBy("mLock")
+    @NonNull
+    private ArraySet<String> mInstalledChangedPackageNames = new ArraySet<>();
+
+    /**
+     * Role name -> state of the last load, only accessed by {@link #loadValueInBackground()}.
+     */
+    @Nullable
+    private ArrayMap<String, RoleState> mRoleStates;
+
+    /**
+     * Package name -> {@link ApplicationInfo}, {@code null} if the package does not exist. Only
+     * accessed by {@link #loadValueInBackground()}.
+     */
+    @NonNull
+    private final ArrayMap<String, ApplicationInfo> mApplicationInfos = new ArrayMap<>();
+
+    /**
+     * Get the shared {@link RoleStatesLiveData} of a user.
+     *
+     * @param user the user
+     * @param context the {@code Context} to retrieve system services
+     *
+     * @return the {@link RoleStatesLiveData} of the user
+     */
+    @MainThread
+    @NonNull
+    public static RoleStatesLiveData get(@NonNull UserHandle user, @NonNull Context context) {
+        RoleStatesLiveData liveData = sInstances.get(user);
+        if (liveData == null) {
+            liveData = new RoleStatesLiveData(user, context.getApplicationContext());
+            sInstances.put(user, liveData);
+        }
+        return liveData;
+    }
+
+    private RoleStatesLiveData(@NonNull UserHandle user, @NonNull Context context) {
+        mUser = user;
+        mContext = context;
+    }
+
+    @Override
+    protected void onActive() {
+        mMainHandler.removeCallbacks(mStopListeningRunnable);
+        if (mIsListening) {
+            return;
+        }
+
+        // Roles and packages might have changed while we were not listening.
+        synchronized (mLock) {
+            mChangedRoleNames = null;
+        }
+        loadValue();
+
+        RoleManager roleManager = mContext.getSystemService(RoleManager.class);
+        roleManager.addOnRoleHoldersChangedListenerAsUser(mContext.getMainExecutor(), this,
+                mUser);
+        // Whether a package qualifies for a role may depend on its components
+        PackageBroadcastReceiver.INSTANCE.addEventCallback(new PackageEventFilter(null, mUser,
+                PackageEventFilter.ALL_KINDS), this);
+        mIsListening = true;
+    }
+
+    @Override
+    protected void onInactive() {
+        mMainHandler.postDelayed(mStopListeningRunnable, STOP_LISTENING_DELAY_MILLIS);
+    }
+
+    @MainThread
+    private void stopListening() {
+        RoleManager roleManager = mContext.getSystemService(RoleManager.class);
+        roleManager.removeOnRoleHoldersChangedListenerAsUser(this, mUser);
+        PackageBroadcastReceiver.INSTANCE.removeEventCallback(this);
+        mIsListening = false;
+        cancelLoad();
+        // The state is not updated anymore, new observers must wait for it to be loaded again
+        setValue(null);
+    }
+
+    @Override
+    public void onRoleHoldersChanged(@NonNull String roleName, @NonNull UserHandle user) {
+        synchronized (mLock) {
+            if (mChangedRoleNames != null) {
+                mChangedRoleNames.add(roleName);
+            }
+        }
+        loadValue();
+    }
+
+    @Override
+    public void onPackageEvents(@NonNull List<PackageEvent> events) {
+        synchronized (mLock) {
+            int eventsSize = events.size();
+            for (int i = 0; i < eventsSize; i++) {
+                PackageEvent event = events.get(i);
+                mChangedPackageNames.add(event.getPackageName());
+                if (event.getKind() != PackageEvent.Kind.REMOVED) {
+                    mInstalledChangedPackageNames.add(event.getPackageName());
+                }
+            }
+        }
+        loadValue();
+    }
+
+    @NonNull
+    @Override
+    @WorkerThread
+    protected ArrayMap<String, RoleState> loadValueInBackground() {
+        ArraySet<String> changedRoleNames;
+        ArraySet<String> changedPackageNames;
+        ArraySet<String> installedChangedPackageNames;
+        synchronized (mLock) {
+            changedRoleNames = mChangedRoleNames;
+            changedPackageNames = mChangedPackageNames;
+            installedChangedPackageNames = mInstalledChangedPackageNames;
+            mChangedRoleNames = new ArraySet<>();
+            mChangedPackageNames = new ArraySet<>();
+            mInstalledChangedPackageNames = new ArraySet<>();
+        }
+
+        ArrayMap<String, RoleState> previousRoleStates = changedRoleNames != null ? mRoleStates
+                : null;
+        if (previousRoleStates == null) {
+            mApplicationInfos.clear();
+        } else {
+            mApplicationInfos.removeAll(changedPackageNames);
+        }
+        boolean packagesChanged = !changedPackageNames.isEmpty();
+
+        ArrayMap<String, Role> roles = Roles.get(mContext);
+        int rolesSize = roles.size();
+        ArrayMap<String, RoleState> roleStates = new ArrayMap<>(rolesSize);
+        for (int rolesIndex = 0; rolesIndex < rolesSize; rolesIndex++) {
+            Role role = roles.valueAt(rolesIndex);
+            String roleName = role.getName();
+
+            RoleState previousRoleState = previousRoleStates != null
+                    ? previousRoleStates.get(roleName) : null;
+            boolean holdersChanged = previousRoleState == null
+                    || changedRoleNames.contains(roleName)
+                    || containsAny(changedPackageNames,
+                            previousRoleState.getHolderPackageNames());
+            if (!holdersChanged && !packagesChanged) {
+                roleStates.put(roleName, previousRoleState);
+                continue;
+            }
+
+            roleStates.put(roleName, loadRoleState(role, previousRoleState, holdersChanged,
+                    changedPackageNames, installedChangedPackageNames));
+        }
+        mRoleStates = roleStates;
+
+        return roleStates;
+    }
+
+    /**
+     * Load the state of a role.
+     *
+     * @param role the role
+     * @param previousRoleState the previous state of the role, or {@code null} if there is none
+     * @param holdersChanged whether the holders of the role need to be loaded
+     * @param changedPackageNames the packages that changed since the previous state was loaded
+     * @param installedChangedPackageNames the changed packages that were not removed
+     *
+     * @return the state of the role
+     */
+    @NonNull
+    @WorkerThread
+    private RoleState loadRoleState(@NonNull Role role, @Nullable RoleState previousRoleState,
+            boolean holdersChanged, @NonNull ArraySet<String> changedPackageNames,
+            @NonNull ArraySet<String> installedChangedPackageNames) {
+        boolean available = role.isAvailableAsUser(mUser, mContext);
+        boolean visible = available && role.isVisibleAsUser(mUser, mContext);
+
+        List<String> qualifyingPackageNames = Collections.emptyList();
+        List<ApplicationInfo> visibleQualifyingApplicationInfos = Collections.emptyList();
+        if (visible && previousRoleState != null && previousRoleState.isVisible()
+                && !mightQualifyingPackagesHaveChanged(role, previousRoleState,
+                        changedPackageNames, installedChangedPackageNames)) {
+            qualifyingPackageNames = previousRoleState.getQualifyingPackageNames();
+            visibleQualifyingApplicationInfos =
+                    previousRoleState.getVisibleQualifyingApplicationInfos();
+        } else if (visible) {
+            qualifyingPackageNames = role.getQualifyingPackagesAsUser(mUser, mContext);
+            visibleQualifyingApplicationInfos = new ArrayList<>();
+            int qualifyingPackageNamesSize = qualifyingPackageNames.size();
+            for (int i = 0; i < qualifyingPackageNamesSize; i++) {
+                String qualifyingPackageName = qualifyingPackageNames.get(i);
+
+                ApplicationInfo qualifyingApplicationInfo = getApplicationInfo(
+                        qualifyingPackageName);
+                if (qualifyingApplicationInfo == null) {
+                    Log.w(LOG_TAG, "Cannot get ApplicationInfo for application, skipping: "
+                            + qualifyingPackageName);
+                    continue;
+                }
+                if (!role.isApplicationVisibleAsUser(qualifyingApplicationInfo, mUser,
+                        mContext)) {
+                    continue;
+                }
+                visibleQualifyingApplicationInfos.add(qualifyingApplicationInfo);
+            }
+        }
+
+        if (previousRoleState != null && !holdersChanged) {
+            return new RoleState(role, available, visible, qualifyingPackageNames,
+                    visibleQualifyingApplicationInfos, previousRoleState.getHolderPackageNames(),
+                    previousRoleState.getHolderApplicationInfos());
+        }
+
+        RoleManager roleManager = mContext.getSystemService(RoleManager.class);
+        List<String> holderPackageNames = roleManager.getRoleHoldersAsUser(role.getName(), mUser);
+        List<ApplicationInfo> holderApplicationInfos = new ArrayList<>();
+        int holderPackageNamesSize = holderPackageNames.size();
+        for (int i = 0; i < holderPackageNamesSize; i++) {
+            String holderPackageName = holderPackageNames.get(i);
+
+            ApplicationInfo holderApplicationInfo = getApplicationInfo(holderPackageName);
+            if (holderApplicationInfo == null) {
+                Log.w(LOG_TAG, "Cannot get ApplicationInfo for application, package name: "
+                        + holderPackageName + ", user id: " + mUser.getIdentifier());
+                continue;
+            }
+            holderApplicationInfos.add(holderApplicationInfo);
+        }
+
+        return new RoleState(role, available, visible, qualifyingPackageNames,
+                visibleQualifyingApplicationInfos, holderPackageNames, holderApplicationInfos);
+    }
+
+    /**
+     * Check whether the qualifying packages of a role might have changed since the previous
+     * state was loaded.
+     *
+     * @param role the role
+     * @param previousRoleState the previous state of the role
+     * @param changedPackageNames the packages that changed since the previous state was loaded
+     * @param installedChangedPackageNames the changed packages that were not removed
+     *
+     * @return whether the qualifying packages of the role need to be loaded
+     */
+    @WorkerThread
+    private boolean mightQualifyingPackagesHaveChanged(@NonNull Role role,
+            @NonNull RoleState previousRoleState, @NonNull ArraySet<String> changedPackageNames,
+            @NonNull ArraySet<String> installedChangedPackageNames) {
+        // A qualifying package might not qualify anymore or its ApplicationInfo changed
+        if (containsAny(changedPackageNames, previousRoleState.getQualifyingPackageNames())) {
+            return true;
+        }
+
+        // Only checks the components of the changed packages, instead of all packages
+        int installedChangedPackageNamesSize = installedChangedPackageNames.size();
+        for (int i = 0; i < installedChangedPackageNamesSize; i++) {
+            if (role.mightPackageBeQualifiedAsUser(installedChangedPackageNames.valueAt(i), mUser,
+                    mContext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nullable
+    @WorkerThread
+    private ApplicationInfo getApplicationInfo(@NonNull String packageName) {
+        int index = mApplicationInfos.indexOfKey(packageName);
+        if (index >= 0) {
+            return mApplicationInfos.valueAt(index);
+        }
+
+        ApplicationInfo applicationInfo = PackageUtils.getApplicationInfoAsUser(packageName,
+                mUser, mContext);
+        mApplicationInfos.put(packageName, applicationInfo);
+        return applicationInfo;
+    }
+
+    private static boolean containsAny(@NonNull ArraySet<String> set,
+            @NonNull List<String> list) {
+        int listSize = list.size();
+        for (int i = 0; i < listSize; i++) {
+            if (set.contains(list.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
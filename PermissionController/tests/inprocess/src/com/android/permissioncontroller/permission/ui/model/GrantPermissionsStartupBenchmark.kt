@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.ui.model
+
+import android.Manifest.permission.CAMERA
+import android.Manifest.permission_group
+import android.app.Application
+import android.os.Bundle
+import android.os.SystemClock
+import android.util.Log
+import androidx.lifecycle.Observer
+import androidx.lifecycle.ViewModelProvider
+import androidx.lifecycle.ViewModelStore
+import androidx.test.platform.app.InstrumentationRegistry
+import com.android.permissioncontroller.permission.ui.installTestAppThatUsesCameraPermission
+import com.android.permissioncontroller.permission.ui.model.GrantPermissionsViewModel.RequestInfo
+import com.android.permissioncontroller.permission.ui.uninstallTestApps
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.TimeUnit.NANOSECONDS
+
+private const val PKG = "com.android.permissioncontroller.tests.appthatrequestpermission"
+
+private const val WARMUP_ITERATIONS = 3
+private const val ITERATIONS = 20
+private const val TIMEOUT_MILLIS = 10000L
+
+/**
+ * Measures the time from creating a [GrantPermissionsViewModel] until the first request of the
+ * grant permissions dialog is available, i.e. until the dialog can draw its first frame.
+ */
+class GrantPermissionsStartupBenchmark {
+    private val LOG_TAG = GrantPermissionsStartupBenchmark::class.java.simpleName
+
+    private val instrumentation = InstrumentationRegistry.getInstrumentation()
+    private val app = instrumentation.targetContext.applicationContext as Application
+
+    @Before
+    fun installApp() {
+        installTestAppThatUsesCameraPermission()
+    }
+
+    /**
+     * Create a view model, wait for its first list of requests and then clear it, like the
+     * activity does when it is finished. Hence iterations do not keep each other's LiveDatas
+     * active.
+     *
+     * @return The time until the first list of requests was available in nanoseconds
+     */
+    private fun measureTimeToFirstRequest(): Long {
+        val firstRequest = CompletableFuture<Pair<Long, List<RequestInfo>?>>()
+        val observer = Observer<List<RequestInfo>?> { requests ->
+            firstRequest.complete(SystemClock.elapsedRealtimeNanos() to requests)
+        }
+        val viewModelStore = ViewModelStore()
+        lateinit var viewModel: GrantPermissionsViewModel
+        var startTime = 0L
+
+        instrumentation.runOnMainSync {
+            startTime = SystemClock.elapsedRealtimeNanos()
+
+            viewModel = ViewModelProvider(viewModelStore, GrantPermissionsViewModelFactory(app,
+                PKG, arrayOf(CAMERA), 0, null)).get(GrantPermissionsViewModel::class.java)
+            viewModel.requestInfosLiveData.observeForever(observer)
+        }
+
+        try {
+            val (endTime, requests) = firstRequest.get(TIMEOUT_MILLIS, MILLISECONDS)
+            assertThat(requests!!.map { it.groupName }).containsExactly(permission_group.CAMERA)
+
+            return endTime - startTime
+        } finally {
+            instrumentation.runOnMainSync {
+                viewModel.requestInfosLiveData.removeObserver(observer)
+                // Calls onCleared() of the view model
+                viewModelStore.clear()
+            }
+        }
+    }
+
+    @Test
+    fun timeToFirstRequest() {
+        repeat(WARMUP_ITERATIONS) {
+            measureTimeToFirstRequest()
+        }
+
+        val times = List(ITERATIONS) { measureTimeToFirstRequest() }.sorted()
+        val medianMillis = NANOSECONDS.toMillis(times[ITERATIONS / 2])
+        val maxMillis = NANOSECONDS.toMillis(times.last())
+
+        Log.i(LOG_TAG, "Time to first request: median ${medianMillis}ms, max ${maxMillis}ms")
+        instrumentation.sendStatus(0, Bundle().apply {
+            putLong("time_to_first_request_median_ms", medianMillis)
+            putLong("time_to_first_request_max_ms", maxMillis)
+        })
+    }
+
+    @After
+    fun uninstallApp() {
+        uninstallTestApps()
+    }
+}
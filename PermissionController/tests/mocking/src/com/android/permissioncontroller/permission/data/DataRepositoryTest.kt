@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.app.ActivityManager
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito.mock
+import org.mockito.MockitoSession
+import org.mockito.quality.Strictness
+import org.mockito.Mockito.`when` as whenever
+
+private const val TEST_PKG_NAME = "com.example.test"
+private const val OTHER_PKG_NAME = "com.example.other"
+
+@RunWith(AndroidJUnit4::class)
+class DataRepositoryTest {
+    private val instrumentation = InstrumentationRegistry.getInstrumentation()
+    private var mockitoSession: MockitoSession? = null
+
+    @Before
+    fun mockApplication() {
+        val application = mock(PermissionControllerApplication::class.java)
+        val activityManager = mock(ActivityManager::class.java)
+        whenever(activityManager.memoryClass).thenReturn(256)
+        whenever(application.getSystemService(ActivityManager::class.java)).thenReturn(
+            activityManager)
+
+        mockitoSession = mockitoSession().mockStatic(PermissionControllerApplication::class.java)
+            .strictness(Strictness.LENIENT).startMocking()
+        whenever(PermissionControllerApplication.get()).thenReturn(application)
+    }
+
+    @After
+    fun finishMocking() {
+        mockitoSession?.finishMocking()
+    }
+
+    /**
+     * A value that is active iff [isActive] is set.
+     */
+    private class TestValue : DataRepository.InactiveTimekeeper {
+        override var timeWentInactive: Long? = System.nanoTime()
+        override var onInactiveChanged: (() -> Unit)? = null
+
+        var isActive: Boolean
+            get() = timeWentInactive == null
+            set(value) {
+                timeWentInactive = if (value) null else System.nanoTime()
+                onInactiveChanged?.invoke()
+            }
+    }
+
+    private class TestRepository(
+        override val maxInactiveEntries: Int,
+        override val neverActiveGraceMillis: Long = 0
+    ) : DataRepositoryForPackage<Any, TestValue>() {
+        override fun newValue(key: Any): TestValue {
+            return TestValue()
+        }
+
+        val keys: Set<Any>
+            get() = synchronized(lock) { data.keys.toSet() }
+    }
+
+    /**
+     * Run [block] on the main thread and then all evictions it caused.
+     */
+    private fun <T> runOnMainAndTrim(block: () -> T): T {
+        var result: T? = null
+        instrumentation.runOnMainSync { result = block() }
+        instrumentation.waitForIdleSync()
+        @Suppress("UNCHECKED_CAST")
+        return result as T
+    }
+
+    @Test
+    fun inactiveValuesAreTrimmedToMax() {
+        val repository = TestRepository(maxInactiveEntries = 2)
+
+        runOnMainAndTrim {
+            for (i in 1..4) {
+                repository[TEST_PKG_NAME to i].isActive = true
+            }
+            for (i in 1..4) {
+                repository[TEST_PKG_NAME to i].isActive = false
+            }
+        }
+
+        assertThat(repository.keys).containsExactly(TEST_PKG_NAME to 3, TEST_PKG_NAME to 4)
+    }
+
+    @Test
+    fun leastRecentlyInactiveValueIsEvictedFirst() {
+        val repository = TestRepository(maxInactiveEntries = 2)
+        val values = runOnMainAndTrim {
+            List(3) { repository[TEST_PKG_NAME to it].apply { isActive = true } }
+        }
+
+        runOnMainAndTrim {
+            values[0].isActive = false
+            values[1].isActive = false
+            values[2].isActive = false
+            // Losing the observers again makes a value the newest inactive value
+            values[0].isActive = true
+            values[0].isActive = false
+        }
+
+        assertThat(repository.keys).containsExactly(TEST_PKG_NAME to 0, TEST_PKG_NAME to 2)
+    }
+
+    @Test
+    fun activeValuesAreNotEvicted() {
+        val repository = TestRepository(maxInactiveEntries = 0)
+
+        runOnMainAndTrim {
+            repository[TEST_PKG_NAME to 0].isActive = true
+            repository[TEST_PKG_NAME to 1].isActive = true
+            repository[TEST_PKG_NAME to 1].isActive = false
+        }
+
+        assertThat(repository.keys).containsExactly(TEST_PKG_NAME to 0)
+    }
+
+    @Test
+    fun neverActiveValuesCountAfterGracePeriod() {
+        val repository = TestRepository(maxInactiveEntries = 1)
+
+        runOnMainAndTrim {
+            for (i in 1..3) {
+                repository[TEST_PKG_NAME to i]
+            }
+        }
+
+        assertThat(repository.keys).containsExactly(TEST_PKG_NAME to 3)
+    }
+
+    @Test
+    fun neverActiveValuesAreKeptDuringGracePeriod() {
+        val repository = TestRepository(maxInactiveEntries = 1,
+            neverActiveGraceMillis = 60_000)
+
+        runOnMainAndTrim {
+            for (i in 1..3) {
+                repository[TEST_PKG_NAME to i]
+            }
+        }
+
+        assertThat(repository.keys).hasSize(3)
+    }
+
+    @Test
+    fun invalidateAllForPackageOnlyRemovesValuesOfPackage() {
+        val repository = TestRepository(maxInactiveEntries = 10)
+        runOnMainAndTrim {
+            repository[TEST_PKG_NAME to 0]
+            repository[Triple(TEST_PKG_NAME, 0, 0)]
+            repository[OTHER_PKG_NAME to 0]
+            repository[Triple(OTHER_PKG_NAME, 0, 0)]
+        }
+
+        repository.invalidateAllForPackage(TEST_PKG_NAME)
+
+        assertThat(repository.keys).containsExactly(OTHER_PKG_NAME to 0,
+            Triple(OTHER_PKG_NAME, 0, 0))
+    }
+
+    /**
+     * Evict a value that is still held by the caller.
+     */
+    private fun evictHeldValue(repository: TestRepository, key: Any): TestValue {
+        val value = runOnMainAndTrim { repository[key].apply { isActive = true } }
+        runOnMainAndTrim { value.isActive = false }
+        assertThat(repository.keys).doesNotContain(key)
+        return value
+    }
+
+    @Test
+    fun evictedValueStillHeldIsReturnedAgain() {
+        val repository = TestRepository(maxInactiveEntries = 0)
+        val value = evictHeldValue(repository, TEST_PKG_NAME to 0)
+
+        assertThat(runOnMainAndTrim { repository[TEST_PKG_NAME to 0] }).isSameInstanceAs(value)
+    }
+
+    @Test
+    fun evictedValueStillHeldIsAdoptedAgainWhenActive() {
+        val repository = TestRepository(maxInactiveEntries = 0)
+        val value = evictHeldValue(repository, TEST_PKG_NAME to 0)
+
+        runOnMainAndTrim { value.isActive = true }
+
+        assertThat(repository.keys).containsExactly(TEST_PKG_NAME to 0)
+    }
+
+    @Test
+    fun evictedValueStillHeldThenPackageInvalidated() {
+        val repository = TestRepository(maxInactiveEntries = 0)
+        val value = evictHeldValue(repository, TEST_PKG_NAME to 0)
+
+        repository.invalidateAllForPackage(TEST_PKG_NAME)
+        runOnMainAndTrim { value.isActive = true }
+
+        assertThat(repository.keys).isEmpty()
+        assertThat(runOnMainAndTrim { repository[TEST_PKG_NAME to 0] })
+            .isNotSameInstanceAs(value)
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.os.UserHandle
+import android.util.Log
+import androidx.lifecycle.Observer
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.android.permissioncontroller.permission.model.livedatatypes.AppPermGroupUiInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.AppPermGroupUiInfo.PermGrantState
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPermGroupInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.PermGroup
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.NANOSECONDS
+import java.util.concurrent.TimeUnit.SECONDS
+
+private const val NUM_PACKAGES = 500
+private const val GROUP_NAME = "android.permission-group.SYNTHETIC"
+
+private const val WARMUP_ITERATIONS = 5
+private const val ITERATIONS = 50
+
+/**
+ * Measures the initial load of a [SinglePermGroupPackagesUiInfoLiveData] for a permission group
+ * requested by [NUM_PACKAGES] synthetic packages, i.e. every package's UI info LiveData delivers
+ * its [AppPermGroupUiInfo] in its own main thread message, until the aggregated map is published.
+ * The LiveData publishes via a main thread handler once it collected the values of all packages
+ * for its batch delay of 16 ms, hence each iteration includes that delay.
+ */
+@RunWith(AndroidJUnit4::class)
+class SourceValueAggregatorBenchmark {
+    private val LOG_TAG = SourceValueAggregatorBenchmark::class.java.simpleName
+
+    private val instrumentation = InstrumentationRegistry.getInstrumentation()
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    private val user = UserHandle.of(0)
+    private val pkgs = List(NUM_PACKAGES) { "com.example.synthetic$it" to user }
+    private val uiInfos = List(NUM_PACKAGES) {
+        AppPermGroupUiInfo(shouldShow = true,
+            permGrantState = PermGrantState.values()[it % PermGrantState.values().size],
+            isSystem = it % 3 == 0, isUserSet = it % 5 == 0)
+    }
+    private val permGroup = PermGroup(LightPermGroupInfo(GROUP_NAME, "android", 0, 0, 0, false),
+        emptyMap())
+
+    /**
+     * A LiveData whose value is only set by the test.
+     */
+    private class SyntheticLiveData<T> : SmartUpdateMediatorLiveData<T>() {
+        override fun onUpdate() {}
+    }
+
+    /**
+     * Load the group once.
+     *
+     * @return The time from adding the packages until the map was published in nanoseconds
+     */
+    private fun loadGroup(): Long {
+        val published = CountDownLatch(1)
+        var startNanos = 0L
+        var endNanos = 0L
+
+        val permGroupLiveData = SyntheticLiveData<PermGroup>()
+        val packagesLiveData = SyntheticLiveData<Map<String, Set<Pair<String, UserHandle>>>>()
+        val uiInfoLiveDatas = pkgs.associateWith { SyntheticLiveData<AppPermGroupUiInfo>() }
+        lateinit var liveData: SinglePermGroupPackagesUiInfoLiveData
+        val observer = Observer<Map<Pair<String, UserHandle>, AppPermGroupUiInfo>?> {
+            if (it?.size == NUM_PACKAGES) {
+                endNanos = SystemClock.elapsedRealtimeNanos()
+                published.countDown()
+            }
+        }
+
+        instrumentation.runOnMainSync {
+            liveData = SinglePermGroupPackagesUiInfoLiveData(GROUP_NAME, permGroupLiveData,
+                packagesLiveData, uiInfoLiveDatas::getValue)
+            liveData.observeForever(observer)
+            permGroupLiveData.value = permGroup
+
+            startNanos = SystemClock.elapsedRealtimeNanos()
+            packagesLiveData.value = mapOf(GROUP_NAME to pkgs.toSet())
+        }
+
+        for ((i, pkg) in pkgs.withIndex()) {
+            mainHandler.post {
+                uiInfoLiveDatas.getValue(pkg).value = uiInfos[i]
+            }
+        }
+
+        assertThat(published.await(10, SECONDS)).isTrue()
+        instrumentation.runOnMainSync {
+            assertThat(liveData.value).hasSize(NUM_PACKAGES)
+            liveData.removeObserver(observer)
+        }
+
+        return endNanos - startNanos
+    }
+
+    @Test
+    fun initialLoad() {
+        repeat(WARMUP_ITERATIONS) {
+            loadGroup()
+        }
+
+        val times = List(ITERATIONS) { loadGroup() }.sorted()
+        val medianMicros = NANOSECONDS.toMicros(times[ITERATIONS / 2])
+
+        Log.i(LOG_TAG, "Initial load of $NUM_PACKAGES packages: ${medianMicros}us")
+        instrumentation.sendStatus(0, Bundle().apply {
+            putLong("initial_load_median_us", medianMicros)
+        })
+    }
+
+    @Test
+    fun snapshotIsOnlyCopiedAfterChange() {
+        val shownPackages = SourceValueAggregator<Pair<String, UserHandle>, AppPermGroupUiInfo>()
+        for ((i, pkg) in pkgs.withIndex()) {
+            shownPackages.addKey(pkg)
+            assertThat(shownPackages.isComplete).isFalse()
+            shownPackages.setValue(pkg, uiInfos[i])
+        }
+        assertThat(shownPackages.isComplete).isTrue()
+
+        val snapshot = shownPackages.snapshot()
+        shownPackages.setValue(pkgs[0], uiInfos[0])
+        assertThat(shownPackages.snapshot()).isSameInstanceAs(snapshot)
+
+        shownPackages.removeKey(pkgs[0])
+        assertThat(shownPackages.snapshot()).hasSize(NUM_PACKAGES - 1)
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.model
+
+import android.app.AppOpsManager.HistoricalOps
+import android.app.AppOpsManager.OP_FLAGS_ALL
+import android.content.Context
+import android.os.Process
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito.mock
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+import org.mockito.Mockito.`when` as whenever
+
+private const val TEST_PKG_NAME = "com.example.test"
+
+/** Passed as `runningSinceMillis` if no access is running */
+private const val NONE_RUNNING = Long.MAX_VALUE
+
+private val HOUR_MILLIS = TimeUnit.HOURS.toMillis(1)
+
+@RunWith(AndroidJUnit4::class)
+class HistoricalOpsCacheTest {
+    private val context = mock(Context::class.java)
+    private val fetcher = FakeFetcher()
+    private lateinit var cache: HistoricalOpsCache
+
+    @Before
+    fun createCache() {
+        cache = HistoricalOpsCache(fetcher)
+    }
+
+    private fun getHistoricalOps(
+        beginTimeMillis: Long,
+        filterPackageName: String? = null
+    ): List<HistoricalOps> {
+        return cache.getHistoricalOps(context, beginTimeMillis,
+            System.currentTimeMillis() + HOUR_MILLIS, OP_FLAGS_ALL, 0, Process.INVALID_UID,
+            filterPackageName, NONE_RUNNING)
+    }
+
+    @Test
+    fun missFetchesWholeWindow() {
+        val beginTimeMillis = System.currentTimeMillis() - 10 * HOUR_MILLIS
+
+        val ops = getHistoricalOps(beginTimeMillis)
+
+        val requests = fetcher.takeRequests().sortedBy { it.beginTimeMillis }
+        assertThat(requests.first().beginTimeMillis).isEqualTo(beginTimeMillis)
+        for (i in 1 until requests.size) {
+            assertThat(requests[i].beginTimeMillis).isEqualTo(requests[i - 1].endTimeMillis)
+        }
+        assertThat(ops).hasSize(requests.size)
+    }
+
+    @Test
+    fun missFetchesStableHistoryAndTailOnly() {
+        getHistoricalOps(System.currentTimeMillis() - 10 * HOUR_MILLIS)
+
+        assertThat(fetcher.takeRequests()).hasSize(2)
+    }
+
+    @Test
+    fun refreshOnlyFetchesNewHistory() {
+        val beginTimeMillis = System.currentTimeMillis() - 10 * HOUR_MILLIS
+        getHistoricalOps(beginTimeMillis)
+        val firstRequests = fetcher.takeRequests()
+        // Let the refresh interval pass
+        Thread.sleep(1100)
+
+        getHistoricalOps(beginTimeMillis)
+
+        val stableUntilMillis = firstRequests.maxOf { it.beginTimeMillis }
+        for (request in fetcher.takeRequests()) {
+            assertThat(request.beginTimeMillis).isAtLeast(stableUntilMillis)
+        }
+    }
+
+    @Test
+    fun hitDoesNotFetch() {
+        val beginTimeMillis = System.currentTimeMillis() - 10 * HOUR_MILLIS
+        val ops = getHistoricalOps(beginTimeMillis)
+        fetcher.takeRequests()
+
+        assertThat(getHistoricalOps(beginTimeMillis)).isEqualTo(ops)
+        assertThat(fetcher.takeRequests()).isEmpty()
+    }
+
+    @Test
+    fun otherFilterIsNotShared() {
+        val beginTimeMillis = System.currentTimeMillis() - 10 * HOUR_MILLIS
+        getHistoricalOps(beginTimeMillis)
+        fetcher.takeRequests()
+
+        getHistoricalOps(beginTimeMillis, TEST_PKG_NAME)
+        assertThat(fetcher.takeRequests()).isNotEmpty()
+    }
+
+    @Test
+    fun movedWindowDoesNotReturnOpsBeforeWindow() {
+        val now = System.currentTimeMillis()
+        getHistoricalOps(now - 10 * HOUR_MILLIS)
+        fetcher.takeRequests()
+
+        // In the middle of a slice
+        val movedBeginTimeMillis = now - 5 * HOUR_MILLIS - HOUR_MILLIS / 2
+        val ops = getHistoricalOps(movedBeginTimeMillis)
+
+        val requests = fetcher.takeRequests()
+        assertThat(requests.map { it.beginTimeMillis }).contains(movedBeginTimeMillis)
+        for (request in requests) {
+            assertThat(request.beginTimeMillis).isAtLeast(movedBeginTimeMillis)
+        }
+        assertThat(ops).isNotEmpty()
+        for (slice in ops) {
+            assertThat(slice.beginTimeMillis).isAtLeast(movedBeginTimeMillis)
+        }
+    }
+
+    @Test
+    fun windowMovedBackIsFetchedAgain() {
+        val now = System.currentTimeMillis()
+        getHistoricalOps(now - 10 * HOUR_MILLIS)
+        fetcher.takeRequests()
+
+        getHistoricalOps(now - 20 * HOUR_MILLIS)
+
+        val requests = fetcher.takeRequests().sortedBy { it.beginTimeMillis }
+        assertThat(requests.first().beginTimeMillis).isEqualTo(now - 20 * HOUR_MILLIS)
+    }
+
+    @Test
+    fun concurrentCallsShareFetch() {
+        val beginTimeMillis = System.currentTimeMillis() - 10 * HOUR_MILLIS
+        fetcher.completeImmediately = false
+
+        var firstOps: List<HistoricalOps>? = null
+        val first = thread { firstOps = getHistoricalOps(beginTimeMillis) }
+        fetcher.awaitRequests()
+
+        var secondOps: List<HistoricalOps>? = null
+        val second = thread { secondOps = getHistoricalOps(beginTimeMillis) }
+        // Give the second call the chance to wait for the pending fetch
+        Thread.sleep(100)
+        fetcher.completeAll()
+        first.join()
+        second.join()
+
+        // The second call did not fetch again
+        assertThat(firstOps).hasSize(fetcher.takeRequests().size)
+        assertThat(secondOps).isEqualTo(firstOps)
+    }
+
+    @Test
+    fun pendingFetchDoesNotDelayStaleData() {
+        val now = System.currentTimeMillis()
+        getHistoricalOps(now - 10 * HOUR_MILLIS)
+        fetcher.takeRequests()
+
+        // Move the window, but the system does not answer
+        fetcher.completeImmediately = false
+        val movedBeginTimeMillis = now - 5 * HOUR_MILLIS
+        val first = thread { getHistoricalOps(movedBeginTimeMillis) }
+        fetcher.awaitRequests()
+
+        val startMillis = System.currentTimeMillis()
+        val ops = getHistoricalOps(movedBeginTimeMillis)
+
+        assertThat(System.currentTimeMillis() - startMillis).isLessThan(
+            TimeUnit.SECONDS.toMillis(10))
+        assertThat(ops).isNotEmpty()
+
+        fetcher.completeAll()
+        first.join()
+    }
+
+    /**
+     * Pretends to be the system, every fetch returns ops for the requested window.
+     */
+    private class FakeFetcher : HistoricalOpsCache.Fetcher {
+        private val lock = Object()
+        private val requests = mutableListOf<Request>()
+
+        /** If not set, the requests only complete on [completeAll] */
+        @Volatile
+        var completeImmediately = true
+
+        override fun fetch(
+            context: Context,
+            beginTimeMillis: Long,
+            endTimeMillis: Long,
+            flags: Int,
+            historyFlags: Int,
+            filterUid: Int,
+            filterPackageName: String?
+        ): CompletableFuture<HistoricalOps> {
+            val request = Request(beginTimeMillis, endTimeMillis)
+            synchronized(lock) {
+                requests.add(request)
+                lock.notifyAll()
+            }
+
+            if (completeImmediately) {
+                request.complete()
+            }
+            return request.result
+        }
+
+        /**
+         * Wait until there is at least one request.
+         */
+        fun awaitRequests() {
+            synchronized(lock) {
+                while (requests.isEmpty()) {
+                    lock.wait()
+                }
+            }
+        }
+
+        fun completeAll() {
+            synchronized(lock) {
+                requests.forEach { it.complete() }
+            }
+        }
+
+        /**
+         * @return The requests since the last call
+         */
+        fun takeRequests(): List<Request> {
+            synchronized(lock) {
+                val taken = requests.toList()
+                requests.clear()
+                return taken
+            }
+        }
+    }
+
+    private class Request(val beginTimeMillis: Long, val endTimeMillis: Long) {
+        val result = CompletableFuture<HistoricalOps>()
+
+        fun complete() {
+            val ops = mock(HistoricalOps::class.java)
+            whenever(ops.beginTimeMillis).thenReturn(beginTimeMillis)
+            whenever(ops.endTimeMillis).thenReturn(endTimeMillis)
+            result.complete(ops)
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.model
+
+import android.app.AppOpsManager
+import android.app.AppOpsManager.OPSTR_CAMERA
+import android.app.AppOpsManager.OP_FLAGS_ALL
+import android.app.AppOpsManager.OpEntry
+import android.app.AppOpsManager.PackageOps
+import android.app.LoaderManager
+import android.content.Context
+import android.media.AudioManager
+import android.os.Process
+import android.os.UserManager
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.android.permissioncontroller.permission.model.PermissionUsages.USAGE_FLAG_LAST
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.any
+import org.mockito.Mock
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.never
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+import org.mockito.MockitoAnnotations.initMocks
+import org.mockito.Mockito.`when` as whenever
+
+private const val TEST_PKG_NAME = "com.example.test"
+private const val TEST_UID = 10123
+
+private const val BEGIN_TIME_MILLIS = 1_000_000L
+private const val END_TIME_MILLIS = 2_000_000L
+
+@RunWith(AndroidJUnit4::class)
+class PermissionUsagesTest {
+    @Mock
+    lateinit var context: Context
+    @Mock
+    lateinit var appOpsManager: AppOpsManager
+    @Mock
+    lateinit var audioManager: AudioManager
+    @Mock
+    lateinit var userManager: UserManager
+
+    @Before
+    fun initSystem() {
+        initMocks(this)
+
+        whenever(context.applicationContext).thenReturn(context)
+        whenever(context.getSystemService(AppOpsManager::class.java)).thenReturn(appOpsManager)
+        whenever(context.getSystemService(AudioManager::class.java)).thenReturn(audioManager)
+        whenever(context.getSystemService(UserManager::class.java)).thenReturn(userManager)
+
+        whenever(audioManager.activeRecordingConfigurations).thenReturn(emptyList())
+        // No usage is turned into an AppPermissionGroup, the test only checks which apps are
+        // considered to have used a group
+        whenever(userManager.userProfiles).thenReturn(emptyList())
+    }
+
+    /**
+     * Pretend the test package last accessed the camera at a time.
+     *
+     * @param lastAccessTimeMillis When the camera was last accessed
+     */
+    private fun setLastCameraAccess(lastAccessTimeMillis: Long) {
+        val opEntry = mock(OpEntry::class.java)
+        whenever(opEntry.opStr).thenReturn(OPSTR_CAMERA)
+        whenever(opEntry.isRunning).thenReturn(false)
+        whenever(opEntry.getLastAccessTime(OP_FLAGS_ALL)).thenReturn(lastAccessTimeMillis)
+
+        val packageOps = mock(PackageOps::class.java)
+        whenever(packageOps.packageName).thenReturn(TEST_PKG_NAME)
+        whenever(packageOps.uid).thenReturn(TEST_UID)
+        whenever(packageOps.ops).thenReturn(listOf(opEntry))
+
+        whenever(appOpsManager.getPackagesForOps(any<Array<String>>())).thenReturn(
+            listOf(packageOps))
+    }
+
+    private fun loadLastUsages(): List<AppPermissionUsage> {
+        return PermissionUsages.UsageLoader(context, PermissionUsages.createLoaderArgs(
+            Process.INVALID_UID, null, null, BEGIN_TIME_MILLIS, END_TIME_MILLIS, USAGE_FLAG_LAST,
+            false)).loadInBackground()
+    }
+
+    @Test
+    fun accessBeforeWindowIsNotUsed() {
+        setLastCameraAccess(BEGIN_TIME_MILLIS - 1)
+
+        assertThat(loadLastUsages()).isEmpty()
+        verify(audioManager, never()).activeRecordingConfigurations
+    }
+
+    @Test
+    fun accessAfterWindowIsNotUsed() {
+        setLastCameraAccess(END_TIME_MILLIS + 1)
+
+        assertThat(loadLastUsages()).isEmpty()
+        verify(audioManager, never()).activeRecordingConfigurations
+    }
+
+    @Test
+    fun accessInWindowIsUsed() {
+        setLastCameraAccess(BEGIN_TIME_MILLIS)
+
+        loadLastUsages()
+        verify(audioManager).activeRecordingConfigurations
+    }
+
+    @Test
+    fun loadWithoutUsageNotifiesEmptyUsages() {
+        whenever(appOpsManager.getPackagesForOps(any<Array<String>>())).thenReturn(emptyList())
+        val callback = mock(PermissionUsages.PermissionsUsagesChangeCallback::class.java)
+        val permissionUsages = PermissionUsages(context)
+
+        permissionUsages.load(null, null, BEGIN_TIME_MILLIS, END_TIME_MILLIS, USAGE_FLAG_LAST,
+            mock(LoaderManager::class.java), false, callback, true)
+
+        verify(callback).onPermissionUsagesChanged()
+        assertThat(permissionUsages.usages).isEmpty()
+    }
+
+    @Test
+    fun loaderResetDoesNotNotifyEmptyUsages() {
+        whenever(appOpsManager.getPackagesForOps(any<Array<String>>())).thenReturn(emptyList())
+        val callback = mock(PermissionUsages.PermissionsUsagesChangeCallback::class.java)
+        val permissionUsages = PermissionUsages(context)
+        permissionUsages.load(null, null, BEGIN_TIME_MILLIS, END_TIME_MILLIS, USAGE_FLAG_LAST,
+            mock(LoaderManager::class.java), false, callback, true)
+
+        permissionUsages.onLoaderReset(mock(PermissionUsages.UsageLoader::class.java))
+
+        // Only the load notified, a stopped loader must not look like a load without usage
+        verify(callback, times(1)).onPermissionUsagesChanged()
+    }
+}
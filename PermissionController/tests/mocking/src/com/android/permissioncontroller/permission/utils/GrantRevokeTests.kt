@@ -1094,4 +1094,68 @@ class GrantRevokeTests {
         val expectedState = mutableMapOf(FG_PERM_NAME to (false to newFlags))
         assertGroupPermState(newGroup, expectedState)
     }
+
+    /**
+     * Test the calls into the system when granting the foreground permissions of a group. Every
+     * permission should be granted and get its flags updated once, and every app op should be
+     * checked and set once.
+     */
+    @Test
+    fun grantTwoPermIpcCountTest() {
+        val pkg = createMockPackage(mapOf(FG_PERM_NAME to false, FG_PERM_2_NAME to false,
+            BG_PERM_NAME to false))
+        val perms = mutableMapOf<String, LightPermission>()
+        perms[FG_PERM_NAME] = createMockPerm(pkg, FG_PERM_NAME, BG_PERM_NAME)
+        perms[FG_PERM_2_NAME] = createMockPerm(pkg, FG_PERM_2_NAME, BG_PERM_NAME)
+        perms[BG_PERM_NAME] = createMockPerm(pkg, BG_PERM_NAME, null,
+            listOf(FG_PERM_NAME, FG_PERM_2_NAME))
+        val group = createMockGroup(pkg, perms)
+        resetMockAppState()
+        AppPermGroupMutations.resetIpcCounts()
+
+        KotlinUtils.grantForegroundRuntimePermissions(app, group)
+
+        assertThat(AppPermGroupMutations.getIpcCount(AppPermGroupMutations.Ipc.GRANT))
+            .isEqualTo(2)
+        assertThat(AppPermGroupMutations.getIpcCount(AppPermGroupMutations.Ipc.REVOKE))
+            .isEqualTo(0)
+        assertThat(AppPermGroupMutations.getIpcCount(AppPermGroupMutations.Ipc.UPDATE_FLAGS))
+            .isEqualTo(2)
+        assertThat(AppPermGroupMutations.getIpcCount(AppPermGroupMutations.Ipc.CHECK_APP_OP))
+            .isEqualTo(2)
+        assertThat(AppPermGroupMutations.getIpcCount(AppPermGroupMutations.Ipc.SET_APP_OP))
+            .isEqualTo(2)
+        assertThat(AppPermGroupMutations.getIpcCount(AppPermGroupMutations.Ipc.KILL_UID))
+            .isEqualTo(0)
+    }
+
+    /**
+     * Test granting a background permission with two granted foreground permissions, where one
+     * app op is already allowed. Only the other app op should be set.
+     */
+    @Test
+    fun grantBgPermAppOpAlreadySetTest() {
+        val pkg = createMockPackage(mapOf(FG_PERM_NAME to true, FG_PERM_2_NAME to true,
+            BG_PERM_NAME to false))
+        val perms = mutableMapOf<String, LightPermission>()
+        perms[FG_PERM_NAME] = createMockPerm(pkg, FG_PERM_NAME, BG_PERM_NAME)
+        perms[FG_PERM_2_NAME] = createMockPerm(pkg, FG_PERM_2_NAME, BG_PERM_NAME)
+        perms[BG_PERM_NAME] = createMockPerm(pkg, BG_PERM_NAME, null,
+            listOf(FG_PERM_NAME, FG_PERM_2_NAME))
+        val group = createMockGroup(pkg, perms)
+        resetMockAppState()
+        val aom = app.getSystemService(AppOpsManager::class.java)
+        `when`(aom.unsafeCheckOpRaw(OP_2_NAME, TEST_UID, TEST_PACKAGE_NAME))
+            .thenReturn(MODE_ALLOWED)
+        AppPermGroupMutations.resetIpcCounts()
+
+        KotlinUtils.grantBackgroundRuntimePermissions(app, group)
+
+        verifyAppOpState(appOpName = OP_NAME, expectAppOpSet = true, expectedMode = MODE_ALLOWED)
+        verifyAppOpState(appOpName = OP_2_NAME, expectAppOpSet = false)
+        assertThat(AppPermGroupMutations.getIpcCount(AppPermGroupMutations.Ipc.CHECK_APP_OP))
+            .isEqualTo(2)
+        assertThat(AppPermGroupMutations.getIpcCount(AppPermGroupMutations.Ipc.SET_APP_OP))
+            .isEqualTo(1)
+    }
 }